@@ -21,6 +21,9 @@ package ai;
  * 			Albert Cardona (acardona@ini.phys.ethz.ch)
  */
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
@@ -551,6 +554,48 @@ public class BalancedRandomForest extends AbstractClassifier implements Randomiz
 				+ " not supported (Bagging)");
 		}
 	}
+
+
+	/**
+	 * Write the forest in compact form: its options and out of bag error
+	 * followed by the nodes of every tree (see
+	 * <code>BalancedRandomTree.writeCompact</code>). The attribute header
+	 * is not included and must be stored by the caller.
+	 *
+	 * @param out output to write to
+	 * @throws IOException if writing fails
+	 * @throws IllegalStateException if the forest has not been built
+	 */
+	public void writeCompact(final DataOutput out) throws IOException
+	{
+		if( null == tree )
+			throw new IllegalStateException( "Only built forests can be written in compact form" );
+		out.writeInt( seed );
+		out.writeInt( numFeatures );
+		out.writeDouble( outOfBagError );
+		out.writeInt( numTrees );
+		for( int i = 0; i < numTrees; i++ )
+			tree[ i ].writeCompact( out );
+	}
+
+	/**
+	 * Read a forest written in compact form
+	 *
+	 * @param in buffer to read from (positioned at the forest data)
+	 * @return balanced random forest, ready to classify
+	 */
+	public static BalancedRandomForest readCompact(final ByteBuffer in)
+	{
+		final BalancedRandomForest forest = new BalancedRandomForest();
+		forest.seed = in.getInt();
+		forest.numFeatures = in.getInt();
+		forest.outOfBagError = in.getDouble();
+		forest.numTrees = in.getInt();
+		forest.tree = new BalancedRandomTree[ forest.numTrees ];
+		for( int i = 0; i < forest.numTrees; i++ )
+			forest.tree[ i ] = BalancedRandomTree.readCompact( in );
+		return forest;
+	}
 	
 	
 	/**
@@ -23,7 +23,10 @@ package ai;
 
 import ij.IJ;
 
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.LinkedList;
 
@@ -42,6 +45,15 @@ public class BalancedRandomTree implements Serializable
 	/** root node */
 	private final BaseNode rootNode;
 
+	/** compact form code of an empty tree */
+	private static final byte NO_NODE = 0;
+	/** compact form code of a leaf node */
+	private static final byte LEAF = 1;
+	/** compact form code of an interior node with two sons */
+	private static final byte SPLIT_NODE = 2;
+	/** compact form code of an interior node with only a left son */
+	private static final byte LEFT_NODE = 3;
+
 	/**
 	 * Build random tree for a balanced random forest  
 	 * 
@@ -54,6 +66,17 @@ public class BalancedRandomTree implements Serializable
 		this.rootNode = createNode( data, bagIndices, splitter );
 	}
 
+	/**
+	 * Read a random tree written in compact form
+	 * (see <code>writeCompact</code>)
+	 * 
+	 * @param in buffer to read from
+	 */
+	private BalancedRandomTree(final ByteBuffer in)
+	{
+		this.rootNode = readNodes( in );
+	}
+
 	/**
 	 * Build the random tree based on the data specified 
 	 * in the constructor 
@@ -83,6 +106,118 @@ public class BalancedRandomTree implements Serializable
 	}
 
 
+	/**
+	 * Write the tree in compact form: its nodes in pre-order, each of them
+	 * with its type and either its split (attribute index, threshold and
+	 * all-same flag) or its class probabilities.
+	 * 
+	 * @param out output to write to
+	 * @throws IOException if writing fails
+	 */
+	public void writeCompact(final DataOutput out) throws IOException
+	{
+		if( null == rootNode )
+		{
+			out.writeByte( NO_NODE );
+			return;
+		}
+		// Write the nodes non-recursively
+		final LinkedList<BaseNode> remainingNodes = new LinkedList<BaseNode>();
+		remainingNodes.add( rootNode );
+		while( !remainingNodes.isEmpty() )
+		{
+			final BaseNode node = remainingNodes.removeLast();
+			if( node instanceof LeafNode )
+			{
+				final double[] probability = ((LeafNode) node).probability;
+				out.writeByte( LEAF );
+				out.writeInt( probability.length );
+				for( final double p : probability )
+					out.writeDouble( p );
+			}
+			else
+			{
+				final InteriorNode interior = (InteriorNode) node;
+				out.writeByte( null == interior.right ? LEFT_NODE : SPLIT_NODE );
+				out.writeInt( interior.splitFn.getIndex() );
+				out.writeDouble( interior.splitFn.getThreshold() );
+				out.writeBoolean( interior.splitFn.isAllSame() );
+				// the left son is written first
+				if( null != interior.right )
+					remainingNodes.add( interior.right );
+				remainingNodes.add( interior.left );
+			}
+		}
+	}
+
+	/**
+	 * Read a random tree written in compact form
+	 * 
+	 * @param in buffer to read from
+	 * @return random tree
+	 */
+	public static BalancedRandomTree readCompact(final ByteBuffer in)
+	{
+		return new BalancedRandomTree( in );
+	}
+
+	/**
+	 * Read the nodes of a tree written in compact form (non-recursively)
+	 * 
+	 * @param in buffer to read from
+	 * @return root node
+	 */
+	private BaseNode readNodes(final ByteBuffer in)
+	{
+		BaseNode root = null;
+		// interior nodes still waiting for sons, and whether they have a right son
+		final LinkedList<InteriorNode> parents = new LinkedList<InteriorNode>();
+		final LinkedList<Boolean> parentsWithRight = new LinkedList<Boolean>();
+		do
+		{
+			final byte type = in.get();
+			final BaseNode node;
+			if( NO_NODE == type )
+				return null;
+			else if( LEAF == type )
+			{
+				final double[] probability = new double[ in.getInt() ];
+				in.asDoubleBuffer().get( probability );
+				in.position( in.position() + 8 * probability.length );
+				node = new LeafNode( probability );
+			}
+			else
+			{
+				final int depth = parents.isEmpty() ? 0 : parents.getLast().depth + 1;
+				node = new InteriorNode( depth, new GiniFunction(
+						in.getInt(), in.getDouble(), in.get() != 0 ) );
+			}
+
+			if( parents.isEmpty() )
+				root = node;
+			else
+			{
+				final InteriorNode parent = parents.getLast();
+				if( null == parent.left )
+					parent.left = node;
+				else
+					parent.right = node;
+				if( null != parent.right || !parentsWithRight.getLast() )
+				{
+					parents.removeLast();
+					parentsWithRight.removeLast();
+				}
+			}
+			if( node instanceof InteriorNode )
+			{
+				parents.add( (InteriorNode) node );
+				parentsWithRight.add( SPLIT_NODE == type );
+			}
+		}
+		while( !parents.isEmpty() );
+		return root;
+	}
+
 	/**
 	 * Basic node of the tree
 	 *
@@ -207,4 +207,38 @@ public class GiniFunction extends SplitFunction
 		return new GiniFunction(this.numOfFeatures, this.random);
 	}
 
+	/**
+	 * Constructs an already initialized Gini function (used to
+	 * restore trees saved in compact form, it cannot be re-initialized)
+	 * 
+	 * @param index index of the splitting attribute
+	 * @param threshold threshold value of the splitting point
+	 * @param allSame flag to identify when all samples belong to the same class
+	 */
+	GiniFunction(int index, double threshold, boolean allSame)
+	{
+		this.index = index;
+		this.threshold = threshold;
+		this.allSame = allSame;
+		this.random = null;
+	}
+
+	@Override
+	public int getIndex()
+	{
+		return index;
+	}
+
+	@Override
+	public double getThreshold()
+	{
+		return threshold;
+	}
+
+	@Override
+	public boolean isAllSame()
+	{
+		return allSame;
+	}
+
 }
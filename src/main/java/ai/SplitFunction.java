@@ -18,4 +18,32 @@ public abstract class SplitFunction implements Serializable
 	public abstract void init(final Instances data, final ArrayList<Integer> indices);
 	public abstract boolean evaluate(final Instance instance);
 	public abstract SplitFunction newInstance();
+
+	/**
+	 * Get the index of the splitting attribute
+	 * @return attribute index
+	 */
+	public int getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * Get the threshold value of the splitting point
+	 * @return threshold value
+	 */
+	public double getThreshold()
+	{
+		return threshold;
+	}
+
+	/**
+	 * Check if all samples belong to the same class (so
+	 * every instance is sent to the left)
+	 * @return true if all samples belong to the same class
+	 */
+	public boolean isAllSame()
+	{
+		return allSame;
+	}
 }
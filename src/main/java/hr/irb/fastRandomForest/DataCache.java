@@ -21,8 +21,14 @@
 
 package hr.irb.fastRandomForest;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import weka.core.Instances;
 
@@ -83,10 +89,12 @@ public class DataCache {
   protected Random reusableRandomGenerator = null;
 
 
-  /** Randomizes one attribute in the vals[][]; returns a copy of the vals[] 
-   * before randomization. */
+  /** Randomizes one attribute in the vals[][]; returns the vals[] before
+   * randomization. The randomized values are a copy, so the original array
+   * (which may be shared with the caller of the constructor) is untouched. */
   public float[] scrambleOneAttribute( int attIndex, Random random ) {
-    float[] toReturn = Arrays.copyOf( vals[attIndex], vals[attIndex].length );
+    float[] toReturn = vals[attIndex];
+    vals[attIndex] = Arrays.copyOf( toReturn, toReturn.length );
     for ( int i=0; i < vals[attIndex].length; i++ ) {
       int swapWith = random.nextInt(vals[attIndex].length);
       float temp = vals[attIndex][i];
@@ -98,9 +106,22 @@ public class DataCache {
   
   
   /**
-   * Creates a DataCache by copying data from a weka.core.Instances object.
+   * Creates a DataCache by copying data from a weka.core.Instances object,
+   * using all available processors.
    */
   public DataCache(Instances origData) throws Exception {
+    this(origData, 0);
+  }
+
+
+  /**
+   * Creates a DataCache by copying data from a weka.core.Instances object.
+   * The attributes are copied and sorted in parallel.
+   *
+   * @param origData the instances to copy
+   * @param numThreads the number of threads to use, 0 for autodetection
+   */
+  public DataCache(Instances origData, int numThreads) throws Exception {
 
     classIndex = origData.classIndex();
     numAttributes = origData.numAttributes();
@@ -119,71 +140,163 @@ public class DataCache {
 
     /* Array is indexed by attribute first, to speed access in RF splitting. */
     vals = new float[numAttributes][numInstances];
-    for (int a = 0; a < numAttributes; a++) {
-      for (int i = 0; i < numInstances; i++) {
-        if (origData.instance(i).isMissing(a))
-          vals[a][i] = Float.MAX_VALUE;  // to make sure missing values go to the end
-        else
-          vals[a][i] = (float) origData.instance(i).value(a);  // deep copy
+    final Instances data = origData;
+    forAllAttributes(new AttributeTask() {
+      public void run(int a) {
+        for (int i = 0; i < numInstances; i++) {
+          if (data.instance(i).isMissing(a))
+            vals[a][i] = Float.MAX_VALUE;  // to make sure missing values go to the end
+          else
+            vals[a][i] = (float) data.instance(i).value(a);  // deep copy
+        }
       }
-    }
+    }, numThreads);
 
     instWeights = new double[numInstances];
     instClassValues = new int[numInstances];
     for (int i = 0; i < numInstances; i++) {
       instWeights[i] = origData.instance(i).weight();
       instClassValues[i] = (int) origData.instance(i).classValue();
+      vals[classIndex][i] = instClassValues[i];
     }
 
     /* compute the sortedInstances for the whole dataset */
-    
-    sortedIndices = new int[numAttributes][];
+    createSortedIndices(numThreads);
+
+    // System.out.println(" Done.");
+
+  }
 
-    for (int a = 0; a < numAttributes; a++) { // ================= attr by attr
+  
+  
+  /**
+   * Creates a DataCache directly from the values of the attributes, without
+   * going through a weka.core.Instances object. The value arrays are not
+   * copied; missing values must be coded as Float.MAX_VALUE.
+   *
+   * @param header the attribute information (with the class index set), its
+   * instances are ignored
+   * @param attVals the values, first indexed by attribute, then by instance;
+   * the entry of the class attribute can be null
+   * @param classValues the class each instance belongs to
+   * @param weights the weights of the instances, or null for unit weights
+   * @param numThreads the number of threads used for sorting, 0 for
+   * autodetection
+   */
+  public DataCache(Instances header, float[][] attVals, int[] classValues,
+                   double[] weights, int numThreads) throws Exception {
+
+    classIndex = header.classIndex();
+    numAttributes = header.numAttributes();
+    numClasses = header.numClasses();
+    numInstances = classValues.length;
+
+    if (classIndex < 0)
+      throw new Exception("The class index of the header is not set.");
+    if (attVals.length != numAttributes)
+      throw new Exception("The number of value arrays (" + attVals.length
+              + ") does not match the number of attributes (" + numAttributes + ").");
+    if (weights != null && weights.length != numInstances)
+      throw new Exception("The number of weights does not match the number of instances.");
+
+    attNumVals = new int[numAttributes];
+    for (int i = 0; i < attNumVals.length; i++) {
+      if (header.attribute(i).isNumeric()) {
+        attNumVals[i] = 0;
+      } else if (header.attribute(i).isNominal()) {
+        attNumVals[i] = header.attribute(i).numValues();
+      } else
+        throw new Exception("Only numeric and nominal attributes are supported.");
+    }
 
-      if (a == classIndex) 
+    vals = new float[numAttributes][];
+    for (int a = 0; a < numAttributes; a++) {
+      if (a == classIndex)
         continue;
+      if (attVals[a] == null || attVals[a].length != numInstances)
+        throw new Exception("Attribute " + a + " does not have "
+                + numInstances + " values.");
+      vals[a] = attVals[a];  // shallow copied
+    }
+    vals[classIndex] = new float[numInstances];
+    for (int i = 0; i < numInstances; i++)
+      vals[classIndex][i] = classValues[i];
 
-      if (attNumVals[a] > 0) { // ------------------------------------- nominal
+    instClassValues = classValues;
+    if (weights == null) {
+      instWeights = new double[numInstances];
+      Arrays.fill(instWeights, 1.0);
+    } else
+      instWeights = weights;
 
-        // Handling nominal attributes: as of FastRF 0.99, they're sorted as well
-        // missing values are coded as Float.MAX_VALUE and go to the end
-        
-        sortedIndices[a] = new int[numInstances];
-        //int count = 0;
+    createSortedIndices(numThreads);
 
-        sortedIndices[a] = FastRfUtils.sort(vals[a]); 
-        
-        /*for (int i = 0; i < numInstances; i++) {
-          if ( !this.isValueMissing(a, i) ) {
-            sortedIndices[a][count] = i;
-            count++;
-          }
-        }
+  }
 
-        for (int i = 0; i < numInstances; i++) {
-          if ( this.isValueMissing(a, i) ) {
-            sortedIndices[a][count] = i;
-            count++;
-          }
-        }*/
 
-      } else { // ----------------------------------------------------- numeric
+  /**
+   * Computes the sorted order of the instances by every attribute, except
+   * the class attribute, sorting the attributes in parallel. Missing values
+   * are coded as Float.MAX_VALUE and go to the end. As of FastRF 0.99,
+   * nominal attributes are sorted as well.
+   *
+   * @param numThreads the number of threads to use, 0 for autodetection
+   */
+  private void createSortedIndices(int numThreads) throws Exception {
 
-        // Sorted indices are computed for numeric attributes
-        // missing values are coded as Float.MAX_VALUE and go to the end
-        sortedIndices[a] = FastRfUtils.sort(vals[a]); 
+    sortedIndices = new int[numAttributes][];
 
-      } // ---------------------------------------------------------- attr kind
+    forAllAttributes(new AttributeTask() {
+      public void run(int a) {
+        sortedIndices[a] = FastRfUtils.sort(vals[a]);
+      }
+    }, numThreads);
 
-    } // ========================================================= attr by attr
+  }
 
-    // System.out.println(" Done.");
 
+  /** Work done on a single attribute by forAllAttributes(). */
+  private interface AttributeTask {
+    void run(int a);
   }
 
-  
-  
+
+  /**
+   * Runs a task on every attribute except the class attribute, with the
+   * attributes distributed among a pool of threads.
+   *
+   * @param task the work to do on each attribute
+   * @param numThreads the number of threads to use, 0 for autodetection
+   */
+  private void forAllAttributes(final AttributeTask task, int numThreads)
+          throws Exception {
+
+    ExecutorService threadPool = Executors.newFixedThreadPool(
+      numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors());
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>(numAttributes);
+      for (int a = 0; a < numAttributes; a++) {
+        if (a == classIndex)
+          continue;
+        final int att = a;
+        futures.add(threadPool.submit(new Callable<Void>() {
+          public Void call() {
+            task.run(att);
+            return null;
+          }
+        }));
+      }
+      for (Future<?> future : futures)
+        future.get();
+    }
+    finally {
+      threadPool.shutdown();
+    }
+
+  }
+
+
+
   /**
    * Makes a copy of a DataCache. Most array fields are shallow copied, with the
    * exception of in inBag and whatGoesWhere arrays, which are created anew.
@@ -230,20 +343,66 @@ public class DataCache {
    */
   public DataCache resample(int bagSize, Random random) {
 
+    return resample( resampleCounts(bagSize, random) );
+
+  }
+
+
+
+  /**
+   * Uses sampling with replacement to draw a bootstrap sample, without
+   * creating a new DataCache. The sample is returned as a compact vector
+   * with the number of times each instance was drawn (one short per
+   * instance, saturating at Short.MAX_VALUE draws), which can be kept for
+   * every tree and turned into a DataCache only when the tree is trained,
+   * using "resample(short[] counts)".
+   *
+   * @param bagSize The number of draws, see "resample(int, Random)".
+   * @param random A random number generator.
+   * @return the number of times each instance was drawn
+   */
+  public short[] resampleCounts(int bagSize, Random random) {
+
+    short[] counts = new short[ numInstances ]; // all 0 by default
+
+    for ( int r = 0; r < bagSize; r++ ) {
+
+      int curIdx = random.nextInt( numInstances );
+      if ( counts[curIdx] < Short.MAX_VALUE )
+        counts[curIdx]++;
+
+    }
+
+    return counts;
+
+  }
+
+
+
+  /**
+   * Creates a new DataCache from a bootstrap sample drawn by
+   * "resampleCounts()". An instance drawn several times gets a multiple of
+   * its original weight in the new DataCache.
+   *
+   * @param counts the number of times each instance was drawn
+   * @return a new DataCache - consult "DataCache(DataCache origData)"
+   * constructor to see what's deep / shallow copied
+   */
+  public DataCache resample(short[] counts) {
+
     DataCache result =
             new DataCache(this); // makes shallow copy of vals matrix
 
     double[] newWeights = new double[ numInstances ]; // all 0.0 by default
-    
-    for ( int r = 0; r < bagSize; r++ ) {
-      
-      int curIdx = random.nextInt( numInstances );
-      newWeights[curIdx] += instWeights[curIdx];
-      if ( !result.inBag[curIdx] ) {
+
+    for ( int i = 0; i < numInstances; i++ ) {
+
+      if ( counts[i] > 0 ) {
+        newWeights[i] = counts[i] * instWeights[i];
         result.numInBag++;
-        result.inBag[curIdx] = true;
+        result.inBag[i] = true;
       }
-      
+
     }
 
     result.instWeights = newWeights;
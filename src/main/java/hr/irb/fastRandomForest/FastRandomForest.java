@@ -23,6 +23,9 @@
 
 package hr.irb.fastRandomForest;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.Vector;
 
@@ -133,6 +136,15 @@ public class FastRandomForest
   /** The maximum depth of the trees (0 = unlimited) */
   protected int m_MaxDepth = 0;
 
+  /**
+   * Tolerance on the change of the out-of-bag error between two waves of
+   * trees, below which training stops early (0 = train all trees).
+   */
+  protected double m_OOBTolerance = 0;
+
+  /** Training time budget in seconds (0 = unlimited). */
+  protected double m_MaxTrainingTime = 0;
+
   /** The header information. */
   protected Instances m_Info = null;
 
@@ -322,6 +334,81 @@ public class FastRandomForest
     m_NumThreads = value;
   }
 
+  /**
+   * Returns the tip text for this property
+   *
+   * @return tip text for this property suitable for
+   *         displaying in the explorer/experimenter gui
+   */
+  public String OOBToleranceTipText(){
+    return "Trees are trained in waves and training stops when the out-of-bag "
+      + "error changes by no more than this between waves (0 = train all trees).";
+  }
+
+  /**
+   * Get the tolerance on the change of the out-of-bag error between waves
+   * of trees, 0 for no early stopping.
+   *
+   * @return the tolerance.
+   */
+  public double getOOBTolerance(){
+    return m_OOBTolerance;
+  }
+
+  /**
+   * Set the tolerance on the change of the out-of-bag error between waves
+   * of trees, 0 for no early stopping. The waves have at least 10 trees
+   * (or one tree per thread).
+   *
+   * @param value the tolerance (for example 0.001).
+   */
+  public void setOOBTolerance(double value){
+    m_OOBTolerance = value;
+  }
+
+
+  /**
+   * Returns the tip text for this property
+   *
+   * @return tip text for this property suitable for
+   *         displaying in the explorer/experimenter gui
+   */
+  public String maxTrainingTimeTipText(){
+    return "Training stops after the first wave of trees finished after this "
+      + "number of seconds (0 = unlimited).";
+  }
+
+  /**
+   * Get the training time budget in seconds, 0 for unlimited.
+   *
+   * @return the training time budget.
+   */
+  public double getMaxTrainingTime(){
+    return m_MaxTrainingTime;
+  }
+
+  /**
+   * Set the training time budget in seconds, 0 for unlimited. The trees
+   * are trained in waves and no new wave is started once the budget is
+   * exhausted, so the forest has at least one wave of trees.
+   *
+   * @param value the training time budget.
+   */
+  public void setMaxTrainingTime(double value){
+    m_MaxTrainingTime = value;
+  }
+
+
+  /**
+   * Get the number of trees of the built forest, which is smaller than the
+   * number of trees to build if training stopped early.
+   *
+   * @return the number of trees built, 0 if the forest is not built.
+   */
+  public int getNumTreesBuilt(){
+    return m_bagger == null ? 0 : m_bagger.getNumIterations();
+  }
+
   ////////////////////////////
   // Feature importances stuff
   ////////////////////////////
@@ -432,6 +519,17 @@ public class FastRandomForest
     newVector.addElement(new Option(
       "\tWhether to compute feature importances.\n",
       "import", 0, "-import"));
+
+    newVector.addElement(new Option(
+      "\tStop training when the out-of-bag error changes by no more than this\n"
+        + "\tbetween waves of trees, 0 to train all trees.\n"
+        + "\t(default 0)",
+      "tolerance", 1, "-tolerance <num>"));
+
+    newVector.addElement(new Option(
+      "\tThe training time budget in seconds, 0 for unlimited.\n"
+        + "\t(default 0)",
+      "budget", 1, "-budget <num>"));
     
     Enumeration enu = super.listOptions();
     while(enu.hasMoreElements()){
@@ -476,6 +574,16 @@ public class FastRandomForest
       result.add("-import");
     }    
 
+    if(getOOBTolerance() > 0){
+      result.add("-tolerance");
+      result.add(String.valueOf(getOOBTolerance()));
+    }
+
+    if(getMaxTrainingTime() > 0){
+      result.add("-budget");
+      result.add(String.valueOf(getMaxTrainingTime()));
+    }
+
     options = super.getOptions();
     for(i = 0; i < options.length; i++)
       result.add(options[i]);
@@ -506,6 +614,13 @@ public class FastRandomForest
    *  (default 0 = autodetect number of available cores)</pre>
    * <pre> -import
    *  Compute and output RF feature importances (slow).</pre>
+   * <pre> -tolerance &lt;num&gt;
+   *  Stop training when the out-of-bag error changes by no more than this
+   *  between waves of trees, 0 to train all trees.
+   *  (default 0)</pre>
+   * <pre> -budget &lt;num&gt;
+   *  The training time budget in seconds, 0 for unlimited.
+   *  (default 0)</pre>
    * <pre> -D
    *  If set, classifier is run in debug mode and
    *  may output additional info to the console</pre>
@@ -555,6 +670,20 @@ public class FastRandomForest
 
     setComputeImportances(Utils.getFlag("import", options));
 
+    tmpStr = Utils.getOption("tolerance", options);
+    if ( tmpStr.length() != 0 ){
+      setOOBTolerance(Double.parseDouble(tmpStr));
+    } else {
+      setOOBTolerance(0);
+    }
+
+    tmpStr = Utils.getOption("budget", options);
+    if ( tmpStr.length() != 0 ){
+      setMaxTrainingTime(Double.parseDouble(tmpStr));
+    } else {
+      setMaxTrainingTime(0);
+    }
+
     super.setOptions(options);
 
     Utils.checkForRemainingOptions(options);
@@ -600,6 +729,57 @@ public class FastRandomForest
       m_ZeroR = null;
     }
 
+    setUpBagger(data);
+
+    m_bagger.buildClassifier(data, m_NumThreads, this);
+    
+  }
+
+
+  /**
+   * Builds a classifier directly from the values of the attributes, stored
+   * by attribute first and then by instance, without creating any
+   * weka.core.Instances object for the training data. The value arrays are
+   * shared with the forest during training and are not modified.
+   *
+   * @param header the attribute information of the training data (with the
+   * class index set), its instances are ignored
+   * @param attVals the values, first indexed by attribute, then by
+   * instance; the entry of the class attribute can be null. Missing values
+   * must be coded as Float.MAX_VALUE.
+   * @param classValues the class index of each instance
+   * @param weights the weights of the instances, or null for unit weights
+   *
+   * @throws Exception if something goes wrong
+   */
+  public void buildClassifier(Instances header, float[][] attVals,
+                              int[] classValues, double[] weights) throws Exception{
+
+    if(header.classIndex() < 0 || !header.classAttribute().isNominal())
+      throw new Exception("FastRandomForest needs a nominal class attribute.");
+    if(header.numAttributes() == 1)
+      throw new Exception("Cannot build model (only class attribute present in data!)");
+    m_ZeroR = null;
+
+    // sorting is performed inside the DataCache constructor
+    DataCache data = new DataCache(header, attVals, classValues, weights,
+                                   m_NumThreads);
+
+    setUpBagger(header);
+
+    m_bagger.buildClassifier(data, m_NumThreads, this);
+
+  }
+
+
+  /**
+   * Saves the header of the training data and sets up the bagger and the
+   * options of the trees.
+   *
+   * @param data the training data (only its attribute info is used)
+   */
+  private void setUpBagger(Instances data){
+
     /* Save header with attribute info. Can be accessed later by FastRfTrees
      * through their m_MotherForest field. */
     m_Info = new Instances(data, 0);
@@ -616,15 +796,15 @@ public class FastRandomForest
     // some temporary arrays which need to be separate for every tree, so
     // that the trees can be trained in parallel in different threads
     
-    // set up the bagger and build the forest
+    // set up the bagger
     m_bagger.setClassifier(rTree);
     m_bagger.setSeed(m_randomSeed);
     m_bagger.setNumIterations(m_numTrees);
     m_bagger.setCalcOutOfBag(true);
     m_bagger.setComputeImportances( this.getComputeImportances() );
+    m_bagger.setOOBTolerance( this.getOOBTolerance() );
+    m_bagger.setMaxTrainingTime( this.getMaxTrainingTime() );
 
-    m_bagger.buildClassifier(data, m_NumThreads, this);
-    
   }
 
 
@@ -647,6 +827,56 @@ public class FastRandomForest
 
   }
 
+  /**
+   * Writes the forest in a compact binary form: its options followed by
+   * the nodes of every tree flattened in pre-order. Only what is needed
+   * for classification is kept, so it is much faster to read back than
+   * the serialized object graph. The attribute header is not included
+   * and must be stored by the caller.
+   *
+   * @param out the output to write to
+   * @throws IOException if writing fails
+   * @throws IllegalStateException if the forest is not built or is a
+   * default (ZeroR) model
+   */
+  public void writeCompact(DataOutput out) throws IOException {
+
+    if (m_bagger == null || m_ZeroR != null)
+      throw new IllegalStateException("Only built forests can be written in compact form");
+    out.writeInt(m_numTrees);
+    out.writeInt(m_numFeatures);
+    out.writeInt(m_randomSeed);
+    out.writeInt(m_KValue);
+    out.writeInt(m_NumThreads);
+    out.writeInt(m_MaxDepth);
+    out.writeBoolean(m_computeImportances);
+    m_bagger.writeCompact(out);
+
+  }
+
+  /**
+   * Reads a forest written by writeCompact().
+   *
+   * @param in the buffer to read from (positioned at the forest data)
+   * @param header the attribute header the forest was trained with
+   * @return the forest, ready to classify
+   */
+  public static FastRandomForest readCompact(ByteBuffer in, Instances header) {
+
+    FastRandomForest forest = new FastRandomForest();
+    forest.m_numTrees = in.getInt();
+    forest.m_numFeatures = in.getInt();
+    forest.m_randomSeed = in.getInt();
+    forest.m_KValue = in.getInt();
+    forest.m_NumThreads = in.getInt();
+    forest.m_MaxDepth = in.getInt();
+    forest.m_computeImportances = in.get() != 0;
+    forest.m_Info = new Instances(header, 0);
+    forest.m_bagger = FastRfBagging.readCompact(in, forest);
+    return forest;
+
+  }
+
   /**
    * Outputs a description of this classifier.
    *
@@ -659,7 +889,7 @@ public class FastRandomForest
     if(m_bagger == null)
       sb.append("FastRandomForest not built yet");
     else {
-      sb.append("FastRandomForest of " + m_numTrees
+      sb.append("FastRandomForest of " + getNumTreesBuilt()
         + " trees, each constructed while considering "
         + m_KValue + " random feature" + (m_KValue == 1 ? "" : "s") + ".\n"
         + "Out of bag error: " + Utils.doubleToString(m_bagger.measureOutOfBagError()*100.0, 3) + "%\n"
@@ -23,7 +23,11 @@
 
 package hr.irb.fastRandomForest;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.Random;
 
 import weka.classifiers.AbstractClassifier;
@@ -1358,6 +1362,110 @@ class FastRandomTree
 
   
   
+  /**
+   * Writes the nodes of the tree in pre-order as a flat sequence of
+   * records, keeping only what is needed for classification (split
+   * attribute and point, proportions for missing values and class
+   * distributions of the leaves). Used by FastRandomForest.writeCompact().
+   *
+   * @param out the output to write to
+   * @throws IOException if writing fails
+   */
+  protected void writeCompact(DataOutput out) throws IOException {
+
+    // write the nodes non-recursively, the first successor first
+    LinkedList<FastRandomTree> remainingNodes = new LinkedList<FastRandomTree>();
+    remainingNodes.add(this);
+    while (!remainingNodes.isEmpty()) {
+      FastRandomTree node = remainingNodes.removeLast();
+      out.writeInt(node.m_Attribute);
+      if (node.m_Attribute > -1) { // interior node, followed by both subtrees
+        out.writeDouble(node.m_SplitPoint);
+        out.writeInt(node.m_Prop == null ? -1 : node.m_Prop.length);
+        if (node.m_Prop != null)
+          for (double p : node.m_Prop)
+            out.writeDouble(p);
+        for (int i = node.m_Successors.length - 1; i >= 0; i--)
+          remainingNodes.add(node.m_Successors[i]);
+      } else { // leaf
+        out.writeInt(node.m_ClassProbs == null ? -1 : node.m_ClassProbs.length);
+        if (node.m_ClassProbs != null)
+          for (double p : node.m_ClassProbs)
+            out.writeDouble(p);
+      }
+    }
+
+  }
+
+
+  /**
+   * Reads a tree written by writeCompact().
+   *
+   * @param in the buffer to read from
+   * @param motherForest the forest the tree belongs to
+   * @return the root of the tree
+   */
+  protected static FastRandomTree readCompact(ByteBuffer in,
+                                              FastRandomForest motherForest) {
+
+    FastRandomTree root = null;
+    // interior nodes still waiting for successors, and the index of the
+    // next successor of each of them (read non-recursively)
+    LinkedList<FastRandomTree> parents = new LinkedList<FastRandomTree>();
+    LinkedList<Integer> nextSuccessors = new LinkedList<Integer>();
+    do {
+      FastRandomTree node = new FastRandomTree();
+      node.m_MotherForest = motherForest;
+      node.m_Attribute = in.getInt();
+      if (node.m_Attribute > -1) {
+        node.m_SplitPoint = in.getDouble();
+        node.m_Prop = readDoubles(in);
+        // dist.length is always == 2
+        node.m_Successors = new FastRandomTree[2];
+      } else {
+        node.m_ClassProbs = readDoubles(in);
+      }
+
+      if (parents.isEmpty()) {
+        root = node;
+      } else {
+        FastRandomTree parent = parents.getLast();
+        int i = nextSuccessors.removeLast();
+        parent.m_Successors[i] = node;
+        if (i + 1 < parent.m_Successors.length)
+          nextSuccessors.add(i + 1);
+        else
+          parents.removeLast();
+      }
+      if (node.m_Attribute > -1) {
+        parents.add(node);
+        nextSuccessors.add(0);
+      }
+    } while (!parents.isEmpty());
+    return root;
+
+  }
+
+
+  /**
+   * Reads an array of doubles preceded by its length (-1 for null).
+   *
+   * @param in the buffer to read from
+   * @return the array or null
+   */
+  protected static double[] readDoubles(ByteBuffer in) {
+
+    int length = in.getInt();
+    if (length < 0)
+      return null;
+    double[] values = new double[length];
+    in.asDoubleBuffer().get(values);
+    in.position(in.position() + 8 * length);
+    return values;
+
+  }
+
+
   /**
    * Main method for this class.
    * 
@@ -23,11 +23,16 @@
 
 package hr.irb.fastRandomForest;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -106,6 +111,26 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
     data = new Instances(data);
     data.deleteWithMissingClass();
 
+    // sorting is performed inside this constructor
+    buildClassifier(new DataCache(data, numThreads), numThreads, motherForest);
+  }
+
+  /**
+   * Bagging method working on a DataCache which has already been created,
+   * for example directly from a matrix of attribute values.
+   *
+   * @param myData       The training set to be used for generating the
+   *                     bagged classifier (with sorted indices).
+   * @param numThreads   The number of simultaneous threads to use for
+   *                     computation. Pass zero (0) for autodetection.
+   * @param motherForest A reference to the FastRandomForest object that
+   *                     invoked this.
+   *
+   * @throws Exception if the classifier could not be built successfully
+   */
+  public void buildClassifier(DataCache myData, int numThreads,
+                              FastRandomForest motherForest) throws Exception {
+
     if (!(m_Classifier instanceof FastRandomTree))
       throw new IllegalArgumentException("The FastRfBagging class accepts " +
         "only FastRandomTree as its base classifier.");
@@ -123,11 +148,11 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
       // 0.99: this array is of size two as now all splits are binary - even categorical ones
       curTree.tempProps = new double[2]; 
       curTree.tempDists = new double[2][]; 
-      curTree.tempDists[0] = new double[data.numClasses()];
-      curTree.tempDists[1] = new double[data.numClasses()];
+      curTree.tempDists[0] = new double[myData.numClasses];
+      curTree.tempDists[1] = new double[myData.numClasses];
       curTree.tempDistsOther = new double[2][]; 
-      curTree.tempDistsOther[0] = new double[data.numClasses()];
-      curTree.tempDistsOther[1] = new double[data.numClasses()];
+      curTree.tempDistsOther[0] = new double[myData.numClasses];
+      curTree.tempDistsOther[1] = new double[myData.numClasses];
       m_Classifiers[i] = curTree;
     }
 
@@ -140,57 +165,110 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
     }
 
 
-    // sorting is performed inside this constructor
-    DataCache myData = new DataCache(data);
-
-    int bagSize = data.numInstances() * m_BagSizePercent / 100;
+    int bagSize = myData.numInstances * m_BagSizePercent / 100;
     Random random = new Random(m_Seed);
 
-    boolean[][] inBag = new boolean[m_Classifiers.length][];
+    // number of times each instance was drawn for each tree; one short per
+    // instance and tree, the DataCache of each bag only exists while its
+    // tree is being trained
+    short[][] bagCounts = new short[m_Classifiers.length][];
 
     // thread management
-    ExecutorService threadPool = Executors.newFixedThreadPool(
-      numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors());
+    if (numThreads <= 0)
+      numThreads = Runtime.getRuntime().availableProcessors();
+    ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
     List<Future<?>> futures =
       new ArrayList<Future<?>>(m_Classifiers.length);
 
+    // with early stopping or a time budget, the trees are trained in waves
+    // and the stopping criteria are checked after each wave
+    boolean inWaves = m_OOBTolerance > 0 || m_MaxTrainingTime > 0;
+    int waveSize = inWaves ? Math.max(10, numThreads) : m_Classifiers.length;
+    double[][] oobVotes = m_OOBTolerance > 0 ?
+      new double[myData.numInstances][myData.numClasses] : null;
+    double lastOOBError = Double.NaN;
+    long start = System.currentTimeMillis();
+    int numBuilt = 0;
+
     try {
 
-      for (int treeIdx = 0; treeIdx < m_Classifiers.length; treeIdx++) {
+      while (numBuilt < m_Classifiers.length) {
+
+        int waveEnd = Math.min(numBuilt + waveSize, m_Classifiers.length);
 
-        // create the in-bag dataset (and be sure to remember what's in bag)
-        // for computing the out-of-bag error later
-        DataCache bagData = myData.resample(bagSize, random);
-        bagData.reusableRandomGenerator = bagData.getRandomNumberGenerator(
-          random.nextInt());
-        inBag[treeIdx] = bagData.inBag; // store later for OOB error calculation
+        for (int treeIdx = numBuilt; treeIdx < waveEnd; treeIdx++) {
 
-        // build the classifier
-        if (m_Classifiers[treeIdx] instanceof FastRandomTree) {
+          // draw the bootstrap sample (and be sure to remember what's in bag)
+          // for computing the out-of-bag error later
+          final short[] counts = myData.resampleCounts(bagSize, random);
+          final int treeSeed = random.nextInt();
+          bagCounts[treeIdx] = counts; // store later for OOB error calculation
 
-          FastRandomTree aTree = (FastRandomTree) m_Classifiers[treeIdx];
-          aTree.data = bagData;
+          // build the classifier
+          if (m_Classifiers[treeIdx] instanceof FastRandomTree) {
 
-          Future<?> future = threadPool.submit(aTree);
-          futures.add(future);
+            final FastRandomTree aTree = (FastRandomTree) m_Classifiers[treeIdx];
+            final DataCache allData = myData;
+
+            // the in-bag dataset is created when the tree starts training and
+            // can be GC'd as soon as the tree is built
+            Future<?> future = threadPool.submit(new Runnable() {
+              public void run() {
+                DataCache bagData = allData.resample(counts);
+                bagData.reusableRandomGenerator =
+                  bagData.getRandomNumberGenerator(treeSeed);
+                aTree.data = bagData;
+                aTree.run();
+              }
+            });
+            futures.add(future);
+
+          } else {
+            throw new IllegalArgumentException("The FastRfBagging class accepts " +
+              "only FastRandomTree as its base classifier.");
+          }
 
-        } else {
-          throw new IllegalArgumentException("The FastRfBagging class accepts " +
-            "only FastRandomTree as its base classifier.");
         }
 
-      }
+        // make sure all trees have been trained before proceeding
+        for (int treeIdx = numBuilt; treeIdx < waveEnd; treeIdx++) {
+          futures.get(treeIdx).get();
+
+        }
+
+        int waveStart = numBuilt;
+        numBuilt = waveEnd;
+        if (numBuilt == m_Classifiers.length)
+          break;
+
+        // stop if the OOB error has converged...
+        if (oobVotes != null) {
+          double oobError = addOOBVotes(myData, bagCounts, oobVotes,
+                                        waveStart, waveEnd, numThreads, threadPool);
+          if (!Double.isNaN(lastOOBError)
+              && Math.abs(oobError - lastOOBError) <= m_OOBTolerance)
+            break;
+          lastOOBError = oobError;
+        }
 
-      // make sure all trees have been trained before proceeding
-      for (int treeIdx = 0; treeIdx < m_Classifiers.length; treeIdx++) {
-        futures.get(treeIdx).get();
+        // ... or the training time is over
+        if (m_MaxTrainingTime > 0
+            && System.currentTimeMillis() - start >= m_MaxTrainingTime * 1000)
+          break;
 
       }
 
+      // keep only the trees that have been trained
+      if (numBuilt < m_Classifiers.length) {
+        m_Classifiers = Arrays.copyOf(m_Classifiers, numBuilt);
+        bagCounts = Arrays.copyOf(bagCounts, numBuilt);
+        setNumIterations(numBuilt);
+      }
+
       // calc OOB error?
       if (getCalcOutOfBag() || getComputeImportances()) {
         //m_OutOfBagError = computeOOBError(data, inBag, threadPool);
-        m_OutOfBagError = computeOOBError( myData, inBag, threadPool);
+        m_OutOfBagError = computeOOBError( myData, bagCounts, threadPool);
       } else {
         m_OutOfBagError = 0;
       }
@@ -199,16 +277,16 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
       m_FeatureImportances = null;
       //m_FeatureNames = null;
       if (getComputeImportances()) {
-        m_FeatureImportances = new double[data.numAttributes()];
+        m_FeatureImportances = new double[myData.numAttributes];
         ///m_FeatureNames = new String[data.numAttributes()];
         //Instances dataCopy = new Instances(data); //To scramble
         //int[] permutation = FastRfUtils.randomPermutation(data.numInstances(), random);
-        for (int j = 0; j < data.numAttributes(); j++) {
-          if (j != data.classIndex()) {
+        for (int j = 0; j < myData.numAttributes; j++) {
+          if (j != myData.classIndex) {
             //double sError = computeOOBError(FastRfUtils.scramble(data, dataCopy, j, permutation), inBag, threadPool);
             //double sError = computeOOBError(data, inBag, threadPool, j, 0);
             float[] unscrambled = myData.scrambleOneAttribute(j, random);
-            double sError = computeOOBError(myData, inBag, threadPool);
+            double sError = computeOOBError(myData, bagCounts, threadPool);
             myData.vals[j] = unscrambled; // restore the original state
             m_FeatureImportances[j] = sError - m_OutOfBagError;
           }
@@ -276,20 +354,21 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
    * checked in the function!).
    *
    * @param data       the instances (as a DataCache)
-   * @param inBag      numTrees x numInstances indicating out-of-bag instances
+   * @param bagCounts  numTrees x numInstances bootstrap counts (out-of-bag
+   *                   instances have a count of zero)
    * @param threadPool the pool of threads
    *
    * @return the oob error
    */
   private double computeOOBError( DataCache data,
-                                 boolean[][] inBag,
+                                 short[][] bagCounts,
                                  ExecutorService threadPool ) throws InterruptedException, ExecutionException {
 
 
     List<Future<Double>> votes =
       new ArrayList<Future<Double>>(data.numInstances);
     for (int i = 0; i < data.numInstances; i++) {
-      VotesCollectorDataCache aCollector = new VotesCollectorDataCache(m_Classifiers, i, data, inBag);
+      VotesCollectorDataCache aCollector = new VotesCollectorDataCache(m_Classifiers, i, data, bagCounts);
       votes.add(threadPool.submit(aCollector));
     }
 
@@ -314,6 +393,118 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
   
   
   
+  /**
+   * Adds the out-of-bag votes of a wave of trees to the running votes of
+   * every instance and computes the out-of-bag error of all the trees
+   * trained so far, without querying the trees of the previous waves again.
+   * The instances are split in chunks which are processed in parallel.
+   *
+   * @param data       the instances (as a DataCache)
+   * @param bagCounts  numTrees x numInstances bootstrap counts
+   * @param oobVotes   numInstances x numClasses running votes (updated)
+   * @param firstTree  the first tree of the wave
+   * @param lastTree   the tree after the last tree of the wave
+   * @param numChunks  the number of chunks of instances
+   * @param threadPool the pool of threads
+   *
+   * @return the oob error of the trees 0 .. lastTree-1
+   */
+  private double addOOBVotes( final DataCache data,
+                              final short[][] bagCounts,
+                              final double[][] oobVotes,
+                              final int firstTree,
+                              final int lastTree,
+                              int numChunks,
+                              ExecutorService threadPool ) throws InterruptedException, ExecutionException {
+
+    List<Future<Double>> errors = new ArrayList<Future<Double>>(numChunks);
+    for (int c = 0; c < numChunks; c++) {
+      final int first = (int) ((long) data.numInstances * c / numChunks);
+      final int last = (int) ((long) data.numInstances * (c + 1) / numChunks);
+      errors.add(threadPool.submit(new Callable<Double>() {
+        public Double call() {
+          double errorSum = 0.0;
+          for (int i = first; i < last; i++) {
+            for (int treeIdx = firstTree; treeIdx < lastTree; treeIdx++) {
+              if ( bagCounts[treeIdx][i] != 0 )
+                continue;
+              double[] curDist = ((FastRandomTree) m_Classifiers[treeIdx])
+                .distributionForInstanceInDataCache(data, i);
+              for (int classIdx = 0; classIdx < curDist.length; classIdx++)
+                oobVotes[i][classIdx] += curDist[classIdx];
+            }
+            if ( Utils.maxIndex(oobVotes[i]) != data.instClassValues[i] )
+              errorSum += data.instWeights[i];
+          }
+          return errorSum;
+        }
+      }));
+    }
+
+    double outOfBagCount = 0.0;
+    for (int i = 0; i < data.numInstances; i++)
+      outOfBagCount += data.instWeights[i];
+
+    double errorSum = 0.0;
+    for (Future<Double> error : errors)
+      errorSum += error.get();
+
+    return errorSum / outOfBagCount;
+
+  }
+
+
+
+
+  ////////////////////////////
+  // Early stopping stuff
+  ////////////////////////////
+
+  /**
+   * Training stops when the out-of-bag error changes by no more than this
+   * between two waves of trees (0 = always train all the trees).
+   */
+  private double m_OOBTolerance = 0;
+  /**
+   * Training stops after the first wave of trees that ends after this
+   * number of seconds (0 = no limit).
+   */
+  private double m_MaxTrainingTime = 0;
+
+  /**
+   * @return the tolerance on the change of the out-of-bag error between
+   * waves of trees (0 = no early stopping)
+   */
+  public double getOOBTolerance() {
+    return m_OOBTolerance;
+  }
+
+  /**
+   * @param tolerance the tolerance on the change of the out-of-bag error
+   * between waves of trees (0 = no early stopping)
+   */
+  public void setOOBTolerance(double tolerance) {
+    m_OOBTolerance = tolerance;
+  }
+
+  /**
+   * @return the training time budget in seconds (0 = no limit)
+   */
+  public double getMaxTrainingTime() {
+    return m_MaxTrainingTime;
+  }
+
+  /**
+   * @param seconds the training time budget in seconds (0 = no limit)
+   */
+  public void setMaxTrainingTime(double seconds) {
+    m_MaxTrainingTime = seconds;
+  }
+
+  ////////////////////////////
+  // /Early stopping stuff
+  ////////////////////////////
+
   ////////////////////////////
   // Feature importances stuff
   ////////////////////////////
@@ -660,6 +851,50 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
 
   }
 
+  /**
+   * Writes the out-of-bag error, the feature importances and the trees of
+   * the ensemble. Used by FastRandomForest.writeCompact().
+   *
+   * @param out the output to write to
+   * @throws IOException if writing fails
+   */
+  protected void writeCompact(DataOutput out) throws IOException {
+
+    out.writeDouble(m_OutOfBagError);
+    out.writeInt(m_FeatureImportances == null ? -1 : m_FeatureImportances.length);
+    if (m_FeatureImportances != null)
+      for (double importance : m_FeatureImportances)
+        out.writeDouble(importance);
+    out.writeInt(m_NumIterations);
+    for (int i = 0; i < m_NumIterations; i++)
+      ((FastRandomTree) m_Classifiers[i]).writeCompact(out);
+
+  }
+
+  /**
+   * Reads an ensemble written by writeCompact().
+   *
+   * @param in the buffer to read from
+   * @param motherForest the forest the ensemble belongs to
+   * @return the ensemble of trees
+   */
+  protected static FastRfBagging readCompact(ByteBuffer in,
+                                             FastRandomForest motherForest) {
+
+    FastRfBagging bagger = new FastRfBagging();
+    bagger.setSeed(motherForest.getSeed());
+    bagger.setCalcOutOfBag(true);
+    bagger.setComputeImportances(motherForest.getComputeImportances());
+    bagger.m_OutOfBagError = in.getDouble();
+    bagger.m_FeatureImportances = FastRandomTree.readDoubles(in);
+    bagger.setNumIterations(in.getInt());
+    bagger.m_Classifiers = new FastRandomTree[bagger.m_NumIterations];
+    for (int i = 0; i < bagger.m_NumIterations; i++)
+      bagger.m_Classifiers[i] = FastRandomTree.readCompact(in, motherForest);
+    return bagger;
+
+  }
+
   /**
    * Returns description of the bagged classifier.
    *
@@ -23,6 +23,7 @@
 
 package hr.irb.fastRandomForest;
 
+import java.util.Arrays;
 import java.util.Random;
 
 import weka.core.Instance;
@@ -61,7 +62,6 @@ public final class FastRfUtils {
     int[] index = new int[array.length];
     for (int i = 0; i < index.length; i++)
       index[i] = i;
-    array = array.clone();
     quickSort(array, index, 0, array.length - 1);
     return index;
   }
@@ -108,7 +108,12 @@ public final class FastRfUtils {
 
   /**
    * Implements quicksort according to Manber's "Introduction to
-   * Algorithms".
+   * Algorithms", without recursion: the subsets still to be sorted are
+   * kept in an explicit stack, always pushing the larger subset first so
+   * the stack holds at most about log2(n) subsets. The partitions are the
+   * same as in the recursive version (the subsets are disjoint, so the
+   * order they are sorted in does not matter), so the resulting order of
+   * equal values is unchanged.
    *
    * @param array the array of doubles to be sorted
    * @param index the index into the array of doubles
@@ -122,10 +127,31 @@ public final class FastRfUtils {
   private static void quickSort(/*@non_null@*/ float[] array, /*@non_null@*/ int[] index,
                                 int left, int right) {
 
-    if (left < right) {
+    int[] stack = new int[128];
+    int top = 0;
+    stack[top++] = left;
+    stack[top++] = right;
+
+    while (top > 0) {
+      right = stack[--top];
+      left = stack[--top];
+      if (left >= right)
+        continue;
       int middle = partition(array, index, left, right);
-      quickSort(array, index, left, middle);
-      quickSort(array, index, middle + 1, right);
+      if (top + 4 > stack.length)
+        stack = Arrays.copyOf(stack, stack.length * 2);
+      // push the larger subset first, so the smaller one is sorted next
+      if (middle - left > right - middle - 1) {
+        stack[top++] = left;
+        stack[top++] = middle;
+        stack[top++] = middle + 1;
+        stack[top++] = right;
+      } else {
+        stack[top++] = middle + 1;
+        stack[top++] = right;
+        stack[top++] = left;
+        stack[top++] = middle;
+      }
     }
   }
 
@@ -45,16 +45,17 @@ public class VotesCollectorDataCache implements Callable<Double>{
   protected final Classifier[] m_Classifiers;
   protected final int instanceIdx;
   protected final DataCache data;
-  /** NumTrees x numInstances indicating out-of-bag instances. */
-  protected final boolean[][] inBag;
+  /** NumTrees x numInstances bootstrap counts; zero for out-of-bag
+   * instances. */
+  protected final short[][] bagCounts;
 
 
   public VotesCollectorDataCache(Classifier[] m_Classifiers, int instanceIdx,
-                        DataCache data, boolean[][] inBag){
+                        DataCache data, short[][] bagCounts){
     this.m_Classifiers = m_Classifiers;
     this.instanceIdx = instanceIdx;
     this.data = data;
-    this.inBag = inBag;
+    this.bagCounts = bagCounts;
   }
   
   
@@ -69,7 +70,7 @@ public class VotesCollectorDataCache implements Callable<Double>{
     
     for (int treeIdx = 0; treeIdx < m_Classifiers.length; treeIdx++){
 
-      if ( inBag[treeIdx][instanceIdx] ) {
+      if ( bagCounts[treeIdx][instanceIdx] != 0 ) {
         continue;
       }
 
@@ -69,6 +69,8 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -84,11 +86,14 @@ import net.imglib2.algorithm.fft2.FFTConvolution;
 import trainableSegmentation.filters.Entropy_Filter;
 import trainableSegmentation.filters.Kuwahara;
 import trainableSegmentation.filters.Lipschitz_;
+import trainableSegmentation.utils.PoolingPyramid;
+import trainableSegmentation.utils.PrincipalComponentAnalysis;
 import trainableSegmentation.utils.Utils;
 import vib.BilateralFilter;
 import weka.core.Attribute;
 import weka.core.DenseInstance;
 import weka.core.Instances;
+import weka.core.ProtectedProperties;
 
 
 /**
@@ -100,6 +105,12 @@ public class FeatureStack
 	private ImagePlus originalImage = null;
 	/** stack of feature images (created by filtering) */
 	private ImageStack wholeStack = null;
+	/** pooling pyramid of the original image, kept at the resolution of its levels */
+	private PoolingPyramid pyramid = null;
+	/** names of the pooling pyramid features (after the stack slices) */
+	private final ArrayList<String> pyramidLabels = new ArrayList<String>();
+	/** pool and level of each pooling pyramid feature */
+	private final ArrayList<int[]> pyramidFeatures = new ArrayList<int[]>();
 	/** image width */
 	private int width = 0;
 	/** image height */
@@ -149,13 +160,18 @@ public class FeatureStack
 	public static final int ENTROPY					= 18;
 	/** neighbors feature flag index */
 	public static final int NEIGHBORS				= 19;
+	/** pooling pyramid feature flag index */
+	public static final int POOLING_PYRAMID			= 20;
+	/** PCA filters feature flag index */
+	public static final int PCA_FILTERS				= 21;
 	
 	/** names of available filters */
 	public static final String[] availableFeatures 
 		= new String[]{	"Gaussian_blur", "Sobel_filter", "Hessian", "Difference_of_gaussians", 
 					   	"Membrane_projections","Variance","Mean", "Minimum", "Maximum", "Median", 
 					   	"Anisotropic_diffusion", "Bilateral", "Lipschitz", "Kuwahara", "Gabor" , 
-					   	"Derivatives", "Laplacian", "Structure", "Entropy", "Neighbors"};
+					   	"Derivatives", "Laplacian", "Structure", "Entropy", "Neighbors",
+					   	"Pooling_pyramid", "PCA_filters"};
 
 	/** Features only available if the ImageScience library is present. */
 	public static final boolean[] IMAGESCIENCE_FEATURES = {
@@ -178,9 +194,32 @@ public class FeatureStack
 		true,  // Laplacian
 		true,  // Structure
 		false, // Entropy
-		false  // Neighbors
+		false, // Neighbors
+		false, // Pooling_pyramid
+		false  // PCA_filters
 	};
 
+	/** ratio between the feature sigma and the sigma of the Gaussian blurs */
+	private static final double GAUSSIAN_SIGMA_RATIO = 0.4;
+	/** accuracy of the Gaussian blur kernels */
+	private static final double GAUSSIAN_ACCURACY = 0.0002;
+	/** smallest sigma of the ImageJ Gaussian blur on a downscaled image */
+	private static final double GAUSSIAN_MIN_DOWNSCALED_SIGMA = 4;
+	/** radius of the ImageJ Gaussian blur upscaling kernel (in downscaled pixels) */
+	private static final int GAUSSIAN_UPSCALE_RADIUS = 2;
+	/** width and height of the Sobel kernels */
+	private static final int SOBEL_SIZE = 3;
+	/** minimum order of the derivatives features */
+	private static final int MIN_DERIVATIVE_ORDER = 2;
+	/** maximum order of the derivatives features */
+	private static final int MAX_DERIVATIVE_ORDER = 5;
+	/** integration scales of the structure tensor features */
+	private static final int[] STRUCTURE_INTEGRATION_SCALES = { 1, 3 };
+	/** number of PCA filters learned per channel */
+	private static final int PCA_NUM_FILTERS = 8;
+	/** attribute metadata property storing the PCA filter of a feature */
+	private static final String PCA_KERNEL_PROPERTY = "kernel";
+
 	/** flags of filters to be used */
 	private boolean[] enableFeatures = new boolean[]{
 			true, 	/* Gaussian_blur */
@@ -202,7 +241,9 @@ public class FeatureStack
 			false, 	/* Laplacian */
 			false,	/* Structure */
 			false,	/* Entropy */
-			false	/* Neighbors */
+			false,	/* Neighbors */
+			false,	/* Pooling_pyramid */
+			false	/* PCA_filters */
 	};
 	
 	/** use neighborhood flag */
@@ -213,9 +254,12 @@ public class FeatureStack
 	private int membranePatchSize = 19;
 	/** number of rotating angles for membrane, Kuwahara and Gabor features */
 	private int nAngles = 10;
-	
-	private int minDerivativeOrder = 2;
-	private int maxDerivativeOrder = 5;
+	/**
+	 * PCA filters of each channel (one per slice, labeled with the name of
+	 * its feature), learned from the original image or set from the image
+	 * a classifier was trained on
+	 */
+	private ImageStack pcaKernels = null;
 	
 	/** flag to specify the use of color features */
 	private final boolean colorFeatures;
@@ -306,15 +350,15 @@ public class FeatureStack
 	 * Display feature stack
 	 */
 	public void show(){
-		ImagePlus showStack = new ImagePlus("featureStack", wholeStack);
+		ImagePlus showStack = new ImagePlus("featureStack", getStack());
 		showStack.show();
 	}
 	/**
 	 * Get stack size
-	 * @return number of slices in the stack
+	 * @return number of features (stack slices and pooling pyramid features)
 	 */
 	public int getSize(){
-		return wholeStack.getSize();
+		return wholeStack.getSize() + pyramidLabels.size();
 	}
 	/**
 	 * Get slice label
@@ -322,6 +366,8 @@ public class FeatureStack
 	 * @return slice label
 	 */
 	public String getSliceLabel(int index){
+		if( index > wholeStack.getSize() )
+			return pyramidLabels.get( index - wholeStack.getSize() - 1 );
 		return wholeStack.getSliceLabel(index);
 	}
 	/**
@@ -378,7 +424,7 @@ public class FeatureStack
 		ImageProcessor ip = originalImage.getProcessor().duplicate();
 		GaussianBlur gs = new GaussianBlur();
 		//gs.blur(ip, sigma);
-		gs.blurGaussian(ip, 0.4 * sigma, 0.4 * sigma,  0.0002);
+		gs.blurGaussian(ip, GAUSSIAN_SIGMA_RATIO * sigma, GAUSSIAN_SIGMA_RATIO * sigma, GAUSSIAN_ACCURACY);
 		wholeStack.addSlice(availableFeatures[GAUSSIAN] + "_" + sigma, ip);
 	}
 	/**
@@ -400,7 +446,7 @@ public class FeatureStack
 				ImageProcessor ip = originalImage.getProcessor().duplicate();
 				GaussianBlur gs = new GaussianBlur();
 				//gs.blur(ip, sigma);
-				gs.blurGaussian(ip, 0.4 * sigma, 0.4 * sigma,  0.0002);
+				gs.blurGaussian(ip, GAUSSIAN_SIGMA_RATIO * sigma, GAUSSIAN_SIGMA_RATIO * sigma, GAUSSIAN_ACCURACY);
 				return new ImagePlus (availableFeatures[GAUSSIAN] + "_" + sigma, ip);
 			}
 		};
@@ -766,7 +812,374 @@ public class FeatureStack
 			}
 		};
 	}
-	
+
+	/**
+	 * Add the minimum, maximum and mean pools of a multi-resolution
+	 * pyramid of the original image to the current features. Level l
+	 * pools blocks of 2^l x 2^l pixels, which gives large context features
+	 * without filtering with large radii at full resolution. The levels
+	 * are kept at their own resolution and read at the pixels of the
+	 * original image when the instances are created. The features are
+	 * named after the sigma 2^(l-1) of each level, as the ones added by
+	 * {@link #updateFeaturesMT()} (RGB images are pooled in grayscale).
+	 *
+	 * @param numLevels number of pyramid levels
+	 */
+	public void addPoolingPyramid(int numLevels)
+	{
+		setPyramid( new PoolingPyramid( originalImage.getProcessor(), numLevels ),
+				1, 1 << ( numLevels - 1 ) );
+	}
+
+	/**
+	 * Get the pooling pyramid of the original image (to be called from an
+	 * ExecutorService), see {@link #addPoolingPyramid(int)}.
+	 *
+	 * @param originalImage input image
+	 * @param numLevels number of pyramid levels
+	 * @return pyramid with the pools of every level at its own resolution
+	 */
+	public Callable<PoolingPyramid> getPoolingPyramid(
+			final ImagePlus originalImage,
+			final int numLevels)
+	{
+		if (Thread.currentThread().isInterrupted())
+			return null;
+
+		return new Callable<PoolingPyramid>(){
+			public PoolingPyramid call(){
+				// the callables already run concurrently
+				return new PoolingPyramid( originalImage.getProcessor(), numLevels, 1 );
+			}
+		};
+	}
+
+	/**
+	 * Get the pyramid level whose blocks have the size of the features of
+	 * a given sigma (2 * sigma pixels)
+	 *
+	 * @param sigma feature sigma
+	 * @return pyramid level (at least 1)
+	 */
+	private static int getPyramidLevel( float sigma )
+	{
+		return Math.max( 1, (int) Math.round( Math.log( 2 * sigma ) / Math.log( 2 ) ) );
+	}
+
+	/**
+	 * Use a pooling pyramid as features: the three pools of the levels of
+	 * each sigma from the minimum to the maximum sigma (doubling it)
+	 *
+	 * @param pyramid pooling pyramid of the original image
+	 * @param minSigma minimum sigma
+	 * @param maxSigma maximum sigma
+	 */
+	private void setPyramid( PoolingPyramid pyramid, float minSigma, float maxSigma )
+	{
+		clearPyramid();
+		this.pyramid = pyramid;
+		for( float sigma = minSigma; sigma <= maxSigma; sigma *= 2 )
+			for( int p = 0; p < 3; p++ )
+			{
+				pyramidLabels.add( availableFeatures[ POOLING_PYRAMID ] + "_"
+						+ PoolingPyramid.poolNames[ p ] + "_" + sigma );
+				pyramidFeatures.add( new int[]{ p, getPyramidLevel( sigma ) } );
+			}
+	}
+
+	/**
+	 * Remove the pooling pyramid features
+	 */
+	private void clearPyramid()
+	{
+		pyramid = null;
+		pyramidLabels.clear();
+		pyramidFeatures.clear();
+	}
+
+	/**
+	 * Get the value of a pooling pyramid feature at a pixel of the
+	 * original image
+	 *
+	 * @param z feature index (starting at 0, after the stack slices)
+	 * @param x x- pixel coordinate
+	 * @param y y- pixel coordinate
+	 * @return pooled value of the block containing the pixel
+	 */
+	private float getPyramidValue( int z, int x, int y )
+	{
+		final int[] feature = pyramidFeatures.get( z - wholeStack.getSize() );
+		return pyramid.getValue( feature[ 0 ], feature[ 1 ], x, y );
+	}
+
+	/**
+	 * Add the responses of the original image to filters learned by
+	 * principal component analysis of image patches. The filters of each
+	 * channel are its first principal components, so they capture the most
+	 * frequent local structures of the image. They are learned from the
+	 * original image unless they were set with
+	 * {@link #setPCAKernels(ImageStack)}, e.g. to use the filters of the
+	 * image a classifier was trained on.
+	 *
+	 * @param patchSize side of the patches (and filters)
+	 * @param step distance between the patches used to learn the filters
+	 * @param numFilters number of filters (principal components) to use
+	 * @throws RuntimeException if the filters cannot be learned
+	 */
+	public void addPCAFilters(int patchSize, int step, int numFilters)
+	{
+		if( null == pcaKernels )
+			pcaKernels = learnPCAKernels( patchSize, step, numFilters, Prefs.getThreads() );
+
+		final ImagePlus merged = filterWithPCAKernels( originalImage, pcaKernels );
+		for(int i=1; i<=merged.getImageStackSize(); i++)
+			wholeStack.addSlice(merged.getImageStack().getSliceLabel(i), merged.getImageStack().getPixels(i));
+	}
+
+	/**
+	 * Get the responses of an image to PCA filters (to be called from an
+	 * ExecutorService), see {@link #addPCAFilters(int, int, int)}.
+	 *
+	 * @param originalImage input image
+	 * @param kernels PCA filters of each channel
+	 * @return stack with the filter responses, labeled "PCA_filters_" +
+	 * patch size + "_" + component
+	 */
+	public Callable<ImagePlus> getPCAFilters(
+			final ImagePlus originalImage,
+			final ImageStack kernels)
+	{
+		if (Thread.currentThread().isInterrupted())
+			return null;
+
+		return new Callable<ImagePlus>(){
+			public ImagePlus call(){
+				return filterWithPCAKernels( originalImage, kernels );
+			}
+		};
+	}
+
+	/**
+	 * Learn the PCA filters from the original image (with non-overlapping
+	 * patches of the membrane patch size), unless they were already
+	 * learned or set
+	 *
+	 * @return PCA filters of each channel
+	 * @throws RuntimeException if the filters cannot be learned
+	 */
+	public ImageStack learnPCAKernels()
+	{
+		if( null == pcaKernels )
+			pcaKernels = learnPCAKernels( membranePatchSize, membranePatchSize,
+					PCA_NUM_FILTERS, Prefs.getThreads() );
+		return pcaKernels;
+	}
+
+	/**
+	 * Get the PCA filters of each channel
+	 *
+	 * @return PCA filters (one per slice), or null if they were not learned
+	 * or set yet
+	 */
+	public ImageStack getPCAKernels()
+	{
+		return pcaKernels;
+	}
+
+	/**
+	 * Set the PCA filters to use instead of learning them from the
+	 * original image (null to learn them again)
+	 *
+	 * @param kernels PCA filters of each channel, as returned by
+	 * {@link #getPCAKernels()}
+	 */
+	public void setPCAKernels(ImageStack kernels)
+	{
+		this.pcaKernels = kernels;
+	}
+
+	/**
+	 * Learn the first principal components of the patches of each channel
+	 * of the original image
+	 *
+	 * @param patchSize side of the patches (and filters)
+	 * @param step distance between the patches
+	 * @param numFilters number of filters (principal components) per channel
+	 * @param numThreads number of threads to use
+	 * @return PCA filters of each channel
+	 * @throws RuntimeException if the components cannot be computed
+	 */
+	private ImageStack learnPCAKernels(
+			final int patchSize,
+			final int step,
+			final int numFilters,
+			final int numThreads)
+	{
+		final ImagePlus[] channels = extractChannels(originalImage);
+		final ImageStack kernels = new ImageStack( patchSize, patchSize );
+		for(int ch=0; ch < channels.length; ch++)
+		{
+			final ImagePlus filters = PrincipalComponentAnalysis.getPrincipalComponents(
+					channels[ ch ], patchSize, step, numFilters, numThreads );
+			if( null == filters )
+				throw new RuntimeException( "Error when learning the PCA filters." );
+			for(int i=1; i<=filters.getImageStackSize(); i++)
+				kernels.addSlice( getPCAFilterLabel( patchSize, i-1 ),
+						filters.getImageStack().getProcessor(i) );
+		}
+		return kernels;
+	}
+
+	/**
+	 * Convolve each channel of an image with its PCA filters
+	 *
+	 * @param originalImage input image
+	 * @param kernels PCA filters of each channel
+	 * @return stack with the filter responses
+	 * @throws RuntimeException if the filters do not match the channels
+	 */
+	private ImagePlus filterWithPCAKernels(
+			final ImagePlus originalImage,
+			final ImageStack kernels)
+	{
+		final ImagePlus[] channels = extractChannels(originalImage);
+		if( kernels.getSize() % channels.length != 0 )
+			throw new RuntimeException( "The PCA filters do not match the image channels." );
+		final int numFilters = kernels.getSize() / channels.length;
+		final int patchSize = kernels.getWidth();
+
+		final ImagePlus[] results = new ImagePlus[ channels.length ];
+
+		final Convolver c = new Convolver();
+		// keep the projections on the components as they are
+		c.setNormalize( false );
+
+		for(int ch=0; ch < channels.length; ch++)
+		{
+			final ImageStack is = new ImageStack(width, height);
+			for(int i=1; i<=numFilters; i++)
+			{
+				final float[] kernel = (float[]) kernels.getPixels( ch * numFilters + i );
+				final ImageProcessor ip = channels[ ch ].getProcessor().convertToFloat().duplicate();
+				c.convolveFloat(ip, kernel, patchSize, patchSize);
+				is.addSlice(kernels.getSliceLabel( ch * numFilters + i ), ip);
+			}
+			results[ ch ] = new ImagePlus( availableFeatures[ PCA_FILTERS ] + "_" + patchSize, is );
+		}
+		return mergeResultChannels(results);
+	}
+
+	/**
+	 * Get the name of a PCA filter feature
+	 *
+	 * @param patchSize side of the filter
+	 * @param component index of the principal component (starting at 0)
+	 * @return feature name
+	 */
+	private static String getPCAFilterLabel( int patchSize, int component )
+	{
+		return availableFeatures[ PCA_FILTERS ] + "_" + patchSize + "_" + component;
+	}
+
+	/**
+	 * Store the PCA filters in the metadata of the attributes of their
+	 * features, so they are saved with the classifier header. The filters
+	 * of the features not in the header are not stored.
+	 *
+	 * @param header attribute header of a classifier
+	 * @param kernels PCA filters of each channel (or null)
+	 * @return copy of the header with the filters, or the same header if
+	 * it has no PCA filter features
+	 */
+	public static Instances storePCAKernels(Instances header, ImageStack kernels)
+	{
+		if( null == header || null == kernels )
+			return header;
+		boolean stored = false;
+		final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for( int a = 0; a < header.numAttributes(); a++ )
+		{
+			final Attribute att = header.attribute( a );
+			// concatenate the filters of the feature in all channels
+			final StringBuilder kernel = new StringBuilder();
+			for( int i = 1; i <= kernels.getSize(); i++ )
+				if( att.name().equals( kernels.getSliceLabel( i ) ) )
+					for( final float value : (float[]) kernels.getPixels( i ) )
+					{
+						if( kernel.length() > 0 )
+							kernel.append( ' ' );
+						kernel.append( value );
+					}
+			if( kernel.length() == 0 )
+				attributes.add( att.copy( att.name() ) );
+			else
+			{
+				final Properties metadata = new Properties();
+				metadata.setProperty( PCA_KERNEL_PROPERTY, kernel.toString() );
+				attributes.add( new Attribute( att.name(), new ProtectedProperties( metadata ) ) );
+				stored = true;
+			}
+		}
+		if( !stored )
+			return header;
+		final Instances result = new Instances( header.relationName(), attributes, 0 );
+		result.setClassIndex( header.classIndex() );
+		return result;
+	}
+
+	/**
+	 * Read the PCA filters stored in a classifier header by
+	 * {@link #storePCAKernels(Instances, ImageStack)}. The filters of the
+	 * features removed from the header are set to zero.
+	 *
+	 * @param header attribute header of a classifier
+	 * @return PCA filters of each channel, or null if the header does not
+	 * store them
+	 */
+	public static ImageStack readPCAKernels(Instances header)
+	{
+		final String prefix = availableFeatures[ PCA_FILTERS ] + "_";
+		final ArrayList<float[]> values = new ArrayList<float[]>();
+		int patchSize = 0;
+		for( int a = 0; a < header.numAttributes(); a++ )
+		{
+			final Attribute att = header.attribute( a );
+			if( !att.name().startsWith( prefix ) || null == att.getMetadata() )
+				continue;
+			final String kernel = att.getMetadata().getProperty( PCA_KERNEL_PROPERTY );
+			if( null == kernel )
+				continue;
+			final String[] tokens = att.name().substring( prefix.length() ).split( "_" );
+			patchSize = Integer.parseInt( tokens[ 0 ] );
+			final int component = Integer.parseInt( tokens[ 1 ] );
+			final String[] numbers = kernel.split( " " );
+			final float[] v = new float[ numbers.length ];
+			for( int i = 0; i < numbers.length; i++ )
+				v[ i ] = Float.parseFloat( numbers[ i ] );
+			while( values.size() <= component )
+				values.add( null );
+			values.set( component, v );
+		}
+		if( 0 == patchSize )
+			return null;
+
+		final int size = patchSize * patchSize;
+		int numChannels = 0;
+		for( final float[] v : values )
+			if( null != v )
+				numChannels = v.length / size;
+		final ImageStack kernels = new ImageStack( patchSize, patchSize );
+		for( int ch = 0; ch < numChannels; ch++ )
+			for( int i = 0; i < values.size(); i++ )
+			{
+				final float[] kernel = new float[ size ];
+				if( null != values.get( i ) )
+					System.arraycopy( values.get( i ), ch * size, kernel, 0, size );
+				kernels.addSlice( getPCAFilterLabel( patchSize, i ), kernel );
+			}
+		return kernels;
+	}
+
 	/**
 	 * Write feature names in a file
 	 * 
@@ -779,9 +1192,9 @@ public class FeatureStack
 					new OutputStreamWriter(
 							new FileOutputStream(filename), StandardCharsets.UTF_8) );
 			try{	
-				for (int i=1; i <= wholeStack.getSize(); i++)
+				for (int i=1; i <= getSize(); i++)
 				{
-					out.write(wholeStack.getSliceLabel(i));
+					out.write(getSliceLabel(i));
 					out.newLine();
 				}
 				out.close();
@@ -809,17 +1222,17 @@ public class FeatureStack
 			GaussianBlur gs = new GaussianBlur();
 			ImageProcessor ip_x = channels[ch].getProcessor().duplicate().convertToFloat();
 			//gs.blur(ip_x, sigma);
-			gs.blurGaussian(ip_x, 0.4 * sigma, 0.4 * sigma,  0.0002);
+			gs.blurGaussian(ip_x, GAUSSIAN_SIGMA_RATIO * sigma, GAUSSIAN_SIGMA_RATIO * sigma, GAUSSIAN_ACCURACY);
 			Convolver c = new Convolver();
 			float[] sobelFilter_x = {1f,2f,1f,0f,0f,0f,-1f,-2f,-1f};
-			c.convolveFloat(ip_x, sobelFilter_x, 3, 3);
+			c.convolveFloat(ip_x, sobelFilter_x, SOBEL_SIZE, SOBEL_SIZE);
 
 			ImageProcessor ip_y = channels[ch].getProcessor().duplicate().convertToFloat();
 			//gs.blur(ip_y, sigma);
-			gs.blurGaussian(ip_y, 0.4 * sigma, 0.4 * sigma,  0.0002);
+			gs.blurGaussian(ip_y, GAUSSIAN_SIGMA_RATIO * sigma, GAUSSIAN_SIGMA_RATIO * sigma, GAUSSIAN_ACCURACY);
 			c = new Convolver();
 			float[] sobelFilter_y = {1f,0f,-1f,2f,0f,-2f,1f,0f,-1f};
-			c.convolveFloat(ip_y, sobelFilter_y, 3, 3);
+			c.convolveFloat(ip_y, sobelFilter_y, SOBEL_SIZE, SOBEL_SIZE);
 
 			ImageProcessor ip = new FloatProcessor(width, height);
 
@@ -865,17 +1278,17 @@ public class FeatureStack
 					GaussianBlur gs = new GaussianBlur();
 					ImageProcessor ip_x = channels[ch].getProcessor().duplicate().convertToFloat();
 					//gs.blur(ip_x, sigma);
-					gs.blurGaussian(ip_x, 0.4 * sigma, 0.4 * sigma,  0.0002);
+					gs.blurGaussian(ip_x, GAUSSIAN_SIGMA_RATIO * sigma, GAUSSIAN_SIGMA_RATIO * sigma, GAUSSIAN_ACCURACY);
 					Convolver c = new Convolver();
 					float[] sobelFilter_x = {1f,2f,1f,0f,0f,0f,-1f,-2f,-1f};
-					c.convolveFloat(ip_x, sobelFilter_x, 3, 3);
+					c.convolveFloat(ip_x, sobelFilter_x, SOBEL_SIZE, SOBEL_SIZE);
 
 					ImageProcessor ip_y = channels[ch].getProcessor().duplicate().convertToFloat();
 					//gs.blur(ip_y, sigma);
-					gs.blurGaussian(ip_y, 0.4 * sigma, 0.4 * sigma,  0.0002);
+					gs.blurGaussian(ip_y, GAUSSIAN_SIGMA_RATIO * sigma, GAUSSIAN_SIGMA_RATIO * sigma, GAUSSIAN_ACCURACY);
 					c = new Convolver();
 					float[] sobelFilter_y = {1f,0f,-1f,2f,0f,-2f,1f,0f,-1f};
-					c.convolveFloat(ip_y, sobelFilter_y, 3, 3);
+					c.convolveFloat(ip_y, sobelFilter_y, SOBEL_SIZE, SOBEL_SIZE);
 
 					ImageProcessor ip = new FloatProcessor(width, height);
 
@@ -958,21 +1371,21 @@ public class FeatureStack
 		int height = channel.getHeight();
 
 		ImageProcessor ip_x = channel.getProcessor().duplicate().convertToFloat();
-		gs.blurGaussian(ip_x, 0.4 * sigma, 0.4 * sigma,  0.0002);
-		c.convolveFloat(ip_x, sobelFilter_x, 3, 3);
+		gs.blurGaussian(ip_x, GAUSSIAN_SIGMA_RATIO * sigma, GAUSSIAN_SIGMA_RATIO * sigma, GAUSSIAN_ACCURACY);
+		c.convolveFloat(ip_x, sobelFilter_x, SOBEL_SIZE, SOBEL_SIZE);
 
 		ImageProcessor ip_y = channel.getProcessor().duplicate().convertToFloat();
-		gs.blurGaussian(ip_y, 0.4 * sigma, 0.4 * sigma,  0.0002);
-		c.convolveFloat(ip_y, sobelFilter_y, 3, 3);
+		gs.blurGaussian(ip_y, GAUSSIAN_SIGMA_RATIO * sigma, GAUSSIAN_SIGMA_RATIO * sigma, GAUSSIAN_ACCURACY);
+		c.convolveFloat(ip_y, sobelFilter_y, SOBEL_SIZE, SOBEL_SIZE);
 
 		ImageProcessor ip_xx = ip_x.duplicate();
-		c.convolveFloat(ip_xx, sobelFilter_x, 3, 3);
+		c.convolveFloat(ip_xx, sobelFilter_x, SOBEL_SIZE, SOBEL_SIZE);
 
 		ImageProcessor ip_xy = ip_x.duplicate();
-		c.convolveFloat(ip_xy, sobelFilter_y, 3, 3);
+		c.convolveFloat(ip_xy, sobelFilter_y, SOBEL_SIZE, SOBEL_SIZE);
 
 		ImageProcessor ip_yy = ip_y.duplicate();
-		c.convolveFloat(ip_yy, sobelFilter_y, 3, 3);
+		c.convolveFloat(ip_yy, sobelFilter_y, SOBEL_SIZE, SOBEL_SIZE);
 
 		ImageProcessor ip = new FloatProcessor(width, height);
 		ImageProcessor ipTr = new FloatProcessor(width, height);
@@ -1066,10 +1479,10 @@ public class FeatureStack
 		{
 			ImageProcessor ip_1 = channels[ch].getProcessor().duplicate();
 			//gs.blur(ip_1, sigma1);
-			gs.blurGaussian(ip_1, 0.4 * sigma1, 0.4 * sigma1,  0.0002);
+			gs.blurGaussian(ip_1, GAUSSIAN_SIGMA_RATIO * sigma1, GAUSSIAN_SIGMA_RATIO * sigma1, GAUSSIAN_ACCURACY);
 			ImageProcessor ip_2 = channels[ch].getProcessor().duplicate();			
 			//gs.blur(ip_2, sigma2);
-			gs.blurGaussian(ip_2, 0.4 * sigma2, 0.4 * sigma2,  0.0002);
+			gs.blurGaussian(ip_2, GAUSSIAN_SIGMA_RATIO * sigma2, GAUSSIAN_SIGMA_RATIO * sigma2, GAUSSIAN_ACCURACY);
 
 			ImageProcessor ip = new FloatProcessor(width, height);
 
@@ -1119,10 +1532,10 @@ public class FeatureStack
 				{
 					ImageProcessor ip_1 = channels[ch].getProcessor().duplicate();
 					//gs.blur(ip_1, sigma1);
-					gs.blurGaussian(ip_1, 0.4 * sigma1, 0.4 * sigma1,  0.0002);
+					gs.blurGaussian(ip_1, GAUSSIAN_SIGMA_RATIO * sigma1, GAUSSIAN_SIGMA_RATIO * sigma1, GAUSSIAN_ACCURACY);
 					ImageProcessor ip_2 = channels[ch].getProcessor().duplicate();
 					//gs.blur(ip_2, sigma2);
-					gs.blurGaussian(ip_2, 0.4 * sigma2, 0.4 * sigma2,  0.0002);
+					gs.blurGaussian(ip_2, GAUSSIAN_SIGMA_RATIO * sigma2, GAUSSIAN_SIGMA_RATIO * sigma2, GAUSSIAN_ACCURACY);
 
 					ImageProcessor ip = new FloatProcessor(width, height);
 
@@ -2164,6 +2577,12 @@ public class FeatureStack
 	 * @return slice image processor
 	 */
 	public ImageProcessor getProcessor(int index) {
+		if( index > wholeStack.getSize() )
+		{
+			// upsample the pyramid feature on demand
+			final int[] feature = pyramidFeatures.get( index - wholeStack.getSize() - 1 );
+			return pyramid.upsample( feature[ 0 ], feature[ 1 ] );
+		}
 		return wholeStack.getProcessor(index);
 	}
 	
@@ -2183,8 +2602,8 @@ public class FeatureStack
 			IJ.log( "Using old color format...");
 		
 		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
-		for (int i=1; i<=wholeStack.getSize(); i++){
-			String attString = wholeStack.getSliceLabel(i);
+		for (int i=1; i<=getSize(); i++){
+			String attString = getSliceLabel(i);
 			attributes.add(new Attribute(attString));
 		}
 		
@@ -2245,6 +2664,7 @@ public class FeatureStack
 	public void updateFeatures()
 	{
 		wholeStack = new ImageStack(width, height);
+		clearPyramid();
 		if( originalImage.getType() == ImagePlus.COLOR_RGB)
 		{		
 			wholeStack.addSlice("original", originalImage.getProcessor().duplicate());
@@ -2417,7 +2837,7 @@ public class FeatureStack
 			// Derivatives
 			if(enableFeatures[DERIVATIVES])
 			{					
-				for(int order = minDerivativeOrder; order<=maxDerivativeOrder; order++)
+				for(int order = MIN_DERIVATIVE_ORDER; order<=MAX_DERIVATIVE_ORDER; order++)
 					addDerivatives( i, order, order );
 			}
 			
@@ -2430,7 +2850,7 @@ public class FeatureStack
 			// Structure tensor
 			if(enableFeatures[ STRUCTURE ])
 			{					
-				for(int integrationScale = 1; integrationScale <= 3; integrationScale+=2)
+				for(final int integrationScale : STRUCTURE_INTEGRATION_SCALES)
 					addStructure(i, integrationScale );
 			}
 
@@ -2448,6 +2868,15 @@ public class FeatureStack
 		if( enableFeatures[ NEIGHBORS ])
 			addNeighbors( (int)minimumSigma, (int)maximumSigma );
 		
+		// PCA filters
+		if( enableFeatures[ PCA_FILTERS ])
+			addPCAFilters( membranePatchSize, membranePatchSize, PCA_NUM_FILTERS );
+		
+		// Pooling pyramid
+		if( enableFeatures[ POOLING_PYRAMID ])
+			setPyramid( new PoolingPyramid( originalImage.getProcessor(),
+					getPyramidLevel( maximumSigma ), 1 ), minimumSigma, maximumSigma );
+		
 		IJ.showProgress(1.0);
 		IJ.showStatus("Features stack is updated now!");
 	}
@@ -2461,6 +2890,7 @@ public class FeatureStack
 	{
 		exe = Executors.newFixedThreadPool( Prefs.getThreads() );
 		wholeStack = new ImageStack(width, height);
+		clearPyramid();
 		//wholeStack.addSlice("original", originalImage.getProcessor().duplicate());
 
 		
@@ -2518,6 +2948,7 @@ public class FeatureStack
 	public boolean updateFeaturesST()
 	{
 		wholeStack = new ImageStack(width, height);
+		clearPyramid();
 		if( originalImage.getType() == ImagePlus.COLOR_RGB)
 		{		
 			wholeStack.addSlice("original", originalImage.getProcessor().duplicate());
@@ -2690,7 +3121,7 @@ public class FeatureStack
 			// Derivatives
 			if(enableFeatures[DERIVATIVES])
 			{					
-				for(int order = minDerivativeOrder; order<=maxDerivativeOrder; order++)
+				for(int order = MIN_DERIVATIVE_ORDER; order<=MAX_DERIVATIVE_ORDER; order++)
 					addDerivatives( i, order, order );
 			}
 			
@@ -2703,7 +3134,7 @@ public class FeatureStack
 			// Structure tensor
 			if(enableFeatures[ STRUCTURE ])
 			{					
-				for(int integrationScale = 1; integrationScale <= 3; integrationScale+=2)
+				for(final int integrationScale : STRUCTURE_INTEGRATION_SCALES)
 					addStructure(i, integrationScale );
 			}
 			
@@ -2728,6 +3159,15 @@ public class FeatureStack
 		if( enableFeatures[ NEIGHBORS ])
 			addNeighbors( (int)minimumSigma, (int)maximumSigma );
 		
+		// PCA filters
+		if( enableFeatures[ PCA_FILTERS ])
+			addPCAFilters( membranePatchSize, membranePatchSize, PCA_NUM_FILTERS );
+		
+		// Pooling pyramid
+		if( enableFeatures[ POOLING_PYRAMID ])
+			setPyramid( new PoolingPyramid( originalImage.getProcessor(),
+					getPyramidLevel( maximumSigma ), 1 ), minimumSigma, maximumSigma );
+		
 		IJ.showProgress(1.0);
 		IJ.showStatus("Features stack is updated now!");
 		return true;
@@ -2792,6 +3232,7 @@ public class FeatureStack
 		exe = Executors.newFixedThreadPool( numThreads );
 				
 		wholeStack = new ImageStack(width, height);
+		clearPyramid();
 		if( originalImage.getType() == ImagePlus.COLOR_RGB)
 			wholeStack.addSlice("original", originalImage.getProcessor().duplicate());
 		else
@@ -3003,7 +3444,7 @@ public class FeatureStack
 				// Derivatives
 				if(enableFeatures[DERIVATIVES])
 				{					
-					for(int order = minDerivativeOrder; order<=maxDerivativeOrder; order++)
+					for(int order = MIN_DERIVATIVE_ORDER; order<=MAX_DERIVATIVE_ORDER; order++)
 						futures.add(exe.submit( getDerivatives(originalImage, i, order, order)) );
 				}
 				
@@ -3016,7 +3457,7 @@ public class FeatureStack
 				// Structure tensor
 				if(enableFeatures[ STRUCTURE ])
 				{					
-					for(int integrationScale = 1; integrationScale <= 3; integrationScale+=2)
+					for(final int integrationScale : STRUCTURE_INTEGRATION_SCALES)
 						futures.add(exe.submit( getStructure(originalImage, i, integrationScale )) );
 				}
 				
@@ -3041,6 +3482,20 @@ public class FeatureStack
 			if( enableFeatures[ NEIGHBORS ])
 				futures.add(exe.submit( getNeighbors( originalImage, (int)minimumSigma, (int)maximumSigma ) ) );
 			
+			// PCA filters (learned first if needed)
+			if( enableFeatures[ PCA_FILTERS ])
+			{
+				if( null == pcaKernels )
+					pcaKernels = learnPCAKernels( membranePatchSize, membranePatchSize,
+							PCA_NUM_FILTERS, numThreads );
+				futures.add(exe.submit( getPCAFilters( originalImage, pcaKernels ) ) );
+			}
+			
+			// Pooling pyramid (kept at the resolution of its levels)
+			Future<PoolingPyramid> pyramidFuture = null;
+			if( enableFeatures[ POOLING_PYRAMID ])
+				pyramidFuture = exe.submit( getPoolingPyramid( originalImage, getPyramidLevel( maximumSigma ) ) );
+			
 			// Wait for the jobs to be done
 			for(Future<ImagePlus> f : futures)
 			{
@@ -3059,6 +3514,12 @@ public class FeatureStack
 						this.wholeStack.addSlice(slices.getSliceLabel(i), slices.getProcessor(i));
 				}
 			}
+			if( null != pyramidFuture )
+			{
+				setPyramid( pyramidFuture.get(), minimumSigma, maximumSigma );
+				currentIndex ++;
+				IJ.showProgress(currentIndex, finalIndex);
+			}
 		
 		}
 		catch(InterruptedException ie)
@@ -3086,7 +3547,23 @@ public class FeatureStack
 	 * @param enableFeatures list of boolean flags to enable features
 	 */
 	public void setEnabledFeatures(boolean[] enableFeatures) {
-		this.enableFeatures = enableFeatures;
+		this.enableFeatures = completeEnabledFeatures( enableFeatures );
+	}
+
+	/**
+	 * Complete a list of flags of enabled features saved before the last
+	 * features were added (e.g. in old settings or scripts), leaving the
+	 * missing features disabled.
+	 *
+	 * @param enableFeatures flags of the enabled features
+	 * @return the same flags if complete, or a copy with the missing
+	 * features disabled
+	 */
+	public static boolean[] completeEnabledFeatures(boolean[] enableFeatures)
+	{
+		if( null == enableFeatures || enableFeatures.length >= availableFeatures.length )
+			return enableFeatures;
+		return Arrays.copyOf( enableFeatures, availableFeatures.length );
 	}
 
 	/**
@@ -3153,7 +3630,7 @@ public class FeatureStack
 	 */
 	public boolean saveStackAsTiff(final String filename)
 	{
-		final ImagePlus ip = new ImagePlus("feature-stack", this.wholeStack);
+		final ImagePlus ip = new ImagePlus("feature-stack", getStack());
 		//ip.show();
 		//IJ.log("path = " + filename);
 		final FileSaver fs = new FileSaver(ip);
@@ -3172,7 +3649,14 @@ public class FeatureStack
 			{
 				this.wholeStack.deleteSlice(n);
 				return;
-			}		
+			}
+		for(int n=0; n<pyramidLabels.size(); n++)
+			if(featureName.equalsIgnoreCase(pyramidLabels.get(n)))
+			{
+				pyramidLabels.remove(n);
+				pyramidFeatures.remove(n);
+				return;
+			}
 	}
 
 	/**
@@ -3193,6 +3677,125 @@ public class FeatureStack
 		this.maximumSigma = maxSigma;		
 	}
 	
+	/**
+	 * Get the maximum distance (in pixels) between a pixel and the pixels
+	 * of the original image its features depend on, with the filters and
+	 * parameters used by updateFeatures. A region of the image padded by
+	 * this distance gets the same features as in the whole image.
+	 * 
+	 * @param enableFeatures flags of the enabled features
+	 * @param minimumSigma minimum sigma used in the filters
+	 * @param maximumSigma maximum sigma used in the filters
+	 * @param membranePatchSize size of the membrane and Kuwahara kernels
+	 * @param useNeighbors flag to use the neighbors as features
+	 * @return distance in pixels, or -1 if the features of a pixel depend
+	 * on the whole image (Anisotropic diffusion, Bilateral, Lipschitz,
+	 * Kuwahara, Gabor, Entropy, Pooling pyramid and PCA filters)
+	 */
+	public static int getFeatureRadius(
+			boolean[] enableFeatures,
+			float minimumSigma,
+			float maximumSigma,
+			int membranePatchSize,
+			boolean useNeighbors )
+	{
+		// iterative filters, without a fixed kernel
+		if( enableFeatures[ ANISOTROPIC_DIFFUSION ]
+				|| enableFeatures[ BILATERAL ] || enableFeatures[ LIPSCHITZ ] )
+			return -1;
+		// filters using statistics of the whole image: Kuwahara subtracts
+		// the image minimum, the Gabor responses are normalized to zero mean
+		// and unit variance and the entropy histograms are scaled to the
+		// image range
+		if( enableFeatures[ KUWAHARA ] || enableFeatures[ GABOR ]
+				|| enableFeatures[ ENTROPY ] )
+			return -1;
+		// pooling blocks aligned to the image origin
+		if( enableFeatures.length > POOLING_PYRAMID && enableFeatures[ POOLING_PYRAMID ] )
+			return -1;
+		// filters learned from the whole image
+		if( enableFeatures.length > PCA_FILTERS && enableFeatures[ PCA_FILTERS ] )
+			return -1;
+
+		final int sobel = SOBEL_SIZE / 2;
+		int radius = useNeighbors ? 1 : 0;
+		// Sobel and Hessian without blur
+		if( enableFeatures[ HESSIAN ] && minimumSigma < 2 )
+			radius = Math.max( radius, 2 * sobel );
+		else if( enableFeatures[ SOBEL ] && minimumSigma < 2 )
+			radius = Math.max( radius, sobel );
+		if( enableFeatures[ MEMBRANE ] )
+			radius = Math.max( radius, membranePatchSize / 2 );
+		if( enableFeatures[ NEIGHBORS ] )
+			radius = Math.max( radius, (int) maximumSigma );
+
+		for( float sigma = minimumSigma; sigma <= maximumSigma; sigma *= 2 )
+		{
+			final int gaussian = getGaussianRadius( sigma );
+			if( enableFeatures[ GAUSSIAN ] || enableFeatures[ DOG ] )
+				radius = Math.max( radius, gaussian );
+			// Sobel kernel applied once (gradient) or twice (Hessian)
+			if( enableFeatures[ SOBEL ] )
+				radius = Math.max( radius, gaussian + sobel );
+			if( enableFeatures[ HESSIAN ] )
+				radius = Math.max( radius, gaussian + 2 * sobel );
+			// the rank filter kernels fit in a circle of radius sigma
+			if( enableFeatures[ VARIANCE ] || enableFeatures[ MEAN ]
+					|| enableFeatures[ MINIMUM ] || enableFeatures[ MAXIMUM ]
+					|| enableFeatures[ MEDIAN ] )
+				radius = Math.max( radius, (int) Math.ceil( sigma ) );
+			if( enableFeatures[ DERIVATIVES ] )
+				for( int order = MIN_DERIVATIVE_ORDER; order <= MAX_DERIVATIVE_ORDER; order++ )
+					radius = Math.max( radius, getDerivativeRadius( sigma, order ) );
+			if( enableFeatures[ LAPLACIAN ] )
+				radius = Math.max( radius, getDerivativeRadius( sigma, 2 ) );
+			// first derivatives smoothed at the integration scale
+			if( enableFeatures[ STRUCTURE ] )
+				for( final int integrationScale : STRUCTURE_INTEGRATION_SCALES )
+					radius = Math.max( radius, getDerivativeRadius( sigma, 1 )
+							+ getDerivativeRadius( integrationScale, 0 ) );
+		}
+		return radius;
+	}
+
+	/**
+	 * Get the radius (in pixels) of the ImageJ Gaussian blur of the
+	 * features with a given sigma. The kernel is cut where it falls below
+	 * the accuracy and, for large sigmas, GaussianBlur blurs a downscaled
+	 * image and upscales the result, which adds the reach of the
+	 * interpolation kernels.
+	 * 
+	 * @param sigma feature sigma
+	 * @return radius in pixels
+	 */
+	private static int getGaussianRadius( double sigma )
+	{
+		final double blurSigma = GAUSSIAN_SIGMA_RATIO * sigma;
+		final double kernelRatio = Math.sqrt( -2 * Math.log( GAUSSIAN_ACCURACY ) );
+		if( blurSigma <= 2 * GAUSSIAN_MIN_DOWNSCALED_SIGMA + 0.5 )
+			return (int) Math.ceil( blurSigma * kernelRatio );
+		final int reduceBy = (int) Math.floor( blurSigma / GAUSSIAN_MIN_DOWNSCALED_SIGMA );
+		final double reducedSigma = Math.sqrt( blurSigma * blurSigma
+				/ ( reduceBy * reduceBy ) - 1. / 3. - 1. / 4. );
+		return ( (int) Math.ceil( reducedSigma * kernelRatio )
+				+ 2 * GAUSSIAN_UPSCALE_RADIUS ) * reduceBy;
+	}
+
+	/**
+	 * Get the radius (in pixels) of the imagescience Gaussian derivative
+	 * kernels, which Differentiator truncates at 3.5, 4, 4.5 and 5 times
+	 * sigma for orders 0, 1, 2 and higher.
+	 * 
+	 * @param sigma smoothing scale
+	 * @param order order of differentiation
+	 * @return radius in pixels
+	 */
+	private static int getDerivativeRadius( double sigma, int order )
+	{
+		final double truncation = order < 3 ? 3.5 + 0.5 * order : 5;
+		return (int) Math.ceil( truncation * sigma ) + 1;
+	}
+	
 	/**
 	 * Create instance (feature vector) of a specific coordinate
 	 * 
@@ -3213,12 +3816,12 @@ public class FeatureStack
 		
 		if(!colorFeatures || oldColorFormat)
 		{
-			for (int z=0; z<getSize(); z++, n++)		
+			for (int z=0; z<wholeStack.getSize(); z++, n++)		
 				values[ z ] = this.wholeStack.getVoxel( x, y, z );
 		}
 		else
 		{
-			for (int z=0; z < getSize(); z++, n++)		
+			for (int z=0; z<wholeStack.getSize(); z++, n++)		
 			{
 				int c  = (int) wholeStack.getVoxel( x, y, z );
 				int r = (c&0xff0000)>>16;
@@ -3227,6 +3830,8 @@ public class FeatureStack
 				values[ z ] = (r + g + b) / 3.0;
 			}
 		}
+		for (int z=wholeStack.getSize(); z<getSize(); z++, n++)
+			values[ z ] = getPyramidValue( z, x, y );
 		
 		
 		// Test: add neighbors of original image
@@ -3247,6 +3852,137 @@ public class FeatureStack
 		return new DenseInstance(1.0, values);
 	}
 
+	/**
+	 * Write the feature vectors of a list of pixels into the rows of a
+	 * preallocated matrix, with the same values as createInstance. Each
+	 * feature slice is read once for all the pixels.
+	 *
+	 * @param pixels pixel indices (y * width + x)
+	 * @param matrix output rows (one per pixel, each with room for the
+	 * features, the neighbors if used and the class value)
+	 * @param firstRow row of the matrix where the first pixel is written
+	 * @param classValue class value written in the last column of the rows
+	 */
+	public void writeInstances(
+			final int[] pixels,
+			final double[][] matrix,
+			final int firstRow,
+			final int classValue )
+	{
+		final int numFeatures = getSize();
+		for (int z=0; z<numFeatures; z++)
+		{
+			if( z >= wholeStack.getSize() )
+			{
+				for( int i = 0; i < pixels.length; i++ )
+					matrix[ firstRow + i ][ z ] = getPyramidValue( z,
+							pixels[ i ] % width, pixels[ i ] / width );
+			}
+			else if(!colorFeatures || oldColorFormat)
+			{
+				final ImageProcessor ip = wholeStack.getProcessor( z+1 );
+				for( int i = 0; i < pixels.length; i++ )
+					matrix[ firstRow + i ][ z ] = ip.getf( pixels[ i ] );
+			}
+			else
+			{
+				final int[] rgb = (int[]) wholeStack.getPixels( z+1 );
+				for( int i = 0; i < pixels.length; i++ )
+				{
+					int c = rgb[ pixels[ i ] ];
+					int r = (c&0xff0000)>>16;
+					int g = (c&0xff00)>>8;
+					int b = c&0xff;
+					matrix[ firstRow + i ][ z ] = (r + g + b) / 3.0;
+				}
+			}
+		}
+
+		for( int i = 0; i < pixels.length; i++ )
+		{
+			final double[] values = matrix[ firstRow + i ];
+			if(useNeighbors)
+			{
+				final int x = pixels[ i ] % width;
+				final int y = pixels[ i ] / width;
+				int n = numFeatures;
+				for(int u=-1;  u < 2; u++)
+					for(int v = -1; v < 2; v++)
+					{
+						if(u==0 && v==0)
+							continue;
+						values[n] = getPixelMirrorConditions(getProcessor(1), x+u, y+v);
+						n++;
+					}
+			}
+			values[values.length-1] = (double) classValue;
+		}
+	}
+
+	/**
+	 * Write the feature vectors of a list of pixels into the columns of a
+	 * preallocated column-major matrix (one column per feature, followed by
+	 * the neighbors if used), with the same values as createInstance.
+	 *
+	 * @param pixels pixel indices (y * width + x)
+	 * @param columns output columns, each with room for all the rows
+	 * @param firstRow row of the columns where the first pixel is written
+	 */
+	public void writeColumns(
+			final int[] pixels,
+			final float[][] columns,
+			final int firstRow )
+	{
+		final int numFeatures = getSize();
+		for (int z=0; z<numFeatures; z++)
+		{
+			final float[] column = columns[ z ];
+			if( z >= wholeStack.getSize() )
+			{
+				for( int i = 0; i < pixels.length; i++ )
+					column[ firstRow + i ] = getPyramidValue( z,
+							pixels[ i ] % width, pixels[ i ] / width );
+			}
+			else if(!colorFeatures || oldColorFormat)
+			{
+				final ImageProcessor ip = wholeStack.getProcessor( z+1 );
+				for( int i = 0; i < pixels.length; i++ )
+					column[ firstRow + i ] = ip.getf( pixels[ i ] );
+			}
+			else
+			{
+				final int[] rgb = (int[]) wholeStack.getPixels( z+1 );
+				for( int i = 0; i < pixels.length; i++ )
+				{
+					int c = rgb[ pixels[ i ] ];
+					int r = (c&0xff0000)>>16;
+					int g = (c&0xff00)>>8;
+					int b = c&0xff;
+					column[ firstRow + i ] = (float) ( (r + g + b) / 3.0 );
+				}
+			}
+		}
+
+		if(useNeighbors)
+		{
+			final ImageProcessor original = getProcessor(1);
+			for( int i = 0; i < pixels.length; i++ )
+			{
+				final int x = pixels[ i ] % width;
+				final int y = pixels[ i ] / width;
+				int n = numFeatures;
+				for(int u=-1;  u < 2; u++)
+					for(int v = -1; v < 2; v++)
+					{
+						if(u==0 && v==0)
+							continue;
+						columns[ n ][ firstRow + i ] = (float) getPixelMirrorConditions(original, x+u, y+v);
+						n++;
+					}
+			}
+		}
+	}
+
 	/**
 	 * Create instance (feature vector) of a specific coordinate without a class, to be used on unsupervised clustering.
 	 *
@@ -3265,12 +4001,12 @@ public class FeatureStack
 
 		if(!colorFeatures || oldColorFormat)
 		{
-			for (int z=0; z<getSize(); z++, n++)
+			for (int z=0; z<wholeStack.getSize(); z++, n++)
 				values[ z ] = this.wholeStack.getVoxel( x, y, z );
 		}
 		else
 		{
-			for (int z=0; z < getSize(); z++, n++)
+			for (int z=0; z<wholeStack.getSize(); z++, n++)
 			{
 				int c  = (int) wholeStack.getVoxel( x, y, z );
 				int r = (c&0xff0000)>>16;
@@ -3279,6 +4015,8 @@ public class FeatureStack
 				values[ z ] = (r + g + b) / 3.0;
 			}
 		}
+		for (int z=wholeStack.getSize(); z<getSize(); z++, n++)
+			values[ z ] = getPyramidValue( z, x, y );
 		// Test: add neighbors of original image
 		if(useNeighbors)
 		{
@@ -3319,12 +4057,12 @@ public class FeatureStack
 		
 		if(!colorFeatures || oldColorFormat)
 		{
-			for (int z=0; z<getSize(); z++, n++)		
+			for (int z=0; z<wholeStack.getSize(); z++, n++)		
 				ins.setValue( z, wholeStack.getVoxel( x, y, z ) );
 		}
 		else
 		{
-			for (int z=0; z<getSize(); z++, n++)
+			for (int z=0; z<wholeStack.getSize(); z++, n++)
 			{
 				int c  = (int) wholeStack.getVoxel( x, y, z );
 				int r = (c&0xff0000)>>16;
@@ -3334,6 +4072,8 @@ public class FeatureStack
 			}
 				
 		}
+		for (int z=wholeStack.getSize(); z<getSize(); z++, n++)
+			ins.setValue( z, getPyramidValue( z, x, y ) );
 		
 		
 		// Test: add neighbors of original image
@@ -3370,12 +4110,12 @@ public class FeatureStack
 		// fill auxiliary array
 		if(!colorFeatures || oldColorFormat)
 		{
-			for (int z=0; z<getSize(); z++, n++)
+			for (int z=0; z<wholeStack.getSize(); z++, n++)
 				auxArray[ z ] = this.wholeStack.getVoxel( x, y, z );
 		}
 		else
 		{
-			for (int z=0; z < getSize(); z++, n++)
+			for (int z=0; z<wholeStack.getSize(); z++, n++)
 			{
 				int c  = (int) wholeStack.getVoxel( x, y, z );
 				int r = (c&0xff0000)>>16;
@@ -3384,6 +4124,8 @@ public class FeatureStack
 				auxArray[ z ] = (r + g + b) / 3.0;
 			}
 		}
+		for (int z=wholeStack.getSize(); z<getSize(); z++, n++)
+			auxArray[ z ] = getPyramidValue( z, x, y );
 
 
 		// Test: add neighbors of original image
@@ -3427,12 +4169,12 @@ public class FeatureStack
 		// fill auxiliary array
 		if(!colorFeatures || oldColorFormat)
 		{
-			for (int z=0; z<getSize(); z++, n++)		
+			for (int z=0; z<wholeStack.getSize(); z++, n++)		
 				auxArray[ z ] = this.wholeStack.getVoxel( x, y, z );
 		}
 		else
 		{
-			for (int z=0; z < getSize(); z++, n++)		
+			for (int z=0; z<wholeStack.getSize(); z++, n++)		
 			{
 				int c  = (int) wholeStack.getVoxel( x, y, z );
 				int r = (c&0xff0000)>>16;
@@ -3441,6 +4183,8 @@ public class FeatureStack
 				auxArray[ z ] = (r + g + b) / 3.0;
 			}
 		}
+		for (int z=wholeStack.getSize(); z<getSize(); z++, n++)
+			auxArray[ z ] = getPyramidValue( z, x, y );
 		
 		
 		// Test: add neighbors of original image
@@ -3493,15 +4237,25 @@ public class FeatureStack
 	public void setStack(ImageStack stack)
 	{
 		this.wholeStack = stack;
+		clearPyramid();
 	}
 	
 	/**
-	 * Get current stack of image features.
+	 * Get current stack of image features. If the pooling pyramid is used,
+	 * its features are upsampled to the image size and added to a new
+	 * stack after the slices of the feature stack.
 	 * @return current stack of image features
 	 */
 	public ImageStack getStack()
 	{
-		return wholeStack;
+		if( pyramidLabels.isEmpty() )
+			return wholeStack;
+		final ImageStack stack = new ImageStack( width, height );
+		for( int i = 1; i <= wholeStack.getSize(); i++ )
+			stack.addSlice( wholeStack.getSliceLabel( i ), wholeStack.getPixels( i ) );
+		for( int i = wholeStack.getSize() + 1; i <= getSize(); i++ )
+			stack.addSlice( getSliceLabel( i ), getProcessor( i ) );
+		return stack;
 	}
 	
 	/**
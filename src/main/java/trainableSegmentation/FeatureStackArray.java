@@ -23,6 +23,7 @@ package trainableSegmentation;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.Prefs;
 
 import java.util.ArrayList;
@@ -60,6 +61,8 @@ public class FeatureStackArray
 	private int membranePatchSize = 19;
 	/** common enabled features */
 	private boolean[] enabledFeatures = null;
+	/** common PCA filters (learned from the first updated slice if not set) */
+	private ImageStack pcaKernels = null;
 	
 	/** flag to specify the use of the old color format (using directly the RGB values as float) */
 	private boolean oldColorFormat = false;  
@@ -101,7 +104,7 @@ public class FeatureStackArray
 		this.useNeighbors = useNeighbors;
 		this.membraneThickness = membraneSize;
 		this.membranePatchSize = membranePatchSize;
-		this.enabledFeatures = enabledFeatures;
+		this.enabledFeatures = FeatureStack.completeEnabledFeatures( enabledFeatures );
 	}
 	
 	/**
@@ -185,6 +188,7 @@ public class FeatureStackArray
 						featureStackArray[i].setMaximumSigma(maximumSigma);
 						featureStackArray[i].setMinimumSigma(minimumSigma);
 						featureStackArray[i].setUseNeighbors(useNeighbors);
+						featureStackArray[i].setPCAKernels( learnPCAKernels( featureStackArray[i] ) );
 						if ( featureStackArray.length == 1 )
 						{
 							if( !featureStackArray[i].updateFeaturesMT() )
@@ -252,6 +256,7 @@ public class FeatureStackArray
 					featureStackArray[i].setMaximumSigma(maximumSigma);
 					featureStackArray[i].setMinimumSigma(minimumSigma);
 					featureStackArray[i].setUseNeighbors(useNeighbors);
+					featureStackArray[i].setPCAKernels( learnPCAKernels( featureStackArray[i] ) );
 					if ( featureStackArray.length == 1 )
 					{
 						if(!featureStackArray[i].updateFeaturesMT())
@@ -302,6 +307,44 @@ public class FeatureStackArray
 		return true;
 	}
 	
+	/**
+	 * Update a single feature stack of the list, using all available
+	 * threads on it (useful to get the features of one slice as soon
+	 * as possible).
+	 *
+	 * @param index index of the feature stack to update (0-based)
+	 * @return false if the feature stack was not properly updated
+	 */
+	public boolean updateFeaturesMT( int index )
+	{
+		if ( Thread.currentThread().isInterrupted() || null == featureStackArray[ index ] )
+			return false;
+
+		IJ.log("Updating features of slice number " + (index+1) + "...");
+		featureStackArray[ index ].setEnabledFeatures(enabledFeatures);
+		featureStackArray[ index ].setMembranePatchSize(membranePatchSize);
+		featureStackArray[ index ].setMembraneSize(membraneThickness);
+		featureStackArray[ index ].setMaximumSigma(maximumSigma);
+		featureStackArray[ index ].setMinimumSigma(minimumSigma);
+		featureStackArray[ index ].setUseNeighbors(useNeighbors);
+		try{
+			featureStackArray[ index ].setPCAKernels( learnPCAKernels( featureStackArray[ index ] ) );
+		}
+		catch( RuntimeException ex )
+		{
+			IJ.log("Error when updating feature stack array.");
+			ex.printStackTrace();
+			return false;
+		}
+
+		if( !featureStackArray[ index ].updateFeaturesMT() )
+			return false;
+
+		if( referenceStackIndex == -1 )
+			this.referenceStackIndex = index;
+		return true;
+	}
+
 	/**
 	 * Update features of a feature stack (to be submitted to an Executor Service)
 	 * 
@@ -405,7 +448,7 @@ public class FeatureStackArray
 	 */
 	public void setEnabledFeatures(boolean[] newFeatures) 
 	{
-		this.enabledFeatures = newFeatures;
+		this.enabledFeatures = FeatureStack.completeEnabledFeatures( newFeatures );
 		if(referenceStackIndex != -1)
 			featureStackArray[referenceStackIndex].setEnabledFeatures(newFeatures);
 	}
@@ -433,6 +476,45 @@ public class FeatureStackArray
 			featureStackArray[referenceStackIndex].setMembranePatchSize(patchSize);
 	}
 
+	/**
+	 * Get the PCA filters shared by all the feature stacks
+	 * @return PCA filters, or null if they were not learned or set yet
+	 */
+	public ImageStack getPCAKernels()
+	{
+		return pcaKernels;
+	}
+
+	/**
+	 * Set the PCA filters shared by all the feature stacks (null to learn
+	 * them again from the next updated slice)
+	 * @param kernels PCA filters of each channel
+	 */
+	public void setPCAKernels(ImageStack kernels)
+	{
+		this.pcaKernels = kernels;
+		if(referenceStackIndex != -1)
+			featureStackArray[referenceStackIndex].setPCAKernels(kernels);
+	}
+
+	/**
+	 * Learn the PCA filters from a feature stack if they are enabled and
+	 * were not learned or set yet, so all the stacks share them
+	 * @param fs feature stack (with the current settings) to learn them from
+	 * @return common PCA filters, or null if they are not used
+	 * @throws RuntimeException if the filters cannot be learned
+	 */
+	private ImageStack learnPCAKernels(FeatureStack fs)
+	{
+		if( null == pcaKernels && null != enabledFeatures
+				&& enabledFeatures[ FeatureStack.PCA_FILTERS ] )
+		{
+			fs.setPCAKernels( null );
+			pcaKernels = fs.learnPCAKernels();
+		}
+		return pcaKernels;
+	}
+
 	/**
 	 * Set maximum sigma.
 	 * @param sigma maximum sigma
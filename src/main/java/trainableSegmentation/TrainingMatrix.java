@@ -0,0 +1,219 @@
+package trainableSegmentation;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import java.util.Arrays;
+
+import trainableSegmentation.utils.ClassPixelIndex;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Training set stored as a column-major float matrix (one column per
+ * feature) plus the class and weight of each sample. The feature vectors of
+ * the samples are written directly from the feature stacks into the
+ * columns, without creating an instance object per sample, and the columns
+ * can be passed to FastRandomForest without any further copy.
+ */
+public class TrainingMatrix
+{
+	/** attribute information (the class is the last attribute) */
+	private final Instances header;
+	/** feature values, indexed by feature first, then by sample */
+	private float[][] columns;
+	/** class of each sample */
+	private int[] classValues;
+	/** weight of each sample */
+	private double[] weights;
+	/** number of samples */
+	private int numSamples = 0;
+
+	/**
+	 * Create an empty training matrix
+	 *
+	 * @param header attribute information of the training data, with the
+	 * class as last attribute (its instances are ignored)
+	 */
+	public TrainingMatrix( final Instances header )
+	{
+		this.header = new Instances( header, 0 );
+		this.header.setClassIndex( this.header.numAttributes() - 1 );
+		columns = new float[ this.header.numAttributes() - 1 ][ 0 ];
+		classValues = new int[ 0 ];
+		weights = new double[ 0 ];
+	}
+
+	/**
+	 * Make room for a number of samples in the matrix
+	 * @param capacity minimum number of samples the matrix must hold
+	 */
+	private void ensureCapacity( final int capacity )
+	{
+		if( capacity <= classValues.length )
+			return;
+		final int newCapacity = (int) Math.min( Integer.MAX_VALUE - 8,
+				Math.max( capacity, 2L * classValues.length ) );
+		for( int f = 0; f < columns.length; f++ )
+			columns[ f ] = Arrays.copyOf( columns[ f ], newCapacity );
+		classValues = Arrays.copyOf( classValues, newCapacity );
+		weights = Arrays.copyOf( weights, newCapacity );
+	}
+
+	/**
+	 * Add samples of a class. The samples are sorted, so the samples of each
+	 * slice are consecutive and their feature vectors are written at once.
+	 *
+	 * @param index index the samples were drawn from
+	 * @param samples sorted pixel offsets of the samples
+	 * @param featureStacks feature stack of each slice of the index
+	 * @param classValue class of the samples
+	 */
+	public void addSamples(
+			final ClassPixelIndex index,
+			final long[] samples,
+			final FeatureStack[] featureStacks,
+			final int classValue )
+	{
+		ensureCapacity( numSamples + samples.length );
+		for( int first = 0; first < samples.length; )
+		{
+			final int slice = index.getSlice( samples[ first ] );
+			int last = first + 1;
+			while( last < samples.length && index.getSlice( samples[ last ] ) == slice )
+				last ++;
+			final int[] pixels = new int[ last - first ];
+			for( int i = first; i < last; i++ )
+				pixels[ i - first ] = index.getPixel( samples[ i ] );
+			featureStacks[ slice ].writeColumns( pixels, columns, numSamples + first );
+			first = last;
+		}
+		Arrays.fill( classValues, numSamples, numSamples + samples.length, classValue );
+		Arrays.fill( weights, numSamples, numSamples + samples.length, 1.0 );
+		numSamples += samples.length;
+	}
+
+	/**
+	 * Add all the instances of a data set with the same attributes (for
+	 * example loaded from an ARFF file). Missing values are stored as
+	 * Float.MAX_VALUE, as FastRandomForest expects them, and instances with
+	 * a missing class are skipped.
+	 *
+	 * @param data instances to add
+	 */
+	public void addInstances( final Instances data )
+	{
+		ensureCapacity( numSamples + data.numInstances() );
+		for( Instance ins : data )
+		{
+			if( ins.classIsMissing() )
+				continue;
+			for( int f = 0; f < columns.length; f++ )
+				columns[ f ][ numSamples ] = ins.isMissing( f ) ?
+						Float.MAX_VALUE : (float) ins.value( f );
+			classValues[ numSamples ] = (int) ins.classValue();
+			weights[ numSamples ] = ins.weight();
+			numSamples ++;
+		}
+	}
+
+	/**
+	 * Release the unused capacity, so the arrays hold exactly the samples
+	 */
+	private void trim()
+	{
+		if( classValues.length == numSamples )
+			return;
+		for( int f = 0; f < columns.length; f++ )
+			columns[ f ] = Arrays.copyOf( columns[ f ], numSamples );
+		classValues = Arrays.copyOf( classValues, numSamples );
+		weights = Arrays.copyOf( weights, numSamples );
+	}
+
+	/**
+	 * Get the attribute information of the training data
+	 * @return header with the class as last attribute
+	 */
+	public Instances getHeader()
+	{
+		return header;
+	}
+
+	/**
+	 * Get the number of samples
+	 * @return number of samples
+	 */
+	public int getNumSamples()
+	{
+		return numSamples;
+	}
+
+	/**
+	 * Get the class of each sample (the array is not copied)
+	 * @return class values
+	 */
+	public int[] getClassValues()
+	{
+		trim();
+		return classValues;
+	}
+
+	/**
+	 * Get the weight of each sample (the array is not copied)
+	 * @return sample weights
+	 */
+	public double[] getWeights()
+	{
+		trim();
+		return weights;
+	}
+
+	/**
+	 * Get the matrix values in the layout used by FastRandomForest: one
+	 * array per attribute, with no values for the class attribute
+	 * @return values indexed by attribute first, then by sample
+	 */
+	public float[][] getAttributeValues()
+	{
+		trim();
+		final float[][] attVals = Arrays.copyOf( columns, columns.length + 1 );
+		attVals[ columns.length ] = null;
+		return attVals;
+	}
+
+	/**
+	 * Convert the matrix into weka instances (for classifiers that cannot
+	 * be trained from the matrix directly)
+	 * @return training instances
+	 */
+	public Instances toInstances()
+	{
+		final Instances data = new Instances( header, numSamples );
+		for( int i = 0; i < numSamples; i++ )
+		{
+			final double[] values = new double[ columns.length + 1 ];
+			for( int f = 0; f < columns.length; f++ )
+				values[ f ] = columns[ f ][ i ] == Float.MAX_VALUE ?
+						Double.NaN : columns[ f ][ i ];
+			values[ columns.length ] = classValues[ i ];
+			data.add( new DenseInstance( weights[ i ], values ) );
+		}
+		return data;
+	}
+}
@@ -1,7 +1,7 @@
 package trainableSegmentation;
 
-import java.awt.Point;
 import java.awt.Rectangle;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -53,11 +53,14 @@ import ij.process.FloatPolygon;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
+import trainableSegmentation.utils.ClassPixelIndex;
+import trainableSegmentation.utils.ConfusionMatrix;
+import trainableSegmentation.utils.ForestModelIO;
+import trainableSegmentation.utils.PixelSampler;
 import trainableSegmentation.utils.Utils;
 import weka.attributeSelection.BestFirst;
 import weka.attributeSelection.CfsSubsetEval;
 import weka.classifiers.AbstractClassifier;
-import weka.classifiers.Evaluation;
 import weka.classifiers.pmml.consumer.PMMLClassifier;
 import weka.classifiers.trees.RandomForest;
 import weka.core.Attribute;
@@ -108,6 +111,21 @@ public class WekaSegmentation {
 	private ImagePlus trainingImage;
 	/** result image after classification */
 	private ImagePlus classifiedImage;
+	/** probability maps of the training image from the last classification
+	 * (kept to update the classification incrementally after retraining) */
+	private ImagePlus lastProbabilityMaps = null;
+	/** training header of the classifier that created the last probability maps */
+	private Instances lastProbabilityMapsHeader = null;
+	/** ROIs added or removed since the last classification (by slice number),
+	 * only recorded while the incremental update is enabled */
+	private HashMap<Integer, ArrayList<Roi>> changedExamples =
+			new HashMap<Integer, ArrayList<Roi>>();
+	/** flag to update the classification incrementally after retraining */
+	private boolean incrementalUpdate = false;
+	/** maximum probability margin of the pixels reclassified by an incremental update */
+	private double incrementalMargin = 0.2;
+	/** distance (in pixels) around the changed ROIs reclassified by an incremental update */
+	private int incrementalRadius = 10;
 	/** features to be used in the training */
 	private FeatureStackArray featureStackArray = null;
 
@@ -181,12 +199,16 @@ public class WekaSegmentation {
 			false, 	/* Laplacian */
 			false,	/* Structure */
 			false,	/* Entropy */
-			false	/* Neighbors */
+			false,	/* Neighbors */
+			false,	/* Pooling_pyramid */
+			false	/* PCA_filters */
 	};
 	/** flags of filters to be used in 3D */
 	private boolean[] enabled3Dfeatures = FeatureStack3D.getDefaultEnabledFeatures();
 	/** use neighborhood flag */
 	private boolean useNeighbors = false;
+	/** PCA filters learned from the training image or loaded with the classifier */
+	private ImageStack pcaKernels = null;
 
 	/** list of the names of features to use */
 	private ArrayList<String> featureNames = null;
@@ -312,10 +334,12 @@ public class WekaSegmentation {
 	{
 		this.trainingImage = imp;
 
-		// Initialize feature stack (no features yet)
+		// Initialize feature stack (no features yet), keeping the PCA filters
+		final ImageStack kernels = getPCAKernels();
 		featureStackArray = new FeatureStackArray(trainingImage.getImageStackSize(),
 				minimumSigma, maximumSigma, useNeighbors, membraneThickness, membranePatchSize,
 				enabledFeatures );
+		featureStackArray.setPCAKernels( kernels );
 
 		featureStackToUpdateTrain = new boolean[trainingImage.getImageStackSize()];
 		featureStackToUpdateTest = new boolean[trainingImage.getImageStackSize()];
@@ -382,6 +406,27 @@ public class WekaSegmentation {
 		}
 
 		examples[n-1].get(classNum).add(roi);
+		addChangedExample(roi, n);
+	}
+
+	/**
+	 * Keep track of a ROI added or removed since the last classification,
+	 * so an incremental update reclassifies the pixels around it.
+	 *
+	 * @param roi added or removed ROI
+	 * @param n slice number
+	 */
+	private void addChangedExample(Roi roi, int n)
+	{
+		if( !incrementalUpdate )
+			return;
+		ArrayList<Roi> list = changedExamples.get(n);
+		if( null == list )
+		{
+			list = new ArrayList<Roi>();
+			changedExamples.put(n, list);
+		}
+		list.add(roi);
 	}
 
 	/**
@@ -393,7 +438,7 @@ public class WekaSegmentation {
 	 */
 	public void deleteExample(int classNum, int nSlice, int index)
 	{
-		getExamples(classNum, nSlice).remove(index);
+		addChangedExample(getExamples(classNum, nSlice).remove(index), nSlice);
 	}
 
 	/**
@@ -429,6 +474,60 @@ public class WekaSegmentation {
 		this.balanceClasses = balanceClasses;
 	}
 
+	/**
+	 * Set flag to update the classification of the training image
+	 * incrementally when it is classified again after retraining (in 2D).
+	 * Only the pixels whose previous class was uncertain or which are close
+	 * to the ROIs added or removed since the previous classification are
+	 * classified again, plus the neighbors of the pixels that change their
+	 * class. The first classification always classifies every pixel, and
+	 * so does the first one after enabling the incremental update, since
+	 * the ROIs changed in the meantime are not recorded.
+	 *
+	 * @param incrementalUpdate true to update the classification incrementally
+	 */
+	public void setIncrementalUpdate( boolean incrementalUpdate )
+	{
+		if( this.incrementalUpdate != incrementalUpdate )
+		{
+			lastProbabilityMaps = null;
+			lastProbabilityMapsHeader = null;
+			changedExamples.clear();
+		}
+		this.incrementalUpdate = incrementalUpdate;
+	}
+
+	/**
+	 * Check if the classification is updated incrementally after retraining
+	 * @return true if the classification is updated incrementally
+	 */
+	public boolean isIncrementalUpdate()
+	{
+		return incrementalUpdate;
+	}
+
+	/**
+	 * Set the maximum margin between the two largest probabilities of the
+	 * previous classification to reclassify a pixel in an incremental update
+	 *
+	 * @param margin probability margin (between 0 and 1)
+	 */
+	public void setIncrementalMargin( double margin )
+	{
+		this.incrementalMargin = margin;
+	}
+
+	/**
+	 * Set the distance around the added or removed ROIs within which the
+	 * pixels are reclassified in an incremental update
+	 *
+	 * @param radius distance in pixels
+	 */
+	public void setIncrementalRadius( int radius )
+	{
+		this.incrementalRadius = radius;
+	}
+
 	/**
 	 * Set the current number of classes. Should not be used to create new
 	 * classes. Use {@link #addClass} instead.
@@ -516,6 +615,10 @@ public class WekaSegmentation {
 						FeatureStack.availableFeatures)[i]))
 					usedFeatures[i] = true;
 		}
+		// ARFF files do not store the PCA filters
+		if( !isProcessing3D && usedFeatures[ FeatureStack.PCA_FILTERS ] )
+			IJ.log( "Warning: the PCA filters of the loaded data are not stored "
+					+ "in ARFF files, they will be learned from the training image." );
 
 		// Check if classes match
 		Attribute classAttribute = loadedTrainingData.classAttribute();
@@ -623,6 +726,16 @@ public class WekaSegmentation {
 		return classifiedImage;
 	}
 
+	/**
+	 * Set current classification result (for example, one that is being
+	 * classified region by region)
+	 * @param classifiedImage classified image (null to remove the current result)
+	 */
+	public void setClassifiedImage( ImagePlus classifiedImage )
+	{
+		this.classifiedImage = classifiedImage;
+	}
+
 	/**
 	 * Get the current training header
 	 *
@@ -643,7 +756,7 @@ public class WekaSegmentation {
 	}
 
 	/**
-	 * load a binary classifier
+	 * load a binary classifier (serialized or in compact form)
 	 *
 	 * @param classifierInputStream
 	 * @throws Exception
@@ -652,9 +765,21 @@ public class WekaSegmentation {
 	 */
 	private LoadedClassifier internalLoadClassifier(
 			InputStream classifierInputStream) throws Exception {
+		LoadedClassifier lc = new LoadedClassifier();
+		if (!classifierInputStream.markSupported())
+			classifierInputStream = new BufferedInputStream(classifierInputStream);
+		if (ForestModelIO.isCompactModel(classifierInputStream)) {
+			try {
+				ForestModelIO.Model model = ForestModelIO.read(classifierInputStream);
+				lc.newClassifier = model.getClassifier();
+				lc.newHeader = model.getHeader();
+			} finally {
+				classifierInputStream.close();
+			}
+			return lc;
+		}
 		ObjectInputStream objectInputStream = new ObjectInputStream(
 				classifierInputStream);
-		LoadedClassifier lc = new LoadedClassifier();
 		lc.newClassifier = (AbstractClassifier) objectInputStream.readObject();
 		try { // see if we can load the header
 			lc.newHeader = (Instances) objectInputStream.readObject();
@@ -724,6 +849,14 @@ public class WekaSegmentation {
 				else
 					throw new Exception("PMML model is not a classification/regression model!");
 			}
+			else if (ForestModelIO.isCompactModel(selected))
+			{
+				// compact models are memory-mapped
+				is.close();
+				ForestModelIO.Model model = ForestModelIO.read(selected);
+				newHeader = model.getHeader();
+				newClassifier = model.getClassifier();
+			}
 			else
 			{
 				if (selected.getName().endsWith(".gz"))
@@ -895,6 +1028,20 @@ public class WekaSegmentation {
 	 * @return false if error
 	 */
 	public boolean saveClassifier(String filename)
+	{
+		return saveClassifier(filename, false);
+	}
+
+	/**
+	 * Write current classifier into a file, optionally in the compact
+	 * binary format for random forests (much faster to load). Classifiers
+	 * not supported by the compact format are serialized.
+	 *
+	 * @param filename name (with complete path) of the destination file
+	 * @param compact flag to use the compact format when possible
+	 * @return false if error
+	 */
+	public boolean saveClassifier(String filename, boolean compact)
 	{
 		File sFile = null;
 		boolean saveOK = true;
@@ -902,6 +1049,14 @@ public class WekaSegmentation {
 
 		IJ.log("Saving model to file...");
 
+		if (compact && !ForestModelIO.isSupported(classifier, trainHeader))
+		{
+			IJ.log("The compact format is not available for "
+					+ classifier.getClass().getName()
+					+ ", the model will be serialized.");
+			compact = false;
+		}
+
 		try {
 			sFile = new File(filename);
 			OutputStream os = new FileOutputStream(sFile);
@@ -909,11 +1064,21 @@ public class WekaSegmentation {
 			{
 				os = new GZIPOutputStream(os);
 			}
+			if (compact)
+			{
+				try {
+					ForestModelIO.write(os, classifier, getHeaderToSave());
+				} finally {
+					os.close();
+				}
+				IJ.log("Saved model into " + filename );
+				return true;
+			}
 			ObjectOutputStream objectOutputStream = new ObjectOutputStream(os);
 			objectOutputStream.writeObject(classifier);
 			trainHeader = trainHeader.stringFreeStructure();
 			if (trainHeader != null)
-				objectOutputStream.writeObject(trainHeader);
+				objectOutputStream.writeObject(getHeaderToSave());
 			objectOutputStream.flush();
 			objectOutputStream.close();
 		}
@@ -928,6 +1093,19 @@ public class WekaSegmentation {
 		return saveOK;
 	}
 
+	/**
+	 * Get the header to save with the classifier, which also stores the
+	 * PCA filters of its features (if any)
+	 * @return header of the training data without string values
+	 */
+	private Instances getHeaderToSave()
+	{
+		final Instances header = trainHeader.stringFreeStructure();
+		if( isProcessing3D )
+			return header;
+		return FeatureStack.storePCAKernels( header, getPCAKernels() );
+	}
+
 	/**
 	 * Save training data into a file (.arff)
 	 * @param pathname complete path name
@@ -1353,41 +1531,25 @@ public class WekaSegmentation {
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
 
-		// Create lists of coordinates of pixels of each class
-		ArrayList<Point>[] classCoordinates = new ArrayList[ numOfClasses ];
+		// Index the pixels of each class (label i+1 for the i-th class)
+		int[] classLabels = new int[ numOfClasses ];
 		for(int i = 0; i < numOfClasses ; i ++)
-			classCoordinates[ i ] = new ArrayList<Point>();
-
-		final int width = labelImage.getWidth();
-		final int height = labelImage.getHeight();
-
-		for(int y = 0 ; y < height; y++)
-			for(int x = 0 ; x < width ; x++)
-			{
-				int classIndex = (int) labelImage.getf( x, y ) - 1;
-
-				if( classIndex >=0 && classIndex < numOfClasses )
-					classCoordinates[ classIndex ].add( new Point( x, y ) );
-			}
+			classLabels[ i ] = i + 1;
+		final ClassPixelIndex index = ClassPixelIndex.labeled( labelImage, classLabels );
 
 		// Select random samples from each class
+		int[] numClassSamples = new int [ numOfClasses ];
 		Random rand = new Random();
-		for( int i=0; i<numSamples; i++ )
+		final FeatureStack[] featureStacks = new FeatureStack[]{ featureStack };
+		for( int j = 0; j < numOfClasses ; j ++ )
 		{
-			for( int j = 0; j < numOfClasses ; j ++ )
-			{
-				if( !classCoordinates[ j ].isEmpty() )
-				{
-					int randomSample = rand.nextInt( classCoordinates[ j ].size() );
-
-					loadedTrainingData.add(featureStack.createInstance( classCoordinates[ j ].get( randomSample ).x,
-						classCoordinates[ j ].get( randomSample ).y, j ) );
-				}
-			}
+			final long[] samples = index.sample( j, numSamples, rand );
+			addLoadedSamples( index, samples, featureStacks, j, null );
+			numClassSamples[ j ] = samples.length;
 		}
-
 		for( int j = 0; j < numOfClasses ; j ++ )
-			IJ.log("Added " + numSamples + " instances of '" + loadedClassNames.get( j ) +"'.");
+			if( numClassSamples[ j ] > 0 )
+				IJ.log("Added " + numClassSamples[ j ] + " instances of '" + loadedClassNames.get( j ) +"'.");
 
 		IJ.log("Training dataset updated ("+ loadedTrainingData.numInstances() +
 				" instances, " + loadedTrainingData.numAttributes() +
@@ -1456,48 +1618,22 @@ public class WekaSegmentation {
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
 
-		// Create lists of coordinates of pixels of each class
-		ArrayList<Point>[] classCoordinates = new ArrayList[ numOfClasses ];
-		for(int i = 0; i < numOfClasses ; i ++)
-			classCoordinates[ i ] = new ArrayList<Point>();
-
-		final int width = labelImage.getWidth();
-		final int height = labelImage.getHeight();
-
-		// Create map of correspondences between labels and class indices
-		HashMap<Integer, Integer> labelToClassIndex = new HashMap<Integer, Integer>();
-        for (int i = 0; i < classIndexToLabel.length; i++)
-        	labelToClassIndex.put( classIndexToLabel[ i ], i);
-        // Create list of sample coordinates per class
-		for(int y = 0 ; y < height; y++)
-			for(int x = 0 ; x < width ; x++)
-			{
-				Integer classIndex = labelToClassIndex.get( (int) labelImage.getf( x, y ) );
-
-				if( classIndex != null )
-					classCoordinates[ classIndex ].add( new Point( x, y ) );
-			}
+		// Index the pixels of each class
+		final ClassPixelIndex index = ClassPixelIndex.labeled( labelImage, classIndexToLabel );
 
 		// Select random samples from each class
 		int[] numClassSamples = new int [ numOfClasses ];
 		Random rand = new Random();
-		for( int i=0; i<numSamples; i++ )
+		final FeatureStack[] featureStacks = new FeatureStack[]{ featureStack };
+		for( int j = 0; j < numOfClasses ; j ++ )
 		{
-			for( int j = 0; j < numOfClasses ; j ++ )
-			{
-				if( !classCoordinates[ j ].isEmpty() )
-				{
-					int randomSample = rand.nextInt( classCoordinates[ j ].size() );
-
-					loadedTrainingData.add(featureStack.createInstance( classCoordinates[ j ].get( randomSample ).x,
-						classCoordinates[ j ].get( randomSample ).y, j ) );
-					numClassSamples[ j ] ++;
-				}
-			}
+			final long[] samples = index.sample( j, numSamples, rand );
+			addLoadedSamples( index, samples, featureStacks, j, null );
+			numClassSamples[ j ] = samples.length;
 		}
-
 		for( int j = 0; j < numOfClasses ; j ++ )
-			IJ.log("Added " + numClassSamples[ j ] + " instances of '" + loadedClassNames.get( j ) +"'.");
+			if( numClassSamples[ j ] > 0 )
+				IJ.log("Added " + numClassSamples[ j ] + " instances of '" + loadedClassNames.get( j ) +"'.");
 
 		IJ.log("Training dataset updated ("+ loadedTrainingData.numInstances() +
 				" instances, " + loadedTrainingData.numAttributes() +
@@ -1586,45 +1722,23 @@ public class WekaSegmentation {
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
 
-		// Create lists of coordinates of pixels of both classes
-		ArrayList<Point> blackCoordinates = new ArrayList<Point>();
-		ArrayList<Point> whiteCoordinates = new ArrayList<Point>();
-		final int width = labelImage.getWidth();
-		final int height = labelImage.getHeight();
-
-		for(int y = 0 ; y < height; y++)
-			for(int x = 0 ; x < width ; x++)
-			{
-				// White pixels are added to the class 1
-				// and black to class 2
-				if(labelImage.getPixelValue(x, y) > 0)
-					whiteCoordinates.add(new Point(x, y));
-				else
-					blackCoordinates.add(new Point(x, y));
-			}
-		if( whiteCoordinates.isEmpty() )
+		// Index the pixels of both classes (0 for black, 1 for white)
+		final ClassPixelIndex index = ClassPixelIndex.binary( labelImage, null );
+		if( 0 == index.getNumPixels( 1 ) )
 		{
 			IJ.log( "Error: no white pixels found!" );
 			return false;
 		}
-		if( blackCoordinates.isEmpty() )
+		if( 0 == index.getNumPixels( 0 ) )
 		{
 			IJ.log( "Error: no black pixels found!" );
 			return false;
 		}
 		// Select random samples from both classes
 		Random rand = new Random();
-		for(int i=0; i<numSamples; i++)
-		{
-			int randomBlack = rand.nextInt( blackCoordinates.size() );
-			int randomWhite = rand.nextInt( whiteCoordinates.size() );
-
-
-			loadedTrainingData.add(featureStack.createInstance( blackCoordinates.get(randomBlack).x,
-					blackCoordinates.get(randomBlack).y, blackClassIndex));
-			loadedTrainingData.add(featureStack.createInstance(whiteCoordinates.get(randomWhite).x,
-					whiteCoordinates.get(randomWhite).y, whiteClassIndex));
-		}
+		final FeatureStack[] featureStacks = new FeatureStack[]{ featureStack };
+		addLoadedSamples( index, index.sample( 0, numSamples, rand ), featureStacks, blackClassIndex, null );
+		addLoadedSamples( index, index.sample( 1, numSamples, rand ), featureStacks, whiteClassIndex, null );
 
 		IJ.log("Added " + numSamples + " instances of '" + whiteClassName +"'.");
 		IJ.log("Added " + numSamples + " instances of '" + blackClassName +"'.");
@@ -1711,34 +1825,23 @@ public class WekaSegmentation {
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
 
-		// Create lists of coordinates of pixels of all classes
-		ArrayList<Point> classCoordinates[] = new ArrayList[ classNames.length ];
-		final int width = labelImage.getWidth();
-		final int height = labelImage.getHeight();
-
-		for(int y = 0 ; y < height; y++)
-			for(int x = 0 ; x < width ; x++)
+		// Index the pixels of all classes (label value i for the i-th class name)
+		int[] classLabels = new int[ classNames.length ];
+		for( int i = 0; i < classNames.length; i++ )
+			classLabels[ i ] = i;
+		final ClassPixelIndex index = ClassPixelIndex.labeled( labelImage, classLabels );
+		for( int i = 0; i < classNames.length; i++ )
+			if( 0 == index.getNumPixels( i ) )
 			{
-				// Add coordinates to corresponding class
-				int val = (int) labelImage.getf( x, y );
-				if( val >= 0 && val < classNames.length )
-					classCoordinates[ val ].add( new Point( x, y ) );
+				IJ.log( "Error: no pixels found of class '" + classNames[ i ] + "'." );
+				return false;
 			}
 
 		// Select random samples from all classes
 		Random rand = new Random();
-		for( int i=0; i<numSamples; i++ )
-		{
-			for( int  j=0; j<classIndex.length; j++ )
-			{
-				int randomIndex = rand.nextInt( classCoordinates[ j ].size() );
-
-				loadedTrainingData.add(featureStack.createInstance(
-						classCoordinates[ j ].get( randomIndex ).x,
-						classCoordinates[ j ].get( randomIndex ).y,
-						classIndex[ j ] ) );
-			}
-		}
+		final FeatureStack[] featureStacks = new FeatureStack[]{ featureStack };
+		for( int j=0; j<classIndex.length; j++ )
+			addLoadedSamples( index, index.sample( j, numSamples, rand ), featureStacks, classIndex[ j ], null );
 
 		for( int i=0; i<classNames.length; i++ )
 			IJ.log( "Added " + numSamples + " instances of '"
@@ -2033,55 +2136,23 @@ public class WekaSegmentation {
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
 
-		// Create lists of coordinates of pixels of both classes
-		ArrayList<Point> blackCoordinates = new ArrayList<Point>();
-		ArrayList<Point> whiteCoordinates = new ArrayList<Point>();
-		final int width = labelImage.getWidth();
-		final int height = labelImage.getHeight();
-
-		if( null != mask)
+		// Index the pixels of both classes (0 for black, 1 for white)
+		final ClassPixelIndex index = ClassPixelIndex.binary( labelImage, mask );
+		if( 0 == index.getNumPixels( 1 ) )
 		{
-			for(int y = 0 ; y < height; y++)
-				for(int x = 0 ; x < width ; x++)
-				{
-					// White pixels are added to the class 1
-					// and black to class 2
-					if( mask.getPixelValue(x, y) > 0 )
-					{
-						if(labelImage.getPixelValue(x, y) > 0)
-							whiteCoordinates.add(new Point(x, y));
-						else
-							blackCoordinates.add(new Point(x, y));
-					}
-				}
+			IJ.log( "Error: no white pixels found!" );
+			return false;
 		}
-		else
+		if( 0 == index.getNumPixels( 0 ) )
 		{
-			for(int y = 0 ; y < height; y++)
-				for(int x = 0 ; x < width ; x++)
-				{
-					// White pixels are added to the class 1
-					// and black to class 2
-					if(labelImage.getPixelValue(x, y) > 0)
-						whiteCoordinates.add(new Point(x, y));
-					else
-						blackCoordinates.add(new Point(x, y));
-
-				}
+			IJ.log( "Error: no black pixels found!" );
+			return false;
 		}
-
 		// Select random samples from both classes
 		Random rand = new Random();
-		for(int i=0; i<numSamples; i++)
-		{
-			int randomBlack = rand.nextInt( blackCoordinates.size() );
-			int randomWhite = rand.nextInt( whiteCoordinates.size() );
-
-			loadedTrainingData.add(featureStack.createInstance( blackCoordinates.get(randomBlack).x,
-					blackCoordinates.get(randomBlack).y, blackClassIndex));
-			loadedTrainingData.add(featureStack.createInstance(whiteCoordinates.get(randomWhite).x,
-					whiteCoordinates.get(randomWhite).y, whiteClassIndex));
-		}
+		final FeatureStack[] featureStacks = new FeatureStack[]{ featureStack };
+		addLoadedSamples( index, index.sample( 0, numSamples, rand ), featureStacks, blackClassIndex, null );
+		addLoadedSamples( index, index.sample( 1, numSamples, rand ), featureStacks, whiteClassIndex, null );
 
 		IJ.log("Added " + numSamples + " instances of '" + whiteClassName +"'.");
 		IJ.log("Added " + numSamples + " instances of '" + blackClassName +"'.");
@@ -2095,12 +2166,13 @@ public class WekaSegmentation {
 
 
 	/**
-	 * Add instances to two classes from lists of coordinates in a random
-	 * and balanced way.
+	 * Add instances to two classes from an index of the black and white
+	 * pixels of a label stack in a random and balanced way (with repetition).
 	 * White pixels will be added to the corresponding class 1 and
 	 * black pixels will be added to class 2.
 	 *
-	 * @param classPoints list of 3D coordinates to be used (x, y, slice)
+	 * @param index index of the black (class 0) and white (class 1) pixels
+	 * of all slices (see {@link ClassPixelIndex#binary})
 	 * @param fsa feature stack array
 	 * @param whiteClassName name of the class which receives the white pixels
 	 * @param blackClassName name of the class which receives the black pixels
@@ -2109,13 +2181,12 @@ public class WekaSegmentation {
 	 * @return false if error
 	 */
 	public boolean addRandomBalancedBinaryData(
-			List< Point3f >[] classPoints,
+			ClassPixelIndex index,
 			FeatureStackArray fsa,
 			String whiteClassName,
 			String blackClassName,
 			int numSamples)
 	{
-
 		// Detect class indexes
 		int whiteClassIndex = 0;
 		for(whiteClassIndex = 0 ; whiteClassIndex < this.getClassLabels().length; whiteClassIndex++)
@@ -2135,6 +2206,16 @@ public class WekaSegmentation {
 			IJ.log("Error: class named '" + blackClassName + "' not found.");
 			return false;
 		}
+		if( 0 == index.getNumPixels( 1 ) )
+		{
+			IJ.log( "Error: no white pixels found!" );
+			return false;
+		}
+		if( 0 == index.getNumPixels( 0 ) )
+		{
+			IJ.log( "Error: no black pixels found!" );
+			return false;
+		}
 
 		// Create loaded training data if it does not exist yet
 		if(null == loadedTrainingData)
@@ -2168,21 +2249,11 @@ public class WekaSegmentation {
 
 		// Select random samples from both classes
 		Random rand = new Random();
-		for(int i=0; i<numSamples; i++)
-		{
-			int randomBlack = rand.nextInt( classPoints[ 0 ].size() );
-			int randomWhite = rand.nextInt( classPoints[ 1 ].size() );
-
-			// add random black sample
-			loadedTrainingData.add( fsa.get( (int) (classPoints[ 0 ].get(randomBlack).z) )
-										.createInstance( 	(int) (classPoints[ 0 ].get(randomBlack).x),
-															(int) (classPoints[ 0 ].get(randomBlack).y),
-															blackClassIndex) );
-
-			// add random white sample
-			loadedTrainingData.add(fsa.get( (int) (classPoints[ 1 ].get(randomWhite).z) ) .createInstance( (int) (classPoints[ 1 ].get(randomWhite).x),
-					(int) (classPoints[ 1 ].get(randomWhite).y), whiteClassIndex));
-		}
+		final FeatureStack[] featureStacks = new FeatureStack[ fsa.getSize() ];
+		for( int i = 0; i < featureStacks.length; i++ )
+			featureStacks[ i ] = fsa.get( i );
+		addLoadedSamples( index, index.sample( 0, numSamples, rand ), featureStacks, blackClassIndex, null );
+		addLoadedSamples( index, index.sample( 1, numSamples, rand ), featureStacks, whiteClassIndex, null );
 
 		IJ.log("Added " + numSamples + " instances of '" + whiteClassName +"'.");
 		IJ.log("Added " + numSamples + " instances of '" + blackClassName +"'.");
@@ -2195,8 +2266,179 @@ public class WekaSegmentation {
 	}
 
 	/**
-	 * Add instances to two classes from lists of coordinates.
+	 * Add samples of a class to the loaded training data. The samples are
+	 * sorted, so the samples of each slice are consecutive and their
+	 * feature vectors are written at once into a preallocated matrix.
+	 *
+	 * @param index index the samples were drawn from
+	 * @param samples sorted pixel offsets of the samples
+	 * @param featureStacks feature stack of each slice of the index
+	 * @param classIndex class of the samples
+	 * @param weights weight image (null to use unit weights)
+	 */
+	private void addLoadedSamples(
+			final ClassPixelIndex index,
+			final long[] samples,
+			final FeatureStack[] featureStacks,
+			final int classIndex,
+			final ImageProcessor weights )
+	{
+		final double[][] matrix = new double[ samples.length ][ loadedTrainingData.numAttributes() ];
+		for( int first = 0; first < samples.length; )
+		{
+			final int slice = index.getSlice( samples[ first ] );
+			int last = first + 1;
+			while( last < samples.length && index.getSlice( samples[ last ] ) == slice )
+				last ++;
+			final int[] pixels = new int[ last - first ];
+			for( int i = first; i < last; i++ )
+				pixels[ i - first ] = index.getPixel( samples[ i ] );
+			featureStacks[ slice ].writeInstances( pixels, matrix, first, classIndex );
+			first = last;
+		}
+		for( int i = 0; i < samples.length; i++ )
+		{
+			final int pixel = index.getPixel( samples[ i ] );
+			final double weight = null == weights ? 1.0 :
+					weights.getPixelValue( pixel % weights.getWidth(), pixel / weights.getWidth() );
+			loadedTrainingData.add( new DenseInstance( weight, matrix[ i ] ) );
+		}
+	}
+
+	/**
+	 * Create a training matrix reading the pixel classes from a label image
+	 * (2D or 3D). The feature vectors of the selected pixels are written
+	 * directly into a column-major float matrix, without creating weka
+	 * instances, so it can be used to train a FastRandomForest on large
+	 * numbers of samples (see trainClassifier(TrainingMatrix)).
+	 * Pixels with labels that do not correspond to any class are skipped.
+	 *
+	 * @param labels label image (one slice per feature stack)
+	 * @param classLabels label value of each class (the i-th value
+	 * corresponds to the i-th class)
+	 * @param featureStackArray feature stack array of the training image
+	 * (with the features already computed)
+	 * @param numSamples number of random samples (with repetition) to select
+	 * of each class, or 0 to use all the pixels of the classes
+	 * @return training matrix, or null if error
+	 */
+	public TrainingMatrix createTrainingMatrix(
+			final ImageStack labels,
+			final int[] classLabels,
+			final FeatureStackArray featureStackArray,
+			final int numSamples )
+	{
+		if( featureStackArray.isEmpty() || featureStackArray.getNumOfFeatures() < 1 )
+		{
+			IJ.log( "Error: the feature stacks need to be computed first." );
+			return null;
+		}
+		if( labels.getSize() != featureStackArray.getSize() )
+		{
+			IJ.log( "Error: the label image has " + labels.getSize()
+					+ " slice(s) but there are " + featureStackArray.getSize()
+					+ " feature stack(s)." );
+			return null;
+		}
+		if( classLabels.length > numOfClasses )
+		{
+			IJ.log( "Error: there are only " + numOfClasses + " classes." );
+			return null;
+		}
+
+		// Create header with the same attributes as the training data
+		final FeatureStack first = featureStackArray.get( 0 );
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for (int i=1; i<=first.getSize(); i++)
+			attributes.add( new Attribute( first.getSliceLabel( i ) ) );
+		if( first.useNeighborhood() )
+			for (int i=0; i<8; i++)
+				attributes.add( new Attribute( "original_neighbor_" + (i+1) ) );
+		ArrayList<String> classNames = new ArrayList<String>();
+		for( int i = 0; i < numOfClasses ; i ++ )
+			classNames.add( getClassLabel( i ) );
+		attributes.add( new Attribute( "class", classNames ) );
+		final TrainingMatrix matrix =
+				new TrainingMatrix( new Instances( "segment", attributes, 0 ) );
+
+		// Index the pixels of each class and write the selected ones
+		final ClassPixelIndex index =
+				ClassPixelIndex.labeled( labels, classLabels, Prefs.getThreads() );
+		final FeatureStack[] featureStacks = new FeatureStack[ featureStackArray.getSize() ];
+		for( int i = 0; i < featureStacks.length; i++ )
+			featureStacks[ i ] = featureStackArray.get( i );
+		Random rand = new Random();
+		for( int j = 0; j < classLabels.length; j++ )
+		{
+			final long[] samples = numSamples > 0 ?
+					index.sample( j, numSamples, rand ) : index.getOffsets( j );
+			matrix.addSamples( index, samples, featureStacks, j );
+			if( samples.length > 0 )
+				IJ.log( "Added " + samples.length + " instances of '" + getClassLabel( j ) + "'." );
+		}
+
+		IJ.log( "Training matrix created (" + matrix.getNumSamples() +
+				" instances, " + attributes.size() + " attributes, " +
+				numOfClasses + " classes)." );
+
+		return matrix;
+	}
+
+	/**
+	 * Train the current classifier on a training matrix. A FastRandomForest
+	 * is trained directly from the matrix columns; any other classifier is
+	 * trained on the matrix converted into weka instances. The traces and the
+	 * loaded training data are not used.
 	 *
+	 * @param matrix training matrix (see createTrainingMatrix)
+	 * @return false if error
+	 */
+	public boolean trainClassifier( final TrainingMatrix matrix )
+	{
+		if( matrix.getNumSamples() == 0 )
+		{
+			IJ.log( "Cannot train without samples!" );
+			return false;
+		}
+
+		IJ.showStatus("Training classifier...");
+		IJ.log("Training classifier...");
+
+		final long start = System.currentTimeMillis();
+		try{
+			if( classifier instanceof FastRandomForest )
+				( (FastRandomForest) classifier ).buildClassifier(
+						matrix.getHeader(), matrix.getAttributeValues(),
+						matrix.getClassValues(), matrix.getWeights() );
+			else
+				classifier.buildClassifier( matrix.toInstances() );
+		}
+		catch (InterruptedException ie)
+		{
+			IJ.log("Classifier construction was interrupted.");
+			return false;
+		}
+		catch(Exception e){
+			IJ.showMessage(e.getMessage());
+			e.printStackTrace();
+			return false;
+		}
+
+		// Update train header
+		this.trainHeader = new Instances( matrix.getHeader(), 0 );
+
+		// Print classifier information
+		IJ.log( this.classifier.toString() );
+
+		final long end = System.currentTimeMillis();
+
+		IJ.log("Finished training in "+(end-start)+"ms");
+		return true;
+	}
+
+	/**
+	 * Add instances to two classes from lists of coordinates in a random
+	 * and balanced way.
 	 * White pixels will be added to the corresponding class 1 and
 	 * black pixels will be added to class 2.
 	 *
@@ -2204,14 +2446,114 @@ public class WekaSegmentation {
 	 * @param fsa feature stack array
 	 * @param whiteClassName name of the class which receives the white pixels
 	 * @param blackClassName name of the class which receives the black pixels
+	 * @param numSamples number of samples to add of each class
 	 *
 	 * @return false if error
 	 */
-	public boolean addBinaryData(
+	public boolean addRandomBalancedBinaryData(
 			List< Point3f >[] classPoints,
 			FeatureStackArray fsa,
 			String whiteClassName,
-			String blackClassName)
+			String blackClassName,
+			int numSamples)
+	{
+
+		// Detect class indexes
+		int whiteClassIndex = 0;
+		for(whiteClassIndex = 0 ; whiteClassIndex < this.getClassLabels().length; whiteClassIndex++)
+			if(whiteClassName.equalsIgnoreCase(this.getClassLabel( whiteClassIndex )))
+				break;
+		if(whiteClassIndex == this.getClassLabels().length)
+		{
+			IJ.log("Error: class named '" + whiteClassName + "' not found.");
+			return false;
+		}
+		int blackClassIndex = 0;
+		for(blackClassIndex = 0 ; blackClassIndex < this.getClassLabels().length; blackClassIndex++)
+			if(blackClassName.equalsIgnoreCase(this.getClassLabel( blackClassIndex )))
+				break;
+		if(blackClassIndex == this.getClassLabels().length)
+		{
+			IJ.log("Error: class named '" + blackClassName + "' not found.");
+			return false;
+		}
+
+		// Create loaded training data if it does not exist yet
+		if(null == loadedTrainingData)
+		{
+			IJ.log("Initializing loaded data...");
+			// Create instances
+			ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+			for (int i=1; i<=fsa.getNumOfFeatures(); i++)
+			{
+				String attString = fsa.getLabel( i );
+				attributes.add(new Attribute(attString));
+			}
+
+			if(fsa.useNeighborhood())
+				for (int i=0; i<8; i++)
+				{
+					IJ.log("Adding extra attribute original_neighbor_" + (i+1) + "...");
+					attributes.add(new Attribute(new String("original_neighbor_" + (i+1))));
+				}
+
+			// Update list of names of loaded classes
+			// (we assume the first two default class names)
+			loadedClassNames = new ArrayList<String>();
+			for(int i = 0; i < numOfClasses ; i ++)
+				loadedClassNames.add(getClassLabel( i ));
+			attributes.add(new Attribute("class", loadedClassNames));
+			loadedTrainingData = new Instances("segment", attributes, 1);
+
+			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
+		}
+
+		// Select random samples from both classes
+		Random rand = new Random();
+		for(int i=0; i<numSamples; i++)
+		{
+			int randomBlack = rand.nextInt( classPoints[ 0 ].size() );
+			int randomWhite = rand.nextInt( classPoints[ 1 ].size() );
+
+			// add random black sample
+			loadedTrainingData.add( fsa.get( (int) (classPoints[ 0 ].get(randomBlack).z) )
+										.createInstance( 	(int) (classPoints[ 0 ].get(randomBlack).x),
+															(int) (classPoints[ 0 ].get(randomBlack).y),
+															blackClassIndex) );
+
+			// add random white sample
+			loadedTrainingData.add(fsa.get( (int) (classPoints[ 1 ].get(randomWhite).z) ) .createInstance( (int) (classPoints[ 1 ].get(randomWhite).x),
+					(int) (classPoints[ 1 ].get(randomWhite).y), whiteClassIndex));
+		}
+
+		IJ.log("Added " + numSamples + " instances of '" + whiteClassName +"'.");
+		IJ.log("Added " + numSamples + " instances of '" + blackClassName +"'.");
+
+		IJ.log("Training dataset updated ("+ loadedTrainingData.numInstances() +
+				" instances, " + loadedTrainingData.numAttributes() +
+				" attributes, " + loadedTrainingData.numClasses() + " classes).");
+
+		return true;
+	}
+
+	/**
+	 * Add instances to two classes from lists of coordinates.
+	 *
+	 * White pixels will be added to the corresponding class 1 and
+	 * black pixels will be added to class 2.
+	 *
+	 * @param classPoints list of 3D coordinates to be used (x, y, slice)
+	 * @param fsa feature stack array
+	 * @param whiteClassName name of the class which receives the white pixels
+	 * @param blackClassName name of the class which receives the black pixels
+	 *
+	 * @return false if error
+	 */
+	public boolean addBinaryData(
+			List< Point3f >[] classPoints,
+			FeatureStackArray fsa,
+			String whiteClassName,
+			String blackClassName)
 	{
 
 		// Detect class indexes
@@ -2498,62 +2840,23 @@ public class WekaSegmentation {
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
 
-		// Create lists of coordinates of pixels of both classes
-		ArrayList<Point> blackCoordinates = new ArrayList<Point>();
-		ArrayList<Point> whiteCoordinates = new ArrayList<Point>();
-		final int width = labelImage.getWidth();
-		final int height = labelImage.getHeight();
-
-		if( null != mask )
+		// Index the pixels of both classes (0 for black, 1 for white)
+		final ClassPixelIndex index = ClassPixelIndex.binary( labelImage, mask );
+		if( 0 == index.getNumPixels( 1 ) )
 		{
-			for(int y = 0 ; y < height; y++)
-				for(int x = 0 ; x < width ; x++)
-				{
-					// White pixels are added to the class 1
-					// and black to class 2
-					if(mask.getPixelValue(x, y) > 0)
-					{
-						if(labelImage.getPixelValue(x, y) > 0)
-							whiteCoordinates.add(new Point(x, y));
-						else
-							blackCoordinates.add(new Point(x, y));
-					}
-				}
+			IJ.log( "Error: no white pixels found!" );
+			return false;
 		}
-		else
+		if( 0 == index.getNumPixels( 0 ) )
 		{
-			for(int y = 0 ; y < height; y++)
-				for(int x = 0 ; x < width ; x++)
-				{
-					// White pixels are added to the class 1
-					// and black to class 2
-					if(labelImage.getPixelValue(x, y) > 0)
-						whiteCoordinates.add(new Point(x, y));
-					else
-						blackCoordinates.add(new Point(x, y));
-				}
+			IJ.log( "Error: no black pixels found!" );
+			return false;
 		}
 		// Select random samples from both classes
 		Random rand = new Random();
-		for(int i=0; i<numSamples; i++)
-		{
-			int randomBlack = rand.nextInt( blackCoordinates.size() );
-			int randomWhite = rand.nextInt( whiteCoordinates.size() );
-
-
-			DenseInstance blackSample = featureStack.createInstance( blackCoordinates.get(randomBlack).x,
-					blackCoordinates.get(randomBlack).y, blackClassIndex);
-			blackSample.setWeight( weights.getPixelValue(  	blackCoordinates.get(randomBlack).x,
-														 	blackCoordinates.get(randomBlack).y) );
-			loadedTrainingData.add(blackSample);
-
-			DenseInstance whiteSample = featureStack.createInstance(whiteCoordinates.get(randomWhite).x,
-					whiteCoordinates.get(randomWhite).y, whiteClassIndex);
-
-			whiteSample.setWeight( weights.getPixelValue(  	whiteCoordinates.get(randomWhite).x,
-				 											whiteCoordinates.get(randomWhite).y) );
-			loadedTrainingData.add(whiteSample);
-		}
+		final FeatureStack[] featureStacks = new FeatureStack[]{ featureStack };
+		addLoadedSamples( index, index.sample( 0, numSamples, rand ), featureStacks, blackClassIndex, weights );
+		addLoadedSamples( index, index.sample( 1, numSamples, rand ), featureStacks, whiteClassIndex, weights );
 
 		IJ.log("Added " + numSamples + " instances of '" + whiteClassName +"'.");
 		IJ.log("Added " + numSamples + " instances of '" + blackClassName +"'.");
@@ -2634,30 +2937,21 @@ public class WekaSegmentation {
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
 
-		// Create lists of coordinates of pixels of white class
-		ArrayList<Point> whiteCoordinates = new ArrayList<Point>();
+		// Select random samples from white class (without replacement
+		// if there are enough white pixels)
 		final int width = labelImage.getWidth();
-		final int height = labelImage.getHeight();
-		final ImageProcessor img = labelImage.getProcessor();
-
-		for(int y = 0 ; y < height; y++)
-			for(int x = 0 ; x < width ; x++)
-			{
-				// White pixels are added to the white class
-				if(img.getPixelValue(x, y) > 0)
-					whiteCoordinates.add(new Point(x, y));
-			}
-
-		// Select random samples from white class
-		Random rand = new Random();
-		for(int i=0; i<numSamples; i++)
+		final int[] samples = PixelSampler.sampleForeground(
+				labelImage.getProcessor(), numSamples, new Random() );
+		if( samples.length == 0 )
 		{
-			int randomWhite = rand.nextInt( whiteCoordinates.size() );
-
-			loadedTrainingData.add(featureStack.createInstance(whiteCoordinates.get(randomWhite).x,
-					whiteCoordinates.get(randomWhite).y, whiteClassIndex));
+			IJ.log("Error: there are no pixels of class '" + whiteClassName + "' in the label image.");
+			return false;
 		}
 
+		for(int i=0; i<samples.length; i++)
+			loadedTrainingData.add(featureStack.createInstance(samples[ i ] % width,
+					samples[ i ] / width, whiteClassIndex));
+
 		IJ.log("Added " + numSamples + " instances of '" + whiteClassName +"'.");
 
 		IJ.log("Training dataset updated ("+ loadedTrainingData.numInstances() +
@@ -2788,10 +3082,12 @@ public class WekaSegmentation {
 		// Set new image as training image
 		trainingImage = new ImagePlus("Advanced Weka Segmentation", newImage.getImageStack());
 
-		// Initialize feature stack array (no features yet)
+		// Initialize feature stack array (no features yet), keeping the PCA filters
+		final ImageStack kernels = getPCAKernels();
 		featureStackArray = new FeatureStackArray(trainingImage.getImageStackSize(),
 				minimumSigma, maximumSigma, useNeighbors, membraneThickness, membranePatchSize,
 				enabledFeatures);
+		featureStackArray.setPCAKernels( kernels );
 
 		// Remove traces from the lists and ROI overlays and initialize each feature stack
 		IJ.log("Removing previous markings...");
@@ -2814,6 +3110,8 @@ public class WekaSegmentation {
 
 		// Remove current classification result image
 		classifiedImage = null;
+		lastProbabilityMaps = null;
+		changedExamples.clear();
 
 		IJ.log("New image: " + newImage.getTitle() + " ("+trainingImage.getImageStackSize() + " slice(s))");
 
@@ -3025,6 +3323,7 @@ public class WekaSegmentation {
 			final FeatureStack featureStack = new FeatureStack(new ImagePlus("slice " + i, inputSlices.getProcessor(i)));
 			featureStack.setEnabledFeatures( enabledFeatures );
 			featureStack.setMembranePatchSize(membranePatchSize);
+			featureStack.setPCAKernels( getPCAKernels() );
 			featureStack.setMembraneSize(this.membraneThickness);
 			featureStack.setMaximumSigma(this.maximumSigma);
 			featureStack.setMinimumSigma(this.minimumSigma);
@@ -3076,6 +3375,7 @@ public class WekaSegmentation {
 			final FeatureStack featureStack = new FeatureStack( new ImagePlus( "slice " + i, inputSlices.getProcessor(i) ) );
 			featureStack.setEnabledFeatures( enabledFeatures );
 			featureStack.setMembranePatchSize( membranePatchSize );
+			featureStack.setPCAKernels( getPCAKernels() );
 			featureStack.setMembraneSize( this.membraneThickness );
 			featureStack.setMaximumSigma( this.maximumSigma );
 			featureStack.setMinimumSigma( this.minimumSigma );
@@ -3165,6 +3465,7 @@ public class WekaSegmentation {
 						inputSlices.getProcessor(i) ) );
 				featureStack.setEnabledFeatures( enabledFeatures );
 				featureStack.setMembranePatchSize( membranePatchSize );
+				featureStack.setPCAKernels( getPCAKernels() );
 				featureStack.setMembraneSize( membraneThickness );
 				featureStack.setMaximumSigma( maximumSigma );
 				featureStack.setMinimumSigma( minimumSigma );
@@ -3223,6 +3524,7 @@ public class WekaSegmentation {
 			final FeatureStack featureStack = new FeatureStack(new ImagePlus("slice " + i, inputSlices.getProcessor( i ) ) );
 			featureStack.setEnabledFeatures( enabledFeatures );
 			featureStack.setMembranePatchSize(membranePatchSize);
+			featureStack.setPCAKernels( getPCAKernels() );
 			featureStack.setMembraneSize(this.membraneThickness);
 			featureStack.setMaximumSigma(this.maximumSigma);
 			featureStack.setMinimumSigma(this.minimumSigma);
@@ -3286,6 +3588,7 @@ public class WekaSegmentation {
 					new ImagePlus("slice " + i, inputSlices.getProcessor( i ) ) );
 			featureStack.setEnabledFeatures( enabledFeatures );
 			featureStack.setMembranePatchSize(membranePatchSize);
+			featureStack.setPCAKernels( getPCAKernels() );
 			featureStack.setMembraneSize(this.membraneThickness);
 			featureStack.setMaximumSigma(this.maximumSigma);
 			featureStack.setMinimumSigma(this.minimumSigma);
@@ -3345,6 +3648,7 @@ public class WekaSegmentation {
 							inputSlices.getProcessor( i ) ) );
 			featureStack.setEnabledFeatures( enabledFeatures );
 			featureStack.setMembranePatchSize(membranePatchSize);
+			featureStack.setPCAKernels( getPCAKernels() );
 			featureStack.setMembraneSize(this.membraneThickness);
 			featureStack.setMaximumSigma(this.maximumSigma);
 			featureStack.setMinimumSigma(this.minimumSigma);
@@ -3409,6 +3713,7 @@ public class WekaSegmentation {
 							inputSlices.getProcessor( i ) ) );
 			featureStack.setEnabledFeatures( enabledFeatures );
 			featureStack.setMembranePatchSize(membranePatchSize);
+			featureStack.setPCAKernels( getPCAKernels() );
 			featureStack.setMembraneSize(this.membraneThickness);
 			featureStack.setMaximumSigma(this.maximumSigma);
 			featureStack.setMinimumSigma(this.minimumSigma);
@@ -3469,6 +3774,7 @@ public class WekaSegmentation {
 							inputSlices.getProcessor( i ) ) );
 			featureStack.setEnabledFeatures( enabledFeatures );
 			featureStack.setMembranePatchSize(membranePatchSize);
+			featureStack.setPCAKernels( getPCAKernels() );
 			featureStack.setMembraneSize(this.membraneThickness);
 			featureStack.setMaximumSigma(this.maximumSigma);
 			featureStack.setMinimumSigma(this.minimumSigma);
@@ -3538,6 +3844,7 @@ public class WekaSegmentation {
 			final FeatureStack featureStack = new FeatureStack(new ImagePlus("slice " + i, inputSlices.getProcessor(i)));
 			featureStack.setEnabledFeatures( enabledFeatures );
 			featureStack.setMembranePatchSize(membranePatchSize);
+			featureStack.setPCAKernels( getPCAKernels() );
 			featureStack.setMembraneSize(this.membraneThickness);
 			featureStack.setMaximumSigma(this.maximumSigma);
 			featureStack.setMinimumSigma(this.minimumSigma);
@@ -3608,6 +3915,7 @@ public class WekaSegmentation {
 			final FeatureStack featureStack = new FeatureStack(new ImagePlus("slice " + i, inputSlices.getProcessor(i)));
 			featureStack.setEnabledFeatures( enabledFeatures );
 			featureStack.setMembranePatchSize(membranePatchSize);
+			featureStack.setPCAKernels( getPCAKernels() );
 			featureStack.setMembraneSize(this.membraneThickness);
 			featureStack.setMaximumSigma(this.maximumSigma);
 			featureStack.setMinimumSigma(this.minimumSigma);
@@ -3674,6 +3982,7 @@ public class WekaSegmentation {
 			final FeatureStack featureStack = new FeatureStack(new ImagePlus("slice " + i, inputSlices.getProcessor(i)));
 			featureStack.setEnabledFeatures( enabledFeatures );
 			featureStack.setMembranePatchSize(membranePatchSize);
+			featureStack.setPCAKernels( getPCAKernels() );
 			featureStack.setMembraneSize(this.membraneThickness);
 			featureStack.setMaximumSigma(this.maximumSigma);
 			featureStack.setMinimumSigma(this.minimumSigma);
@@ -4026,24 +4335,40 @@ public class WekaSegmentation {
 	 */
 	public double getTrainingError(boolean verbose)
 	{
-		if(null == this.trainHeader)
+		if(null == this.trainHeader || null == this.loadedTrainingData)
 			return -1;
 
-		double error = -1;
-		try {
-			final Evaluation evaluation = new Evaluation(this.loadedTrainingData);
-			evaluation.evaluateModel(classifier, this.loadedTrainingData);
-			if(verbose)
-				IJ.log(evaluation.toSummaryString("\n=== Training set evaluation ===\n", false));
-			error = evaluation.errorRate();
-		} catch (Exception e) {
+		// Count the confusion matrix of the classifier on the training data
+		final long[][] confusionMatrix = ConfusionMatrix.count( classifier,
+				this.loadedTrainingData, Prefs.getThreads() );
+		if( null == confusionMatrix )
+			return -1;
 
-			e.printStackTrace();
+		final double error = ConfusionMatrix.errorRate( confusionMatrix );
+		if(verbose)
+		{
+			IJ.log("\n=== Training set evaluation ===\n");
+			IJ.log(ConfusionMatrix.toString( confusionMatrix,
+					getClassNames( this.loadedTrainingData ) ));
+			IJ.log("Error rate: " + error);
 		}
-
 		return error;
 	}
 
+	/**
+	 * Get the class names of a set of instances
+	 *
+	 * @param data instances with the class index set
+	 * @return list of the values of the class attribute
+	 */
+	private static ArrayList<String> getClassNames( Instances data )
+	{
+		final ArrayList<String> classNames = new ArrayList<String>();
+		for( int i = 0; i < data.numClasses(); i++ )
+			classNames.add( data.classAttribute().value( i ) );
+		return classNames;
+	}
+
 	/**
 	 * Get test error of current classifier on a specific image and its binary labels
 	 *
@@ -4083,7 +4408,9 @@ public class WekaSegmentation {
 		final int width = image.getWidth();
 		final int depth = image.getStackSize();
 
-		Instances testData = null;
+		// Confusion matrix of all slices (the instances of each slice are
+		// discarded once they are counted)
+		final long[][] confusionMatrix = new long[ classNames.size() ][ classNames.size() ];
 
 		for(int z=1; z <= depth; z++)
 		{
@@ -4098,6 +4425,7 @@ public class WekaSegmentation {
 			testImageFeatures.setMaximumSigma(maximumSigma);
 			testImageFeatures.setMinimumSigma(minimumSigma);
 			testImageFeatures.setMembranePatchSize(membranePatchSize);
+			testImageFeatures.setPCAKernels( getPCAKernels() );
 			testImageFeatures.setMembraneSize(membraneThickness);
 			testImageFeatures.updateFeaturesMT();
 			testImageFeatures.setUseNeighbors(featureStackArray.useNeighborhood());
@@ -4116,33 +4444,21 @@ public class WekaSegmentation {
 					data.get(n).setClassValue(newValue);
 				}
 
-			if(null == testData)
-				testData = data;
-			else
-			{
-				for(int i=0; i<data.numInstances(); i++)
-					testData.add( data.get(i) );
-			}
-		}
-		if(verbose)
-			IJ.log("Evaluating test data...");
-
-		double error = -1;
-		try {
-			final Evaluation evaluation = new Evaluation(testData);
-			evaluation.evaluateModel(classifier, testData);
 			if(verbose)
-			{
-				IJ.log(evaluation.toSummaryString("\n=== Test data evaluation ===\n", false));
-				IJ.log(evaluation.toClassDetailsString() + "\n");
-				IJ.log(evaluation.toMatrixString());
-			}
-			error = evaluation.errorRate();
-		} catch (Exception e) {
-
-			e.printStackTrace();
+				IJ.log("Evaluating test data (slice "+z+")...");
+			final long[][] sliceMatrix = ConfusionMatrix.count( classifier, data, Prefs.getThreads() );
+			if( null == sliceMatrix )
+				return -1;
+			ConfusionMatrix.add( confusionMatrix, sliceMatrix );
 		}
 
+		final double error = ConfusionMatrix.errorRate( confusionMatrix );
+		if(verbose)
+		{
+			IJ.log("\n=== Test data evaluation ===\n");
+			IJ.log(ConfusionMatrix.toString( confusionMatrix, classNames ));
+			IJ.log("Error rate: " + error);
+		}
 		return error;
 	}
 
@@ -4196,33 +4512,18 @@ public class WekaSegmentation {
 			int whiteClassIndex,
 			int blackClassIndex)
 	{
-		int[][] confusionMatrix = new int[2][2];
-
 		// Compare labels
-		final int height = proposedLabels.getHeight();
-		final int width = proposedLabels.getWidth();
-		final int depth = proposedLabels.getStackSize();
-
+		final long[][] counts = ConfusionMatrix.countBinary(
+				proposedLabels.getImageStack(), expectedLabels.getImageStack(),
+				null, 0, Prefs.getThreads() );
+		if( null == counts )
+			return null;
 
-		for(int z=1; z <= depth; z++)
-			for(int y=0; y<height; y++)
-				for(int x=0; x<width; x++)
-				{
-					if( expectedLabels.getImageStack().getProcessor(z).get(x, y) > 0)
-					{
-						if( proposedLabels.getImageStack().getProcessor(z).get(x, y) > 0 )
-							confusionMatrix[whiteClassIndex][whiteClassIndex] ++;
-						else
-							confusionMatrix[whiteClassIndex][blackClassIndex] ++;
-					}
-					else
-					{
-						if( proposedLabels.getImageStack().getProcessor(z).get(x, y) > 0 )
-							confusionMatrix[blackClassIndex][whiteClassIndex] ++;
-						else
-							confusionMatrix[blackClassIndex][blackClassIndex] ++;
-					}
-				}
+		int[][] confusionMatrix = new int[2][2];
+		final int[] classIndex = new int[]{ blackClassIndex, whiteClassIndex };
+		for(int i=0 ; i<2; i++)
+			for(int j=0 ; j<2; j++)
+				confusionMatrix[ classIndex[ i ] ][ classIndex[ j ] ] += (int) counts[ i ][ j ];
 
 		return confusionMatrix;
 	}
@@ -4239,36 +4540,17 @@ public class WekaSegmentation {
 			ImagePlus expectedLabels,
 			double threshold)
 	{
-		int[][] confusionMatrix = new int[2][2];
-
-		final int depth = proposal.getStackSize();
-
-		ExecutorService exe = Executors.newFixedThreadPool( Prefs.getThreads() );
-		ArrayList< Future <int[][]>  > fu = new ArrayList<Future <int[][]>>();
-
 		// Compare labels
-		for(int z=1; z <= depth; z++)
-		{
-			fu.add( exe.submit( confusionMatrixBinarySlice(proposal.getImageStack().getProcessor( z ), expectedLabels.getImageStack().getProcessor( z ), threshold)) );
-		}
-
-		for(int z=0; z < depth; z++)
-		{
-			try {
-				int[][] temp = fu.get( z ).get();
-				for(int i=0 ; i<2; i++)
-					for(int j=0 ; j<2; j++)
-						confusionMatrix[i][j] += temp[i][j];
-
-			} catch (Exception e) {
-				e.printStackTrace();
-				return null;
-			}
-			finally{
-				exe.shutdown();
-			}
-		}
+		final long[][] counts = ConfusionMatrix.countBinary(
+				proposal.getImageStack(), expectedLabels.getImageStack(),
+				null, threshold, Prefs.getThreads() );
+		if( null == counts )
+			return null;
 
+		int[][] confusionMatrix = new int[2][2];
+		for(int i=0 ; i<2; i++)
+			for(int j=0 ; j<2; j++)
+				confusionMatrix[i][j] = (int) counts[i][j];
 
 		return confusionMatrix;
 	}
@@ -4293,27 +4575,19 @@ public class WekaSegmentation {
 			@Override
 			public int[][] call()
 			{
-				int[][] confusionMatrix = new int[2][2];
-				for(int y=0; y<proposal.getHeight(); y++)
-					for(int x=0; x<proposal.getWidth(); x++)
-					{
-						double pix = proposal.getPixelValue(x, y) > threshold ? 1.0 : 0.0;
+				final ImageStack proposalSlice = new ImageStack( proposal.getWidth(), proposal.getHeight() );
+				proposalSlice.addSlice( "", proposal );
+				final ImageStack labelSlice = new ImageStack( expectedLabels.getWidth(), expectedLabels.getHeight() );
+				labelSlice.addSlice( "", expectedLabels );
+				final long[][] counts = ConfusionMatrix.countBinary(
+						proposalSlice, labelSlice, null, threshold, 1 );
+				if( null == counts )
+					return null;
 
-						if( expectedLabels.get(x, y) > 0)
-						{
-							if( pix > 0 )
-								confusionMatrix[1][1] ++;
-							else
-								confusionMatrix[1][0] ++;
-						}
-						else
-						{
-							if( pix > 0 )
-								confusionMatrix[0][1] ++;
-							else
-								confusionMatrix[0][0] ++;
-						}
-					}
+				int[][] confusionMatrix = new int[2][2];
+				for(int i=0 ; i<2; i++)
+					for(int j=0 ; j<2; j++)
+						confusionMatrix[i][j] = (int) counts[i][j];
 				return confusionMatrix;
 			}
 		};
@@ -4400,7 +4674,9 @@ public class WekaSegmentation {
 		final int width = image.getWidth();
 		final int depth = image.getStackSize();
 
-		Instances testData = null;
+		// Confusion matrix of all slices (the instances of each slice are
+		// discarded once they are counted)
+		final long[][] confusionMatrix = new long[ classNames.size() ][ classNames.size() ];
 
 		for(int z=1; z <= depth; z++)
 		{
@@ -4426,33 +4702,21 @@ public class WekaSegmentation {
 					data.get(n).setClassValue(newValue);
 				}
 
-			if(null == testData)
-				testData = data;
-			else
-			{
-				for(int i=0; i<data.numInstances(); i++)
-					testData.add( data.get(i) );
-			}
-		}
-		if(verbose)
-			IJ.log("Evaluating test data...");
-
-		double error = -1;
-		try {
-			final Evaluation evaluation = new Evaluation(testData);
-			evaluation.evaluateModel(classifier, testData);
 			if(verbose)
-			{
-				IJ.log(evaluation.toSummaryString("\n=== Test data evaluation ===\n", false));
-				IJ.log(evaluation.toClassDetailsString() + "\n");
-				IJ.log(evaluation.toMatrixString());
-			}
-			error = evaluation.errorRate();
-		} catch (Exception e) {
-
-			e.printStackTrace();
+				IJ.log("Evaluating test data (slice "+z+")...");
+			final long[][] sliceMatrix = ConfusionMatrix.count( classifier, data, Prefs.getThreads() );
+			if( null == sliceMatrix )
+				return -1;
+			ConfusionMatrix.add( confusionMatrix, sliceMatrix );
 		}
 
+		final double error = ConfusionMatrix.errorRate( confusionMatrix );
+		if(verbose)
+		{
+			IJ.log("\n=== Test data evaluation ===\n");
+			IJ.log(ConfusionMatrix.toString( confusionMatrix, classNames ));
+			IJ.log("Error rate: " + error);
+		}
 		return error;
 	}
 
@@ -4856,6 +5120,20 @@ public class WekaSegmentation {
 			j++;
 		}
 
+		// Use the PCA filters the classifier was trained with
+		if( !isProcessing3D && usedFeatures[ FeatureStack.PCA_FILTERS ] )
+		{
+			final ImageStack kernels = FeatureStack.readPCAKernels( data );
+			if( null == kernels )
+				IJ.log( "Warning: the loaded data does not store its PCA filters, "
+						+ "they will be learned from the training image." );
+			else
+			{
+				setPCAKernels( kernels );
+				featuresChanged = true;
+			}
+		}
+
 		if( null != featureStackArray )
 		{
 			final boolean[] oldEnableFeatures = isProcessing3D ?
@@ -5498,6 +5776,7 @@ public class WekaSegmentation {
                     sliceFeatures.setMaximumSigma(maximumSigma);
                     sliceFeatures.setMinimumSigma(minimumSigma);
                     sliceFeatures.setMembranePatchSize(membranePatchSize);
+                    sliceFeatures.setPCAKernels( getPCAKernels() );
                     sliceFeatures.setMembraneSize(membraneThickness);
                     sliceFeatures.updateFeaturesMT( numFurtherThreads );
                     filterFeatureStackByList(featureNames, sliceFeatures);
@@ -5894,6 +6173,7 @@ public class WekaSegmentation {
 				sliceFeatures.setMaximumSigma(maximumSigma);
 				sliceFeatures.setMinimumSigma(minimumSigma);
 				sliceFeatures.setMembranePatchSize(membranePatchSize);
+				sliceFeatures.setPCAKernels( getPCAKernels() );
 				sliceFeatures.setMembraneSize(membraneThickness);
 				if(!sliceFeatures.updateFeaturesST())
 				{
@@ -6012,6 +6292,7 @@ public class WekaSegmentation {
 					sliceFeatures.setMaximumSigma(maximumSigma);
 					sliceFeatures.setMinimumSigma(minimumSigma);
 					sliceFeatures.setMembranePatchSize(membranePatchSize);
+					sliceFeatures.setPCAKernels( getPCAKernels() );
 					sliceFeatures.setMembraneSize(membraneThickness);
 					if(!sliceFeatures.updateFeaturesST())
 					{
@@ -6313,27 +6594,64 @@ public class WekaSegmentation {
 		if (numThreads == 0)
 			numThreads = Prefs.getThreads();
 
-		// Check if all 2D feature stacks were used during training
-		boolean allUsed = true;
-		if( !isProcessing3D )
-			for(int j=0; j<featureStackToUpdateTest.length; j++)
-				if(featureStackToUpdateTest[j])
-				{
-					allUsed = false;
-					break;
-				}
-
 		// Create feature stack if it was not created yet
-		if(!allUsed || featureStackArray.isEmpty() || updateFeatures)
-		{
-			IJ.showStatus("Creating feature stack...");
-			IJ.log("Creating feature stack...");
-			long start = System.currentTimeMillis();
-			if ( !isProcessing3D && !featureStackArray.updateFeaturesMT(featureStackToUpdateTest))
+		if( !updateTestFeatures() )
+			return;
+
+		IJ.log("Classifying whole image using " + numThreads + " thread(s)...");
+		try{
+			if( incrementalUpdate && !isProcessing3D )
+			{
+				final ImagePlus probabilityMaps = updateProbabilityMaps( numThreads );
+				if( null == probabilityMaps )
+					return;
+				classifiedImage = classify ? probabilityMaps
+						: getMostProbableClass( probabilityMaps );
+			}
+			else
+				classifiedImage = applyClassifier( featureStackArray, numThreads, classify );
+			if( null != trainingImage )
+				classifiedImage.setCalibration( trainingImage.getCalibration() );
+		}
+		catch(Exception ex)
+		{
+			IJ.log("Error while classifying whole image! ");
+			ex.printStackTrace();
+		}
+
+		IJ.log("Finished segmentation of whole image.\n");
+	}
+
+	/**
+	 * Update the features of the training image slices that were not used
+	 * during training (or all of them if the feature settings changed), so
+	 * the whole training image can be classified.
+	 *
+	 * @return false if the features could not be updated
+	 */
+	private boolean updateTestFeatures()
+	{
+		// Check if all 2D feature stacks were used during training
+		boolean allUsed = true;
+		if( !isProcessing3D )
+			for(int j=0; j<featureStackToUpdateTest.length; j++)
+				if(featureStackToUpdateTest[j])
+				{
+					allUsed = false;
+					break;
+				}
+
+		// Create feature stack if it was not created yet
+		if(!allUsed || featureStackArray.isEmpty() || updateFeatures)
+		{
+			IJ.showStatus("Creating feature stack...");
+			IJ.log("Creating feature stack...");
+			long start = System.currentTimeMillis();
+			if ( !isProcessing3D && !featureStackArray.updateFeaturesMT(featureStackToUpdateTest))
 			{
 				IJ.log("Feature stack was not updated.");
 				IJ.showStatus("Feature stack was not updated.");
-				return;
+				return false;
 			}
 			if ( isProcessing3D )
 			{
@@ -6341,7 +6659,7 @@ public class WekaSegmentation {
 				{
 					IJ.log("Feature stack 3D was not updated.");
 					IJ.showStatus("Feature stack 3D was not updated.");
-					return;
+					return false;
 				}
 				featureStackArray = fs3d.getFeatureStackArray();
 			}
@@ -6355,20 +6673,877 @@ public class WekaSegmentation {
 					+ " slice(s) with " + featureStackArray.getNumOfFeatures()
 					+ " features, took " + (end-start) + "ms).");
 		}
+		return true;
+	}
+
+	/**
+	 * Update the features of a single slice of the training image (if they
+	 * are not up to date yet). In 3D, or if the feature settings changed,
+	 * the features of the whole image are updated.
+	 *
+	 * @param n slice number (1 &lt;= n &lt;= number of slices)
+	 * @return false if the features could not be updated
+	 */
+	public boolean updateSliceFeatures( int n )
+	{
+		if( isProcessing3D || updateFeatures )
+			return updateTestFeatures();
+
+		if( !featureStackToUpdateTest[ n-1 ] && !featureStackArray.get( n-1 ).isEmpty() )
+			return true;
+
+		final long start = System.currentTimeMillis();
+		if( !featureStackArray.updateFeaturesMT( n-1 ) )
+		{
+			IJ.log("Feature stack of slice " + n + " was not updated.");
+			return false;
+		}
+		featureStackToUpdateTest[ n-1 ] = false;
+		filterFeatureStackByList( featureNames, featureStackArray.get( n-1 ) );
+
+		final long end = System.currentTimeMillis();
+		IJ.log("Features of slice " + n + " are now updated (took "
+				+ (end-start) + "ms).");
+		return true;
+	}
+
+	/**
+	 * Apply current classifier to a rectangular region of one slice of the
+	 * training image. Only the features of that slice are calculated (if
+	 * needed), so this method can be used to get a quick result of the
+	 * region being displayed before classifying the whole image.
+	 *
+	 * @param n slice number (1 &lt;= n &lt;= number of slices)
+	 * @param rect region to classify (null for the whole slice)
+	 * @param numThreads The number of threads to use. Set to zero for
+	 * auto-detection.
+	 * @param probabilityMaps flag to get labels or probability maps (false = labels)
+	 * @return result image with the size of the region (labels or one
+	 * probability map per class), or null if error
+	 */
+	public ImagePlus applyClassifier(
+			final int n,
+			Rectangle rect,
+			int numThreads,
+			final boolean probabilityMaps )
+	{
+		if( null == trainingImage )
+		{
+			IJ.log( "Error: no training image has been loaded!");
+			return null;
+		}
+		if( Thread.currentThread().isInterrupted() )
+			return null;
+
+		final Rectangle bounds = new Rectangle( 0, 0,
+				trainingImage.getWidth(), trainingImage.getHeight() );
+		rect = null == rect ? bounds : rect.intersection( bounds );
+		if( rect.isEmpty() )
+			return null;
+
+		if( !updateSliceFeatures( n ) )
+			return null;
+
+		final float[][] pixels = classifyFeatureStack( featureStackArray.get( n-1 ),
+				rect, null, numThreads, probabilityMaps );
+		if( null == pixels )
+			return null;
+
+		final ImagePlus result = createResultImage( pixels, rect.width,
+				rect.height, probabilityMaps );
+		result.setCalibration( trainingImage.getCalibration() );
+		return result;
+	}
+
+	/**
+	 * Classify a fast preview of one slice of the training image. The slice
+	 * is downsampled by the given factor (in each dimension) and its
+	 * features are calculated with the filter sigmas rescaled by the same
+	 * factor, so they approximate the full resolution ones. The resulting
+	 * probability maps are upsampled back to the size of the training
+	 * image. Use <code>refineClassification</code> to reclassify at full
+	 * resolution the pixels the preview is not sure about.
+	 *
+	 * @param n slice number (1 &lt;= n &lt;= number of slices)
+	 * @param factor downsampling factor per dimension (2 classifies 1/4 of
+	 * the pixels, 4 classifies 1/16 of them)
+	 * @param numThreads The number of threads to use. Set to zero for
+	 * auto-detection.
+	 * @return approximated probability maps (one per class) with the size of
+	 * the training image, or null if the preview could not be created
+	 */
+	public ImagePlus applyClassifierPreview(
+			final int n,
+			final int factor,
+			int numThreads )
+	{
+		if( null == trainingImage )
+		{
+			IJ.log( "Error: no training image has been loaded!");
+			return null;
+		}
+		if( isProcessing3D || factor < 2 )
+			return null;
+		// the preview features are matched to the trained ones by position,
+		// so a filtered list of features cannot be reproduced
+		if( null != featureNames )
+		{
+			IJ.log( "Preview classification is not available with a selected list of features." );
+			return null;
+		}
+		if (numThreads == 0)
+			numThreads = Prefs.getThreads();
+
+		final long start = System.currentTimeMillis();
+		final int width = trainingImage.getWidth();
+		final int height = trainingImage.getHeight();
+		final int smallWidth = Math.max( 1, width / factor );
+		final int smallHeight = Math.max( 1, height / factor );
+
+		final ImageProcessor ip = trainingImage.getImageStack().getProcessor( n );
+		ip.setInterpolationMethod( ImageProcessor.BILINEAR );
+		final FeatureStack fs = new FeatureStack( ip.resize( smallWidth, smallHeight, true ) );
+		fs.setEnabledFeatures( featureStackArray.getEnabledFeatures() );
+		fs.setMinimumSigma( minimumSigma / factor );
+		fs.setMaximumSigma( maximumSigma / factor );
+		fs.setMembraneSize( Math.max( 1, membraneThickness / factor ) );
+		fs.setMembranePatchSize( Math.max( 3, ( membranePatchSize / factor ) | 1 ) );
+		fs.setPCAKernels( getPCAKernels() );
+		fs.setUseNeighbors( useNeighbors );
+		fs.setOldColorFormat( featureStackArray.isOldColorFormat() );
+		if( !fs.updateFeaturesMT( numThreads ) )
+			return null;
+
+		if( fs.getSize() != featureStackArray.getNumOfFeatures() )
+		{
+			IJ.log( "Preview classification is not available: the rescaled filters produce "
+					+ fs.getSize() + " features instead of " + featureStackArray.getNumOfFeatures() + "." );
+			return null;
+		}
+
+		final float[][] pixels = classifyFeatureStack( fs, null, null, numThreads, true );
+		if( null == pixels )
+			return null;
+
+		final ImageStack classStack = new ImageStack( width, height );
+		for( int c = 0; c < pixels.length; c++ )
+		{
+			final ImageProcessor prob =
+					new FloatProcessor( smallWidth, smallHeight, pixels[ c ] );
+			prob.setInterpolationMethod( ImageProcessor.BILINEAR );
+			classStack.addSlice( getClassLabel( c ), prob.resize( width, height ) );
+		}
+		final ImagePlus result = new ImagePlus( "Probability maps", classStack );
+		result.setCalibration( trainingImage.getCalibration() );
+
+		final long end = System.currentTimeMillis();
+		IJ.log( "Preview of slice " + n + " (1/" + (factor*factor)
+				+ " of the pixels) took " + (end-start) + "ms." );
+		return result;
+	}
+
+	/**
+	 * Refine a preview classification (see <code>applyClassifierPreview</code>)
+	 * of a region of one slice of the training image. The pixels whose
+	 * margin between the two largest preview probabilities is below the
+	 * given threshold are classified again at full resolution, the rest
+	 * keep the class of the preview. With a threshold of 0 no features
+	 * are calculated and the labels of the preview are returned.
+	 *
+	 * @param n slice number (1 &lt;= n &lt;= number of slices)
+	 * @param rect region to classify (null for the whole slice)
+	 * @param preview probability maps of the preview (one per class)
+	 * @param marginThreshold minimum probability margin to trust the preview
+	 * @param numThreads The number of threads to use. Set to zero for
+	 * auto-detection.
+	 * @return labels of the region, or null if error
+	 */
+	public ImagePlus refineClassification(
+			final int n,
+			Rectangle rect,
+			final ImagePlus preview,
+			final double marginThreshold,
+			final int numThreads )
+	{
+		final int width = trainingImage.getWidth();
+		final Rectangle bounds = new Rectangle( 0, 0,
+				width, trainingImage.getHeight() );
+		rect = null == rect ? bounds : rect.intersection( bounds );
+		if( rect.isEmpty() )
+			return null;
+
+		final ImageStack probStack = preview.getImageStack();
+		final float[][] probs = new float[ probStack.getSize() ][];
+		for( int c = 0; c < probs.length; c++ )
+			probs[ c ] = (float[]) probStack.getProcessor( c+1 ).getPixels();
+
+		// Keep the most probable class of the preview and mark the
+		// uncertain pixels to be classified at full resolution
+		final float[] labels = new float[ rect.width * rect.height ];
+		final byte[] uncertain = new byte[ labels.length ];
+		int numUncertain = 0;
+		for( int y = 0, i = 0; y < rect.height; y++ )
+			for( int x = 0, j = ( rect.y + y ) * width + rect.x; x < rect.width; x++, i++, j++ )
+			{
+				int best = 0;
+				float first = -1, second = -1;
+				for( int c = 0; c < probs.length; c++ )
+				{
+					final float p = probs[ c ][ j ];
+					if( p > first )
+					{
+						second = first;
+						first = p;
+						best = c;
+					}
+					else if( p > second )
+						second = p;
+				}
+				labels[ i ] = best;
+				if( first - second < marginThreshold )
+				{
+					uncertain[ i ] = 1;
+					numUncertain ++;
+				}
+			}
+
+		if( numUncertain > 0 )
+		{
+			if( !updateSliceFeatures( n ) )
+				return null;
+			final float[][] refined = classifyFeatureStack(
+					featureStackArray.get( n-1 ), rect, uncertain, numThreads, false );
+			if( null == refined )
+				return null;
+			for( int i = 0; i < labels.length; i++ )
+				if( uncertain[ i ] != 0 )
+					labels[ i ] = refined[ 0 ][ i ];
+			IJ.log( "Refined " + numUncertain + " of " + labels.length
+					+ " pixels of slice " + n + " at full resolution." );
+		}
+
+		final ImagePlus result = createResultImage( new float[][]{ labels },
+				rect.width, rect.height, false );
+		result.setCalibration( trainingImage.getCalibration() );
+		return result;
+	}
+
+	/**
+	 * Classify the training image into probability maps and keep them for
+	 * the next classification. If the previous probability maps were
+	 * created with the same features and classes, they are updated
+	 * incrementally (see <code>applyClassifierIncremental</code>) around the
+	 * ROIs added or removed since then, instead of classifying every pixel.
+	 *
+	 * @param numThreads The number of threads to use.
+	 * @return probability maps (one per class and slice), or null if error
+	 */
+	private ImagePlus updateProbabilityMaps( int numThreads )
+	{
+		final int width = trainingImage.getWidth();
+		final int height = trainingImage.getHeight();
+		final int numSlices = trainingImage.getImageStackSize();
+		final int numClasses = getNumOfClasses();
+
+		ImagePlus result;
+		if( null != lastProbabilityMaps && null != trainHeader
+				&& null != lastProbabilityMapsHeader
+				&& trainHeader.equalHeaders( lastProbabilityMapsHeader )
+				&& lastProbabilityMaps.getImageStackSize() == numSlices * numClasses )
+		{
+			final ImageStack lastStack = lastProbabilityMaps.getImageStack();
+			final ImageStack classStack = new ImageStack( width, height );
+			for( int n = 1; n <= numSlices; n++ )
+			{
+				final ImageStack previous = new ImageStack( width, height );
+				for( int c = 0; c < numClasses; c++ )
+					previous.addSlice( getClassLabel( c ),
+							lastStack.getProcessor( (n-1) * numClasses + c + 1 ) );
+				final ImagePlus updated = applyClassifierIncremental( n,
+						new ImagePlus( "Probability maps", previous ),
+						changedExamples.get( n ), incrementalMargin,
+						incrementalRadius, numThreads );
+				if( null == updated )
+					return null;
+				for( int c = 0; c < numClasses; c++ )
+					classStack.addSlice( getClassLabel( c ),
+							updated.getImageStack().getProcessor( c+1 ) );
+			}
+			result = new ImagePlus( "Probability maps", classStack );
+		}
+		else
+			result = applyClassifier( featureStackArray, numThreads, true );
+		if( null == result )
+			return null;
+
+		lastProbabilityMaps = result;
+		lastProbabilityMapsHeader = trainHeader;
+		changedExamples.clear();
+		return result;
+	}
+
+	/**
+	 * Get the most probable class of each pixel of a set of probability maps
+	 * (the first class in case of a tie, as the classifiers do).
+	 *
+	 * @param probabilityMaps probability maps (one per class and slice)
+	 * @return labels (8-bit, one slice per slice of the probability maps)
+	 */
+	private ImagePlus getMostProbableClass( final ImagePlus probabilityMaps )
+	{
+		final int numClasses = getNumOfClasses();
+		final ImageStack probStack = probabilityMaps.getImageStack();
+		final ImageStack classStack = new ImageStack(
+				probabilityMaps.getWidth(), probabilityMaps.getHeight() );
+		for( int n = 0; n < probStack.getSize() / numClasses; n++ )
+		{
+			final float[][] probs = new float[ numClasses ][];
+			for( int c = 0; c < numClasses; c++ )
+				probs[ c ] = (float[]) probStack.getProcessor(
+						n * numClasses + c + 1 ).getPixels();
+			final byte[] labels = new byte[ probs[ 0 ].length ];
+			for( int i = 0; i < labels.length; i++ )
+			{
+				int best = 0;
+				for( int c = 1; c < numClasses; c++ )
+					if( probs[ c ][ i ] > probs[ best ][ i ] )
+						best = c;
+				labels[ i ] = (byte) best;
+			}
+			classStack.addSlice( "", new ByteProcessor( probabilityMaps.getWidth(),
+					probabilityMaps.getHeight(), labels ) );
+		}
+		final ImagePlus result = new ImagePlus( "Classification result", classStack );
+		result.setCalibration( probabilityMaps.getCalibration() );
+		return result;
+	}
+
+	/**
+	 * Update the probability maps of one slice of the training image after
+	 * retraining, without classifying every pixel again. Only the pixels
+	 * whose previous margin between the two largest probabilities is below
+	 * the given threshold, or which lie near the ROIs added or removed since
+	 * the previous classification, are classified with the current
+	 * classifier. The update is then propagated to the neighbors of every
+	 * pixel that changed its class, until no more pixels change. The pixels
+	 * to classify are kept in a work list, so each pass only visits them.
+	 *
+	 * @param n slice number (1 &lt;= n &lt;= number of slices)
+	 * @param previous previous probability maps of the slice (one per class)
+	 * @param newRois ROIs added or removed since the previous classification
+	 * (can be null)
+	 * @param marginThreshold maximum probability margin to reclassify a pixel
+	 * @param radius distance (in pixels) around the new ROIs to reclassify
+	 * @param numThreads The number of threads to use. Set to zero for
+	 * auto-detection.
+	 * @return updated probability maps (one per class), or null if error
+	 */
+	public ImagePlus applyClassifierIncremental(
+			final int n,
+			final ImagePlus previous,
+			final List<Roi> newRois,
+			final double marginThreshold,
+			final int radius,
+			final int numThreads )
+	{
+		if( null == trainingImage )
+		{
+			IJ.log( "Error: no training image has been loaded!");
+			return null;
+		}
+		final int width = trainingImage.getWidth();
+		final int height = trainingImage.getHeight();
+		final int numClasses = getNumOfClasses();
+		final ImageStack previousStack = previous.getImageStack();
+		if( previous.getWidth() != width || previous.getHeight() != height
+				|| previousStack.getSize() != numClasses )
+		{
+			IJ.log( "Error: the previous probability maps do not match the "
+					+ "training image and classes!" );
+			return null;
+		}
+
+		final long start = System.currentTimeMillis();
+
+		// Copy of the previous probabilities to be updated
+		final float[][] probs = new float[ numClasses ][];
+		for( int c = 0; c < numClasses; c++ )
+			probs[ c ] = ( (float[]) previousStack.getProcessor( c+1 )
+					.convertToFloat().getPixels() ).clone();
+		final int[] labels = new int[ width * height ];
+
+		// Initial work list: low margin or close to the new traces
+		final boolean[] queued = new boolean[ width * height ];
+		int[] worklist = new int[ 1024 ];
+		int numQueued = 0;
+		for( int i = 0; i < labels.length; i++ )
+		{
+			int best = 0;
+			float first = -1, second = -1;
+			for( int c = 0; c < numClasses; c++ )
+			{
+				final float p = probs[ c ][ i ];
+				if( p > first )
+				{
+					second = first;
+					first = p;
+					best = c;
+				}
+				else if( p > second )
+					second = p;
+			}
+			labels[ i ] = best;
+			if( first - second < marginThreshold )
+			{
+				queued[ i ] = true;
+				if( numQueued == worklist.length )
+					worklist = Arrays.copyOf( worklist, 2 * worklist.length );
+				worklist[ numQueued++ ] = i;
+			}
+		}
+		if( null != newRois )
+		{
+			final Rectangle bounds = new Rectangle( 0, 0, width, height );
+			for( final Roi roi : newRois )
+			{
+				final Rectangle r = roi.getBounds();
+				r.grow( radius, radius );
+				final Rectangle near = r.intersection( bounds );
+				for( int y = near.y; y < near.y + near.height; y++ )
+					for( int i = y * width + near.x; i < y * width + near.x + near.width; i++ )
+						if( !queued[ i ] )
+						{
+							queued[ i ] = true;
+							if( numQueued == worklist.length )
+								worklist = Arrays.copyOf( worklist, 2 * worklist.length );
+							worklist[ numQueued++ ] = i;
+						}
+			}
+		}
+
+		int numEvaluated = 0;
+		int numChanged = 0;
+		while( numQueued > 0 )
+		{
+			if( numEvaluated == 0 && !updateSliceFeatures( n ) )
+				return null;
+
+			final float[][] updated = classifyPixels( featureStackArray.get( n-1 ),
+					worklist, numQueued, numThreads );
+			if( null == updated )
+				return null;
+			numEvaluated += numQueued;
+
+			// Store the new probabilities and queue the neighbors of the
+			// pixels that changed their class for the next pass
+			int[] next = new int[ 1024 ];
+			int numNext = 0;
+			for( int k = 0; k < numQueued; k++ )
+			{
+				final int i = worklist[ k ];
+				int best = 0;
+				for( int c = 0; c < numClasses; c++ )
+				{
+					probs[ c ][ i ] = updated[ c ][ k ];
+					if( updated[ c ][ k ] > updated[ best ][ k ] )
+						best = c;
+				}
+				if( best == labels[ i ] )
+					continue;
+				labels[ i ] = best;
+				numChanged ++;
+				final int px = i % width;
+				final int py = i / width;
+				for( int ny = Math.max( 0, py-1 ); ny <= Math.min( height-1, py+1 ); ny++ )
+					for( int nx = Math.max( 0, px-1 ); nx <= Math.min( width-1, px+1 ); nx++ )
+					{
+						final int j = ny * width + nx;
+						if( queued[ j ] )
+							continue;
+						queued[ j ] = true;
+						if( numNext == next.length )
+							next = Arrays.copyOf( next, 2 * next.length );
+						next[ numNext++ ] = j;
+					}
+			}
+			worklist = next;
+			numQueued = numNext;
+		}
+
+		final ImageStack classStack = new ImageStack( width, height );
+		for( int c = 0; c < numClasses; c++ )
+			classStack.addSlice( getClassLabel( c ),
+					new FloatProcessor( width, height, probs[ c ] ) );
+		final ImagePlus result = new ImagePlus( "Probability maps", classStack );
+		result.setCalibration( trainingImage.getCalibration() );
+
+		final long end = System.currentTimeMillis();
+		IJ.log( "Reclassified " + numEvaluated + " of " + labels.length
+				+ " pixels of slice " + n + " (" + numChanged
+				+ " changed their class) in " + (end-start) + "ms." );
+		return result;
+	}
+
+	/**
+	 * Get the class probabilities of a list of pixels of a feature stack, in
+	 * a multi-threaded way (by blocks of the list).
+	 *
+	 * @param fs feature stack with the feature vectors
+	 * @param pixelList indices of the pixels to classify (y * width + x)
+	 * @param numPixels number of pixels of the list to classify
+	 * @param numThreads The number of threads to use. Set to zero for
+	 * auto-detection.
+	 * @return one array per class with the probabilities of the pixels (in
+	 * the order of the list), or null if error
+	 */
+	private float[][] classifyPixels(
+			final FeatureStack fs,
+			final int[] pixelList,
+			final int numPixels,
+			int numThreads )
+	{
+		if (numThreads == 0)
+			numThreads = Prefs.getThreads();
+		numThreads = Math.min( numThreads, numPixels );
+
+		final Instances dataInfo = createDataInfo( fs );
+		final float[][] probs = new float[ dataInfo.numClasses() ][ numPixels ];
+
+		final ExecutorService exe = Executors.newFixedThreadPool( numThreads );
+		final ArrayList< Future<Boolean> > futures = new ArrayList< Future<Boolean> >();
+		final int pixelsPerThread = ( numPixels + numThreads - 1 ) / numThreads;
 
-		IJ.log("Classifying whole image using " + numThreads + " thread(s)...");
 		try{
-			classifiedImage = applyClassifier( featureStackArray, numThreads, classify );
-			if( null != trainingImage )
-				classifiedImage.setCalibration( trainingImage.getCalibration() );
+			for( int first = 0; first < numPixels; first += pixelsPerThread )
+			{
+				AbstractClassifier classifierCopy = classifier;
+				// The Weka random forest classifiers do not need to be duplicated on each thread
+				// (that saves much memory)
+				if( !( classifier instanceof FastRandomForest || classifier instanceof RandomForest ) )
+					classifierCopy = (AbstractClassifier) (AbstractClassifier.makeCopy( classifier ));
+
+				futures.add( exe.submit( classifyPixelList( fs, dataInfo, pixelList,
+						first, Math.min( first + pixelsPerThread, numPixels ),
+						classifierCopy, probs ) ) );
+			}
+			for( Future<Boolean> f : futures )
+				if( !f.get() )
+					return null;
 		}
-		catch(Exception ex)
+		catch( InterruptedException ie )
 		{
-			IJ.log("Error while classifying whole image! ");
+			exe.shutdownNow();
+			return null;
+		}
+		catch( Exception ex )
+		{
+			IJ.log( "Error while classifying pixels!" );
+			ex.printStackTrace();
+			exe.shutdownNow();
+			return null;
+		}
+		finally{
+			exe.shutdown();
+		}
+		return probs;
+	}
+
+	/**
+	 * Apply the current classifier to a rectangular region of a feature
+	 * stack, in a multi-threaded way (by blocks of rows).
+	 *
+	 * @param fs feature stack with the feature vectors
+	 * @param rect region to classify (null for the whole feature stack)
+	 * @param mask optional mask with the size of the region (only its non-zero
+	 * pixels are classified), null to classify all pixels
+	 * @param numThreads The number of threads to use. Set to zero for
+	 * auto-detection.
+	 * @param probabilityMaps flag to get labels or probability maps (false = labels)
+	 * @return one array per channel (class probabilities or labels) with the
+	 * size of the region, or null if error
+	 */
+	private float[][] classifyFeatureStack(
+			final FeatureStack fs,
+			Rectangle rect,
+			final byte[] mask,
+			int numThreads,
+			final boolean probabilityMaps )
+	{
+		if( null == rect )
+			rect = new Rectangle( 0, 0, fs.getWidth(), fs.getHeight() );
+		if (numThreads == 0)
+			numThreads = Prefs.getThreads();
+		numThreads = Math.min( numThreads, rect.height );
+
+		final Instances dataInfo = createDataInfo( fs );
+		final int numChannels = probabilityMaps ? dataInfo.numClasses() : 1;
+		final float[][] pixels = new float[ numChannels ][ rect.width * rect.height ];
+
+		final ExecutorService exe = Executors.newFixedThreadPool( numThreads );
+		final ArrayList< Future<Boolean> > futures = new ArrayList< Future<Boolean> >();
+		final int rowsPerThread = ( rect.height + numThreads - 1 ) / numThreads;
+
+		try{
+			for( int y0 = 0; y0 < rect.height; y0 += rowsPerThread )
+			{
+				AbstractClassifier classifierCopy = classifier;
+				// The Weka random forest classifiers do not need to be duplicated on each thread
+				// (that saves much memory)
+				if( !( classifier instanceof FastRandomForest || classifier instanceof RandomForest ) )
+					classifierCopy = (AbstractClassifier) (AbstractClassifier.makeCopy( classifier ));
+
+				futures.add( exe.submit( classifyRegion( fs, dataInfo, rect, y0,
+						Math.min( y0 + rowsPerThread, rect.height ), classifierCopy,
+						probabilityMaps, pixels, mask ) ) );
+			}
+			for( Future<Boolean> f : futures )
+				if( !f.get() )
+					return null;
+		}
+		catch( InterruptedException ie )
+		{
+			exe.shutdownNow();
+			return null;
+		}
+		catch( Exception ex )
+		{
+			IJ.log( "Error while classifying feature stack!" );
 			ex.printStackTrace();
+			exe.shutdownNow();
+			return null;
+		}
+		finally{
+			exe.shutdown();
 		}
+		return pixels;
+	}
 
-		IJ.log("Finished segmentation of whole image.\n");
+	/**
+	 * Create a result image (labels or probability maps) out of the
+	 * classification arrays of a region.
+	 *
+	 * @param pixels one array per channel (class probabilities or labels)
+	 * @param width width of the region
+	 * @param height height of the region
+	 * @param probabilityMaps true if the arrays contain probability maps
+	 * @return labels (8-bit) or probability maps (32-bit, one slice per class)
+	 */
+	private ImagePlus createResultImage(
+			final float[][] pixels,
+			final int width,
+			final int height,
+			final boolean probabilityMaps )
+	{
+		final ImageStack classStack = new ImageStack( width, height );
+		for( int c = 0; c < pixels.length; c++ )
+		{
+			ImageProcessor ip = new FloatProcessor( width, height, pixels[ c ] );
+			if( !probabilityMaps )
+				ip = ip.convertToByte( false );
+			classStack.addSlice( probabilityMaps ? getClassLabel( c ) : "", ip );
+		}
+		return new ImagePlus( probabilityMaps ?
+				"Probability maps" : "Classification result", classStack );
+	}
+
+	/**
+	 * Apply the current classifier to a rectangular region of a feature stack
+	 * (to be submitted to an Executor Service)
+	 *
+	 * @param fs feature stack with the feature vectors
+	 * @param dataInfo empty set of instances containing the data structure (attributes and classes)
+	 * @param rect region of the feature stack to classify
+	 * @param firstRow first row of the region to classify in this thread (relative to the region)
+	 * @param lastRow last row (exclusive) of the region to classify in this thread
+	 * @param classifier current classifier
+	 * @param probabilityMaps if true store a probability per class instead of the class value
+	 * @param pixels output arrays (one per channel) with the size of the region
+	 * @param mask optional mask with the size of the region (only its non-zero
+	 * pixels are classified), null to classify all pixels
+	 * @return false if error
+	 */
+	private static Callable<Boolean> classifyRegion(
+			final FeatureStack fs,
+			final Instances dataInfo,
+			final Rectangle rect,
+			final int firstRow,
+			final int lastRow,
+			final AbstractClassifier classifier,
+			final boolean probabilityMaps,
+			final float[][] pixels,
+			final byte[] mask )
+	{
+		return new Callable<Boolean>(){
+			@Override
+			public Boolean call()
+			{
+				final int numClasses = dataInfo.numClasses();
+				// auxiliary array to be filled for each instance
+				final int extra = fs.useNeighborhood() ? 8 : 0;
+				final double[] values = new double[ fs.getSize() + 1 + extra ];
+				// create empty reusable instance
+				final ReusableDenseInstance ins =
+						new ReusableDenseInstance( 1.0, values );
+				ins.setDataset( dataInfo );
+
+				try{
+					for( int y = firstRow; y < lastRow; y++ )
+					{
+						if( Thread.currentThread().isInterrupted() )
+							return false;
+						for( int x = 0, i = y * rect.width; x < rect.width; x++, i++ )
+						{
+							if( null != mask && mask[ i ] == 0 )
+								continue;
+							fs.setInstance( rect.x + x, rect.y + y, 0, ins, values );
+							if( probabilityMaps )
+							{
+								final double[] prob = classifier.distributionForInstance( ins );
+								for( int k = 0; k < numClasses; k++ )
+									pixels[ k ][ i ] = (float) prob[ k ];
+							}
+							else
+								pixels[ 0 ][ i ] = (float) classifier.classifyInstance( ins );
+						}
+					}
+				}
+				catch( Exception e )
+				{
+					IJ.log( "Could not apply classifier!" );
+					e.printStackTrace();
+					return false;
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Get the class probabilities of a range of a list of pixels of a
+	 * feature stack (to be submitted to an Executor Service)
+	 *
+	 * @param fs feature stack with the feature vectors
+	 * @param dataInfo empty set of instances containing the data structure (attributes and classes)
+	 * @param pixelList indices of the pixels to classify (y * width + x)
+	 * @param first first position of the list to classify in this thread
+	 * @param last last position (exclusive) of the list to classify in this thread
+	 * @param classifier current classifier
+	 * @param probs output arrays (one per class) with the size of the list
+	 * @return false if error
+	 */
+	private static Callable<Boolean> classifyPixelList(
+			final FeatureStack fs,
+			final Instances dataInfo,
+			final int[] pixelList,
+			final int first,
+			final int last,
+			final AbstractClassifier classifier,
+			final float[][] probs )
+	{
+		return new Callable<Boolean>(){
+			@Override
+			public Boolean call()
+			{
+				final int width = fs.getWidth();
+				// auxiliary array to be filled for each instance
+				final int extra = fs.useNeighborhood() ? 8 : 0;
+				final double[] values = new double[ fs.getSize() + 1 + extra ];
+				// create empty reusable instance
+				final ReusableDenseInstance ins =
+						new ReusableDenseInstance( 1.0, values );
+				ins.setDataset( dataInfo );
+
+				try{
+					for( int k = first; k < last; k++ )
+					{
+						if( Thread.currentThread().isInterrupted() )
+							return false;
+						final int i = pixelList[ k ];
+						fs.setInstance( i % width, i / width, 0, ins, values );
+						final double[] prob = classifier.distributionForInstance( ins );
+						for( int c = 0; c < probs.length; c++ )
+							probs[ c ][ k ] = (float) prob[ c ];
+					}
+				}
+				catch( Exception e )
+				{
+					IJ.log( "Could not apply classifier!" );
+					e.printStackTrace();
+					return false;
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Create the (empty) set of instances that defines the structure of the
+	 * feature vectors of a feature stack array, i.e. its attributes and classes.
+	 *
+	 * @param fsa feature stack array
+	 * @return empty set of instances with the class index set
+	 */
+	private Instances createDataInfo( final FeatureStackArray fsa )
+	{
+		final String[] featureLabels = new String[ fsa.getNumOfFeatures() ];
+		for (int i=1; i<=featureLabels.length; i++)
+			featureLabels[ i-1 ] = fsa.getLabel(i);
+		return createDataInfo( featureLabels, fsa.useNeighborhood() );
+	}
+
+	/**
+	 * Create the (empty) set of instances that defines the structure of the
+	 * feature vectors of a feature stack, i.e. its attributes and classes.
+	 *
+	 * @param fs feature stack
+	 * @return empty set of instances with the class index set
+	 */
+	private Instances createDataInfo( final FeatureStack fs )
+	{
+		final String[] featureLabels = new String[ fs.getSize() ];
+		for (int i=1; i<=featureLabels.length; i++)
+			featureLabels[ i-1 ] = fs.getSliceLabel(i);
+		return createDataInfo( featureLabels, fs.useNeighborhood() );
+	}
+
+	/**
+	 * Create the (empty) set of instances with the given feature attributes
+	 * and the current classes.
+	 *
+	 * @param featureLabels names of the feature attributes
+	 * @param useNeighborhood flag to add the neighbor attributes
+	 * @return empty set of instances with the class index set
+	 */
+	private Instances createDataInfo(
+			final String[] featureLabels,
+			final boolean useNeighborhood )
+	{
+		ArrayList<String> classNames = null;
+
+		if(null != loadedClassNames)
+			classNames = loadedClassNames;
+		else
+		{
+			classNames = new ArrayList<String>();
+
+			for(int i = 0; i < numOfClasses; i++)
+				if(!classNames.contains(getClassLabel( i )))
+					classNames.add(getClassLabel( i ));
+		}
+
+		// Create instances information (each instance needs a pointer to this)
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for( final String attString : featureLabels )
+			attributes.add(new Attribute(attString));
+
+		if(useNeighborhood)
+			for (int i=0; i<8; i++)
+				attributes.add(new Attribute(new String("original_neighbor_" + (i+1))));
+
+		attributes.add(new Attribute("class", classNames));
+		Instances dataInfo = new Instances("segment", attributes, 1);
+		dataInfo.setClassIndex(dataInfo.numAttributes()-1);
+		return dataInfo;
 	}
 
 	/**
@@ -6577,6 +7752,202 @@ public class WekaSegmentation {
 		croppedRes.setCalibration( result.getCalibration() );
 		return croppedRes;
 	}
+	/**
+	 * Apply current classifier only to the pixels of an image inside a mask.
+	 * The features are calculated on the bounding box of the mask (plus a
+	 * padding based on the filter sizes) and, in 2D, only the pixels inside
+	 * the mask are classified. In 3D the whole bounding box is classified.
+	 * The pixels outside the mask are assigned the given background label
+	 * or, in the probability maps, NaN.
+	 *
+	 * @param imp image to classify (2D or 3D)
+	 * @param mask mask image (non-zero values inside the mask) with the same
+	 * size as the image or a single slice to use on every slice
+	 * @param numThreads The number of threads to use. Set to zero for
+	 * auto-detection.
+	 * @param probabilityMaps create probability maps for each class instead of
+	 * a classification
+	 * @param backgroundLabel label of the pixels outside the mask
+	 * @return result image, or null if error
+	 */
+	public ImagePlus applyClassifierInMask(
+			final ImagePlus imp,
+			final ImagePlus mask,
+			int numThreads,
+			final boolean probabilityMaps,
+			final int backgroundLabel )
+	{
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		final int numSlices = imp.getImageStackSize();
+		final ImageStack maskStack = mask.getImageStack();
+		if( mask.getWidth() != width || mask.getHeight() != height
+				|| ( maskStack.getSize() != 1 && maskStack.getSize() != numSlices ) )
+		{
+			IJ.log( "Apply Classifier: the mask dimensions do not match the image!" );
+			return null;
+		}
+		if (numThreads == 0)
+			numThreads = Prefs.getThreads();
+
+		final long start = System.currentTimeMillis();
+		final int numChannels = probabilityMaps ? numOfClasses : 1;
+		final float background = probabilityMaps ? Float.NaN : backgroundLabel;
+		// padding to calculate the features of the mask border as
+		// in the whole image (the whole image if a filter is not local)
+		final int radius = FeatureStack.getFeatureRadius( enabledFeatures,
+				minimumSigma, maximumSigma, membranePatchSize, useNeighbors );
+		final int pad = radius < 0 ? Math.max( width, height ) : radius;
+
+		final float[][][] pixels = new float[ numSlices ][ numChannels ][];
+		final byte[][] inside = new byte[ numSlices ][];
+		long numInside = 0;
+		for( int n = 1; n <= numSlices; n++ )
+		{
+			final ImageProcessor maskIp =
+					maskStack.getProcessor( maskStack.getSize() == 1 ? 1 : n );
+			inside[ n-1 ] = new byte[ width * height ];
+			for( int i = 0; i < inside[ n-1 ].length; i++ )
+				if( maskIp.getf( i ) != 0 )
+				{
+					inside[ n-1 ][ i ] = 1;
+					numInside ++;
+				}
+			for( int c = 0; c < numChannels; c++ )
+			{
+				pixels[ n-1 ][ c ] = new float[ width * height ];
+				Arrays.fill( pixels[ n-1 ][ c ], background );
+			}
+		}
+
+		if( isProcessing3D )
+		{
+			// Classify the bounding box of the mask in 3D
+			final int[] origin = new int[]{ width, height, numSlices };
+			final int[] last = new int[]{ -1, -1, -1 };
+			for( int n = 0; n < numSlices; n++ )
+				for( int y = 0, i = 0; y < height; y++ )
+					for( int x = 0; x < width; x++, i++ )
+						if( inside[ n ][ i ] != 0 )
+						{
+							origin[ 0 ] = Math.min( origin[ 0 ], x );
+							origin[ 1 ] = Math.min( origin[ 1 ], y );
+							origin[ 2 ] = Math.min( origin[ 2 ], n );
+							last[ 0 ] = Math.max( last[ 0 ], x );
+							last[ 1 ] = Math.max( last[ 1 ], y );
+							last[ 2 ] = Math.max( last[ 2 ], n );
+						}
+			if( last[ 0 ] >= 0 )
+			{
+				final int[] cropDims = new int[ 3 ];
+				for( int d = 0; d < 3; d++ )
+					cropDims[ d ] = last[ d ] - origin[ d ] + 1;
+				final ImagePlus cropResult = applyClassifier( imp, origin,
+						cropDims, numThreads, probabilityMaps );
+				if( null == cropResult )
+					return null;
+				final ImageStack cropStack = cropResult.getImageStack();
+				for( int z = 0; z < cropDims[ 2 ]; z++ )
+				{
+					final int n = origin[ 2 ] + z;
+					for( int c = 0; c < numChannels; c++ )
+					{
+						final ImageProcessor cropIp =
+								cropStack.getProcessor( z * numChannels + c + 1 );
+						for( int y = 0; y < cropDims[ 1 ]; y++ )
+							for( int x = 0, i = ( origin[ 1 ] + y ) * width + origin[ 0 ];
+									x < cropDims[ 0 ]; x++, i++ )
+								if( inside[ n ][ i ] != 0 )
+									pixels[ n ][ c ][ i ] = cropIp.getf( x, y );
+					}
+				}
+			}
+		}
+		else
+		{
+			for( int n = 1; n <= numSlices; n++ )
+			{
+				// Bounding box of the mask in this slice
+				int minX = width, minY = height, maxX = -1, maxY = -1;
+				for( int y = 0, i = 0; y < height; y++ )
+					for( int x = 0; x < width; x++, i++ )
+						if( inside[ n-1 ][ i ] != 0 )
+						{
+							if( x < minX ) minX = x;
+							if( x > maxX ) maxX = x;
+							if( y < minY ) minY = y;
+							if( y > maxY ) maxY = y;
+						}
+				if( maxX < 0 )
+					continue;
+				final Rectangle box = new Rectangle( minX, minY,
+						maxX - minX + 1, maxY - minY + 1 );
+				final Rectangle padded = new Rectangle( box );
+				padded.grow( pad, pad );
+				final Rectangle crop = padded.intersection(
+						new Rectangle( 0, 0, width, height ) );
+
+				IJ.log( "Creating features for slice " + n + " (" + crop.width
+						+ "x" + crop.height + " pixels)..." );
+				final ImageProcessor ip = imp.getImageStack().getProcessor( n );
+				ip.setRoi( crop );
+				final FeatureStack fs = new FeatureStack( ip.crop() );
+				fs.setEnabledFeatures( enabledFeatures );
+				fs.setMaximumSigma( maximumSigma );
+				fs.setMinimumSigma( minimumSigma );
+				fs.setMembranePatchSize( membranePatchSize );
+				fs.setPCAKernels( getPCAKernels() );
+				fs.setMembraneSize( membraneThickness );
+				fs.setUseNeighbors( useNeighbors );
+				if( !fs.updateFeaturesMT( numThreads ) )
+					return null;
+				filterFeatureStackByList( featureNames, fs );
+
+				// Classify only the pixels inside the mask
+				final byte[] boxMask = new byte[ box.width * box.height ];
+				for( int y = 0; y < box.height; y++ )
+					System.arraycopy( inside[ n-1 ], ( box.y + y ) * width + box.x,
+							boxMask, y * box.width, box.width );
+				final float[][] boxPixels = classifyFeatureStack( fs,
+						new Rectangle( box.x - crop.x, box.y - crop.y,
+								box.width, box.height ),
+						boxMask, numThreads, probabilityMaps );
+				if( null == boxPixels )
+					return null;
+				for( int c = 0; c < numChannels; c++ )
+					for( int y = 0, j = 0; y < box.height; y++ )
+						for( int x = 0, i = ( box.y + y ) * width + box.x;
+								x < box.width; x++, i++, j++ )
+							if( boxMask[ j ] != 0 )
+								pixels[ n-1 ][ c ][ i ] = boxPixels[ c ][ j ];
+			}
+		}
+
+		final ImageStack classified = new ImageStack( width, height );
+		for( int n = 0; n < numSlices; n++ )
+			for( int c = 0; c < numChannels; c++ )
+			{
+				ImageProcessor ip = new FloatProcessor( width, height, pixels[ n ][ c ] );
+				if( !probabilityMaps )
+					ip = ip.convertToByte( false );
+				classified.addSlice( probabilityMaps ? getClassLabel( c ) : "", ip );
+			}
+		final ImagePlus result = new ImagePlus( probabilityMaps ?
+				"Probability maps" : "Classification result", classified );
+		if( probabilityMaps )
+		{
+			result.setDimensions( numOfClasses, imp.getNSlices(), imp.getNFrames() );
+			if ( imp.getNSlices() * imp.getNFrames() > 1 )
+				result.setOpenAsHyperStack( true );
+		}
+		result.setCalibration( imp.getCalibration() );
+
+		final long end = System.currentTimeMillis();
+		IJ.log( "Classified " + numInside + " masked pixels of " + imp.getTitle()
+				+ " in " + (end-start) + "ms." );
+		return result;
+	}
+
 	/**
 	 * Create the whole image data (instances) from the current image and feature stack.
 	 *
@@ -6808,40 +8179,11 @@ public class WekaSegmentation {
 		if( fsa.isOldColorFormat() )
 			IJ.log("Using old color format...");
 
-		ArrayList<String> classNames = null;
-
-		if(null != loadedClassNames)
-			classNames = loadedClassNames;
-		else
-		{
-			classNames = new ArrayList<String>();
-
-			for(int i = 0; i < numOfClasses; i++)
-				if(!classNames.contains(getClassLabel( i )))
-					classNames.add(getClassLabel( i ));
-		}
-
 		// Create instances information (each instance needs a pointer to this)
-		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
-		for (int i=1; i<=fsa.getNumOfFeatures(); i++)
-		{
-			String attString = fsa.getLabel(i);
-			attributes.add(new Attribute(attString));
-		}
-
-		if(fsa.useNeighborhood())
-			for (int i=0; i<8; i++)
-			{
-				IJ.log("Adding extra attribute original_neighbor_" + (i+1) + "...");
-				attributes.add(new Attribute(new String("original_neighbor_" + (i+1))));
-			}
-
-		attributes.add(new Attribute("class", classNames));
-		Instances dataInfo = new Instances("segment", attributes, 1);
-		dataInfo.setClassIndex(dataInfo.numAttributes()-1);
+		final Instances dataInfo = createDataInfo( fsa );
 
 		// number of classes
-		final int numClasses   = classNames.size();
+		final int numClasses   = dataInfo.numClasses();
 		// total number of instances (i.e. feature vectors)
 		final int numInstances = fsa.getSize() * fsa.getWidth() * fsa.getHeight();
 		// number of channels of the result image
@@ -7161,9 +8503,37 @@ public class WekaSegmentation {
 	 */
 	public void setMembranePatchSize(int patchSize)
 	{
+		// the PCA filters are learned again with the new patch size
+		if( patchSize != membranePatchSize )
+			setPCAKernels( null );
 		membranePatchSize = patchSize;
 		featureStackArray.setMembranePatchSize(patchSize);
 	}
+
+	/**
+	 * Get the PCA filters used by the PCA filters features, learned from
+	 * the training image or loaded with the classifier
+	 * @return PCA filters of each channel, or null if they were not
+	 * learned or loaded yet
+	 */
+	public ImageStack getPCAKernels()
+	{
+		if( null != featureStackArray && null != featureStackArray.getPCAKernels() )
+			pcaKernels = featureStackArray.getPCAKernels();
+		return pcaKernels;
+	}
+
+	/**
+	 * Set the PCA filters used by the PCA filters features (null to learn
+	 * them again from the training image)
+	 * @param kernels PCA filters of each channel
+	 */
+	public void setPCAKernels(ImageStack kernels)
+	{
+		pcaKernels = kernels;
+		if( null != featureStackArray )
+			featureStackArray.setPCAKernels( kernels );
+	}
 	/**
 	 * Get the membrane patch size
 	 * @return membrane patch size
@@ -7355,7 +8725,7 @@ public class WekaSegmentation {
 			fs3d.setEnableFeatures( newFeatures );
 		}
 		else
-			this.enabledFeatures = newFeatures;
+			this.enabledFeatures = FeatureStack.completeEnabledFeatures( newFeatures );
 		if( null != featureStackArray )
 			featureStackArray.setEnabledFeatures(newFeatures);
 	}
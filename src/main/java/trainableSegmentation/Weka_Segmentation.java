@@ -16,6 +16,7 @@ import ij.io.OpenDialog;
 import ij.io.SaveDialog;
 import ij.plugin.PlugIn;
 import ij.plugin.frame.Recorder;
+import ij.process.ByteProcessor;
 import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
 import ij.process.LUT;
@@ -78,6 +79,7 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.SwingUtilities;
 
+import trainableSegmentation.utils.ForestModelIO;
 import weka.classifiers.AbstractClassifier;
 import weka.classifiers.Classifier;
 import weka.classifiers.evaluation.EvaluationUtils;
@@ -248,6 +250,28 @@ public class Weka_Segmentation implements PlugIn
 	public static final String SET_OPACITY = "setOpacity";
 	/** boolean flag set to true while training */
 	private boolean trainingFlag = false;
+	/**
+	 * flag to classify first the displayed slice and region after training
+	 * and the rest of the image in the background (not used when the
+	 * classification is updated incrementally)
+	 */
+	private boolean progressiveClassification = true;
+	/** thread classifying the rest of the image in progressive mode */
+	private Thread progressiveTask = null;
+	/**
+	 * downsampling factor (per dimension) of the preview shown first in
+	 * progressive mode (1 = no preview)
+	 */
+	private int previewFactor = 1;
+	/**
+	 * minimum probability margin to keep the preview class of a pixel
+	 * instead of classifying it at full resolution
+	 */
+	private double previewMargin = 0.3;
+	/** available preview resolutions (fraction of classified pixels) */
+	private static final String[] previewResolutions = { "None", "1/4", "1/16" };
+	/** flag to save random forests in the compact model format */
+	private boolean saveCompactModel = false;
 
 	private boolean isProcessing3D = false;
 
@@ -947,6 +971,8 @@ public class Weka_Segmentation implements PlugIn
 					// Stop any thread from the segmentator
 					if(null != trainingTask)
 						trainingTask.interrupt();
+					if(null != progressiveTask)
+						progressiveTask.interrupt();
 					wekaSegmentation.shutDownNow();
 					exec.shutdownNow();	
 					
@@ -991,6 +1017,15 @@ public class Weka_Segmentation implements PlugIn
 		{
 			return wekaSegmentation;
 		}
+
+		/**
+		 * Wait for the background classification of the progressive
+		 * mode (if any), so it can be used from static methods.
+		 */
+		protected void waitForClassification()
+		{
+			waitForProgressiveClassification();
+		}
 		
 		/**
 		 * Get current label lookup table (used to color the results)
@@ -1467,6 +1502,8 @@ public class Weka_Segmentation implements PlugIn
 			trainingFlag = true;
 			trainButton.setText("STOP");
 			final Thread oldTask = trainingTask;
+			// Cancel the classification of the previous classifier
+			stopProgressiveClassification();
 			// Disable rest of buttons until the training has finished
 			win.updateButtonsEnabling();
 
@@ -1502,8 +1539,20 @@ public class Weka_Segmentation implements PlugIn
 								win.trainingComplete = false;
 								return;
 							}
-							wekaSegmentation.applyClassifier(false);
-							classifiedImage = wekaSegmentation.getClassifiedImage();
+							// the incremental update only reclassifies the
+							// pixels affected by the new traces, so it is
+							// preferred to the progressive classification
+							if( progressiveClassification && !isProcessing3D
+									&& !wekaSegmentation.isIncrementalUpdate() )
+							{
+								if( !startProgressiveClassification() )
+									return;
+							}
+							else
+							{
+								wekaSegmentation.applyClassifier(false);
+								classifiedImage = wekaSegmentation.getClassifiedImage();
+							}
 							if(showColorOverlay)
 								win.toggleOverlay();
 							win.toggleOverlay();
@@ -1569,11 +1618,177 @@ public class Weka_Segmentation implements PlugIn
 		}
 	}
 	
+	/**
+	 * Classify the displayed slice of the training image, starting by the
+	 * region currently visible in the canvas, and launch a background
+	 * thread to classify the rest of the image (remaining regions of the
+	 * current slice first, then the rest of slices by their distance to
+	 * the current one). The result overlay is updated as soon as new
+	 * results are available for the displayed slice. If a preview
+	 * resolution is selected, a low resolution classification of the whole
+	 * slice is shown first and then refined in the background.
+	 *
+	 * @return false if the visible region could not be classified
+	 */
+	boolean startProgressiveClassification()
+	{
+		stopProgressiveClassification();
+
+		final int width = trainingImage.getWidth();
+		final int height = trainingImage.getHeight();
+		final int numSlices = trainingImage.getImageStackSize();
+		final int currentSlice = displayImage.getCurrentSlice();
+		final Rectangle viewport =
+				win.getCanvas().getSrcRect().intersection(
+						new Rectangle( 0, 0, width, height ) );
+
+		// Empty result, filled in as the classification progresses
+		final ImageStack stack = new ImageStack( width, height );
+		for( int i = 0; i < numSlices; i++ )
+			stack.addSlice( "", new ByteProcessor( width, height ) );
+		final ImagePlus result = new ImagePlus( "Classification result", stack );
+		result.setCalibration( trainingImage.getCalibration() );
+
+		// Remaining regions of the current slice
+		final ArrayList<Rectangle> regions = new ArrayList<Rectangle>();
+
+		// Low resolution preview of the current slice, refined afterwards
+		final ImagePlus preview = previewFactor > 1 ?
+				wekaSegmentation.applyClassifierPreview( currentSlice,
+						previewFactor, 0 ) : null;
+		if( null != preview )
+		{
+			final ImagePlus previewLabels = wekaSegmentation.refineClassification(
+					currentSlice, null, preview, 0, 0 );
+			if( null == previewLabels )
+				return false;
+			stack.getProcessor( currentSlice ).insert(
+					previewLabels.getProcessor(), 0, 0 );
+			regions.add( viewport );
+		}
+		else
+		{
+			IJ.log( "Classifying visible region of slice " + currentSlice + "..." );
+			final ImagePlus visible =
+					wekaSegmentation.applyClassifier( currentSlice, viewport, 0, false );
+			if( null == visible )
+				return false;
+			stack.getProcessor( currentSlice ).insert( visible.getProcessor(),
+					viewport.x, viewport.y );
+		}
+		classifiedImage = result;
+		wekaSegmentation.setClassifiedImage( result );
+
+		regions.add( new Rectangle( 0, 0, width, viewport.y ) );
+		regions.add( new Rectangle( 0, viewport.y + viewport.height, width,
+				height - viewport.y - viewport.height ) );
+		regions.add( new Rectangle( 0, viewport.y, viewport.x, viewport.height ) );
+		regions.add( new Rectangle( viewport.x + viewport.width, viewport.y,
+				width - viewport.x - viewport.width, viewport.height ) );
+
+		progressiveTask = new Thread() {
+			public void run()
+			{
+				final long start = System.currentTimeMillis();
+				for( final Rectangle rect : regions )
+				{
+					if( rect.isEmpty() )
+						continue;
+					if( !classifyRegion( result, currentSlice, rect, preview ) )
+						return;
+				}
+				// Rest of slices, the closest ones to the current slice first
+				for( int d = 1; d < numSlices; d++ )
+					for( int n : new int[]{ currentSlice - d, currentSlice + d } )
+					{
+						if( n < 1 || n > numSlices )
+							continue;
+						if( !classifyRegion( result, n, null, null ) )
+							return;
+					}
+				final long end = System.currentTimeMillis();
+				IJ.log( "Finished classification of the whole image in "
+						+ (end-start) + "ms." );
+			}
+
+			/**
+			 * Classify a region of a slice (refining the preview if any),
+			 * insert it in the result and update the overlay if needed.
+			 */
+			private boolean classifyRegion(
+					final ImagePlus result,
+					final int n,
+					final Rectangle rect,
+					final ImagePlus preview )
+			{
+				if( isInterrupted() )
+					return false;
+				final ImagePlus regionResult = null == preview ?
+						wekaSegmentation.applyClassifier( n, rect, 0, false ) :
+						wekaSegmentation.refineClassification( n, rect,
+								preview, previewMargin, 0 );
+				if( null == regionResult || isInterrupted() )
+					return false;
+				result.getStack().getProcessor( n ).insert(
+						regionResult.getProcessor(),
+						null == rect ? 0 : rect.x, null == rect ? 0 : rect.y );
+				if( showColorOverlay && result == classifiedImage
+						&& n == displayImage.getCurrentSlice() )
+				{
+					updateResultOverlay();
+					displayImage.updateAndDraw();
+				}
+				return true;
+			}
+		};
+		progressiveTask.start();
+		return true;
+	}
+
+	/**
+	 * Cancel the background classification of the progressive mode (if any)
+	 * and wait for it to finish.
+	 */
+	void stopProgressiveClassification()
+	{
+		final Thread task = progressiveTask;
+		if( null == task )
+			return;
+		// an unfinished result must not be returned as the classification
+		if( task.isAlive() && wekaSegmentation.getClassifiedImage() == classifiedImage )
+			wekaSegmentation.setClassifiedImage( null );
+		task.interrupt();
+		try {
+			task.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		progressiveTask = null;
+	}
+
+	/**
+	 * Wait for the background classification of the progressive mode (if
+	 * any) so the result image is complete.
+	 */
+	void waitForProgressiveClassification()
+	{
+		final Thread task = progressiveTask;
+		if( null == task || !task.isAlive() )
+			return;
+		IJ.showStatus( "Waiting for the classification to finish..." );
+		try {
+			task.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
 	/**
 	 * Display the whole image after classification
 	 */
 	void showClassificationImage()
 	{
+		waitForProgressiveClassification();
 		if( null == classifiedImage )
 		{
 			// if not result image is there yet, calculate it
@@ -1619,6 +1834,7 @@ public class Weka_Segmentation implements PlugIn
 	 */
 	void showProbabilityImage()
 	{
+		waitForProgressiveClassification();
 		IJ.showStatus("Calculating probability maps...");
 		IJ.log("Calculating probability maps...");
 		win.setButtonsEnabled(false);
@@ -1933,6 +2149,9 @@ public class Weka_Segmentation implements PlugIn
 		String[] arg = new String[] { od.getDirectory() + od.getFileName() };
 		record(LOAD_CLASSIFIER, arg);
 
+		// Stop classifying with the previous classifier
+		stopProgressiveClassification();
+
 		win.setButtonsEnabled(false);
 
 		final AbstractClassifier oldClassifier = wekaSegmentation.getClassifier();
@@ -2000,11 +2219,27 @@ public class Weka_Segmentation implements PlugIn
 		if (sd.getFileName()==null)
 			return;
 
+		// Random forests can be saved in the compact format
+		boolean compact = false;
+		if( ForestModelIO.isSupported( wekaSegmentation.getClassifier(),
+				wekaSegmentation.getTrainHeader() ) )
+		{
+			GenericDialog gd = new GenericDialog("Model format");
+			gd.addCheckbox("Compact format (faster to load, not readable"
+					+ " by older versions)", saveCompactModel);
+			gd.showDialog();
+			if (gd.wasCanceled())
+				return;
+			compact = saveCompactModel = gd.getNextBoolean();
+		}
+
 		// Record
-		String[] arg = new String[] { sd.getDirectory() + sd.getFileName() };
+		String[] arg = compact ?
+				new String[] { sd.getDirectory() + sd.getFileName(), "true" } :
+				new String[] { sd.getDirectory() + sd.getFileName() };
 		record(SAVE_CLASSIFIER, arg);
 		
-		if( !wekaSegmentation.saveClassifier(sd.getDirectory() + sd.getFileName()) )
+		if( !wekaSegmentation.saveClassifier(sd.getDirectory() + sd.getFileName(), compact) )
 		{
 			IJ.error("Error while writing classifier into a file");
 			return;
@@ -2260,6 +2495,16 @@ public class Weka_Segmentation implements PlugIn
 		gd.addMessage("Advanced options:");
 
 		gd.addCheckbox( "Balance classes", wekaSegmentation.doClassBalance() );
+		if( !isProcessing3D )
+		{
+			gd.addCheckbox( "Progressive classification (visible region first)",
+					progressiveClassification );
+			gd.addChoice( "Preview resolution", previewResolutions,
+					previewResolutions[ previewFactor / 2 ] );
+			gd.addNumericField( "Preview refinement margin", previewMargin, 2 );
+			gd.addCheckbox( "Update classification incrementally after retraining",
+					wekaSegmentation.isIncrementalUpdate() );
+		}
 		gd.addButton("Save feature stack", new SaveFeatureStackButtonListener(
 				"Select location to save feature stack", wekaSegmentation ) );
 		gd.addSlider("Result overlay opacity", 0, 100, win.overlayOpacity);
@@ -2407,6 +2652,22 @@ public class Weka_Segmentation implements PlugIn
 			// Macro recording
 			record( SET_BALANCE, new String[] { Boolean.toString( balanceClasses )});
 		}
+
+		// Update flag to classify the visible region first after training
+		if( !isProcessing3D )
+		{
+			progressiveClassification = gd.getNextBoolean();
+			// None = 1, 1/4 = 2 and 1/16 = 4 (factor per dimension)
+			final int previewIndex = gd.getNextChoiceIndex();
+			previewFactor = previewIndex == 0 ? 1 : 2 * previewIndex;
+			final double newMargin = gd.getNextNumber();
+			if( newMargin >= 0 && newMargin <= 1 )
+				previewMargin = newMargin;
+			else
+				IJ.log( "Invalid preview refinement margin: " + newMargin
+						+ " (it must be between 0 and 1)" );
+			wekaSegmentation.setIncrementalUpdate( gd.getNextBoolean() );
+		}
 		
 		// Update result overlay alpha
 		final int newOpacity = (int) gd.getNextNumber();
@@ -2435,6 +2696,8 @@ public class Weka_Segmentation implements PlugIn
 		// Update feature stack if necessary
 		if(featuresChanged)
 		{			
+			// Stop classifying with the old features
+			stopProgressiveClassification();
 			// Force features to be updated
 			wekaSegmentation.setFeaturesDirty();
 		}
@@ -2627,6 +2890,7 @@ public class Weka_Segmentation implements PlugIn
 			final CustomWindow win = (CustomWindow) iw;
 			final WekaSegmentation wekaSegmentation = win.getWekaSegmentation();
 
+			win.waitForClassification();
 			ImagePlus classifiedImage =  wekaSegmentation.getClassifiedImage();
 			if( null == classifiedImage )
 			{
@@ -2672,6 +2936,7 @@ public class Weka_Segmentation implements PlugIn
 			final CustomWindow win = (CustomWindow) iw;
 			final WekaSegmentation wekaSegmentation = win.getWekaSegmentation();
 
+			win.waitForClassification();
 			IJ.showStatus("Calculating probability maps...");
 			IJ.log("Calculating probability maps...");
 			win.setButtonsEnabled(false);
@@ -2857,13 +3122,28 @@ public class Weka_Segmentation implements PlugIn
 	 * @param classifierPathName complete path name for the classifier file
 	 */
 	public static void saveClassifier( String classifierPathName )
+	{
+		saveClassifier( classifierPathName, "false" );
+	}
+
+	/**
+	 * Save current classifier into a file, optionally in the compact
+	 * format for random forests (faster to load)
+	 * 
+	 * @param classifierPathName complete path name for the classifier file
+	 * @param compactFlag string containing "true" to use the compact format
+	 */
+	public static void saveClassifier(
+			String classifierPathName,
+			String compactFlag )
 	{
 		final ImageWindow iw = WindowManager.getCurrentImage().getWindow();
 		if( iw instanceof CustomWindow )
 		{
 			final CustomWindow win = (CustomWindow) iw;
 			final WekaSegmentation wekaSegmentation = win.getWekaSegmentation();
-			if( !wekaSegmentation.saveClassifier( classifierPathName ) )
+			if( !wekaSegmentation.saveClassifier( classifierPathName,
+					Boolean.parseBoolean( compactFlag ) ) )
 			{
 				IJ.error("Error while writing classifier into a file");
 				return;
@@ -33,7 +33,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
-import trainableSegmentation.utils.Utils;
+import trainableSegmentation.utils.ComponentLabeling;
 
 /**
  * This class implements the adjusted Rand error, defined as the 1 - adjusted Rand index. 
@@ -171,15 +171,8 @@ public class AdjustedRandError extends Metrics
 			}
 		
 		// Find components
-		final ImagePlus im1 = new ImagePlus("binary labels", binaryLabel);
-		//im1.show();
-		ShortProcessor components1 = ( ShortProcessor ) Utils.connectedComponents(
-				im1, 4).allRegions.getProcessor();
-		
-		final ImagePlus im2 = new ImagePlus("proposal labels", binaryProposal);
-		//im2.show();
-		ShortProcessor components2 = ( ShortProcessor ) Utils.connectedComponents(
-				im2, 4).allRegions.getProcessor();
+		ImageProcessor components1 = ComponentLabeling.label( binaryLabel, 4 );
+		ImageProcessor components2 = ComponentLabeling.label( binaryProposal, 4 );
 		
 		return 1 - adjustedRandIndex( components1, components2 );
 		
@@ -252,43 +245,28 @@ public class AdjustedRandError extends Metrics
 	 * @return adjusted Rand index
 	 */
 	public static double adjustedRandIndex(
-			ShortProcessor cluster1,
-			ShortProcessor cluster2)
+			ImageProcessor cluster1,
+			ImageProcessor cluster2)
 	{		
-		final short[] pixels1 = (short[]) cluster1.getPixels();
-		final short[] pixels2 = (short[]) cluster2.getPixels();
-		
-		double n = pixels1.length;
-		
 		// Form contingency matrix
-		int[][]cont = new int[(int) cluster1.getMax() ] [ (int) cluster2.getMax() ];
+		final ContingencyTable cont = new ContingencyTable( cluster1, cluster2 );
 		
-		for(int i=0; i<n; i++)
-			cont[ pixels1[i] ] [ pixels2[i] ] ++;
+		double n = cont.getNumPixels();
 		
 		// sum over rows & columnns of nij^2
 		double t2 = 0;
+		for( final long nij : cont.getCellCounts() )
+			t2 += (double) nij * nij;
 		
 		// sum of squares of sums of rows
-		double[] ni = new double[ cont.length ];
-		for(int i=0; i<cont.length; i++)
-			for(int j=0; j<cont[i].length; j++)			
-				ni[ i ] += cont[ i ][ j ];
 		double nis = 0;
-		for(int k=0; k<ni.length; k++)
-			nis += ni[ k ] * ni[ k ];
+		for( final long ni : cont.getRowSums() )
+			nis += (double) ni * ni;
 		
 		// sum of squares of sums of columns
-		double[] nj = new double[ cont.length ];
-		for(int j=0; j<cont[0].length; j++)
-			for(int i=0; i<cont.length; i++)
-			{
-				nj[ j ] += cont[ i ][ j ];
-				t2 += cont[ i ][ j ] * cont[ i ][ j ];
-			}
 		double njs = 0;
-		for(int k=0; k<nj.length; k++)
-			njs += nj[ k ] * nj[ k ];
+		for( final long nj : cont.getColumnSums( false ) )
+			njs += (double) nj * nj;
 		
 		// total number of pairs of entities
 		double t1 =  n * (n - 1) / 2 ;
@@ -306,10 +284,6 @@ public class AdjustedRandError extends Metrics
 		double MI=D/t1;			// Mirkin 1970	%p(disagreement)
 		double HI=(agreements-D)/t1;		// Hubert 1977	%p(agree)-p(disagree)
 		*/
-		
-		//IJ.log("n = " + n + ", nis = " + nis + ", njs = " + njs);
-		//IJ.log("t1 = " + t1 + ", t2 = " + t2 + ", t3 = " + t3);
-		//IJ.log("nc = " + nc);
 								
 		double adjustedRandIndex;
 		
@@ -321,5 +295,20 @@ public class AdjustedRandError extends Metrics
 		return adjustedRandIndex;
 		
 	}	
+
+	/**
+	 * Same as {@link #adjustedRandIndex(ImageProcessor, ImageProcessor)}
+	 * for 16-bit labels, kept for binary compatibility.
+	 * 
+	 * @param cluster1 2D segmented image (objects are labeled with different numbers) 
+	 * @param cluster2 2D segmented image (objects are labeled with different numbers)
+	 * @return adjusted Rand index
+	 */
+	public static double adjustedRandIndex(
+			ShortProcessor cluster1,
+			ShortProcessor cluster2 )
+	{
+		return adjustedRandIndex( (ImageProcessor) cluster1, (ImageProcessor) cluster2 );
+	}
 	
 }
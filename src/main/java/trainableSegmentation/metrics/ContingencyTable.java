@@ -0,0 +1,576 @@
+package trainableSegmentation.metrics;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sparse contingency table (overlap matrix) between two label images.
+ * Only the non-zero cells are stored, in a hash table of primitive long
+ * keys (row label in the upper 32 bits, column label in the lower 32 bits),
+ * so its size depends on the number of overlapping label pairs and not on
+ * the product of the number of labels. Labels can be 8, 16 or 32-bit
+ * (float images are read as integer labels). Tables of different slices or
+ * blocks of a stack can be merged with <code>add</code>, and the tables
+ * of whole stacks are built concurrently that way.
+ * <p>
+ * By convention, the rows correspond to the first image (usually the
+ * ground truth) and the columns to the second one (usually the proposal),
+ * and label 0 is the background.
+ */
+public class ContingencyTable
+{
+	/** initial capacity of the hash table (power of 2) */
+	private static final int INITIAL_CAPACITY = 1 << 10;
+
+	/** cell keys */
+	private long[] keys = new long[ INITIAL_CAPACITY ];
+	/** cell counts (0 marks an empty slot) */
+	private long[] counts = new long[ INITIAL_CAPACITY ];
+	/** number of non-empty cells */
+	private int numCells = 0;
+	/** total number of pixels */
+	private long numPixels = 0;
+
+	// sorted cells and marginals, calculated on demand
+	private int[] cellRows = null;
+	private int[] cellColumns = null;
+	private long[] cellCounts = null;
+	private int[] rowLabels = null;
+	private long[] rowSums = null;
+	private int[] columnLabels = null;
+	private long[] columnSums = null;
+	private long[] foregroundColumnSums = null;
+
+	/**
+	 * Create an empty contingency table
+	 */
+	public ContingencyTable()
+	{
+	}
+
+	/**
+	 * Create the contingency table between two label images
+	 *
+	 * @param labels1 first label image (rows)
+	 * @param labels2 second label image (columns)
+	 */
+	public ContingencyTable( ImageProcessor labels1, ImageProcessor labels2 )
+	{
+		add( labels1, labels2 );
+	}
+
+	/**
+	 * Create the contingency table between two label stacks in a concurrent
+	 * way. Each thread builds a partial table for a block of consecutive
+	 * slices, and the partial tables are merged at the end.
+	 *
+	 * @param labels1 first label stack (rows)
+	 * @param labels2 second label stack (columns)
+	 * @param numThreads number of threads to use
+	 * @return contingency table of the whole stacks (null if error)
+	 */
+	public static ContingencyTable create(
+			final ImageStack labels1,
+			final ImageStack labels2,
+			final int numThreads )
+	{
+		final ContingencyTable[] partials = createBlocks( labels1, labels2, numThreads, false );
+		if( null == partials )
+			return null;
+
+		// merge into the largest partial table
+		int largest = 0;
+		for( int i = 1; i < partials.length; i++ )
+			if( partials[ i ].numCells > partials[ largest ].numCells )
+				largest = i;
+		final ContingencyTable table = partials[ largest ];
+		for( int i = 0; i < partials.length; i++ )
+			if( i != largest )
+				table.add( partials[ i ] );
+		return table;
+	}
+
+	/**
+	 * Create the contingency table of each slice of two label stacks in a
+	 * concurrent way (each thread processes a block of consecutive slices).
+	 *
+	 * @param labels1 first label stack (rows)
+	 * @param labels2 second label stack (columns)
+	 * @param numThreads number of threads to use
+	 * @return contingency table of each slice (null if error)
+	 */
+	public static ContingencyTable[] createPerSlice(
+			final ImageStack labels1,
+			final ImageStack labels2,
+			final int numThreads )
+	{
+		return createBlocks( labels1, labels2, numThreads, true );
+	}
+
+	/**
+	 * Build the contingency tables of two label stacks by blocks of slices
+	 *
+	 * @param labels1 first label stack (rows)
+	 * @param labels2 second label stack (columns)
+	 * @param numThreads number of threads to use
+	 * @param perSlice flag to return one table per slice instead of one per block
+	 * @return contingency tables (null if error)
+	 */
+	private static ContingencyTable[] createBlocks(
+			final ImageStack labels1,
+			final ImageStack labels2,
+			final int numThreads,
+			final boolean perSlice )
+	{
+		final int nSlices = labels1.getSize();
+		final int nBlocks = Math.max( 1, Math.min( numThreads, nSlices ) );
+		final ContingencyTable[] tables = 
+				new ContingencyTable[ perSlice ? nSlices : nBlocks ];
+
+		// Executor service to produce concurrent threads
+		final ExecutorService exe = Executors.newFixedThreadPool( nBlocks );
+		final ArrayList< Future<?> > futures = new ArrayList< Future<?> >();
+
+		try{
+			for( int b = 0; b < nBlocks; b++ )
+			{
+				final int block = b;
+				final int first = (int) ( (long) nSlices * b / nBlocks );
+				final int last = (int) ( (long) nSlices * ( b + 1 ) / nBlocks );
+				futures.add( exe.submit( new Callable<Void>()
+				{
+					public Void call()
+					{
+						ContingencyTable table = new ContingencyTable();
+						for( int slice = first; slice < last; slice++ )
+						{
+							if( perSlice )
+								table = tables[ slice ] = new ContingencyTable();
+							table.add( labels1.getProcessor( slice + 1 ),
+									labels2.getProcessor( slice + 1 ) );
+						}
+						if( ! perSlice )
+							tables[ block ] = table;
+						return null;
+					}
+				}));
+			}
+
+			// Wait for the jobs to be done
+			for( Future<?> f : futures )
+				f.get();
+		}
+		catch( Exception ex )
+		{
+			IJ.log( "Error when calculating the contingency tables in a concurrent way." );
+			ex.printStackTrace();
+			return null;
+		}
+		finally{
+			exe.shutdown();
+		}
+
+		return tables;
+	}
+
+	/**
+	 * Check if an image can be used as a label image
+	 *
+	 * @param ip image to check
+	 * @return true if the image is 8, 16 or 32-bit
+	 */
+	public static boolean isLabelImage( ImageProcessor ip )
+	{
+		return ip instanceof ByteProcessor || ip instanceof ShortProcessor
+				|| ip instanceof FloatProcessor;
+	}
+
+	/**
+	 * Get the labels of an 8, 16 or 32-bit image as integers
+	 *
+	 * @param ip label image
+	 * @return label of each pixel
+	 */
+	public static int[] getLabels( ImageProcessor ip )
+	{
+		final Object pixels = ip.getPixels();
+		final int[] labels = new int[ ip.getWidth() * ip.getHeight() ];
+		if( pixels instanceof byte[] )
+		{
+			final byte[] p = (byte[]) pixels;
+			for( int i = 0; i < labels.length; i++ )
+				labels[ i ] = p[ i ] & 0xff;
+		}
+		else if( pixels instanceof short[] )
+		{
+			final short[] p = (short[]) pixels;
+			for( int i = 0; i < labels.length; i++ )
+				labels[ i ] = p[ i ] & 0xffff;
+		}
+		else if( pixels instanceof float[] )
+		{
+			final float[] p = (float[]) pixels;
+			for( int i = 0; i < labels.length; i++ )
+				labels[ i ] = (int) p[ i ];
+		}
+		else
+			throw new IllegalArgumentException( "Label images must be 8, 16 or 32-bit" );
+		return labels;
+	}
+
+	/**
+	 * Add the overlap between two label images to the table
+	 *
+	 * @param labels1 first label image (rows)
+	 * @param labels2 second label image (columns)
+	 */
+	public void add( ImageProcessor labels1, ImageProcessor labels2 )
+	{
+		add( getLabels( labels1 ), getLabels( labels2 ) );
+	}
+
+	/**
+	 * Add the overlap between two label arrays to the table
+	 *
+	 * @param labels1 first labels (rows)
+	 * @param labels2 second labels (columns)
+	 */
+	public void add( int[] labels1, int[] labels2 )
+	{
+		if( labels1.length == 0 )
+			return;
+		// count runs of identical pairs before touching the hash table
+		long key = key( labels1[ 0 ], labels2[ 0 ] );
+		long run = 0;
+		for( int i = 0; i < labels1.length; i++ )
+		{
+			final long k = key( labels1[ i ], labels2[ i ] );
+			if( k != key )
+			{
+				increment( key, run );
+				key = k;
+				run = 0;
+			}
+			run ++;
+		}
+		increment( key, run );
+		numPixels += labels1.length;
+	}
+
+	/**
+	 * Add all the cells of another table to this table
+	 *
+	 * @param table contingency table to merge into this one
+	 */
+	public void add( ContingencyTable table )
+	{
+		for( int i = 0; i < table.keys.length; i++ )
+			if( table.counts[ i ] != 0 )
+				increment( table.keys[ i ], table.counts[ i ] );
+		numPixels += table.numPixels;
+	}
+
+	/**
+	 * Get the total number of pixels of the table
+	 *
+	 * @return number of pixels
+	 */
+	public long getNumPixels()
+	{
+		return numPixels;
+	}
+
+	/**
+	 * Get the number of non-empty cells of the table
+	 *
+	 * @return number of non-zero overlaps between labels
+	 */
+	public int getNumCells()
+	{
+		return numCells;
+	}
+
+	/**
+	 * Get the row label of each non-empty cell (sorted by row and column)
+	 *
+	 * @return row labels of the cells
+	 */
+	public int[] getCellRows()
+	{
+		sortCells();
+		return cellRows;
+	}
+
+	/**
+	 * Get the column label of each non-empty cell (sorted by row and column)
+	 *
+	 * @return column labels of the cells
+	 */
+	public int[] getCellColumns()
+	{
+		sortCells();
+		return cellColumns;
+	}
+
+	/**
+	 * Get the count of each non-empty cell (sorted by row and column)
+	 *
+	 * @return number of pixels in each cell
+	 */
+	public long[] getCellCounts()
+	{
+		sortCells();
+		return cellCounts;
+	}
+
+	/**
+	 * Get the labels of the non-empty rows in increasing order
+	 *
+	 * @return row labels
+	 */
+	public int[] getRowLabels()
+	{
+		calculateMarginals();
+		return rowLabels;
+	}
+
+	/**
+	 * Get the sum of each row (same order as <code>getRowLabels</code>)
+	 *
+	 * @return number of pixels of each row label
+	 */
+	public long[] getRowSums()
+	{
+		calculateMarginals();
+		return rowSums;
+	}
+
+	/**
+	 * Get the labels of the non-empty columns in increasing order
+	 *
+	 * @return column labels
+	 */
+	public int[] getColumnLabels()
+	{
+		calculateMarginals();
+		return columnLabels;
+	}
+
+	/**
+	 * Get the sum of each column (same order as <code>getColumnLabels</code>)
+	 *
+	 * @param foregroundRowsOnly flag to skip the background row (label 0)
+	 * @return number of pixels of each column label
+	 */
+	public long[] getColumnSums( boolean foregroundRowsOnly )
+	{
+		calculateMarginals();
+		return foregroundRowsOnly ? foregroundColumnSums : columnSums;
+	}
+
+	/**
+	 * Get the number of pixels that are not background in the first image
+	 *
+	 * @return number of pixels with row label different from 0
+	 */
+	public long getNumForegroundPixels()
+	{
+		calculateMarginals();
+		long background = 0;
+		if( rowLabels.length > 0 && rowLabels[ 0 ] == 0 )
+			background = rowSums[ 0 ];
+		return numPixels - background;
+	}
+
+	/**
+	 * Get the largest row label
+	 *
+	 * @return maximum label of the first image (0 if empty)
+	 */
+	public int getMaxRowLabel()
+	{
+		calculateMarginals();
+		return rowLabels.length > 0 ? rowLabels[ rowLabels.length - 1 ] : 0;
+	}
+
+	/**
+	 * Get the largest column label
+	 *
+	 * @return maximum label of the second image (0 if empty)
+	 */
+	public int getMaxColumnLabel()
+	{
+		calculateMarginals();
+		return columnLabels.length > 0 ? columnLabels[ columnLabels.length - 1 ] : 0;
+	}
+
+	/**
+	 * Sort the non-empty cells by row and column label
+	 */
+	private void sortCells()
+	{
+		if( null != cellRows )
+			return;
+		final long[] sorted = new long[ numCells ];
+		int n = 0;
+		for( int i = 0; i < keys.length; i++ )
+			if( counts[ i ] != 0 )
+				sorted[ n++ ] = keys[ i ];
+		// flip the sign bit of the column so the key order matches the
+		// (signed) label order
+		for( int i = 0; i < n; i++ )
+			sorted[ i ] ^= 0x80000000L;
+		Arrays.sort( sorted );
+		cellRows = new int[ n ];
+		cellColumns = new int[ n ];
+		cellCounts = new long[ n ];
+		for( int i = 0; i < n; i++ )
+		{
+			final long key = sorted[ i ] ^ 0x80000000L;
+			cellRows[ i ] = (int) ( key >> 32 );
+			cellColumns[ i ] = (int) key;
+			cellCounts[ i ] = counts[ find( key ) ];
+		}
+	}
+
+	/**
+	 * Calculate the row and column sums
+	 */
+	private void calculateMarginals()
+	{
+		if( null != rowLabels )
+			return;
+		sortCells();
+
+		// rows are contiguous in the sorted cells
+		int numRows = 0;
+		for( int i = 0; i < numCells; i++ )
+			if( i == 0 || cellRows[ i ] != cellRows[ i - 1 ] )
+				numRows ++;
+		rowLabels = new int[ numRows ];
+		rowSums = new long[ numRows ];
+		int r = -1;
+		for( int i = 0; i < numCells; i++ )
+		{
+			if( i == 0 || cellRows[ i ] != cellRows[ i - 1 ] )
+				rowLabels[ ++r ] = cellRows[ i ];
+			rowSums[ r ] += cellCounts[ i ];
+		}
+
+		columnLabels = cellColumns.clone();
+		Arrays.sort( columnLabels );
+		int numColumns = 0;
+		for( int i = 0; i < numCells; i++ )
+			if( i == 0 || columnLabels[ i ] != columnLabels[ i - 1 ] )
+				columnLabels[ numColumns++ ] = columnLabels[ i ];
+		columnLabels = Arrays.copyOf( columnLabels, numColumns );
+		columnSums = new long[ numColumns ];
+		foregroundColumnSums = new long[ numColumns ];
+		for( int i = 0; i < numCells; i++ )
+		{
+			final int c = Arrays.binarySearch( columnLabels, cellColumns[ i ] );
+			columnSums[ c ] += cellCounts[ i ];
+			if( cellRows[ i ] != 0 )
+				foregroundColumnSums[ c ] += cellCounts[ i ];
+		}
+	}
+
+	/**
+	 * Add a number of pixels to a cell
+	 *
+	 * @param key cell key
+	 * @param count number of pixels to add
+	 */
+	private void increment( long key, long count )
+	{
+		cellRows = null;
+		rowLabels = null;
+		int slot = find( key );
+		if( counts[ slot ] == 0 )
+		{
+			if( 2 * ( numCells + 1 ) > keys.length )
+			{
+				grow();
+				slot = find( key );
+			}
+			keys[ slot ] = key;
+			numCells ++;
+		}
+		counts[ slot ] += count;
+	}
+
+	/**
+	 * Find the slot of a key (or the empty slot where it should go)
+	 *
+	 * @param key cell key
+	 * @return slot index
+	 */
+	private int find( long key )
+	{
+		final int mask = keys.length - 1;
+		int slot = hash( key ) & mask;
+		while( counts[ slot ] != 0 && keys[ slot ] != key )
+			slot = ( slot + 1 ) & mask;
+		return slot;
+	}
+
+	/**
+	 * Double the capacity of the hash table
+	 */
+	private void grow()
+	{
+		final long[] oldKeys = keys;
+		final long[] oldCounts = counts;
+		keys = new long[ oldKeys.length * 2 ];
+		counts = new long[ oldCounts.length * 2 ];
+		for( int i = 0; i < oldKeys.length; i++ )
+			if( oldCounts[ i ] != 0 )
+			{
+				final int slot = find( oldKeys[ i ] );
+				keys[ slot ] = oldKeys[ i ];
+				counts[ slot ] = oldCounts[ i ];
+			}
+	}
+
+	private static long key( int row, int column )
+	{
+		return ( (long) row << 32 ) | ( column & 0xffffffffL );
+	}
+
+	private static int hash( long key )
+	{
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+}
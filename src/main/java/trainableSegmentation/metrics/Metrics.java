@@ -22,6 +22,14 @@ package trainableSegmentation.metrics;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This is the mother class for 2D segmentation metrics 
@@ -90,6 +98,56 @@ public abstract class Metrics
 	    return min;
 	}
 	
-	
+	/**
+	 * Sweep a list of binarization thresholds over each slice of the 
+	 * original and proposed labels (in a concurrent way). 
+	 * 
+	 * @param thresholds binarization thresholds in increasing order
+	 * @return contingency table statistics of each slice for all thresholds (null if error)
+	 */
+	ThresholdSweep[] sweepThresholds( final double[] thresholds )
+	{
+		final ImageStack labelSlices = originalLabels.getImageStack();
+		final ImageStack proposalSlices = proposedLabels.getImageStack();
+		
+		final ThresholdSweep[] sweeps = new ThresholdSweep[ labelSlices.getSize() ];
+		
+		// Executor service to produce concurrent threads
+		final ExecutorService exe = Executors.newFixedThreadPool( Prefs.getThreads() );
+		
+		final ArrayList< Future<ThresholdSweep> > futures = new ArrayList< Future<ThresholdSweep> >();
+		
+		try{
+			for(int i = 1; i <= labelSlices.getSize(); i++)
+			{
+				final int slice = i;
+				futures.add( exe.submit( new Callable<ThresholdSweep>()
+				{
+					public ThresholdSweep call()
+					{
+						final float[] label = (float[]) labelSlices.getProcessor( slice ).convertToFloat().getPixels();
+						final float[] proposal = (float[]) proposalSlices.getProcessor( slice ).convertToFloat().getPixels();
+						return new ThresholdSweep( label, proposal, labelSlices.getWidth(), 
+								labelSlices.getHeight(), thresholds );
+					}
+				}));
+			}
+			
+			// Wait for the jobs to be done
+			for(int i = 0; i < sweeps.length; i++)
+				sweeps[ i ] = futures.get( i ).get();
+		}
+		catch(Exception ex)
+		{
+			IJ.log( "Error when sweeping the thresholds in a concurrent way." );
+			ex.printStackTrace();
+			return null;
+		}
+		finally{
+			exe.shutdown();
+		}
+		
+		return sweeps;
+	}
 
 }
@@ -227,16 +227,74 @@ public class PixelError extends Metrics
 			return null;
 		}
 		
+		final ImageStack labelSlices = originalLabels.getImageStack();
+		final ImageStack proposalSlices = proposedLabels.getImageStack();
+		
+		// Build the (threshold bin, label) histogram of each slice in a 
+		// single pass, so all thresholds can be evaluated at once
+		final double[] thresholds = ThresholdSweep.getThresholds( 
+				minThreshold, maxThreshold, stepThreshold );
+		final long[][][] histograms = new long[ labelSlices.getSize() ][][];
+		
+		// Executor service to produce concurrent threads
+		final ExecutorService exe = Executors.newFixedThreadPool(Prefs.getThreads());
+
+		final ArrayList< Future<long[][]> > futures = new ArrayList< Future<long[][]> >();
+
+		try{
+			for(int i = 1; i <= labelSlices.getSize(); i++)
+			{
+				futures.add(exe.submit( getPrecisionRecallHistogramConcurrent(labelSlices.getProcessor(i),
+											proposalSlices.getProcessor(i),										
+											thresholds ) ) );
+			}
+
+			// Wait for the jobs to be done
+			for(int i = 0; i < histograms.length; i++)
+				histograms[ i ] = futures.get( i ).get();
+		}
+		catch(Exception ex)
+		{
+			IJ.log("Error when calculating pixel error histograms in a concurrent way.");
+			ex.printStackTrace();
+			return null;
+		}
+		finally{
+			exe.shutdown();
+		}
+		
+		final double nPixels = labelSlices.getWidth() * labelSlices.getHeight();
+		
 		ArrayList< ClassificationStatistics > cs = new ArrayList<ClassificationStatistics>();
 				
 		double bestFscore = 0;
 		double bestTh = minThreshold;
 		
-		for(double th =  minThreshold; th <= maxThreshold; th += stepThreshold)
+		for(int k = 0; k < thresholds.length; k++)
 		{
+			final double th = thresholds[ k ];
 			if( verbose ) 
 				IJ.log("  Calculating pixel error statistics for threshold value " + String.format("%.3f", th) + "...");
-			cs.add( getPrecisionRecallStats( th ));
+			
+			double pixelError = 0;
+			double tp = 0;
+			double tn = 0;
+			double fp = 0;
+			double fn = 0;
+			for( final long[][] histogram : histograms )
+			{
+				// pixels in the bins above k are positive at this threshold
+				final long sliceTP = histogram[ k + 1 ][ 1 ];
+				final long sliceFP = histogram[ k + 1 ][ 0 ];
+				final long sliceFN = histogram[ 0 ][ 1 ] - sliceTP;
+				final long sliceTN = histogram[ 0 ][ 0 ] - sliceFP;
+				pixelError += ( sliceFP + sliceFN ) / nPixels;
+				tp += sliceTP;
+				tn += sliceTN;
+				fp += sliceFP;
+				fn += sliceFN;
+			}
+			cs.add( new ClassificationStatistics( tp, tn, fp, fn, pixelError / histograms.length ) );
 			
 			final double fScore = cs.get( cs.size()-1 ).fScore;
 			if( fScore > bestFscore )
@@ -424,6 +482,67 @@ public class PixelError extends Metrics
 	}
 	
 	
+	/**
+	 * Get the cumulative (threshold bin, label) histogram between two 
+	 * images in a concurrent way (to be submitted to an Executor Service). 
+	 * 
+	 * @param label image with the original labels
+	 * @param proposal image with the proposed labels
+	 * @param thresholds binarization thresholds in increasing order
+	 * @return cumulative histogram
+	 */
+	public Callable<long[][]> getPrecisionRecallHistogramConcurrent(
+			final ImageProcessor label, 
+			final ImageProcessor proposal,
+			final double[] thresholds ) 
+	{
+		return new Callable<long[][]>()
+		{
+			public long[][] call()
+			{				
+				return precisionRecallHistogram( label.convertToFloat(), 
+						proposal.convertToFloat(), thresholds );
+			}
+		};
+	}
+	
+	/**
+	 * Calculate the joint histogram of threshold bins of the proposal and 
+	 * binary labels of the original image. Entry [b][l] contains the number 
+	 * of pixels with label l (0 or 1) whose proposal value is larger than
+	 * (at least) the first b thresholds, so the positive pixels at threshold 
+	 * k are the ones counted in entry [k+1] and entry [0] contains all pixels.
+	 * 
+	 * @param label 2D image with the original labels
+	 * @param proposal 2D image with the proposed labels
+	 * @param thresholds binarization thresholds in increasing order
+	 * @return cumulative histogram of size (number of thresholds + 1) x 2
+	 */
+	public long[][] precisionRecallHistogram(
+			ImageProcessor label,
+			ImageProcessor proposal,
+			double[] thresholds )
+	{
+		float[] labelPix = (float[]) label.getPixels();
+		float[] proposalPix = (float[]) proposal.getPixels();
+		
+		final long[][] histogram = new long[ thresholds.length + 1 ][ 2 ];
+		for(int i=0; i<labelPix.length; i++)
+		{
+			// make sure labels are binary
+			int pix1 = (labelPix[ i ] > 0) ? 1 : 0;
+			histogram[ ThresholdSweep.getBin( proposalPix[ i ], thresholds ) ][ pix1 ] ++;
+		}
+		
+		// accumulate from the largest bin down
+		for(int b = thresholds.length - 1; b >= 0; b--)
+		{
+			histogram[ b ][ 0 ] += histogram[ b + 1 ][ 0 ];
+			histogram[ b ][ 1 ] += histogram[ b + 1 ][ 1 ];
+		}
+		return histogram;
+	}
+	
 	/**
 	 * Get pixel error value and derived statistics between two images 
 	 * in a concurrent way (to be submitted to an Executor Service). 
@@ -30,13 +30,16 @@ import ij.process.ShortProcessor;
 import ij.util.ThreadUtil;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import trainableSegmentation.utils.Utils;
+import trainableSegmentation.utils.ComponentLabeling;
 import trainableSegmentation.utils.WatershedTransform2D;
 
 /**
@@ -495,16 +498,42 @@ public class RandError extends Metrics
 			return null;
 		}
 		
+		// Sweep all thresholds on each slice at once
+		final double[] thresholds = ThresholdSweep.getThresholds( 
+				minThreshold, maxThreshold, stepThreshold );
+		final ThresholdSweep[] sweeps = sweepThresholds( thresholds );
+		if( null == sweeps )
+			return null;
+		
 		ArrayList< ClassificationStatistics > cs = new ArrayList<ClassificationStatistics>();
 		
 		double bestFscore = 0;
 		double bestTh = minThreshold;
 		
-		for(double th = minThreshold; th <= maxThreshold; th += stepThreshold)
+		for(int k = 0; k < thresholds.length; k++)
 		{
+			final double th = thresholds[ k ];
 			if( verbose ) 
 				IJ.log("  Calculating standard Rand index statistics for threshold value " + String.format("%.3f", th) + "...");
-			cs.add( getRandIndexStats( th ) );
+			
+			double randIndex = 0;
+			double tp = 0;
+			double tn = 0;
+			double fp = 0;
+			double fn = 0;
+			for( final ThresholdSweep sweep : sweeps )
+			{
+				final ClassificationStatistics sliceStats = randIndexStats( 
+						sweep.numPixels, sweep.jointPairs[ k ], 
+						sweep.labelPairs[ k ], sweep.proposalPairs[ k ] );
+				randIndex += sliceStats.metricValue;
+				tp += sliceStats.truePositives;
+				tn += sliceStats.trueNegatives;
+				fp += sliceStats.falsePositives;
+				fn += sliceStats.falseNegatives;
+			}
+			cs.add( new ClassificationStatistics( tp, tn, fp, fn, randIndex / sweeps.length ) );
+			
 			final double fScore = cs.get( cs.size()-1 ).fScore;
 			if( fScore > bestFscore )
 			{
@@ -831,11 +860,9 @@ public class RandError extends Metrics
 			}
 		
 		// Find components
-		ShortProcessor components1 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("binary labels", binaryLabel), 4).allRegions.getProcessor();
+		ImageProcessor components1 = ComponentLabeling.label( binaryLabel, 4 );
 		
-		ShortProcessor components2 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("proposal labels", binaryProposal), 4).allRegions.getProcessor();
+		ImageProcessor components2 = ComponentLabeling.label( binaryProposal, 4 );
 		
 		return 1 - classicRandIndex( components1, components2 );
 	}
@@ -884,11 +911,9 @@ public class RandError extends Metrics
 			}
 		
 		// Find components
-		ShortProcessor components1 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("binary labels", binaryLabel), 4).allRegions.getProcessor();
+		ImageProcessor components1 = ComponentLabeling.label( binaryLabel, 4 );
 		
-		ShortProcessor components2 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("proposal labels", binaryProposal), 4).allRegions.getProcessor();
+		ImageProcessor components2 = ComponentLabeling.label( binaryProposal, 4 );
 		
 		return 1 - foregroundRestrictedRandIndex( components1, components2 );
 	}
@@ -935,11 +960,9 @@ public class RandError extends Metrics
 			}
 		
 		// Find components
-		ShortProcessor components1 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("binary labels", binaryLabel), 4).allRegions.getProcessor();
+		ImageProcessor components1 = ComponentLabeling.label( binaryLabel, 4 );
 		
-		ShortProcessor components2 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("proposal labels", binaryProposal), 4).allRegions.getProcessor();
+		ImageProcessor components2 = ComponentLabeling.label( binaryProposal, 4 );
 		
 		return getRandIndexStats( components1, components2 );
 	}
@@ -977,11 +1000,9 @@ public class RandError extends Metrics
 			}
 		
 		// Find components
-		ShortProcessor components1 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("binary labels", binaryLabel), 4).allRegions.getProcessor();
+		ImageProcessor components1 = ComponentLabeling.label( binaryLabel, 4 );
 		
-		ShortProcessor components2 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("proposal labels", binaryProposal), 4).allRegions.getProcessor();
+		ImageProcessor components2 = ComponentLabeling.label( binaryProposal, 4 );
 		
 		return getForegroundRestrictedRandIndexStatsN2( components1, components2 );		
 	}
@@ -1021,13 +1042,10 @@ public class RandError extends Metrics
 			}
 		
 		// Find components of ground truth
-		ShortProcessor components1 
-			= ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("binary labels", binaryLabel), 
-								4).allRegions.getProcessor();
+		ImageProcessor components1 = ComponentLabeling.label( binaryLabel, 4 );
 		// Thin proposal with watershed transform
 		WatershedTransform2D wt = new WatershedTransform2D( binaryProposal, 4 );
-		ShortProcessor components2 = wt.apply().convertToShortProcessor(false);
+		ImageProcessor components2 = wt.apply();
 		
 		return getForegroundRestrictedRandIndexStatsN2( components1, 
 														components2 );		
@@ -1058,43 +1076,28 @@ public class RandError extends Metrics
 	 * @return Rand index
 	 */
 	public double classicRandIndex(
-			ShortProcessor cluster1,
-			ShortProcessor cluster2)
+			ImageProcessor cluster1,
+			ImageProcessor cluster2)
 	{
-		final short[] pixels1 = (short[]) cluster1.getPixels();
-		final short[] pixels2 = (short[]) cluster2.getPixels();
-		
-		double n = pixels1.length;
-		
 		// Form contingency matrix
-		int[][]cont = new int[(int) cluster1.getMax() ] [ (int) cluster2.getMax() ];
+		final ContingencyTable cont = new ContingencyTable( cluster1, cluster2 );
 		
-		for(int i=0; i<n; i++)
-			cont[ pixels1[i] & 0xffff ] [ pixels2[i] & 0xffff ] ++;
+		double n = cont.getNumPixels();
 		
 		// sum over rows & columnns of nij^2
 		double t2 = 0;
+		for( final long nij : cont.getCellCounts() )
+			t2 += (double) nij * nij;
 		
 		// sum of squares of sums of rows
-		double[] ni = new double[ cont.length ];
-		for(int i=0; i<cont.length; i++)
-			for(int j=0; j<cont[i].length; j++)			
-				ni[ i ] += cont[ i ][ j ];
 		double nis = 0;
-		for(int k=0; k<ni.length; k++)
-			nis += ni[ k ] * ni[ k ];
+		for( final long ni : cont.getRowSums() )
+			nis += (double) ni * ni;
 		
 		// sum of squares of sums of columns
-		double[] nj = new double[ cont.length ];
-		for(int j=0; j<cont[0].length; j++)
-			for(int i=0; i<cont.length; i++)
-			{
-				nj[ j ] += cont[ i ][ j ];
-				t2 += cont[ i ][ j ] * cont[ i ][ j ];
-			}
 		double njs = 0;
-		for(int k=0; k<nj.length; k++)
-			njs += nj[ k ] * nj[ k ];
+		for( final long nj : cont.getColumnSums( false ) )
+			njs += (double) nj * nj;
 		
 		// total number of pairs of entities
 		double t1 =  n * (n - 1) / 2 ;
@@ -1105,6 +1108,21 @@ public class RandError extends Metrics
 		
 		return agreements/t1;
 	}
+
+	/**
+	 * Same as {@link #classicRandIndex(ImageProcessor, ImageProcessor)}
+	 * for 16-bit labels, kept for binary compatibility.
+	 * 
+	 * @param cluster1 2D segmented image (objects are labeled with different numbers)
+	 * @param cluster2 2D segmented image (objects are labeled with different numbers)
+	 * @return Rand index
+	 */
+	public double classicRandIndex(
+			ShortProcessor cluster1,
+			ShortProcessor cluster2 )
+	{
+		return classicRandIndex( (ImageProcessor) cluster1, (ImageProcessor) cluster2 );
+	}
 	
 	/**
 	 * Calculate the Rand index between to clusters, as described by
@@ -1130,75 +1148,24 @@ public class RandError extends Metrics
 	 * @return foreground-restricted Rand index of the two images
 	 */
 	public double foregroundRestrictedRandIndex(
-			ShortProcessor cluster1,
-			ShortProcessor cluster2 )
+			ImageProcessor cluster1,
+			ImageProcessor cluster2 )
 	{
-		final short[] pixels1 = (short[]) cluster1.getPixels();
-		final short[] pixels2 = (short[]) cluster2.getPixels();
-		
-		//(new ImagePlus("cluster 1", cluster1)).show();
-		//(new ImagePlus("cluster 2", cluster2)).show();
-		
-		double nPixels = pixels1.length;
+		// Form the contingency matrix
+		final ContingencyTable cont = new ContingencyTable( cluster1, cluster2 );
 		
 		// number of pixels that are "in" (not background) in
 		// cluster number 1 (ground truth)
-		double n = 0;
-		
-		// reset min and max of the cluster processors 
-		// (needed in order to have correct min-max values)
-		cluster1.resetMinAndMax();
-		cluster2.resetMinAndMax();
+		double n = cont.getNumForegroundPixels();
 		
-		// Form the contingency matrix
-		int[][]cont = new int[(int) cluster1.getMax() + 1] [ (int) cluster2.getMax() + 1];		
-
-		for(int i=0; i<nPixels; i++)
-		{						
-			cont[ pixels1[i] & 0xffff ] [ pixels2[i] & 0xffff ] ++;
-			if( pixels1[ i ] > 0)
-				n++;
-		}
-
-		// sum of squares of sums of rows
-		// (skip background objects in the first cluster)
-		double[] ni = new double[ cont.length ];
-		for(int i=1; i<cont.length; i++)
-			for(int j=0; j<cont[0].length; j++)
-			{
-				ni[ i ] += cont[ i ][ j ];				
-			}
-
-		// sum of squares of sums of columns
-		// (prune out the zero component in the labeling (un-assigned "out" space))
-		double[] nj = new double[ cont[0].length ];
-		for(int j=1; j<cont[0].length; j++)
-			for(int i=1; i<cont.length; i++)
-			{
-				nj[ j ] += cont[ i ][ j ];
-			}
-		
-		// true positives - type (i): objects in the pair are placed in the 
-		// same class in cluster1 and in the same class in claster2
-		// (prune out the zero component in the labeling (un-assigned "out" space))
-		double truePositives = 0;
-		for(int j=1; j<cont[0].length; j++)
-			for(int i=1; i<cont.length; i++)			
-				truePositives += cont[ i ][ j ] * ( cont[ i ][ j ] - 1.0 ) / 2.0;			
-			
 		// total number of pairs (after pruning background pixels
 		// of the ground truth)
 		double nPairsTotal = n * (n-1.0) / 2.0 ;
-
-		// total number of positive samples in ground truth
-		double nPosTrue = 0;
-		for(int k=0; k<ni.length; k++)
-			nPosTrue += ni[ k ] * (ni[ k ]-1.0) /2.0;
-
-		// number of pairs actually classified as positive (in the prediction)
-		double nPosActual = 0;
-		for(int k=0; k<nj.length; k++)
-			nPosActual += nj[ k ] * (nj[ k ]-1.0)/2.0;					
+		
+		double[] pairs = foregroundRestrictedPairs( cont );
+		double truePositives = pairs[ 0 ] / 2.0;
+		double nPosTrue = pairs[ 1 ] / 2.0;
+		double nPosActual = pairs[ 2 ] / 2.0;
 				
 		// true negatives - type (ii): objects in the pair are placed in different 
 		// classes in cluster1 and in different classes in claster2
@@ -1211,13 +1178,70 @@ public class RandError extends Metrics
 		
 		return randIndex;
 	}
+
+	/**
+	 * Same as {@link #foregroundRestrictedRandIndex(ImageProcessor, ImageProcessor)}
+	 * for 16-bit labels, kept for binary compatibility.
+	 * 
+	 * @param cluster1 ground truth, 2D segmented image (objects are labeled with different numbers)
+	 * @param cluster2 prediction, 2D segmented image (objects are labeled with different numbers)
+	 * @return foreground-restricted Rand index of the two images
+	 */
+	public double foregroundRestrictedRandIndex(
+			ShortProcessor cluster1,
+			ShortProcessor cluster2 )
+	{
+		return foregroundRestrictedRandIndex( (ImageProcessor) cluster1, (ImageProcessor) cluster2 );
+	}
+	
+	/**
+	 * Count the ordered pairs of pixels of a contingency table pruning out 
+	 * the zero component of the ground truth (rows) and the zero component
+	 * of the prediction (columns) in the cells and column sums.
+	 * 
+	 * @param cont contingency table between ground truth and prediction
+	 * @return [ sum of nij*(nij-1), sum of ni*(ni-1), sum of nj*(nj-1) ]
+	 */
+	static double[] foregroundRestrictedPairs( ContingencyTable cont )
+	{
+		// true positives - type (i): objects in the pair are placed in the 
+		// same class in cluster1 and in the same class in claster2
+		// (prune out the zero component in the labeling (un-assigned "out" space))
+		final int[] rows = cont.getCellRows();
+		final int[] columns = cont.getCellColumns();
+		final long[] counts = cont.getCellCounts();
+		double truePositives = 0;
+		for( int k = 0; k < counts.length; k++ )
+			if( rows[ k ] != 0 && columns[ k ] != 0 )
+				truePositives += counts[ k ] * ( counts[ k ] - 1.0 );
+		
+		// total number of positive samples in ground truth
+		// (skip background objects in the first cluster)
+		final int[] rowLabels = cont.getRowLabels();
+		final long[] ni = cont.getRowSums();
+		double nPosTrue = 0;
+		for( int k = 0; k < ni.length; k++ )
+			if( rowLabels[ k ] != 0 )
+				nPosTrue += ni[ k ] * ( ni[ k ] - 1.0 );
+		
+		// number of pairs actually classified as positive (in the prediction)
+		// (prune out the zero component in the labeling (un-assigned "out" space))
+		final int[] columnLabels = cont.getColumnLabels();
+		final long[] nj = cont.getColumnSums( true );
+		double nPosActual = 0;
+		for( int k = 0; k < nj.length; k++ )
+			if( columnLabels[ k ] != 0 )
+				nPosActual += nj[ k ] * ( nj[ k ] - 1.0 );
+		
+		return new double[]{ truePositives, nPosTrue, nPosActual };
+	}
 	
 	
 	/**
 	 * Calculate the Rand index between to 3D clusters, as described by
 	 * William M. Rand \cite{Rand71}, but pruning out the zero component of
 	 * the ground truth, which leads to an asymmetric index. The input images 
-	 * must be 16-bit. Note: this method is based on the N_choose_2 normalization.
+	 * must be 8, 16 or 32-bit. Note: this method is based on the N_choose_2 normalization.
 	 *
 	 * BibTeX:
 	 * <pre>
@@ -1241,94 +1265,38 @@ public class RandError extends Metrics
 		ImagePlus originalLabels,
 		ImagePlus proposedLabels)
 	{
-		if(!(originalLabels.getImageStack().getProcessor(1) instanceof ShortProcessor)
-				|| !(proposedLabels.getImageStack().getProcessor(1) instanceof ShortProcessor))
+		if( !ContingencyTable.isLabelImage( originalLabels.getImageStack().getProcessor(1) )
+				|| !ContingencyTable.isLabelImage( proposedLabels.getImageStack().getProcessor(1) ) )
 			return -1;
 		
 		int nSlices = originalLabels.getImageStackSize();
 		
-		int maxIDGroundTruth = 0;
-		int maxIDProposal = 0;
-						
-		// Calculate larger IDs of both clusters
-		for( int slice = 1; slice <= nSlices; slice ++ )
-		{
-			ImageProcessor gt = originalLabels.getImageStack().getProcessor( slice );
-			gt.resetMinAndMax();
-			if ( maxIDGroundTruth < gt.getMax() )
-				maxIDGroundTruth = (int) gt.getMax();
-			ImageProcessor proposal = proposedLabels.getImageStack().getProcessor( slice );
-			proposal.resetMinAndMax();
-			if ( maxIDProposal < proposal.getMax() )
-				maxIDProposal = (int) proposal.getMax();
-		}
-		
 		double nPairsStack = 0;
 		double agreements = 0;
 		
+		// Form the contingency matrices of all slices (in parallel)
+		final ContingencyTable[] tables = ContingencyTable.createPerSlice(
+				originalLabels.getImageStack(), proposedLabels.getImageStack(),
+				Prefs.getThreads() );
+		if( null == tables )
+			return -1;
+		
 		for( int slice = 1; slice <= nSlices; slice ++ )
 		{
-			ShortProcessor cluster1 = (ShortProcessor) originalLabels.getImageStack().getProcessor( slice );
-			ShortProcessor cluster2 = (ShortProcessor) proposedLabels.getImageStack().getProcessor( slice );
-			
-			final short[] pixels1 = (short[]) cluster1.getPixels();
-			final short[] pixels2 = (short[]) cluster2.getPixels();
-			
-			double nPixels = pixels1.length;
+			final ContingencyTable cont = tables[ slice - 1 ];
 			
 			// number of pixels that are "in" (not background) in
 			// cluster number 1 (ground truth)
-			double n = 0;
+			double n = cont.getNumForegroundPixels();
 			
-			// Form the contingency matrix
-			int[][]cont = new int[ maxIDGroundTruth + 1] [ maxIDProposal + 1];		
-
-			for(int i=0; i<nPixels; i++)
-			{						
-				cont[ pixels1[i] & 0xffff ] [ pixels2[i] & 0xffff ] ++;
-				if( pixels1[ i ] > 0)
-					n++;
-			}
-
-			// sum of squares of sums of rows
-			// (skip background objects in the first cluster)
-			double[] ni = new double[ cont.length ];
-			for(int i=1; i<cont.length; i++)
-				for(int j=0; j<cont[0].length; j++)
-				{
-					ni[ i ] += cont[ i ][ j ];				
-				}
-
-			// sum of squares of sums of columns
-			// (prune out the zero component in the labeling (un-assigned "out" space))
-			double[] nj = new double[ cont[0].length ];
-			for(int j=1; j<cont[0].length; j++)
-				for(int i=1; i<cont.length; i++)
-				{
-					nj[ j ] += cont[ i ][ j ];
-				}
+			double[] pairs = foregroundRestrictedPairs( cont );
+			double truePositives = pairs[ 0 ] / 2.0;
+			double nPosTrue = pairs[ 1 ] / 2.0;
+			double nPosActual = pairs[ 2 ] / 2.0;
 			
-			// true positives - type (i): objects in the pair are placed in the 
-			// same class in cluster1 and in the same class in claster2
-			// (prune out the zero component in the labeling (un-assigned "out" space))
-			double truePositives = 0;
-			for(int j=1; j<cont[0].length; j++)
-				for(int i=1; i<cont.length; i++)			
-					truePositives += cont[ i ][ j ] * ( cont[ i ][ j ] - 1.0 ) / 2.0;			
-				
-				// total number of pairs (after pruning background pixels
-				// of the ground truth)
-				double nPairsTotal = n * (n-1.0) / 2.0 ;
-				
-				// total number of positive samples in ground truth
-				double nPosTrue = 0;
-				for(int k=0; k<ni.length; k++)
-					nPosTrue += ni[ k ] * (ni[ k ]-1.0) /2.0;
-				
-				// number of pairs actually classified as positive (in the prediction)
-				double nPosActual = 0;
-				for(int k=0; k<nj.length; k++)
-					nPosActual += nj[ k ] * (nj[ k ]-1.0)/2.0;							
+			// total number of pairs (after pruning background pixels
+			// of the ground truth)
+			double nPairsTotal = n * (n-1.0) / 2.0 ;
 					
 			// true negatives - type (ii): objects in the pair are placed in different 
 			// classes in cluster1 and in different classes in claster2
@@ -1347,7 +1315,7 @@ public class RandError extends Metrics
 	 * Calculate the Rand index between to 3D clusters, as described by
 	 * William M. Rand \cite{Rand71}, but pruning out the zero component of
 	 * the ground truth, which leads to an asymmetric index. The input images 
-	 * must be 16-bit. Note: this method is based on the N_choose_2 normalization.
+	 * must be 8, 16 or 32-bit. Note: this method is based on the N_choose_2 normalization.
 	 *
 	 * BibTeX:
 	 * <pre>
@@ -1371,109 +1339,40 @@ public class RandError extends Metrics
 			ImagePlus originalLabels,
 			ImagePlus proposedLabels)
 	{
-		if(!(originalLabels.getImageStack().getProcessor(1) instanceof ShortProcessor)
-				|| !(proposedLabels.getImageStack().getProcessor(1) instanceof ShortProcessor))
+		if( !ContingencyTable.isLabelImage( originalLabels.getImageStack().getProcessor(1) )
+				|| !ContingencyTable.isLabelImage( proposedLabels.getImageStack().getProcessor(1) ) )
 			return null;
 
-		//IJ.log( "Calculating adapted Rand index stats...");
-
-		int nSlices = originalLabels.getImageStackSize();
-
-		int maxIDGroundTruth = 0;
-		int maxIDProposal = 0;
-
-		// Calculate larger IDs of both clusters
-		for( int slice = 1; slice <= nSlices; slice ++ )
-		{
-			ImageProcessor gt = originalLabels.getImageStack().getProcessor( slice );
-			gt.resetMinAndMax();
-			if ( maxIDGroundTruth < gt.getMax() )
-				maxIDGroundTruth = (int) gt.getMax();
-			ImageProcessor proposal = proposedLabels.getImageStack().getProcessor( slice );
-			proposal.resetMinAndMax();
-			if ( maxIDProposal < proposal.getMax() )
-				maxIDProposal = (int) proposal.getMax();
-		}
-
-		double agreements = 0;
-
-
-		// Form the contingency matrix
-		long[][]cont = new long[ maxIDGroundTruth + 1] [ maxIDProposal + 1];
-		double[] ni = new double[ cont.length    ];
-		double[] nj = new double[ cont[0].length ];
+		// Form the contingency matrix (merging partial tables
+		// of blocks of slices calculated in parallel)
+		final ContingencyTable cont = ContingencyTable.create(
+				originalLabels.getImageStack(), proposedLabels.getImageStack(),
+				Prefs.getThreads() );
+		if( null == cont )
+			return null;
 
 		// number of pixels that are "in" (not background) in
 		// cluster number 1 (ground truth)
-		double n = 0;						
-
-		for( int slice = 1; slice <= nSlices; slice ++ )
-		{
-			//IJ.log(" Processing slice " + slice +"...");
-
-			ShortProcessor cluster1 = (ShortProcessor) originalLabels.getImageStack().getProcessor( slice );
-			ShortProcessor cluster2 = (ShortProcessor) proposedLabels.getImageStack().getProcessor( slice );
-
-			final short[] pixels1 = (short[]) cluster1.getPixels();
-			final short[] pixels2 = (short[]) cluster2.getPixels();
-
-			double nPixels = pixels1.length;
-
-
-			for(int i=0; i<nPixels; i++)
-			{						
-				cont[ pixels1[i] & 0xffff ] [ pixels2[i] & 0xffff ] ++;
-				if( pixels1[ i ] > 0)
-					n++;
-			}
-		}
-		// sum of squares of sums of rows
-		// (skip background objects in the first cluster)
-
-		for(int i=1; i<cont.length; i++)
-			for(int j=0; j<cont[0].length; j++)
-			{
-				ni[ i ] += cont[ i ][ j ];				
-			}
-
-		// sum of squares of sums of columns
-		// (prune out the zero component in the labeling (un-assigned "out" space))				
-		for(int j=1; j<cont[0].length; j++)
-			for(int i=1; i<cont.length; i++)
-			{
-				nj[ j ] += cont[ i ][ j ];
-			}
+		double n = cont.getNumForegroundPixels();
 
+		double agreements = 0;
 
-		// true positives - type (i): objects in the pair are placed in the 
-		// same class in cluster1 and in the same class in claster2
-		// (prune out the zero component in the labeling (un-assigned "out" space))
-		double truePositives = 0;
-		for(int j=1; j<cont[0].length; j++)
-			for(int i=1; i<cont.length; i++)			
-				truePositives += cont[ i ][ j ] * ( cont[ i ][ j ] - 1.0 ); // / 2.0;			
+		double[] pairs = foregroundRestrictedPairs( cont );
+		double truePositives = pairs[ 0 ];
+		// total number of positive samples in ground truth
+		double nPosTrue = pairs[ 1 ];
+		// number of pairs actually classified as positive (in the prediction)
+		double nPosActual = pairs[ 2 ];
 
 		// total number of pairs (after pruning background pixels
 		// of the ground truth)
 		double nPairsTotal = n * (n-1.0);// / 2.0 ;
 
-		// total number of positive samples in ground truth
-		double nPosTrue = 0;
-		for(int k=0; k<ni.length; k++)
-			nPosTrue += ni[ k ] * (ni[ k ]-1.0);// /2.0;
-
-		// number of pairs actually classified as positive (in the prediction)
-		double nPosActual = 0;
-		for(int k=0; k<nj.length; k++)
-			nPosActual += nj[ k ] * (nj[ k ]-1.0); ///2.0;				
-
 		// true negatives - type (ii): objects in the pair are placed in different 
 		// classes in cluster1 and in different classes in claster2
 		// trueNegatives = 	nNegTrue - falsePositives = (nPairsTotal - nPosTrue) - (nPosActual - truePositives)	
 		double trueNegatives = nPairsTotal + truePositives - nPosTrue - nPosActual;
 
-		//IJ.log("  agreements = " + (truePositives + trueNegatives) );
-
 		agreements += truePositives + trueNegatives;	// number of agreements
 
 
@@ -1486,11 +1385,6 @@ public class RandError extends Metrics
 		falsePositives /= 2.0;
 		falseNegatives /= 2.0;
 
-
-		// agreements /= 2.0;
-		// nPairsTotal /= 2.0;
-
-
 		double randIndex = agreements / nPairsTotal;
 
 		return new ClassificationStatistics( truePositives, trueNegatives, falsePositives,  falseNegatives, randIndex);
@@ -1501,7 +1395,7 @@ public class RandError extends Metrics
 	 * Calculate the Rand index stats between to 3D clusters, as described by
 	 * William M. Rand \cite{Rand71}, but pruning out the zero component of
 	 * the ground truth, which leads to an asymmetric index. The input images 
-	 * must be 16-bit. Note: this method is based on the N^2 normalization.
+	 * must be 8, 16 or 32-bit. Note: this method is based on the N^2 normalization.
 	 *
 	 * BibTeX:
 	 * <pre>
@@ -1525,106 +1419,81 @@ public class RandError extends Metrics
 			ImagePlus segA,
 			ImagePlus segB)
 	{
-		if(!(segA.getImageStack().getProcessor(1) instanceof ShortProcessor)
-				|| !(segB.getImageStack().getProcessor(1) instanceof ShortProcessor))
+		if( !ContingencyTable.isLabelImage( segA.getImageStack().getProcessor(1) )
+				|| !ContingencyTable.isLabelImage( segB.getImageStack().getProcessor(1) ) )
 			return null;
 
-		//IJ.log( "Calculating adapted Rand index stats...");
-
-		int nSlices = segA.getImageStackSize();
-
-		int nLabelsA = 0;
-		int nLabelsB = 0;
-
-		// Calculate larger IDs of both clusters
-		for( int slice = 1; slice <= nSlices; slice ++ )
-		{
-			ImageProcessor gt = segA.getImageStack().getProcessor( slice );
-			gt.resetMinAndMax();
-			if ( nLabelsA < gt.getMax() )
-				nLabelsA = (int) gt.getMax();
-			ImageProcessor proposal = segB.getImageStack().getProcessor( slice );
-			proposal.resetMinAndMax();
-			if ( nLabelsB < proposal.getMax() )
-				nLabelsB = (int) proposal.getMax();
-		}
-
-		// Form the contingency matrix
-		long[][]pij = new long[ nLabelsA + 1] [ nLabelsB + 1];		
+		// Form the contingency matrix (merging partial tables
+		// of blocks of slices calculated in parallel)
+		final ContingencyTable cont = ContingencyTable.create(
+				segA.getImageStack(), segB.getImageStack(),
+				Prefs.getThreads() );
+		if( null == cont )
+			return null;
 
 		double n = segA.getImageStackSize() * segA.getWidth() * segA.getHeight();
 
-		for( int slice = 1; slice <= nSlices; slice ++ )
-		{
-			//IJ.log(" Processing slice " + slice +"...");
-
-			ShortProcessor cluster1 = (ShortProcessor) segA.getImageStack().getProcessor( slice );
-			ShortProcessor cluster2 = (ShortProcessor) segB.getImageStack().getProcessor( slice );
-
-			final short[] pixels1 = (short[]) cluster1.getPixels();
-			final short[] pixels2 = (short[]) cluster2.getPixels();
-
-			double nPixels = pixels1.length;				
-
-			for(int i=0; i<nPixels; i++)									
-				pij[ pixels1[i] & 0xffff ] [ pixels2[i] & 0xffff ] ++;
-		}
-
-
+		double[] sums = foregroundRestrictedSquaredSums( cont );
+		
+		double sumA = sums[ 0 ];
+		double sumB = sums[ 1 ] + sums[ 3 ] / n;
+		double sumAB = sums[ 2 ] + sums[ 3 ] / n;
 
+		// return precision, recall and Rand index value
+		return new double[]{ sumAB/sumB, sumAB/sumA, 1.0 - (sumA+sumB-2.0*sumAB)/(n*n) };
+	}
+	
+	/**
+	 * Calculate the sums of squares of a contingency table pruning out the 
+	 * zero component of the ground truth (rows), and the zero component of
+	 * the prediction (columns) in the cells and column sums.
+	 * 
+	 * @param cont contingency table between ground truth and prediction
+	 * @return [ sum of ai^2, sum of bj^2, sum of pij^2, sum of pi0 ] (not normalized)
+	 */
+	static double[] foregroundRestrictedSquaredSums( ContingencyTable cont )
+	{
 		// sum of squares of sums of rows
 		// (skip background objects in the first cluster)
-		double[] ai = new double[ pij.length ];
-		for(int i=1; i<pij.length; i++)
-			for(int j=0; j<pij[0].length; j++)
-			{
-				ai[ i ] += pij[ i ][ j ];				
-			}
-
+		final int[] rowLabels = cont.getRowLabels();
+		final long[] ai = cont.getRowSums();
+		double sumA = 0;
+		for( int k = 0; k < ai.length; k++ )
+			if( rowLabels[ k ] != 0 )
+				sumA += (double) ai[ k ] * ai[ k ];
+		
 		// sum of squares of sums of columns
 		// (prune out the zero component in the labeling (un-assigned "out" space))
-		double[] bj = new double[ pij[0].length ];
-		for(int j=1; j<pij[0].length; j++)
-			for(int i=1; i<pij.length; i++)
-			{
-				bj[ j ] += pij[ i ][ j ];
-			}
-
-		double[] pi0 = new double[ pij.length ];
+		final int[] columnLabels = cont.getColumnLabels();
+		final long[] bj = cont.getColumnSums( true );
+		double sumB = 0;
+		for( int k = 0; k < bj.length; k++ )
+			if( columnLabels[ k ] != 0 )
+				sumB += (double) bj[ k ] * bj[ k ];
+		
+		final int[] rows = cont.getCellRows();
+		final int[] columns = cont.getCellColumns();
+		final long[] counts = cont.getCellCounts();
+		double sumAB = 0;
 		double aux = 0;
-		for(int i=1; i<pij.length; i++)
+		for( int k = 0; k < counts.length; k++ )
 		{
-			pi0[ i ] = pij[ i ][ 0 ];
-			aux += pi0[ i ];
+			if( rows[ k ] == 0 )
+				continue;
+			if( columns[ k ] == 0 )
+				aux += counts[ k ];
+			else
+				sumAB += (double) counts[ k ] * counts[ k ];
 		}
-
-		double sumA = 0;
-		for(int i=0; i<ai.length; i++)
-			sumA += ai[ i ] * ai[ i ];
-
-		double sumB = 0;
-		for(int j=0; j<bj.length; j++)
-			sumB += bj[ j ] * bj[ j ];
-
-		sumB += aux/n;
-
-
-		double sumAB = 0;
-		for(int i=1; i<pij.length; i++)
-			for(int j=1; j<pij[0].length; j++)
-				sumAB += pij[ i ][ j ] * pij[ i ][ j ]; 
-
-		sumAB += aux/n;
-
-		// return precision, recall and Rand index value
-		return new double[]{ sumAB/sumB, sumAB/sumA, 1.0 - (sumA+sumB-2.0*sumAB)/(n*n) };
+		
+		return new double[]{ sumA, sumB, sumAB, aux };
 	}
 	
 	/**
 	 * Calculate the F-score of the Rand index between to 3D clusters, as described by
 	 * William M. Rand \cite{Rand71}, but pruning out the zero component of
 	 * the ground truth, which leads to an asymmetric index. The input images 
-	 * must be 16-bit. Note: this method is based on the N^2 normalization.
+	 * must be 8, 16 or 32-bit. Note: this method is based on the N^2 normalization.
 	 *
 	 * BibTeX:
 	 * <pre>
@@ -1648,8 +1517,8 @@ public class RandError extends Metrics
 			ImagePlus originalLabels,
 			ImagePlus proposedLabels)
 	{
-		if(!(originalLabels.getImageStack().getProcessor(1) instanceof ShortProcessor)
-				|| !(proposedLabels.getImageStack().getProcessor(1) instanceof ShortProcessor))
+		if( !ContingencyTable.isLabelImage( originalLabels.getImageStack().getProcessor(1) )
+				|| !ContingencyTable.isLabelImage( proposedLabels.getImageStack().getProcessor(1) ) )
 			return -1;
 
 		double[] stats = adaptedRandIndexStats3DN2( originalLabels, proposedLabels );
@@ -1681,70 +1550,68 @@ public class RandError extends Metrics
 	 * @return Rand index value and prediction statistics
 	 */
 	public ClassificationStatistics getRandIndexStats(
-			ShortProcessor cluster1,
-			ShortProcessor cluster2)
+			ImageProcessor cluster1,
+			ImageProcessor cluster2)
 	{
-		final short[] pixels1 = (short[]) cluster1.getPixels();
-		final short[] pixels2 = (short[]) cluster2.getPixels();
-		
-		// number of pixels
-		double n = pixels1.length;
-		
-		// reset min and max of the cluster processors 
-		// (needed in order to have correct min-max values)
-		cluster1.resetMinAndMax();
-		cluster2.resetMinAndMax();
-		
 		// Form the contingency matrix
-		int[][]cont = new int[(int) cluster1.getMax() + 1] [ (int) cluster2.getMax() + 1];		
-		
-		//IJ.log(" cont.length = " +cont.length );
-		//IJ.log(" cont[0].length = " +cont[0].length );
-		
-		for(int i=0; i<n; i++)					
-			cont[ pixels1[i] & 0xffff ] [ pixels2[i] & 0xffff ] ++;
-
-		// sum over rows & columnns of nij^2
-		//double t2 = 0;				
-		
-		// sums of rows
-		double[] ni = new double[ cont.length ];
-		for(int i=0; i<cont.length; i++)
-			for(int j=0; j<cont[0].length; j++)
-			{
-				ni[ i ] += cont[ i ][ j ];				
-			}
+		final ContingencyTable cont = new ContingencyTable( cluster1, cluster2 );
 		
-		// sums of columns
-		double[] nj = new double[ cont[0].length ];
-		for(int j=0; j<cont[0].length; j++)
-			for(int i=0; i<cont.length; i++)
-			{
-				nj[ j ] += cont[ i ][ j ];
-			}
+		// number of pixels
+		double n = cont.getNumPixels();
 		
 		// true positives - type (i): objects in the pair are placed in the 
 		// same class in cluster1 and in the same class in claster2
 		double truePositives = 0;
-		for(int j=0; j<cont[0].length; j++)
-			for(int i=0; i<cont.length; i++)
-			{
-				truePositives += cont[ i ][ j ] * ( cont[ i ][ j ] - 1.0 ) / 2.0;
-			}
-													
-		// total number of pairs 
-		double nPairsTotal = n * (n-1) / 2 ;
+		for( final long nij : cont.getCellCounts() )
+			truePositives += nij * ( nij - 1.0 ) / 2.0;
 		
 		// number of true samples withing the ground truth
 		double nPosTrue = 0;
-		for(int k=0; k<ni.length; k++)
-			nPosTrue += ni[ k ] * (ni[ k ]-1) /2;
+		for( final long ni : cont.getRowSums() )
+			nPosTrue += ni * ( ni - 1.0 ) / 2;
 		
 		// number of pairs that were actually classified as positive
 		// by the prediction
 		double nPosActual = 0;
-		for(int k=0; k<nj.length; k++)
-			nPosActual += nj[ k ] * (nj[ k ]-1)/2;				
+		for( final long nj : cont.getColumnSums( false ) )
+			nPosActual += nj * ( nj - 1.0 ) / 2;
+		
+		return randIndexStats( n, truePositives, nPosTrue, nPosActual );
+	}
+
+	/**
+	 * Same as {@link #getRandIndexStats(ImageProcessor, ImageProcessor)}
+	 * for 16-bit labels, kept for binary compatibility.
+	 * 
+	 * @param cluster1 ground truth, 2D segmented image (objects are labeled with different numbers)
+	 * @param cluster2 prediction, 2D segmented image (objects are labeled with different numbers)
+	 * @return Rand index value and prediction statistics
+	 */
+	public ClassificationStatistics getRandIndexStats(
+			ShortProcessor cluster1,
+			ShortProcessor cluster2 )
+	{
+		return getRandIndexStats( (ImageProcessor) cluster1, (ImageProcessor) cluster2 );
+	}
+	
+	/**
+	 * Calculate the Rand index and its derived statistics from the pair 
+	 * counts of a contingency table.
+	 * 
+	 * @param n number of pixels
+	 * @param truePositives number of pairs in the same class in both clusters 
+	 * @param nPosTrue number of pairs in the same class in the ground truth 
+	 * @param nPosActual number of pairs in the same class in the prediction
+	 * @return Rand index value and prediction statistics
+	 */
+	static ClassificationStatistics randIndexStats(
+			double n,
+			double truePositives,
+			double nPosTrue,
+			double nPosActual )
+	{
+		// total number of pairs 
+		double nPairsTotal = n * (n-1) / 2 ;
 		
 		// true negatives - type (ii): objects in the pair are placed in different 
 		// classes in cluster1 and in different classes in claster2
@@ -1808,89 +1675,31 @@ public class RandError extends Metrics
 	 * @return foreground-restiricted statistics (Rand index, precision, etc)
 	 */
 	public ClassificationStatistics getForegroundRestrictedRandIndexStatsN2(
-			ShortProcessor cluster1,
-			ShortProcessor cluster2 )
+			ImageProcessor cluster1,
+			ImageProcessor cluster2 )
 	{
-		final short[] pixels1 = (short[]) cluster1.getPixels();
-		final short[] pixels2 = (short[]) cluster2.getPixels();
+		// compute overlap matrix
+		final ContingencyTable cont = new ContingencyTable( cluster1, cluster2 );
 		
 		// n: number of non-background pixels in the ground truth
-		double n = 0;
-		for( int i=0; i< pixels1.length; i++ )
-			if( pixels1[ i ] != 0 )
-				n++;
-		
-		// reset min and max of the cluster processors 
-		// (needed in order to have correct min-max values)
-		cluster1.resetMinAndMax();
-		cluster2.resetMinAndMax();
-		
-		int nLabelsA = (int) cluster1.getMax();
-		int nLabelsB = (int) cluster2.getMax();
+		double n = cont.getNumForegroundPixels();
+		double n2 = n*n;
 		
-		// compute overlap matrix
-		double[][]pij = new double[ nLabelsA + 1] [ nLabelsB + 1];
-		for(int i=0; i<pixels1.length; i++)									
-			pij[ pixels1[i] & 0xffff ] [ pixels2[i] & 0xffff ] ++;
+		double[] sums = foregroundRestrictedSquaredSums( cont );
 		
-		for( int i=0; i < (nLabelsA + 1); i++ )
-			for( int j=0; j < (nLabelsB + 1); j++ )
-			{
-				pij[ i ][ j ] /= n;
-			}
-		
-		// sum of squares of sums of rows
-		// (skip background objects in the first cluster)
-		double[] ai = new double[ pij.length ];
-		for(int i=1; i<pij.length; i++)
-		{
-			for(int j=0; j<pij[0].length; j++)
-			{
-				ai[ i ] += pij[ i ][ j ];				
-			}
-		}
-		// sum of squares of sums of columns
-		// (prune out the zero component in the labeling (un-assigned "out" space))
-		double[] bj = new double[ pij[0].length ];
-		for(int j=1; j<pij[0].length; j++)
-			for(int i=1; i<pij.length; i++)		
-				bj[ j ] += pij[ i ][ j ];
-						
-		double[] pi0 = new double[ pij.length ];
-		double aux = 0;
-		for(int i=1; i<pij.length; i++)
-		{
-			pi0[ i ] = pij[ i ][ 0 ];
-			aux += pi0[ i ];
-		}
-
 		// In matlab:
 		// sumA2 = sum( a_i .* a_i );
-		double sumA2 = 0;
-		for(int i=0; i<ai.length; i++)
-			sumA2 += ai[ i ] * ai[ i ];	
+		double sumA2 = sums[ 0 ] / n2;
 
 		// In matlab:
 		// sumB2 = sum( b_j .* b_j ) + sum(p_i0)/n;
-		double sumB2 = 0;
-		for(int j=0; j<bj.length; j++)
-				sumB2 += bj[ j ] * bj[ j ];
-		sumB2 += aux / n;
+		double aux = sums[ 3 ] / n;
+		double sumB2 = sums[ 1 ] / n2 + aux / n;
 
 		// In matlab:
 		// sumAB2 = sum(sum(p_ij.^2)) + sum(p_i0)/n;
-		double sumAB2 = 0;
-		for(int i=1; i<pij.length; i++)
-			for(int j=1; j<pij[0].length; j++)
-				sumAB2 += pij[ i ][ j ] * pij[ i ][ j ] ;
-		sumAB2 += aux / n;
+		double sumAB2 = sums[ 2 ] / n2 + aux / n;
 		
-		// precision
-		//double prec = sumAB2 / sumB2;
-		// recall
-		//double rec = sumAB2 / sumA2;
-		
-		double n2 = n*n;
 		// true positives
 		double tp = n2 * sumAB2;
 		// false positives
@@ -1904,136 +1713,208 @@ public class RandError extends Metrics
 		
 		return new ClassificationStatistics( tp, tn, fp, fn, 1 - randError );
 	}
+
+	/**
+	 * Same as {@link #getForegroundRestrictedRandIndexStatsN2(ImageProcessor, ImageProcessor)}
+	 * for 16-bit labels, kept for binary compatibility.
+	 * 
+	 * @param cluster1 ground truth cluster
+	 * @param cluster2 proposed cluster
+	 * @return foreground-restiricted statistics (Rand index, precision, etc)
+	 */
+	public ClassificationStatistics getForegroundRestrictedRandIndexStatsN2(
+			ShortProcessor cluster1,
+			ShortProcessor cluster2 )
+	{
+		return getForegroundRestrictedRandIndexStatsN2( (ImageProcessor) cluster1, (ImageProcessor) cluster2 );
+	}
 	
 	/**
 	 * Get foreground-restricted disagreements between prediction and 
 	 * ground truth labels with N^2 normalization (mergers).
+	 * The array is indexed by proposal label, so its length is the largest
+	 * label plus one; see {@link #getForegroundRestrictedGroundTruthDisagreementMap(ImageProcessor, ImageProcessor)}
+	 * for sparse labels.
 	 * 
 	 * @param cluster1 ground truth cluster
 	 * @param cluster2 proposed cluster
 	 * @return normalized foreground-restricted mergers per label
 	 */
 	public double[] getForegroundRestrictedGroundTruthDisagreements(
-			ShortProcessor cluster1,
-			ShortProcessor cluster2 )
+			ImageProcessor cluster1,
+			ImageProcessor cluster2 )
+	{
+		final ContingencyTable cont = new ContingencyTable( cluster1, cluster2 );
+		final double[] dis = new double[ cont.getMaxColumnLabel() + 1 ];
+		for( final Map.Entry<Integer, Double> e : getGroundTruthDisagreements( cont ).entrySet() )
+			dis[ e.getKey() ] = e.getValue();
+		return dis;
+	}
+
+	/**
+	 * Get foreground-restricted disagreements between prediction and 
+	 * ground truth labels with N^2 normalization (mergers), only for the
+	 * labels present in the proposal.
+	 * 
+	 * @param cluster1 ground truth cluster
+	 * @param cluster2 proposed cluster
+	 * @return normalized foreground-restricted mergers by proposal label
+	 */
+	public HashMap<Integer, Double> getForegroundRestrictedGroundTruthDisagreementMap(
+			ImageProcessor cluster1,
+			ImageProcessor cluster2 )
+	{
+		return getGroundTruthDisagreements( new ContingencyTable( cluster1, cluster2 ) );
+	}
+
+	/**
+	 * Calculate the normalized foreground-restricted mergers of each
+	 * proposal label from the non-empty cells of a contingency table
+	 * 
+	 * @param cont contingency table between ground truth and proposal
+	 * @return normalized foreground-restricted mergers by proposal label
+	 */
+	private static HashMap<Integer, Double> getGroundTruthDisagreements(
+			final ContingencyTable cont )
 	{
-		final short[] pixels1 = (short[]) cluster1.getPixels();
-		final short[] pixels2 = (short[]) cluster2.getPixels();
-		
 		// n: number of non-background pixels in the ground truth
-		double n = 0;
-		for( int i=0; i< pixels1.length; i++ )
-			if( pixels1[ i ] != 0 )
-				n++;
-		
-		// reset min and max of the cluster processors 
-		// (needed in order to have correct min-max values)
-		cluster1.resetMinAndMax();
-		cluster2.resetMinAndMax();
-		
-		int nLabelsA = (int) cluster1.getMax();
-		int nLabelsB = (int) cluster2.getMax();
-		
-		// compute overlap matrix
-		double[][]pij = new double[ nLabelsA + 1] [ nLabelsB + 1];
-		for(int i=0; i<pixels1.length; i++)									
-			pij[ pixels1[i] & 0xffff ] [ pixels2[i] & 0xffff ] ++;
+		final double n = cont.getNumForegroundPixels();
 		
-		for( int i=0; i < (nLabelsA + 1); i++ )
-			for( int j=0; j < (nLabelsB + 1); j++ )
+		// sum of squares of the cells of each column, indexed by position
+		// in the sorted column labels
+		// (skip background objects in the first cluster)
+		final int[] columnLabels = cont.getColumnLabels();
+		final int[] rows = cont.getCellRows();
+		final int[] columns = cont.getCellColumns();
+		final long[] counts = cont.getCellCounts();
+		final double[] sum = new double[ columnLabels.length ];
+		for( int k = 0; k < counts.length; k++ )
+			if( rows[ k ] != 0 )
 			{
-				pij[ i ][ j ] /= n;
+				final double pij = counts[ k ] / n;
+				sum[ Arrays.binarySearch( columnLabels, columns[ k ] ) ] += pij * pij;
 			}
 		
 		// sum of squares of sums of columns
 		// (prune out the zero component in the labeling (un-assigned "out" space))
-		double[] bj = new double[ pij[0].length ];
-		for(int j=1; j<pij[0].length; j++)
-			for(int i=1; i<pij.length; i++)		
-				bj[ j ] += pij[ i ][ j ];
-						
-		// disagreement array
-		double[] dis = new double[ pij[0].length ];
+		final long[] nj = cont.getColumnSums( true );
+		final HashMap<Integer, Double> dis = new HashMap<Integer, Double>();
+		for( int k = 0; k < nj.length; k++ )
+			if( columnLabels[ k ] != 0 )
+			{
+				final double bj = nj[ k ] / n;
+				dis.put( columnLabels[ k ], bj * bj - sum[ k ] );
+			}
 		
-		for(int j=0; j<bj.length; j++)
-		{
-
-			double sum =0;
-			for(int i=1; i<pij.length; i++)
-				sum += pij[ i ][ j ] * pij[ i ][ j ];
-
-			dis[ j ] = bj[ j ] * bj[ j ] - sum;
-		}
-
 		return dis;
 	}
+
+	/**
+	 * Same as {@link #getForegroundRestrictedGroundTruthDisagreements(ImageProcessor, ImageProcessor)}
+	 * for 16-bit labels, kept for binary compatibility.
+	 * 
+	 * @param cluster1 ground truth cluster
+	 * @param cluster2 proposed cluster
+	 * @return normalized foreground-restricted mergers per label
+	 */
+	public double[] getForegroundRestrictedGroundTruthDisagreements(
+			ShortProcessor cluster1,
+			ShortProcessor cluster2 )
+	{
+		return getForegroundRestrictedGroundTruthDisagreements( (ImageProcessor) cluster1, (ImageProcessor) cluster2 );
+	}
 	
 	/**
 	 * Get foreground-restricted disagreements between ground truth and 
 	 * prediction labels with N^2 normalization (splits).
+	 * The array is indexed by ground truth label, so its length is the 
+	 * largest label plus one; see {@link #getForegroundRestrictedPredictionDisagreementMap(ImageProcessor, ImageProcessor)}
+	 * for sparse labels.
 	 * 
 	 * @param cluster1 ground truth cluster
 	 * @param cluster2 proposed cluster
 	 * @return normalized foreground-restricted splits per label
 	 */
 	public double[] getForegroundRestrictedPredictionDisagreements(
-			ShortProcessor cluster1,
-			ShortProcessor cluster2 )
+			ImageProcessor cluster1,
+			ImageProcessor cluster2 )
+	{
+		final ContingencyTable cont = new ContingencyTable( cluster1, cluster2 );
+		final double[] dis = new double[ cont.getMaxRowLabel() + 1 ];
+		for( final Map.Entry<Integer, Double> e : getPredictionDisagreements( cont ).entrySet() )
+			dis[ e.getKey() ] = e.getValue();
+		return dis;
+	}
+
+	/**
+	 * Get foreground-restricted disagreements between ground truth and 
+	 * prediction labels with N^2 normalization (splits), only for the
+	 * labels present in the ground truth.
+	 * 
+	 * @param cluster1 ground truth cluster
+	 * @param cluster2 proposed cluster
+	 * @return normalized foreground-restricted splits by ground truth label
+	 */
+	public HashMap<Integer, Double> getForegroundRestrictedPredictionDisagreementMap(
+			ImageProcessor cluster1,
+			ImageProcessor cluster2 )
+	{
+		return getPredictionDisagreements( new ContingencyTable( cluster1, cluster2 ) );
+	}
+
+	/**
+	 * Calculate the normalized foreground-restricted splits of each
+	 * ground truth label from the non-empty cells of a contingency table
+	 * 
+	 * @param cont contingency table between ground truth and proposal
+	 * @return normalized foreground-restricted splits by ground truth label
+	 */
+	private static HashMap<Integer, Double> getPredictionDisagreements(
+			final ContingencyTable cont )
 	{
-		final short[] pixels1 = (short[]) cluster1.getPixels();
-		final short[] pixels2 = (short[]) cluster2.getPixels();
-		
 		// n: number of non-background pixels in the ground truth
-		double n = 0;
-		for( int i=0; i< pixels1.length; i++ )
-			if( pixels1[ i ] != 0 )
-				n++;
-		
-		// reset min and max of the cluster processors 
-		// (needed in order to have correct min-max values)
-		cluster1.resetMinAndMax();
-		cluster2.resetMinAndMax();
-		
-		int nLabelsA = (int) cluster1.getMax();
-		int nLabelsB = (int) cluster2.getMax();
-		
-		// compute overlap matrix
-		double[][]pij = new double[ nLabelsA + 1] [ nLabelsB + 1];
-		for(int i=0; i<pixels1.length; i++)									
-			pij[ pixels1[i] & 0xffff ] [ pixels2[i] & 0xffff ] ++;
-		
-		for( int i=0; i < (nLabelsA + 1); i++ )
-			for( int j=0; j < (nLabelsB + 1); j++ )
-			{
-				pij[ i ][ j ] /= n;
-			}
-	
-		// disagreement array
-		double[] dis = new double[ pij.length ];
+		final double n = cont.getNumForegroundPixels();
+		
+		// sum of squares of the cells of each row, indexed by position in
+		// the sorted row labels
+		final int[] rowLabels = cont.getRowLabels();
+		final int[] rows = cont.getCellRows();
+		final long[] counts = cont.getCellCounts();
+		final double[] sum = new double[ rowLabels.length ];
+		for( int k = 0; k < counts.length; k++ )
+		{
+			final double pij = counts[ k ] / n;
+			sum[ Arrays.binarySearch( rowLabels, rows[ k ] ) ] += pij * pij;
+		}
 		
 		// sum of squares of sums of rows
 		// (skip background objects in the first cluster)
-		double[] ai = new double[ pij.length ];
-		for(int i=1; i<pij.length; i++)
-		{
-			for(int j=0; j<pij[0].length; j++)
+		final long[] ni = cont.getRowSums();
+		final HashMap<Integer, Double> dis = new HashMap<Integer, Double>();
+		for( int k = 0; k < ni.length; k++ )
+			if( rowLabels[ k ] != 0 )
 			{
-				ai[ i ] += pij[ i ][ j ];				
+				final double ai = ni[ k ] / n;
+				dis.put( rowLabels[ k ], ai * ai - sum[ k ] );
 			}
-		}
-
-		// In matlab:
-		// sumA2 = sum( a_i .* a_i );
-		for(int i=0; i<ai.length; i++)
-		{
-			double sum = 0;
-			for(int j=0; j<pij[0].length; j++)
-				sum += pij[ i ][ j ] * pij[ i ][ j ];
-			dis[ i ] = ai[ i ] * ai[ i ] - sum;
-		}
 		
 		return dis;
 	}
+
+	/**
+	 * Same as {@link #getForegroundRestrictedPredictionDisagreements(ImageProcessor, ImageProcessor)}
+	 * for 16-bit labels, kept for binary compatibility.
+	 * 
+	 * @param cluster1 ground truth cluster
+	 * @param cluster2 proposed cluster
+	 * @return normalized foreground-restricted splits per label
+	 */
+	public double[] getForegroundRestrictedPredictionDisagreements(
+			ShortProcessor cluster1,
+			ShortProcessor cluster2 )
+	{
+		return getForegroundRestrictedPredictionDisagreements( (ImageProcessor) cluster1, (ImageProcessor) cluster2 );
+	}
 	
 	/**
 	 * Get the best F-score of the standard Rand index over a set of thresholds.
@@ -0,0 +1,418 @@
+package trainableSegmentation.metrics;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class evaluates proposed labels (probability maps) against original
+ * labels slice by slice, without keeping the whole data set in memory. The
+ * slices are read from directories of matching files (or added one by one),
+ * the statistics of each slice (pixel confusion counts, foreground-restricted
+ * Rand and variation of information statistics) are calculated and merged
+ * into the running totals, and the images are released. The merged values
+ * follow the stack methods of each metric: the counts are added and the
+ * metric values are averaged per slice.
+ */
+public class StreamingEvaluation
+{
+	/** threshold value to binarize the proposals */
+	private final double binaryThreshold;
+	/** boolean flag to set the level of detail on the standard output messages */
+	private boolean verbose = true;
+
+	/** metrics used to evaluate each slice (they do not hold any image) */
+	private final PixelError pixelError = new PixelError( null, null );
+	private final RandError randError = new RandError( null, null );
+	private final VariationOfInformation variationOfInformation =
+			new VariationOfInformation( null, null );
+
+	/** statistics of each evaluated slice */
+	private final ArrayList< SliceStatistics > slices = new ArrayList< SliceStatistics >();
+
+	/** merged pixel statistics */
+	private double pixelTp = 0, pixelTn = 0, pixelFp = 0, pixelFn = 0, pixelErrorSum = 0;
+	/** merged foreground-restricted Rand statistics */
+	private double randTp = 0, randTn = 0, randFp = 0, randFn = 0, randIndexSum = 0;
+	/** merged variation of information statistics */
+	private double htSum = 0, hsSum = 0, htsSum = 0, hstSum = 0, viSum = 0;
+
+	/**
+	 * Statistics of a single slice
+	 */
+	private static class SliceStatistics
+	{
+		final String name;
+		final ClassificationStatistics pixel;
+		final ClassificationStatistics rand;
+		final InformationStatistics information;
+
+		SliceStatistics(
+				String name,
+				ClassificationStatistics pixel,
+				ClassificationStatistics rand,
+				InformationStatistics information )
+		{
+			this.name = name;
+			this.pixel = pixel;
+			this.rand = rand;
+			this.information = information;
+		}
+	}
+
+	/**
+	 * Initialize a streaming evaluation
+	 * @param binaryThreshold threshold value to binarize the proposals (larger than 0 and smaller than 1)
+	 */
+	public StreamingEvaluation( double binaryThreshold )
+	{
+		this.binaryThreshold = binaryThreshold;
+	}
+
+	/**
+	 * Set verbose mode
+	 * @param verbose true to display more information in the standard output
+	 */
+	public void setVerboseMode( boolean verbose )
+	{
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Evaluate a single slice and merge its statistics into the totals
+	 *
+	 * @param name name of the slice (used in the per-slice results)
+	 * @param label 2D image with the original labels
+	 * @param proposal 2D image with the proposed labels
+	 */
+	public void addSlice(
+			String name,
+			ImageProcessor label,
+			ImageProcessor proposal )
+	{
+		merge( evaluateSlice( name, label, proposal ) );
+	}
+
+	/**
+	 * Evaluate all pairs of files with the same name in two directories.
+	 * The files are read and evaluated concurrently, but only as many of
+	 * them as threads are kept in memory at the same time. Files with
+	 * several slices are evaluated slice by slice.
+	 *
+	 * @param labelDir directory with the original labels
+	 * @param proposalDir directory with the proposed labels
+	 * @return false if any pair of files could not be evaluated
+	 */
+	public boolean evaluateDirectories(
+			final File labelDir,
+			final File proposalDir )
+	{
+		final File[] labelFiles = labelDir.listFiles();
+		if( null == labelFiles || !proposalDir.isDirectory() )
+		{
+			IJ.log( "Error: " + labelDir + " and " + proposalDir + " must be directories." );
+			return false;
+		}
+		Arrays.sort( labelFiles );
+
+		// match the files by name
+		final ArrayList< File[] > pairs = new ArrayList< File[] >();
+		boolean ok = true;
+		for( File labelFile : labelFiles )
+		{
+			if( labelFile.isDirectory() || labelFile.isHidden() )
+				continue;
+			final File proposalFile = new File( proposalDir, labelFile.getName() );
+			if( proposalFile.exists() )
+				pairs.add( new File[]{ labelFile, proposalFile } );
+			else
+			{
+				IJ.log( "Warning: no proposal found for " + labelFile.getName() );
+				ok = false;
+			}
+		}
+
+		final int numThreads = Prefs.getThreads();
+		// Executor service to produce concurrent threads
+		final ExecutorService exe = Executors.newFixedThreadPool( numThreads );
+		final ArrayList< Future< SliceStatistics[] > > futures = new ArrayList< Future< SliceStatistics[] > >();
+
+		try{
+			for( int first = 0; first < pairs.size(); first += numThreads )
+			{
+				// evaluate a block of pairs
+				final int last = Math.min( pairs.size(), first + numThreads );
+				for( int i = first; i < last; i++ )
+					futures.add( exe.submit( evaluateFilesConcurrent( pairs.get( i )[ 0 ], pairs.get( i )[ 1 ] ) ) );
+
+				// merge their statistics in file order
+				for( Future< SliceStatistics[] > f : futures )
+				{
+					final SliceStatistics[] stats = f.get();
+					if( null == stats )
+					{
+						ok = false;
+						continue;
+					}
+					for( SliceStatistics s : stats )
+						merge( s );
+				}
+				futures.clear();
+
+				if( verbose )
+					IJ.log( "  Evaluated " + last + "/" + pairs.size() + " files" );
+			}
+		}
+		catch( Exception ex )
+		{
+			IJ.log( "Error when evaluating the files in a concurrent way." );
+			ex.printStackTrace();
+			return false;
+		}
+		finally{
+			exe.shutdown();
+		}
+
+		return ok;
+	}
+
+	/**
+	 * Read and evaluate a pair of files in a concurrent way
+	 *
+	 * @param labelFile file with the original labels
+	 * @param proposalFile file with the proposed labels
+	 * @return statistics of each slice (null if the files could not be evaluated)
+	 */
+	private Callable< SliceStatistics[] > evaluateFilesConcurrent(
+			final File labelFile,
+			final File proposalFile )
+	{
+		return new Callable< SliceStatistics[] >()
+		{
+			public SliceStatistics[] call()
+			{
+				final ImagePlus label = IJ.openImage( labelFile.getPath() );
+				final ImagePlus proposal = IJ.openImage( proposalFile.getPath() );
+				if( null == label || null == proposal )
+				{
+					IJ.log( "Error: " + labelFile.getName() + " could not be opened." );
+					return null;
+				}
+				if( label.getWidth() != proposal.getWidth()
+						|| label.getHeight() != proposal.getHeight()
+						|| label.getImageStackSize() != proposal.getImageStackSize() )
+				{
+					IJ.log( "Error: " + labelFile.getName() + " has different "
+							+ "dimensions in the labels and the proposals." );
+					return null;
+				}
+
+				final ImageStack labelSlices = label.getImageStack();
+				final ImageStack proposalSlices = proposal.getImageStack();
+				final SliceStatistics[] stats = new SliceStatistics[ labelSlices.getSize() ];
+				for( int i = 1; i <= stats.length; i++ )
+				{
+					final String name = stats.length == 1 ? labelFile.getName()
+							: labelFile.getName() + ":" + i;
+					stats[ i - 1 ] = evaluateSlice( name, labelSlices.getProcessor( i ),
+							proposalSlices.getProcessor( i ) );
+				}
+				return stats;
+			}
+		};
+	}
+
+	/**
+	 * Calculate the statistics of a single slice
+	 *
+	 * @param name name of the slice
+	 * @param label 2D image with the original labels
+	 * @param proposal 2D image with the proposed labels
+	 * @return statistics of the slice
+	 */
+	private SliceStatistics evaluateSlice(
+			String name,
+			ImageProcessor label,
+			ImageProcessor proposal )
+	{
+		final ImageProcessor labelFloat = label.convertToFloat();
+		final ImageProcessor proposalFloat = proposal.convertToFloat();
+		return new SliceStatistics( name,
+				pixelError.precisionRecallStats( labelFloat, proposalFloat, binaryThreshold ),
+				randError.getForegroundRestrictedRandIndexStatsN2( labelFloat, proposalFloat, binaryThreshold ),
+				variationOfInformation.foregroundRestrictedStats( labelFloat, proposalFloat, binaryThreshold ) );
+	}
+
+	/**
+	 * Merge the statistics of a slice into the totals
+	 *
+	 * @param s statistics of the slice
+	 */
+	private synchronized void merge( SliceStatistics s )
+	{
+		slices.add( s );
+
+		pixelTp += s.pixel.truePositives;
+		pixelTn += s.pixel.trueNegatives;
+		pixelFp += s.pixel.falsePositives;
+		pixelFn += s.pixel.falseNegatives;
+		pixelErrorSum += s.pixel.metricValue;
+
+		randTp += s.rand.truePositives;
+		randTn += s.rand.trueNegatives;
+		randFp += s.rand.falsePositives;
+		randFn += s.rand.falseNegatives;
+		randIndexSum += s.rand.metricValue;
+
+		htSum += s.information.ht;
+		hsSum += s.information.hs;
+		htsSum += s.information.hts;
+		hstSum += s.information.hst;
+		viSum += s.information.vi;
+	}
+
+	/**
+	 * Get the number of evaluated slices
+	 * @return number of slices
+	 */
+	public int getNumSlices()
+	{
+		return slices.size();
+	}
+
+	/**
+	 * Get the merged pixel statistics
+	 * @return added confusion counts and pixel error averaged per slice (all 0 if no slice was evaluated)
+	 */
+	public ClassificationStatistics getPixelErrorStats()
+	{
+		return new ClassificationStatistics( pixelTp, pixelTn, pixelFp, pixelFn,
+				pixelErrorSum / Math.max( 1, slices.size() ) );
+	}
+
+	/**
+	 * Get the merged foreground-restricted Rand statistics (N^2 normalization)
+	 * @return added pair counts and Rand index averaged per slice (all 0 if no slice was evaluated)
+	 */
+	public ClassificationStatistics getForegroundRestrictedRandIndexStats()
+	{
+		return new ClassificationStatistics( randTp, randTn, randFp, randFn,
+				randIndexSum / Math.max( 1, slices.size() ) );
+	}
+
+	/**
+	 * Get the merged foreground-restricted variation of information statistics
+	 * @return entropy values and variation of information averaged per slice (all 0 if no slice was evaluated)
+	 */
+	public InformationStatistics getForegroundRestrictedVIStats()
+	{
+		final double n = Math.max( 1, slices.size() );
+		final InformationStatistics is = new InformationStatistics( htSum / n,
+				hsSum / n, htsSum / n, hstSum / n, viSum / n );
+		// zero entropies give undefined precision and recall
+		if( slices.isEmpty() )
+		{
+			is.precision = 0;
+			is.recall = 0;
+		}
+		return is;
+	}
+
+	/**
+	 * Get the statistics of each evaluated slice as a results table
+	 * @return table with one row per slice
+	 */
+	public ResultsTable getResultsPerSlice()
+	{
+		final ResultsTable rt = new ResultsTable();
+		for( SliceStatistics s : slices )
+		{
+			rt.incrementCounter();
+			rt.setValue( "Label", rt.getCounter() - 1, s.name );
+			rt.addValue( "Pixel error", s.pixel.metricValue );
+			rt.addValue( "Pixel F-score", s.pixel.fScore );
+			rt.addValue( "Rand index", s.rand.metricValue );
+			rt.addValue( "Rand precision", s.rand.precision );
+			rt.addValue( "Rand recall", s.rand.recall );
+			rt.addValue( "Rand F-score", s.rand.fScore );
+			rt.addValue( "VI", s.information.vi );
+			rt.addValue( "VI precision", s.information.precision );
+			rt.addValue( "VI recall", s.information.recall );
+			rt.addValue( "VI F-score", s.information.fScore );
+		}
+		return rt;
+	}
+
+	/**
+	 * Main method to evaluate two directories from the command line
+	 *
+	 * @param args command line arguments
+	 */
+	public static void main( String[] args )
+	{
+		if( args.length != 3 )
+		{
+			dumpSyntax();
+			System.exit( 1 );
+		}
+
+		final StreamingEvaluation se =
+				new StreamingEvaluation( Double.parseDouble( args[ 2 ] ) );
+		se.setVerboseMode( false );
+		final boolean ok = se.evaluateDirectories( new File( args[ 0 ] ), new File( args[ 1 ] ) );
+
+		final ResultsTable rt = se.getResultsPerSlice();
+		for( int i = 0; i < rt.getCounter(); i++ )
+			System.out.println( rt.getRowAsString( i ) );
+
+		final ClassificationStatistics pixel = se.getPixelErrorStats();
+		final ClassificationStatistics rand = se.getForegroundRestrictedRandIndexStats();
+		final InformationStatistics information = se.getForegroundRestrictedVIStats();
+		System.out.println( "Slices: " + se.getNumSlices() );
+		System.out.println( "Pixel error: " + pixel.metricValue + ", F-score: " + pixel.fScore );
+		System.out.println( "Rand index: " + rand.metricValue + ", F-score: " + rand.fScore );
+		System.out.println( "VI: " + information.vi + ", F-score: " + information.fScore );
+		System.exit( ok ? 0 : 1 );
+	}
+
+	/**
+	 * Method to write the syntax of the program in the command line.
+	 */
+	private static void dumpSyntax()
+	{
+		System.out.println( "Purpose: evaluate proposed labels against original labels file by file.\n" );
+		System.out.println( "Usage: StreamingEvaluation labelDir proposalDir threshold" );
+		System.out.println( "          labelDir           : directory with the original labels" );
+		System.out.println( "          proposalDir        : directory with the proposed labels (same file names)" );
+		System.out.println( "          threshold          : threshold value to binarize the proposals\n" );
+	}
+}
@@ -0,0 +1,628 @@
+package trainableSegmentation.metrics;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * This class calculates the contingency table statistics between the
+ * 4-connected components of a 2D ground truth and a 2D proposal for a whole
+ * series of binarization thresholds in a single sweep.
+ * <p>
+ * Both images are binarized as <code>value &gt; threshold</code>, as in
+ * the single-threshold methods of the metrics. The thresholds are visited
+ * from the largest to the smallest one, so the proposal foreground only
+ * grows and its components are merged incrementally with a union-find
+ * structure that keeps, for each component, the number of pixels it shares
+ * with each ground truth component. Those counts are stored in a hash table
+ * of primitive long keys (root pixel in the upper 32 bits, ground truth
+ * component in the lower 32 bits) and the ground truth components of each
+ * root are chained in a linked list of primitive nodes, so merging two
+ * components only visits the cells of the one with fewer cells. The 
+ * ground truth components are only
+ * recalculated when its binarization changes between two thresholds (never
+ * for binary ground truth images).
+ */
+class ThresholdSweep
+{
+	/** number of pixels of the images */
+	final int numPixels;
+	/** sum over the contingency table cells of nij * (nij-1) / 2 */
+	final long[] jointPairs;
+	/** sum over the ground truth components of ni * (ni-1) / 2 */
+	final long[] labelPairs;
+	/** sum over the proposal components of nj * (nj-1) / 2 */
+	final long[] proposalPairs;
+	/** sum of nij * log(nij) over the cells with no background component */
+	final double[] jointEntropy;
+	/** sum of ni * log(ni) over the ground truth components */
+	final double[] labelEntropy;
+	/** sum of nj * log(nj) over the proposal components */
+	final double[] proposalEntropy;
+	/** number of pixels that are foreground in both images */
+	final long[] jointForeground;
+	/** number of non-empty ground truth components (background included) */
+	final int[] numLabelClusters;
+	/** number of non-empty proposal components (background included) */
+	final int[] numProposalClusters;
+
+	private final int width;
+	private final int height;
+	private final int[] proposalBin;
+	private final int[] labelBin;
+
+	// union-find of the proposal foreground
+	private final int[] parent;
+	private final int[] size;
+	private final boolean[] foreground;
+	/** initial capacity of the hash table of cells (power of 2) */
+	private static final int INITIAL_CAPACITY = 1 << 10;
+
+	// contingency table cells of the proposal components (by root)
+	/** cell keys (root pixel and ground truth component) */
+	private long[] keys;
+	/** cell counts (0 marks an empty slot) */
+	private long[] counts;
+	/** number of non-empty cells */
+	private int numCells;
+	/** first node of the list of ground truth components of each root (-1 if none) */
+	private int[] head;
+	/** number of cells of each root */
+	private int[] numRootCells;
+	/** ground truth component of each node */
+	private int[] nodeLabel;
+	/** next node of each list (-1 at the end) */
+	private int[] nodeNext;
+	/** number of nodes ever used since the last rebuild */
+	private int numNodes;
+	/** first node of the list of free nodes (-1 if none) */
+	private int freeNode;
+	/** ground truth component counts of the proposal background */
+	private long[] backgroundCells;
+	private long backgroundSize;
+
+	// ground truth components of the current threshold
+	private final int[] label;
+
+	// running statistics of the current threshold
+	private long curJointPairs;
+	private long curProposalPairs;
+	private double curJointEntropy;
+	private double curProposalEntropy;
+	private long curJointForeground;
+	private int curNumProposalClusters;
+
+	/**
+	 * Sweep a list of thresholds over a ground truth image and a proposal
+	 *
+	 * @param labelPixels ground truth pixels
+	 * @param proposalPixels proposal pixels (usually probabilities)
+	 * @param width image width
+	 * @param height image height
+	 * @param thresholds binarization thresholds in increasing order
+	 */
+	ThresholdSweep(
+			final float[] labelPixels,
+			final float[] proposalPixels,
+			final int width,
+			final int height,
+			final double[] thresholds )
+	{
+		this.width = width;
+		this.height = height;
+		numPixels = width * height;
+
+		final int numThresholds = thresholds.length;
+		jointPairs = new long[ numThresholds ];
+		labelPairs = new long[ numThresholds ];
+		proposalPairs = new long[ numThresholds ];
+		jointEntropy = new double[ numThresholds ];
+		labelEntropy = new double[ numThresholds ];
+		proposalEntropy = new double[ numThresholds ];
+		jointForeground = new long[ numThresholds ];
+		numLabelClusters = new int[ numThresholds ];
+		numProposalClusters = new int[ numThresholds ];
+
+		// a pixel is foreground at threshold k if its bin is larger than k
+		proposalBin = new int[ numPixels ];
+		labelBin = new int[ numPixels ];
+		final int[] proposalBinStart = new int[ numThresholds + 2 ];
+		final boolean[] labelChanges = new boolean[ numThresholds + 1 ];
+		for( int i = 0; i < numPixels; i++ )
+		{
+			proposalBin[ i ] = getBin( proposalPixels[ i ], thresholds );
+			labelBin[ i ] = getBin( labelPixels[ i ], thresholds );
+			proposalBinStart[ proposalBin[ i ] + 1 ] ++;
+			labelChanges[ labelBin[ i ] ] = true;
+		}
+
+		// bucket the proposal pixels by bin
+		for( int b = 1; b < proposalBinStart.length; b++ )
+			proposalBinStart[ b ] += proposalBinStart[ b - 1 ];
+		final int[] order = new int[ numPixels ];
+		final int[] next = proposalBinStart.clone();
+		for( int i = 0; i < numPixels; i++ )
+			order[ next[ proposalBin[ i ] ] ++ ] = i;
+
+		parent = new int[ numPixels ];
+		size = new int[ numPixels ];
+		foreground = new boolean[ numPixels ];
+		label = new int[ numPixels ];
+		keys = new long[ INITIAL_CAPACITY ];
+		counts = new long[ INITIAL_CAPACITY ];
+		head = new int[ numPixels ];
+		numRootCells = new int[ numPixels ];
+		nodeLabel = new int[ INITIAL_CAPACITY ];
+		nodeNext = new int[ INITIAL_CAPACITY ];
+
+		for( int k = numThresholds - 1; k >= 0; k-- )
+		{
+			final boolean rebuild = k == numThresholds - 1 || labelChanges[ k + 1 ];
+			for( int o = proposalBinStart[ k + 1 ]; o < proposalBinStart[ k + 2 ]; o++ )
+				addPixel( order[ o ], !rebuild );
+
+			if( rebuild )
+			{
+				labelComponents( k );
+				rebuildCells();
+			}
+
+			jointPairs[ k ] = curJointPairs;
+			proposalPairs[ k ] = curProposalPairs;
+			jointEntropy[ k ] = curJointEntropy;
+			proposalEntropy[ k ] = curProposalEntropy;
+			jointForeground[ k ] = curJointForeground;
+			numProposalClusters[ k ] = curNumProposalClusters;
+			if( ! rebuild )
+			{
+				labelPairs[ k ] = labelPairs[ k + 1 ];
+				labelEntropy[ k ] = labelEntropy[ k + 1 ];
+				numLabelClusters[ k ] = numLabelClusters[ k + 1 ];
+			}
+		}
+		keys = null;
+		counts = null;
+		head = null;
+		numRootCells = null;
+		nodeLabel = null;
+		nodeNext = null;
+	}
+
+	/**
+	 * Get the list of thresholds visited by a loop
+	 * <code>for(th = min; th &lt;= max; th += step)</code>
+	 *
+	 * @param minThreshold minimum threshold value
+	 * @param maxThreshold maximum threshold value
+	 * @param stepThreshold threshold step value
+	 * @return thresholds in increasing order
+	 */
+	static double[] getThresholds(
+			final double minThreshold,
+			final double maxThreshold,
+			final double stepThreshold )
+	{
+		final ArrayList<Double> list = new ArrayList<Double>();
+		for( double th = minThreshold; th <= maxThreshold; th += stepThreshold )
+			list.add( th );
+		final double[] thresholds = new double[ list.size() ];
+		for( int k = 0; k < thresholds.length; k++ )
+			thresholds[ k ] = list.get( k );
+		return thresholds;
+	}
+
+	/**
+	 * Get the number of thresholds a value is larger than, i.e. the value is
+	 * foreground for the thresholds with index smaller than the returned bin
+	 *
+	 * @param value pixel value
+	 * @param thresholds thresholds in increasing order
+	 * @return bin of the value (between 0 and the number of thresholds)
+	 */
+	static int getBin( final float value, final double[] thresholds )
+	{
+		int lo = 0;
+		int hi = thresholds.length;
+		while( lo < hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			if( value > thresholds[ mid ] )
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Label the 4-connected ground truth components at a threshold
+	 * (background pixels get label 0) and store their statistics
+	 *
+	 * @param k threshold index
+	 */
+	private void labelComponents( final int k )
+	{
+		final int[] labelParent = new int[ numPixels ];
+		for( int i = 0; i < numPixels; i++ )
+		{
+			labelParent[ i ] = i;
+			if( labelBin[ i ] <= k )
+				continue;
+			final int x = i % width;
+			if( x > 0 && labelBin[ i - 1 ] > k )
+				union( labelParent, i - 1, i );
+			if( i >= width && labelBin[ i - width ] > k )
+				union( labelParent, i - width, i );
+		}
+
+		final int[] rootLabel = new int[ numPixels ];
+		final ArrayList<Long> componentSize = new ArrayList<Long>();
+		componentSize.add( 0L );
+		for( int i = 0; i < numPixels; i++ )
+		{
+			int l = 0;
+			if( labelBin[ i ] > k )
+			{
+				final int root = find( labelParent, i );
+				if( rootLabel[ root ] == 0 )
+				{
+					componentSize.add( 0L );
+					rootLabel[ root ] = componentSize.size() - 1;
+				}
+				l = rootLabel[ root ];
+			}
+			label[ i ] = l;
+			componentSize.set( l, componentSize.get( l ) + 1 );
+		}
+
+		long pairs = 0;
+		double entropy = 0;
+		int clusters = 0;
+		for( final long ni : componentSize )
+		{
+			if( ni == 0 )
+				continue;
+			pairs += pairs( ni );
+			entropy += xlogx( ni );
+			clusters ++;
+		}
+		labelPairs[ k ] = pairs;
+		labelEntropy[ k ] = entropy;
+		numLabelClusters[ k ] = clusters;
+	}
+
+	/**
+	 * Recalculate the contingency table and its statistics from the current
+	 * proposal components and ground truth labels
+	 */
+	private void rebuildCells()
+	{
+		int maxLabel = 0;
+		for( int i = 0; i < numPixels; i++ )
+			maxLabel = Math.max( maxLabel, label[ i ] );
+
+		Arrays.fill( counts, 0 );
+		numCells = 0;
+		Arrays.fill( head, -1 );
+		Arrays.fill( numRootCells, 0 );
+		numNodes = 0;
+		freeNode = -1;
+		backgroundCells = new long[ maxLabel + 1 ];
+		backgroundSize = 0;
+		curProposalPairs = 0;
+		curProposalEntropy = 0;
+		curNumProposalClusters = 0;
+		for( int i = 0; i < numPixels; i++ )
+		{
+			if( ! foreground[ i ] )
+			{
+				backgroundCells[ label[ i ] ] ++;
+				backgroundSize ++;
+				continue;
+			}
+			final int root = find( parent, i );
+			if( head[ root ] == -1 )
+			{
+				curProposalPairs += pairs( size[ root ] );
+				curProposalEntropy += xlogx( size[ root ] );
+				curNumProposalClusters ++;
+			}
+			addCount( root, label[ i ], 1 );
+		}
+		if( backgroundSize > 0 )
+		{
+			curProposalPairs += pairs( backgroundSize );
+			curProposalEntropy += xlogx( backgroundSize );
+			curNumProposalClusters ++;
+		}
+
+		curJointPairs = 0;
+		curJointEntropy = 0;
+		curJointForeground = 0;
+		for( final long nij : backgroundCells )
+			curJointPairs += pairs( nij );
+		for( int slot = 0; slot < keys.length; slot++ )
+			if( counts[ slot ] != 0 )
+			{
+				final long nij = counts[ slot ];
+				curJointPairs += pairs( nij );
+				if( (int) keys[ slot ] != 0 )
+				{
+					curJointEntropy += xlogx( nij );
+					curJointForeground += nij;
+				}
+			}
+	}
+
+	/**
+	 * Add a pixel to the proposal foreground and merge it with its
+	 * foreground neighbors
+	 *
+	 * @param i pixel index
+	 * @param update flag to update the contingency table statistics
+	 */
+	private void addPixel( final int i, final boolean update )
+	{
+		foreground[ i ] = true;
+		parent[ i ] = i;
+		size[ i ] = 1;
+
+		if( update )
+		{
+			// the pixel leaves the background component...
+			final int l = label[ i ];
+			curJointPairs -= backgroundCells[ l ] - 1;
+			backgroundCells[ l ] --;
+			curProposalPairs -= backgroundSize - 1;
+			curProposalEntropy += xlogx( backgroundSize - 1 ) - xlogx( backgroundSize );
+			backgroundSize --;
+			if( backgroundSize == 0 )
+				curNumProposalClusters --;
+			// ...and starts its own component
+			curNumProposalClusters ++;
+			if( l != 0 )
+				curJointForeground ++;
+			addCount( i, l, 1 );
+		}
+
+		final int x = i % width;
+		final int y = i / width;
+		if( x > 0 && foreground[ i - 1 ] )
+			merge( i - 1, i, update );
+		if( x < width - 1 && foreground[ i + 1 ] )
+			merge( i + 1, i, update );
+		if( y > 0 && foreground[ i - width ] )
+			merge( i - width, i, update );
+		if( y < height - 1 && foreground[ i + width ] )
+			merge( i + width, i, update );
+	}
+
+	/**
+	 * Merge the proposal components of two foreground pixels
+	 *
+	 * @param a first pixel
+	 * @param b second pixel
+	 * @param update flag to update the contingency table statistics
+	 */
+	private void merge( final int a, final int b, final boolean update )
+	{
+		int ra = find( parent, a );
+		int rb = find( parent, b );
+		if( ra == rb )
+			return;
+		// keep the root with more cells when the table is updated
+		if( update ? numRootCells[ ra ] < numRootCells[ rb ] : size[ ra ] < size[ rb ] )
+		{
+			final int tmp = ra;
+			ra = rb;
+			rb = tmp;
+		}
+
+		if( update )
+		{
+			final long sa = size[ ra ];
+			final long sb = size[ rb ];
+			curProposalPairs += sa * sb;
+			curProposalEntropy += xlogx( sa + sb ) - xlogx( sa ) - xlogx( sb );
+			curNumProposalClusters --;
+
+			// move the cells of the root with fewer cells
+			int node = head[ rb ];
+			while( node != -1 )
+			{
+				final int l = nodeLabel[ node ];
+				final int next = nodeNext[ node ];
+				nodeNext[ node ] = freeNode;
+				freeNode = node;
+				final long cb = removeCount( rb, l );
+				final long ca = addCount( ra, l, cb );
+				if( ca != 0 )
+				{
+					curJointPairs += ca * cb;
+					if( l != 0 )
+						curJointEntropy += xlogx( ca + cb ) - xlogx( ca ) - xlogx( cb );
+				}
+				node = next;
+			}
+			head[ rb ] = -1;
+			numRootCells[ rb ] = 0;
+		}
+
+		parent[ rb ] = ra;
+		size[ ra ] += size[ rb ];
+	}
+
+	/**
+	 * Add a number of pixels to the cell of a proposal component and a
+	 * ground truth component
+	 *
+	 * @param root root pixel of the proposal component
+	 * @param l ground truth component
+	 * @param count number of pixels to add
+	 * @return number of pixels of the cell before the addition
+	 */
+	private long addCount( final int root, final int l, final long count )
+	{
+		final long key = key( root, l );
+		int slot = findSlot( key );
+		if( counts[ slot ] == 0 )
+		{
+			if( 2 * ( numCells + 1 ) > keys.length )
+			{
+				grow();
+				slot = findSlot( key );
+			}
+			keys[ slot ] = key;
+			numCells ++;
+
+			// add the ground truth component to the list of the root
+			int node = freeNode;
+			if( node != -1 )
+				freeNode = nodeNext[ node ];
+			else
+			{
+				if( numNodes == nodeLabel.length )
+				{
+					nodeLabel = Arrays.copyOf( nodeLabel, 2 * numNodes );
+					nodeNext = Arrays.copyOf( nodeNext, 2 * numNodes );
+				}
+				node = numNodes ++;
+			}
+			nodeLabel[ node ] = l;
+			nodeNext[ node ] = head[ root ];
+			head[ root ] = node;
+			numRootCells[ root ] ++;
+		}
+		final long previous = counts[ slot ];
+		counts[ slot ] += count;
+		return previous;
+	}
+
+	/**
+	 * Remove the cell of a proposal component and a ground truth component
+	 * from the hash table (its list node is released by the caller)
+	 *
+	 * @param root root pixel of the proposal component
+	 * @param l ground truth component
+	 * @return number of pixels of the removed cell
+	 */
+	private long removeCount( final int root, final int l )
+	{
+		final int mask = keys.length - 1;
+		int slot = findSlot( key( root, l ) );
+		final long count = counts[ slot ];
+		counts[ slot ] = 0;
+		numCells --;
+
+		// shift back the following keys of the probe sequence
+		int next = slot;
+		while( true )
+		{
+			next = ( next + 1 ) & mask;
+			if( counts[ next ] == 0 )
+				break;
+			final int ideal = hash( keys[ next ] ) & mask;
+			if( ( ( next - ideal ) & mask ) >= ( ( next - slot ) & mask ) )
+			{
+				keys[ slot ] = keys[ next ];
+				counts[ slot ] = counts[ next ];
+				counts[ next ] = 0;
+				slot = next;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Find the slot of a key (or the empty slot where it should go)
+	 *
+	 * @param key cell key
+	 * @return slot index
+	 */
+	private int findSlot( final long key )
+	{
+		final int mask = keys.length - 1;
+		int slot = hash( key ) & mask;
+		while( counts[ slot ] != 0 && keys[ slot ] != key )
+			slot = ( slot + 1 ) & mask;
+		return slot;
+	}
+
+	/**
+	 * Double the capacity of the hash table
+	 */
+	private void grow()
+	{
+		final long[] oldKeys = keys;
+		final long[] oldCounts = counts;
+		keys = new long[ oldKeys.length * 2 ];
+		counts = new long[ oldCounts.length * 2 ];
+		for( int i = 0; i < oldKeys.length; i++ )
+			if( oldCounts[ i ] != 0 )
+			{
+				final int slot = findSlot( oldKeys[ i ] );
+				keys[ slot ] = oldKeys[ i ];
+				counts[ slot ] = oldCounts[ i ];
+			}
+	}
+
+	private static long key( final int root, final int l )
+	{
+		return ( (long) root << 32 ) | ( l & 0xffffffffL );
+	}
+
+	private static int hash( long key )
+	{
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	private static int find( final int[] parent, int i )
+	{
+		while( parent[ i ] != i )
+		{
+			parent[ i ] = parent[ parent[ i ] ];
+			i = parent[ i ];
+		}
+		return i;
+	}
+
+	private static void union( final int[] parent, final int a, final int b )
+	{
+		final int ra = find( parent, a );
+		final int rb = find( parent, b );
+		if( ra < rb )
+			parent[ rb ] = ra;
+		else if( rb < ra )
+			parent[ ra ] = rb;
+	}
+
+	private static long pairs( final long n )
+	{
+		return n * ( n - 1 ) / 2;
+	}
+
+	private static double xlogx( final long n )
+	{
+		return n > 0 ? n * Math.log( n ) : 0;
+	}
+}
@@ -30,13 +30,16 @@ import ij.process.ShortProcessor;
 import ij.util.ThreadUtil;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import trainableSegmentation.utils.Utils;
+import trainableSegmentation.utils.ComponentLabeling;
 import trainableSegmentation.utils.WatershedTransform2D;
 
 /**
@@ -259,11 +262,9 @@ public class VariationOfInformation extends Metrics
 			}
 		
 		// Find components
-		ShortProcessor components1 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("binary labels", binaryLabel), 4).allRegions.getProcessor();
+		ImageProcessor components1 = ComponentLabeling.label( binaryLabel, 4 );
 		
-		ShortProcessor components2 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("proposal labels", binaryProposal), 4).allRegions.getProcessor();
+		ImageProcessor components2 = ComponentLabeling.label( binaryProposal, 4 );
 		
 		return getVI( components1, components2 );
 		
@@ -295,11 +296,9 @@ public class VariationOfInformation extends Metrics
 			}
 		
 		// Find components
-		ShortProcessor components1 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("binary labels", binaryLabel), 4).allRegions.getProcessor();
+		ImageProcessor components1 = ComponentLabeling.label( binaryLabel, 4 );
 		
-		ShortProcessor components2 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("proposal labels", binaryProposal), 4).allRegions.getProcessor();
+		ImageProcessor components2 = ComponentLabeling.label( binaryProposal, 4 );
 		
 		return foregroundRestrictedVI( components1, components2 );
 		
@@ -314,51 +313,49 @@ public class VariationOfInformation extends Metrics
 	 * @return variation of information value
 	 */
 	public double getVI(
-			ShortProcessor cluster1,
-			ShortProcessor cluster2)
+			ImageProcessor cluster1,
+			ImageProcessor cluster2)
 	{
-		final short[] pixels1 = (short[]) cluster1.getPixels();
-		final short[] pixels2 = (short[]) cluster2.getPixels();
-		
-		//(new ImagePlus("cluster 1", cluster1)).show();
-		//(new ImagePlus("cluster 2", cluster2)).show();
-		
-		double n = pixels1.length;
-		
-		
-		// reset min and max of the cluster processors 
-		// (needed in order to have correct min-max values)
-		cluster1.resetMinAndMax();
-		cluster2.resetMinAndMax();
-		
-		int nLabelsA = (int) cluster1.getMax();
-		int nLabelsB = (int) cluster2.getMax();
-		
-		// compute overlap matrix
-		double[][]pij = new double[ nLabelsA + 1] [ nLabelsB + 1];
-		for(int i=0; i<n; i++)									
-			pij[ pixels1[i] & 0xffff ] [ pixels2[i] & 0xffff ] ++;
+		final double[] sums = entropySums( 
+				new ContingencyTable( cluster1, cluster2 ), false );
 		
-		for( int i=0; i < (nLabelsA + 1); i++ )
-			for( int j=0; j < (nLabelsB + 1); j++ )
-				pij[ i ][ j ] /= n;
-		
-		// sum of squares of sums of rows
-		double[] ai = new double[ pij.length ];
-		for(int i=0; i<pij.length; i++)
-			for(int j=0; j<pij[0].length; j++)
-			{
-				ai[ i ] += pij[ i ][ j ];				
-			}
-
-		// sum of squares of sums of columns
-		double[] bj = new double[ pij[0].length ];
-		for(int j=0; j<pij[0].length; j++)
-			for(int i=0; i<pij.length; i++)
-			{
-				bj[ j ] += pij[ i ][ j ];
-			}
+		// vi = full(sumA + sumB - 2*sumAB);
+		return sums[ 0 ] + sums[ 1 ] - 2.0 * sums[ 2 ];
+	}
 
+	/**
+	 * Same as {@link #getVI(ImageProcessor, ImageProcessor)}
+	 * for 16-bit labels, kept for binary compatibility.
+	 * 
+	 * @param cluster1 labels of cluster 1 (ground truth)
+	 * @param cluster2 labels of cluster 2 (proposal)
+	 * @return variation of information value
+	 */
+	public double getVI(
+			ShortProcessor cluster1,
+			ShortProcessor cluster2 )
+	{
+		return getVI( (ImageProcessor) cluster1, (ImageProcessor) cluster2 );
+	}
+	
+	/**
+	 * Calculate the entropy sums of the normalized overlap matrix between
+	 * two clusters. 
+	 * 
+	 * @param cont contingency table between the clusters (ground truth in rows)
+	 * @param foregroundRestricted flag to prune out the zero component in the
+	 * ground truth and the labeling (un-assigned "out" space)
+	 * @return [ sumA, sumB, sumAB ] (sums of a_i * log(a_i), b_j * log(b_j) and p_ij * log(p_ij))
+	 */
+	static double[] entropySums(
+			ContingencyTable cont,
+			boolean foregroundRestricted )
+	{
+		// n: number of pixels (non-background pixels in the ground truth 
+		// with foreground restriction)
+		final double n = foregroundRestricted ? 
+				cont.getNumForegroundPixels() : cont.getNumPixels();
+		
 		// ai, bj and pij are the same in the Rand index calculation,
 		// here they are used in a different way to express the variation
 		// of information
@@ -366,21 +363,34 @@ public class VariationOfInformation extends Metrics
 		// In matlab:
 		// aux = a_i .* log(a_i);
 		// sumA = sum(aux(~isnan(aux)));
+		// (skip background objects in the first cluster if restricted)
+		final int[] rowLabels = cont.getRowLabels();
+		final long[] rowSums = cont.getRowSums();
 		double sumA = 0;
-		for(int i=0; i<ai.length; i++)
+		for( int k = 0; k < rowSums.length; k++ )
 		{
-			if( ai[ i ] != 0 )
-				sumA += ai[ i ] * Math.log( ai[ i ] );
+			if( foregroundRestricted && rowLabels[ k ] == 0 )
+				continue;
+			final double ai = rowSums[ k ] / n;
+			sumA += ai * Math.log( ai );
 		}
-
+		
 		// In matlab:
 		// aux = b_j .* log(b_j);
 		// sumB = sum(aux(~isnan(aux)));
+		// (prune out the zero component in the labeling if restricted)
+		final int[] columnLabels = cont.getColumnLabels();
+		final long[] columnSums = cont.getColumnSums( foregroundRestricted );
 		double sumB = 0;
-		for(int j=0; j<bj.length; j++)
-			if( bj[ j ] != 0 )
-				sumB += bj[ j ] * Math.log( bj[ j ] );
-
+		for( int k = 0; k < columnSums.length; k++ )
+		{
+			if( columnSums[ k ] == 0 
+					|| ( foregroundRestricted && columnLabels[ k ] == 0 ) )
+				continue;
+			final double bj = columnSums[ k ] / n;
+			sumB += bj * Math.log( bj );
+		}
+		
 		// In matlab:
 		// aux = p_ij .* log(p_ij);
 		// s = sum(aux(~isnan(aux)));
@@ -388,16 +398,31 @@ public class VariationOfInformation extends Metrics
 		//    s = 0;
 		// end
 		// sumAB = s
+		final int[] rows = cont.getCellRows();
+		final int[] columns = cont.getCellColumns();
+		final long[] counts = cont.getCellCounts();
 		double sumAB = 0;
-		for(int i=1; i<pij.length; i++)
-			for(int j=1; j<pij[0].length; j++)
-			{
-				if( pij[ i ][ j ] != 0 )
-					sumAB += pij[ i ][ j ] * Math.log( pij[ i ][ j ] );
-			}
+		double aux = 0;
+		for( int k = 0; k < counts.length; k++ )
+		{
+			if( rows[ k ] == 0 )
+				continue;
+			final double pij = counts[ k ] / n;
+			if( columns[ k ] == 0 )
+				aux += pij;
+			else
+				sumAB += pij * Math.log( pij );
+		}
 		
-		// vi = full(sumA + sumB - 2*sumAB);
-		return sumA + sumB - 2.0 * sumAB;
+		if( foregroundRestricted )
+		{
+			// sumB = sum(aux(~isnan(aux))) - sum(p_i0)*log(n);
+			sumB -= aux * Math.log( n );
+			// sumAB = s - sum(p_i0)*log(n);
+			sumAB -= aux * Math.log( n );
+		}
+		
+		return new double[]{ sumA, sumB, sumAB };
 	}
 	
 	/**
@@ -410,247 +435,218 @@ public class VariationOfInformation extends Metrics
 	 * @return foreground-restricted variation of information value
 	 */
 	public double foregroundRestrictedVI(
-			ShortProcessor cluster1,
-			ShortProcessor cluster2)
+			ImageProcessor cluster1,
+			ImageProcessor cluster2)
 	{
-		final short[] pixels1 = (short[]) cluster1.getPixels();
-		final short[] pixels2 = (short[]) cluster2.getPixels();
-		
-		// n: number of non-background pixels in the ground truth
-		double n = 0;
-		for( int i=0; i< pixels1.length; i++ )
-			if( pixels1[ i ] != 0 )
-				n++;
-		
-		
-		// reset min and max of the cluster processors 
-		// (needed in order to have correct min-max values)
-		cluster1.resetMinAndMax();
-		cluster2.resetMinAndMax();
-		
-		int nLabelsA = (int) cluster1.getMax();
-		int nLabelsB = (int) cluster2.getMax();
-		
-		// compute overlap matrix
-		double[][]pij = new double[ nLabelsA + 1] [ nLabelsB + 1];
-		for( int i=0; i < pixels1.length; i++ )
-			pij[ pixels1[i] & 0xffff ] [ pixels2[i] & 0xffff ] ++;
-		
-		for( int i=0; i < (nLabelsA + 1); i++ )
-			for( int j=0; j < (nLabelsB + 1); j++ )
-				pij[ i ][ j ] /= n;
-		
-		// sum of squares of sums of rows
-		// (skip background objects in the first cluster)
-		double[] ai = new double[ pij.length ];
-		for(int i=1; i<pij.length; i++)
-			for(int j=0; j<pij[0].length; j++)
-			{
-				ai[ i ] += pij[ i ][ j ];				
-			}
-
-		// sum of squares of sums of columns
-		// (prune out the zero component in the labeling (un-assigned "out" space))
-		double[] bj = new double[ pij[0].length ];
-		for(int j=1; j<pij[0].length; j++)
-			for(int i=1; i<pij.length; i++)
-			{
-				bj[ j ] += pij[ i ][ j ];
-			}
-
-		double[] pi0 = new double[ pij.length ];
-		double aux = 0;
-		for(int i=1; i<pij.length; i++)
-		{
-			pi0[ i ] = pij[ i ][ 0 ];
-			aux += pi0[ i ];
-		}
-
-		// ai, bj and pij are the same in the Rand index calculation,
-		// here they are used in a different way to express the variation
-		// of information
-		
-		// In matlab:
-		// aux = a_i .* log(a_i);
-		// sumA = sum(aux(~isnan(aux)));
-		double sumA = 0;
-		for(int i=0; i<ai.length; i++)
-		{
-			if( ai[ i ] != 0 )
-				sumA += ai[ i ] * Math.log( ai[ i ] );
-		}
-
-		// In matlab:
-		// aux = b_j .* log(b_j);
-		// sumB = sum(aux(~isnan(aux))) - sum(p_i0)*log(n);
-		double sumB = 0;
-		for(int j=0; j<bj.length; j++)
-			if( bj[ j ] != 0 )
-				sumB += bj[ j ] * Math.log( bj[ j ] );
-		sumB -= aux * Math.log( n );
-
-
-		// In matlab:
-		// aux = p_ij .* log(p_ij);
-		// s = sum(aux(~isnan(aux)));
-		// if isempty( s )
-		//    s = 0;
-		// end
-		// sumAB = s - sum(p_i0)*log(n);
-		double sumAB = 0;
-		for(int i=1; i<pij.length; i++)
-			for(int j=1; j<pij[0].length; j++)
-			{
-				if( pij[ i ][ j ] != 0 )
-					sumAB += pij[ i ][ j ] * Math.log( pij[ i ][ j ] );
-			}
-
-		sumAB -= aux * Math.log( n );
+		final double[] sums = entropySums( 
+				new ContingencyTable( cluster1, cluster2 ), true );
 		
 		// vi = full(sumA + sumB - 2*sumAB);
-		return sumA + sumB - 2.0 * sumAB;
+		return sums[ 0 ] + sums[ 1 ] - 2.0 * sums[ 2 ];
+	}
+
+	/**
+	 * Same as {@link #foregroundRestrictedVI(ImageProcessor, ImageProcessor)}
+	 * for 16-bit labels, kept for binary compatibility.
+	 * 
+	 * @param cluster1 labels of cluster 1 (ground truth)
+	 * @param cluster2 labels of cluster 2 (proposal)
+	 * @return foreground-restricted variation of information value
+	 */
+	public double foregroundRestrictedVI(
+			ShortProcessor cluster1,
+			ShortProcessor cluster2 )
+	{
+		return foregroundRestrictedVI( (ImageProcessor) cluster1, (ImageProcessor) cluster2 );
 	}
 	
 	/**
 	 * Get foreground-restricted disagreements between prediction and 
 	 * ground truth labels with N^2 normalization (mergers).
+	 * The array is indexed by proposal label, so its length is the largest
+	 * label plus one; see {@link #getForegroundRestrictedGroundTruthDisagreementMap(ImageProcessor, ImageProcessor)}
+	 * for sparse labels.
 	 * 
 	 * @param cluster1 ground truth cluster
 	 * @param cluster2 proposed cluster
 	 * @return normalized foreground-restricted mergers per label
 	 */
 	public double[] getForegroundRestrictedGroundTruthDisagreements(
-			ShortProcessor cluster1,
-			ShortProcessor cluster2 )
+			ImageProcessor cluster1,
+			ImageProcessor cluster2 )
+	{
+		final ContingencyTable cont = new ContingencyTable( cluster1, cluster2 );
+		final double[] dis = new double[ cont.getMaxColumnLabel() + 1 ];
+		for( final Map.Entry<Integer, Double> e : getGroundTruthDisagreements( cont ).entrySet() )
+			dis[ e.getKey() ] = e.getValue();
+		return dis;
+	}
+
+	/**
+	 * Get foreground-restricted disagreements between prediction and 
+	 * ground truth labels with N^2 normalization (mergers), only for the
+	 * labels present in the proposal.
+	 * 
+	 * @param cluster1 ground truth cluster
+	 * @param cluster2 proposed cluster
+	 * @return normalized foreground-restricted mergers by proposal label
+	 */
+	public HashMap<Integer, Double> getForegroundRestrictedGroundTruthDisagreementMap(
+			ImageProcessor cluster1,
+			ImageProcessor cluster2 )
+	{
+		return getGroundTruthDisagreements( new ContingencyTable( cluster1, cluster2 ) );
+	}
+
+	/**
+	 * Calculate the normalized foreground-restricted mergers of each
+	 * proposal label from the non-empty cells of a contingency table
+	 * 
+	 * @param cont contingency table between ground truth and proposal
+	 * @return normalized foreground-restricted mergers by proposal label
+	 */
+	private static HashMap<Integer, Double> getGroundTruthDisagreements(
+			final ContingencyTable cont )
 	{
-		final short[] pixels1 = (short[]) cluster1.getPixels();
-		final short[] pixels2 = (short[]) cluster2.getPixels();
-		
 		// n: number of non-background pixels in the ground truth
-		double n = 0;
-		for( int i=0; i< pixels1.length; i++ )
-			if( pixels1[ i ] != 0 )
-				n++;
-		
-		// reset min and max of the cluster processors 
-		// (needed in order to have correct min-max values)
-		cluster1.resetMinAndMax();
-		cluster2.resetMinAndMax();
-		
-		int nLabelsA = (int) cluster1.getMax();
-		int nLabelsB = (int) cluster2.getMax();
-		
-		// compute overlap matrix
-		double[][]pij = new double[ nLabelsA + 1] [ nLabelsB + 1];
-		for(int i=0; i<pixels1.length; i++)									
-			pij[ pixels1[i] & 0xffff ] [ pixels2[i] & 0xffff ] ++;
-		
-		for( int i=0; i < (nLabelsA + 1); i++ )
-			for( int j=0; j < (nLabelsB + 1); j++ )
+		final double n = cont.getNumForegroundPixels();
+		
+		// sum of the entropy terms of the cells of each column, indexed
+		// by position in the sorted column labels
+		// (skip background objects in the first cluster)
+		final int[] columnLabels = cont.getColumnLabels();
+		final int[] rows = cont.getCellRows();
+		final int[] columns = cont.getCellColumns();
+		final long[] counts = cont.getCellCounts();
+		final double[] sum = new double[ columnLabels.length ];
+		for( int k = 0; k < counts.length; k++ )
+			if( rows[ k ] != 0 )
 			{
-				pij[ i ][ j ] /= n;
+				final double pij = counts[ k ] / n;
+				sum[ Arrays.binarySearch( columnLabels, columns[ k ] ) ] += pij * Math.log( pij );
 			}
 		
-		// sum of squares of sums of columns
+		// sums of columns
 		// (prune out the zero component in the labeling (un-assigned "out" space))
-		double[] bj = new double[ pij[0].length ];
-		for(int j=1; j<pij[0].length; j++)
-			for(int i=1; i<pij.length; i++)		
-				bj[ j ] += pij[ i ][ j ];
-						
-		// disagreement array
-		double[] dis = new double[ pij[0].length ];
-		
-		for(int j=0; j<bj.length; j++)
-		{
-
-			double sum =0;
-			for(int i=1; i<pij.length; i++)
+		final long[] nj = cont.getColumnSums( true );
+		final HashMap<Integer, Double> dis = new HashMap<Integer, Double>();
+		for( int k = 0; k < nj.length; k++ )
+			if( columnLabels[ k ] != 0 && nj[ k ] != 0 )
 			{
-				double aux = pij[ i ][ j ] * Math.log( pij[ i ][ j ] );
-				if(!Double.isNaN(aux))
-					sum += aux;
+				final double bj = nj[ k ] / n;
+				dis.put( columnLabels[ k ], bj * Math.log( bj ) - sum[ k ] );
 			}
-
-			double aux = bj[ j ] * Math.log( bj[ j ] );
-			if(!Double.isNaN(aux))
-				dis[ j ] = aux - sum;
-		}
-
+		
 		return dis;
 	}
+
+	/**
+	 * Same as {@link #getForegroundRestrictedGroundTruthDisagreements(ImageProcessor, ImageProcessor)}
+	 * for 16-bit labels, kept for binary compatibility.
+	 * 
+	 * @param cluster1 ground truth cluster
+	 * @param cluster2 proposed cluster
+	 * @return normalized foreground-restricted mergers per label
+	 */
+	public double[] getForegroundRestrictedGroundTruthDisagreements(
+			ShortProcessor cluster1,
+			ShortProcessor cluster2 )
+	{
+		return getForegroundRestrictedGroundTruthDisagreements( (ImageProcessor) cluster1, (ImageProcessor) cluster2 );
+	}
 	
 	/**
 	 * Get foreground-restricted disagreements between ground truth and 
 	 * prediction labels with N^2 normalization (splits).
+	 * The array is indexed by ground truth label, so its length is the 
+	 * largest label plus one; see {@link #getForegroundRestrictedPredictionDisagreementMap(ImageProcessor, ImageProcessor)}
+	 * for sparse labels.
 	 * 
 	 * @param cluster1 ground truth cluster
 	 * @param cluster2 proposed cluster
 	 * @return normalized foreground-restricted splits per label
 	 */
 	public double[] getForegroundRestrictedPredictionDisagreements(
-			ShortProcessor cluster1,
-			ShortProcessor cluster2 )
+			ImageProcessor cluster1,
+			ImageProcessor cluster2 )
+	{
+		final ContingencyTable cont = new ContingencyTable( cluster1, cluster2 );
+		final double[] dis = new double[ cont.getMaxRowLabel() + 1 ];
+		for( final Map.Entry<Integer, Double> e : getPredictionDisagreements( cont ).entrySet() )
+			dis[ e.getKey() ] = e.getValue();
+		return dis;
+	}
+
+	/**
+	 * Get foreground-restricted disagreements between ground truth and 
+	 * prediction labels with N^2 normalization (splits), only for the
+	 * labels present in the ground truth.
+	 * 
+	 * @param cluster1 ground truth cluster
+	 * @param cluster2 proposed cluster
+	 * @return normalized foreground-restricted splits by ground truth label
+	 */
+	public HashMap<Integer, Double> getForegroundRestrictedPredictionDisagreementMap(
+			ImageProcessor cluster1,
+			ImageProcessor cluster2 )
+	{
+		return getPredictionDisagreements( new ContingencyTable( cluster1, cluster2 ) );
+	}
+
+	/**
+	 * Calculate the normalized foreground-restricted splits of each
+	 * ground truth label from the non-empty cells of a contingency table
+	 * 
+	 * @param cont contingency table between ground truth and proposal
+	 * @return normalized foreground-restricted splits by ground truth label
+	 */
+	private static HashMap<Integer, Double> getPredictionDisagreements(
+			final ContingencyTable cont )
 	{
-		final short[] pixels1 = (short[]) cluster1.getPixels();
-		final short[] pixels2 = (short[]) cluster2.getPixels();
-		
 		// n: number of non-background pixels in the ground truth
-		double n = 0;
-		for( int i=0; i< pixels1.length; i++ )
-			if( pixels1[ i ] != 0 )
-				n++;
-		
-		// reset min and max of the cluster processors 
-		// (needed in order to have correct min-max values)
-		cluster1.resetMinAndMax();
-		cluster2.resetMinAndMax();
-		
-		int nLabelsA = (int) cluster1.getMax();
-		int nLabelsB = (int) cluster2.getMax();
-		
-		// compute overlap matrix
-		double[][]pij = new double[ nLabelsA + 1] [ nLabelsB + 1];
-		for(int i=0; i<pixels1.length; i++)									
-			pij[ pixels1[i] & 0xffff ] [ pixels2[i] & 0xffff ] ++;
-		
-		for( int i=0; i < (nLabelsA + 1); i++ )
-			for( int j=0; j < (nLabelsB + 1); j++ )
-			{
-				pij[ i ][ j ] /= n;
-			}
-	
-		// disagreement array
-		double[] dis = new double[ pij.length ];
-		
-		// sum of squares of sums of rows
-		// (skip background objects in the first cluster)
-		double[] ai = new double[ pij.length ];
-		for(int i=1; i<pij.length; i++)
+		final double n = cont.getNumForegroundPixels();
+		
+		// sum of the entropy terms of the cells of each row, indexed by
+		// position in the sorted row labels
+		final int[] rowLabels = cont.getRowLabels();
+		final int[] rows = cont.getCellRows();
+		final long[] counts = cont.getCellCounts();
+		final double[] sum = new double[ rowLabels.length ];
+		for( int k = 0; k < counts.length; k++ )
 		{
-			for(int j=0; j<pij[0].length; j++)
-			{
-				ai[ i ] += pij[ i ][ j ];				
-			}
+			final double pij = counts[ k ] / n;
+			sum[ Arrays.binarySearch( rowLabels, rows[ k ] ) ] += pij * Math.log( pij );
 		}
-
-		for(int i=0; i<ai.length; i++)
-		{
-			double sum = 0;
-			for(int j=0; j<pij[0].length; j++)
+		
+		// sums of rows
+		// (skip background objects in the first cluster)
+		final long[] ni = cont.getRowSums();
+		final HashMap<Integer, Double> dis = new HashMap<Integer, Double>();
+		for( int k = 0; k < ni.length; k++ )
+			if( rowLabels[ k ] != 0 )
 			{
-				double aux = pij[ i ][ j ] * Math.log( pij[ i ][ j ] );
-				if(!Double.isNaN(aux))
-					sum += aux;
+				final double ai = ni[ k ] / n;
+				dis.put( rowLabels[ k ], ai * Math.log( ai ) - sum[ k ] );
 			}
-			double aux = ai[ i ] * Math.log( ai[ i ] );
-			if(!Double.isNaN(aux))
-				dis[ i ] = aux - sum;
-		}
 		
 		return dis;
 	}
 
+	/**
+	 * Same as {@link #getForegroundRestrictedPredictionDisagreements(ImageProcessor, ImageProcessor)}
+	 * for 16-bit labels, kept for binary compatibility.
+	 * 
+	 * @param cluster1 ground truth cluster
+	 * @param cluster2 proposed cluster
+	 * @return normalized foreground-restricted splits per label
+	 */
+	public double[] getForegroundRestrictedPredictionDisagreements(
+			ShortProcessor cluster1,
+			ShortProcessor cluster2 )
+	{
+		return getForegroundRestrictedPredictionDisagreements( (ImageProcessor) cluster1, (ImageProcessor) cluster2 );
+	}
+
 	
 	/**
 	 * Get the best F-score of the foreground-restricted variation of information 
@@ -836,7 +832,9 @@ public class VariationOfInformation extends Metrics
 
 	/**
 	 * Get F-score of the variation of
-	 * information over a set of thresholds
+	 * information over a set of thresholds. The values are the same as
+	 * those of <code>getFscore</code> for each threshold (up to round-off),
+	 * including 0 when a slice has a single ground truth or proposal cluster.
 	 * 
 	 * @param minThreshold minimum threshold value to check (included)
 	 * @param maxThreshold maximum threshold value to check (included)
@@ -857,13 +855,36 @@ public class VariationOfInformation extends Metrics
 		double bestFscore = 0;
 		double bestTh = minThreshold;
 		
+		// Sweep all thresholds on each slice at once
+		final double[] thresholds = ThresholdSweep.getThresholds( 
+				minThreshold, maxThreshold, stepThreshold );
+		final ThresholdSweep[] sweeps = sweepThresholds( thresholds );
+		if( null == sweeps )
+			return null;
+		
 		final ArrayList< Double > fscores = new ArrayList< Double >();
 		
-		for(double th = minThreshold; th <= maxThreshold; th += stepThreshold)
+		for(int k = 0; k < thresholds.length; k++)
 		{
+			final double th = thresholds[ k ];
 			if( verbose ) 
 				IJ.log("  Calculating variation of information F-score for threshold value " + String.format("%.3f", th) + "...");
-			final double fScore = getFscore( th );
+			
+			double fScore = 0;
+			for( final ThresholdSweep sweep : sweeps )
+			{
+				// entropy sums in terms of p = count / n
+				final double n = sweep.numPixels;
+				final double logN = Math.log( n );
+				final double sumA = sweep.numLabelClusters[ k ] > 1 ? 
+						sweep.labelEntropy[ k ] / n - logN : 0;
+				final double sumB = sweep.numProposalClusters[ k ] > 1 ? 
+						sweep.proposalEntropy[ k ] / n - logN : 0;
+				final double sumAB = sweep.jointEntropy[ k ] / n 
+						- sweep.jointForeground[ k ] / n * logN;
+				fScore += fscore( sumA, sumB, sumAB );
+			}
+			fScore /= sweeps.length;
 			fscores.add( fScore );
 			if( fScore > bestFscore )
 			{
@@ -1059,11 +1080,9 @@ public class VariationOfInformation extends Metrics
 			}
 
 		// Find components
-		ShortProcessor components1 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("ground truth labels", binaryLabel), 4).allRegions.getProcessor();
+		ImageProcessor components1 = ComponentLabeling.label( binaryLabel, 4 );
 
-		ShortProcessor components2 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("proposal labels", binaryProposal), 4).allRegions.getProcessor();
+		ImageProcessor components2 = ComponentLabeling.label( binaryProposal, 4 );
 
 		return foregroundRestrictedStats( components1, components2 );
 	}
@@ -1209,11 +1228,9 @@ public class VariationOfInformation extends Metrics
 			}
 		
 		// Find components
-		ShortProcessor components1 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("binary labels", binaryLabel), 4).allRegions.getProcessor();
+		ImageProcessor components1 = ComponentLabeling.label( binaryLabel, 4 );
 		
-		ShortProcessor components2 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("proposal labels", binaryProposal), 4).allRegions.getProcessor();
+		ImageProcessor components2 = ComponentLabeling.label( binaryProposal, 4 );
 		
 		return fscore( components1, components2 );
 		
@@ -1245,11 +1262,9 @@ public class VariationOfInformation extends Metrics
 			}
 		
 		// Find components
-		ShortProcessor components1 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("binary labels", binaryLabel), 4).allRegions.getProcessor();
+		ImageProcessor components1 = ComponentLabeling.label( binaryLabel, 4 );
 		
-		ShortProcessor components2 = ( ShortProcessor ) Utils.connectedComponents(
-				new ImagePlus("proposal labels", binaryProposal), 4).allRegions.getProcessor();
+		ImageProcessor components2 = ComponentLabeling.label( binaryProposal, 4 );
 		
 		return foregroundRestrictedFscore( components1, components2 );
 		
@@ -1284,13 +1299,10 @@ public class VariationOfInformation extends Metrics
 			}
 		
 		// Find components of ground truth using connected components
-		ShortProcessor components1 
-			= ( ShortProcessor ) Utils.connectedComponents(
-									new ImagePlus("binary labels", binaryLabel), 
-													4).allRegions.getProcessor();
+		ImageProcessor components1 = ComponentLabeling.label( binaryLabel, 4 );
 		// Thin proposal with watershed transform
 		WatershedTransform2D wt = new WatershedTransform2D( binaryProposal, 4 );
-		ShortProcessor components2 = wt.apply().convertToShortProcessor(false);
+		ImageProcessor components2 = wt.apply();
 		
 		return foregroundRestrictedFscore( components1, components2 );
 		
@@ -1306,118 +1318,28 @@ public class VariationOfInformation extends Metrics
 	 * @return F-score of the variation of information
 	 */
 	public double foregroundRestrictedFscore(
-			ShortProcessor cluster1,
-			ShortProcessor cluster2)
+			ImageProcessor cluster1,
+			ImageProcessor cluster2)
 	{
-		final short[] pixels1 = (short[]) cluster1.getPixels();
-		final short[] pixels2 = (short[]) cluster2.getPixels();
-		
-		// n: number of non-background pixels in the ground truth
-		double n = 0;
-		for( int i=0; i< pixels1.length; i++ )
-			if( pixels1[ i ] != 0 )
-				n++;
-		
-		// reset min and max of the cluster processors 
-		// (needed in order to have correct min-max values)
-		cluster1.resetMinAndMax();
-		cluster2.resetMinAndMax();
-		
-		int nLabelsA = (int) cluster1.getMax();
-		int nLabelsB = (int) cluster2.getMax();
+		final double[] sums = entropySums( 
+				new ContingencyTable( cluster1, cluster2 ), true );
 		
-		// compute overlap matrix
-		double[][]pij = new double[ nLabelsA + 1] [ nLabelsB + 1];
-		for(int i=0; i<pixels1.length; i++)									
-			pij[ pixels1[i] & 0xffff ] [ pixels2[i] & 0xffff ] ++;
-		
-		for( int i=0; i < (nLabelsA + 1); i++ )
-			for( int j=0; j < (nLabelsB + 1); j++ )
-				pij[ i ][ j ] /= n;
-		
-		// sum of squares of sums of rows
-		// (skip background objects in the first cluster)
-		double[] ai = new double[ pij.length ];
-		for(int i=1; i<pij.length; i++)
-			for(int j=0; j<pij[0].length; j++)
-			{
-				ai[ i ] += pij[ i ][ j ];				
-			}
-
-		// sum of squares of sums of columns
-		// (prune out the zero component in the labeling (un-assigned 
-		// "out" space))
-		double[] bj = new double[ pij[0].length ];
-		for(int j=1; j<pij[0].length; j++)
-			for(int i=1; i<pij.length; i++)
-			{
-				bj[ j ] += pij[ i ][ j ];
-			}
-
-		// pi0: pixels marked as BG in cluster2 which are not BG in cluster1
-		double[] pi0 = new double[ pij.length ];
-		double aux = 0;
-		for(int i=1; i<pij.length; i++)
-		{
-			pi0[ i ] = pij[ i ][ 0 ];
-			aux += pi0[ i ];
-		}
-
-		double sumA = 0;
-		for(int i=0; i<ai.length; i++)
-		{
-			if( ai[ i ] != 0 )
-				sumA += ai[ i ] * Math.log( ai[ i ] );
-		}
-		
-		double sumB = 0;
-		for(int j=0; j<bj.length; j++)
-			if( bj[ j ] != 0 )
-				sumB += bj[ j ] * Math.log( bj[ j ] );
-		sumB -= aux * Math.log( n );
-		
-		double sumAB = 0;
-		for(int i=1; i<pij.length; i++)
-			for(int j=1; j<pij[0].length; j++)
-			{
-				if( pij[ i ][ j ] != 0 )
-					sumAB += pij[ i ][ j ] * Math.log( pij[ i ][ j ] );
-			}
-
-		sumAB -= aux * Math.log( n );
-		
-		// H(A)
-		double ha = -sumA;
-		// H(B)
-		double hb = -sumB;
-		// H(A|B)
-		double hab = sumB - sumAB;
-		// H(B|A)
-		double hba = sumA - sumAB;
-		
-		// An information theoretic analog of Rand precision 
-		// is the asymmetrically normalized mutual information
-		// C(A|B) (A = ground truth, B = segmentation)
-		double prec = (ha - hab) / ha;
-
-		// An information theoretic analog of Rand recall 
-		// is defined similarly
-		// C(B|A) (A = ground truth, B = segmentation)
-		double rec = (hb - hba) / hb;
+		return fscore( sums[ 0 ], sums[ 1 ], sums[ 2 ] );
+	}
 
-		if( ha == 0 )
-		{	
-			prec = 0.0;
-		    rec = 1.0;
-		}
-		if( hb == 0 )
-		{	
-			prec = 1.0;
-		    rec = 0.0;
-		}
-				
-		// F-score
-		return 2.0 * prec * rec / (prec + rec);
+	/**
+	 * Same as {@link #foregroundRestrictedFscore(ImageProcessor, ImageProcessor)}
+	 * for 16-bit labels, kept for binary compatibility.
+	 * 
+	 * @param cluster1 labels of cluster 1 (ground truth)
+	 * @param cluster2 labels of cluster 2 (proposal)
+	 * @return F-score of the variation of information
+	 */
+	public double foregroundRestrictedFscore(
+			ShortProcessor cluster1,
+			ShortProcessor cluster2 )
+	{
+		return foregroundRestrictedFscore( (ImageProcessor) cluster1, (ImageProcessor) cluster2 );
 	}
 
 	/**
@@ -1429,104 +1351,98 @@ public class VariationOfInformation extends Metrics
 	 * @param cluster2 labels of cluster 2 (proposal)
 	 * @return variation of information statistics
 	 */
+	public InformationStatistics foregroundRestrictedStats(
+			ImageProcessor cluster1,
+			ImageProcessor cluster2)
+	{
+		return informationStatistics( entropySums( 
+				new ContingencyTable( cluster1, cluster2 ), true ) );
+	}
+
+	/**
+	 * Same as {@link #foregroundRestrictedStats(ImageProcessor, ImageProcessor)}
+	 * for 16-bit labels, kept for binary compatibility.
+	 * 
+	 * @param cluster1 labels of cluster 1 (ground truth)
+	 * @param cluster2 labels of cluster 2 (proposal)
+	 * @return variation of information statistics
+	 */
 	public InformationStatistics foregroundRestrictedStats(
 			ShortProcessor cluster1,
-			ShortProcessor cluster2)
+			ShortProcessor cluster2 )
 	{
-		final short[] pixels1 = (short[]) cluster1.getPixels();
-		final short[] pixels2 = (short[]) cluster2.getPixels();
-		
-		// n: number of non-background pixels in the ground truth
-		double n = 0;
-		for( int i=0; i< pixels1.length; i++ )
-			if( pixels1[ i ] != 0 )
-				n++;
-		
-		// reset min and max of the cluster processors 
-		// (needed in order to have correct min-max values)
-		cluster1.resetMinAndMax();
-		cluster2.resetMinAndMax();
-		
-		int nLabelsA = (int) cluster1.getMax();
-		int nLabelsB = (int) cluster2.getMax();
-		
-		// compute overlap matrix
-		double[][]pij = new double[ nLabelsA + 1] [ nLabelsB + 1];
-		for(int i=0; i<pixels1.length; i++)									
-			pij[ pixels1[i] & 0xffff ] [ pixels2[i] & 0xffff ] ++;
-		
-		for( int i=0; i < (nLabelsA + 1); i++ )
-			for( int j=0; j < (nLabelsB + 1); j++ )
-			{
-				pij[ i ][ j ] /= n;
-			}
+		return foregroundRestrictedStats( (ImageProcessor) cluster1, (ImageProcessor) cluster2 );
+	}
+	
+	/**
+	 * Calculate the variation of information between two 3D clusters
+	 * (N^2 normalization). The overlap matrix of the whole stacks is
+	 * calculated in parallel by blocks of slices. The input images must
+	 * be 8, 16 or 32-bit.
+	 * 
+	 * @param cluster1 labels of cluster 1 (ground truth)
+	 * @param cluster2 labels of cluster 2 (proposal)
+	 * @return variation of information value (-1 if error)
+	 */
+	public static double variationOfInformation3D(
+			ImagePlus cluster1,
+			ImagePlus cluster2)
+	{
+		if( !ContingencyTable.isLabelImage( cluster1.getImageStack().getProcessor(1) )
+				|| !ContingencyTable.isLabelImage( cluster2.getImageStack().getProcessor(1) ) )
+			return -1;
+		
+		final ContingencyTable cont = ContingencyTable.create( 
+				cluster1.getImageStack(), cluster2.getImageStack(),
+				Prefs.getThreads() );
+		if( null == cont )
+			return -1;
+		
+		final double[] sums = entropySums( cont, false );
+		return sums[ 0 ] + sums[ 1 ] - 2.0 * sums[ 2 ];
+	}
+	
+	/**
+	 * Calculate the variation of information statistics between two 3D 
+	 * clusters using the foreground restriction, i.e. pruning out the zero
+	 * component in the labeling (un-assigned "out" space). The overlap 
+	 * matrix of the whole stacks is calculated in parallel by blocks of 
+	 * slices. The input images must be 8, 16 or 32-bit.
+	 * 
+	 * @param cluster1 labels of cluster 1 (ground truth)
+	 * @param cluster2 labels of cluster 2 (proposal)
+	 * @return variation of information statistics (null if error)
+	 */
+	public static InformationStatistics foregroundRestrictedStats3D(
+			ImagePlus cluster1,
+			ImagePlus cluster2)
+	{
+		if( !ContingencyTable.isLabelImage( cluster1.getImageStack().getProcessor(1) )
+				|| !ContingencyTable.isLabelImage( cluster2.getImageStack().getProcessor(1) ) )
+			return null;
 		
-		// sum of squares of sums of rows
-		// (skip background objects in the first cluster)
-		double[] ai = new double[ pij.length ];
-		for(int i=1; i<pij.length; i++)
-		{
-			for(int j=0; j<pij[0].length; j++)
-			{
-				ai[ i ] += pij[ i ][ j ];				
-			}
-		}
-		// sum of squares of sums of columns
-		// (prune out the zero component in the labeling (un-assigned "out" space))
-		double[] bj = new double[ pij[0].length ];
-		for(int j=1; j<pij[0].length; j++)
-			for(int i=1; i<pij.length; i++)
-			{
-				bj[ j ] += pij[ i ][ j ];
-			}
-
-		double[] pi0 = new double[ pij.length ];
-		double aux = 0;
-		for(int i=1; i<pij.length; i++)
-		{
-			pi0[ i ] = pij[ i ][ 0 ];
-			aux += pi0[ i ];
-		}
-
-		// ai, bj and pij are the same in the Rand index calculation,
-		// here they are used in a different way to express the variation
-		// of information
+		final ContingencyTable cont = ContingencyTable.create( 
+				cluster1.getImageStack(), cluster2.getImageStack(),
+				Prefs.getThreads() );
+		if( null == cont )
+			return null;
 		
-		// In matlab:
-		// aux = a_i .* log(a_i);
-		// sumA = sum(aux(~isnan(aux)));
-		double sumA = 0;
-		for(int i=0; i<ai.length; i++)
-		{
-			if( ai[ i ] != 0 )
-				sumA += ai[ i ] * Math.log( ai[ i ] );
-		}
-
-		// In matlab:
-		// aux = b_j .* log(b_j);
-		// sumB = sum(aux(~isnan(aux))) - sum(p_i0)*log(n);
-		double sumB = 0;
-		for(int j=0; j<bj.length; j++)
-			if( bj[ j ] != 0 )
-				sumB += bj[ j ] * Math.log( bj[ j ] );
-		sumB -= aux * Math.log( n );
-
-		// In matlab:
-		// aux = p_ij .* log(p_ij);
-		// s = sum(aux(~isnan(aux)));
-		// if isempty( s )
-		//    s = 0;
-		// end
-		// sumAB = s - sum(p_i0)*log(n);
-		double sumAB = 0;
-		for(int i=1; i<pij.length; i++)
-			for(int j=1; j<pij[0].length; j++)
-			{
-				if( pij[ i ][ j ] != 0 )
-					sumAB += pij[ i ][ j ] * Math.log( pij[ i ][ j ] );
-			}
-
-		sumAB -= aux * Math.log( n );
+		return informationStatistics( entropySums( cont, true ) );
+	}
+	
+	/**
+	 * Calculate the variation of information statistics from the 
+	 * entropy sums of the overlap matrix.
+	 * 
+	 * @param sums sum of a_i * log(a_i), sum of b_j * log(b_j) and
+	 * sum of p_ij * log(p_ij) (as returned by <code>entropySums</code>)
+	 * @return variation of information statistics
+	 */
+	static InformationStatistics informationStatistics( double[] sums )
+	{
+		double sumA = sums[ 0 ];
+		double sumB = sums[ 1 ];
+		double sumAB = sums[ 2 ];
 		
 		// H(A|B)
 		double hab = sumB - sumAB;
@@ -1552,88 +1468,45 @@ public class VariationOfInformation extends Metrics
 	 * @return F-score of the variation of information
 	 */
 	public double fscore(
-			ShortProcessor cluster1,
-			ShortProcessor cluster2)
+			ImageProcessor cluster1,
+			ImageProcessor cluster2)
 	{
-		final short[] pixels1 = (short[]) cluster1.getPixels();
-		final short[] pixels2 = (short[]) cluster2.getPixels();
-		
-		//(new ImagePlus("cluster 1", cluster1)).show();
-		//(new ImagePlus("cluster 2", cluster2)).show();
-		
-		double n = pixels1.length;
-		
-		
-		// reset min and max of the cluster processors 
-		// (needed in order to have correct min-max values)
-		cluster1.resetMinAndMax();
-		cluster2.resetMinAndMax();
-		
-		int nLabelsA = (int) cluster1.getMax();
-		int nLabelsB = (int) cluster2.getMax();
-		
-		// compute overlap matrix
-		double[][]pij = new double[ nLabelsA + 1] [ nLabelsB + 1];
-		for(int i=0; i<n; i++)									
-			pij[ pixels1[i] & 0xffff ] [ pixels2[i] & 0xffff ] ++;
-		
-		for( int i=0; i < (nLabelsA + 1); i++ )
-			for( int j=0; j < (nLabelsB + 1); j++ )
-				pij[ i ][ j ] /= n;
+		final double[] sums = entropySums( 
+				new ContingencyTable( cluster1, cluster2 ), false );
 		
-		// sum of squares of sums of rows
-		double[] ai = new double[ pij.length ];
-		for(int i=0; i<pij.length; i++)
-			for(int j=0; j<pij[0].length; j++)
-			{
-				ai[ i ] += pij[ i ][ j ];				
-			}
-
-		// sum of squares of sums of columns
-		double[] bj = new double[ pij[0].length ];
-		for(int j=0; j<pij[0].length; j++)
-			for(int i=0; i<pij.length; i++)
-			{
-				bj[ j ] += pij[ i ][ j ];
-			}
-
-		// ai, bj and pij are the same in the Rand index calculation,
-		// here they are used in a different way to express the variation
-		// of information
-		
-		// In matlab:
-		// aux = a_i .* log(a_i);
-		// sumA = sum(aux(~isnan(aux)));
-		double sumA = 0;
-		for(int i=0; i<ai.length; i++)
-		{
-			if( ai[ i ] != 0 )
-				sumA += ai[ i ] * Math.log( ai[ i ] );
-		}
-
-		// In matlab:
-		// aux = b_j .* log(b_j);
-		// sumB = sum(aux(~isnan(aux)));
-		double sumB = 0;
-		for(int j=0; j<bj.length; j++)
-			if( bj[ j ] != 0 )
-				sumB += bj[ j ] * Math.log( bj[ j ] );
+		return fscore( sums[ 0 ], sums[ 1 ], sums[ 2 ] );
+	}
 
-		// In matlab:
-		// aux = p_ij .* log(p_ij);
-		// s = sum(aux(~isnan(aux)));
-		// if isempty( s )
-		//    s = 0;
-		// end
-		// sumAB = s;
-		double sumAB = 0;
-		for(int i=1; i<pij.length; i++)
-			for(int j=1; j<pij[0].length; j++)
-			{
-				if( pij[ i ][ j ] != 0 )
-					sumAB += pij[ i ][ j ] * Math.log( pij[ i ][ j ] );
-			}
-		
+	/**
+	 * Same as {@link #fscore(ImageProcessor, ImageProcessor)}
+	 * for 16-bit labels, kept for binary compatibility.
+	 * 
+	 * @param cluster1 labels of cluster 1 (ground truth)
+	 * @param cluster2 labels of cluster 2 (proposal)
+	 * @return F-score of the variation of information
+	 */
+	public double fscore(
+			ShortProcessor cluster1,
+			ShortProcessor cluster2 )
+	{
+		return fscore( (ImageProcessor) cluster1, (ImageProcessor) cluster2 );
+	}
+	
+	/**
+	 * Calculate the F-score of the variation of information from the 
+	 * entropy sums of the overlap matrix. If the ground truth or the
+	 * proposal is a single cluster (zero entropy) the F-score is 0.
+	 * 
+	 * @param sumA sum of a_i * log(a_i) over the rows (ground truth)
+	 * @param sumB sum of b_j * log(b_j) over the columns (proposal)
+	 * @param sumAB sum of p_ij * log(p_ij) over the non-background cells
+	 * @return F-score of the variation of information
+	 */
+	static double fscore(
+			double sumA,
+			double sumB,
+			double sumAB )
+	{
 		// H(A|B)
 		double hab = sumB - sumAB;
 		// H(B|A)
@@ -24,17 +24,14 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.Prefs;
-import ij.process.Blitter;
 import ij.process.ByteProcessor;
-import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.util.ThreadUtil;
 
 import java.awt.Point;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.BitSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -43,7 +40,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.scijava.vecmath.Point3f;
 
-import trainableSegmentation.utils.Utils;
+import trainableSegmentation.utils.ComponentLabeling;
 
 
 /**
@@ -67,7 +64,11 @@ import trainableSegmentation.utils.Utils;
  */
 public class WarpingError extends Metrics {
 
-	/** simple point threshold value */
+	/**
+	 * simple point threshold value
+	 * @deprecated no longer used: every mismatch is a candidate to be flipped
+	 */
+	@Deprecated
 	public static final double SIMPLE_POINT_THRESHOLD = 0;
 	/** merger flag */
 	public static final int MERGE 			= 0x1;
@@ -88,6 +89,27 @@ public class WarpingError extends Metrics {
 	private ImagePlus mask = null;
 	/** flags to select which error should be taken into account and which not */
 	private int flags = DEFAULT_FLAGS;
+
+	/**
+	 * lookup table with the simple point test (4-adjacency for the foreground)
+	 * of every configuration of the 8-neighborhood of a pixel (the result
+	 * does not depend on the value of the pixel itself). The bits of the
+	 * configuration are the neighbors in row order: top-left (bit 0), top,
+	 * top-right, left, right, bottom-left, bottom and bottom-right (bit 7).
+	 */
+	private static final boolean[] SIMPLE_POINT_LUT = new boolean[ 256 ];
+	static
+	{
+		for( int config = 0; config < 256; config++ )
+		{
+			// same test as simple2DBertrand with 4-neighbors
+			final float[] input = new float[ 27 ];
+			for( int i = 0, bit = 0; i < 9; i++ )
+				if( i != 4 )
+					input[ i + 9 ] = ( config >> bit++ ) & 1;
+			SIMPLE_POINT_LUT[ config ] = simple3d( input, 6 );
+		}
+	}
 	
 	/**
 	 * Initialize warping error metric
@@ -1176,7 +1198,7 @@ public class WarpingError extends Metrics {
 				}
 				// ignore the central point
 				im2.getProcessor().set(1, 1, 0);
-				components = Utils.connectedComponents(im2, adjacency).allRegions.getProcessor();
+				components = ComponentLabeling.label( im2.getProcessor(), adjacency, 1 );
 				
 				// zero out locations that are not in the four-neighborhood
 				components.set(0,0,0);
@@ -1198,7 +1220,7 @@ public class WarpingError extends Metrics {
 				}
 				// ignore the central point
 				im2.getProcessor().set(1, 1, 0);
-				components = Utils.connectedComponents(im2, adjacency).allRegions.getProcessor();
+				components = ComponentLabeling.label( im2.getProcessor(), adjacency, 1 );
 				break;
 			default:
 				IJ.error("Non valid adjacency value");
@@ -1225,7 +1247,10 @@ public class WarpingError extends Metrics {
 	
 	/**
 	 * Use simple point relaxation to warp 2D source into 2D target.
-	 * Source is only modified at nonzero locations in the mask
+	 * Source is only modified at nonzero locations in the mask.
+	 * Simple points are detected with a lookup table of the pixel
+	 * neighborhoods, and only the mismatches next to flipped pixels
+	 * are checked again.
 	 *
 	 * @param source input 2D image to be relaxed
 	 * @param target target 2D image
@@ -1285,91 +1310,104 @@ public class WarpingError extends Metrics {
 		for(int i=0; i < targetBinPix.length; i++)
 			targetBinPix[i] = (targetBinPix[i] <= binaryThreshold) ? 0.0f : 1.0f;
 		
-		double diff = Double.MIN_VALUE;
-		double diff_before = 0;
-
 		final WarpingResults result = new WarpingResults();
-
-		while(true)
-		{
-			ImageProcessor missclass_points_image = sourceReal.getProcessor().duplicate();
-			missclass_points_image.copyBits(targetBin.getProcessor(), 0, 0, Blitter.DIFFERENCE);
-
-			diff_before = diff;
-
-			// Count mismatches
-			float[] pixels = (float[]) missclass_points_image.getPixels();
-			float[] mask_pixels = (null != maskReal) ? (float[]) maskReal.getProcessor().getPixels() : new float[pixels.length];
-			if(null == maskReal)
-				Arrays.fill(mask_pixels, 1f);
-
-			diff = 0;
-			for(int k = 0; k < pixels.length; k++)
-				if(pixels[k] != 0 && mask_pixels[k] != 0)
-					diff ++;
-
-			//IJ.log("Difference = " + diff);
-			
-			if( diff == 0 )
+		final float[] mask_pixels = (null != maskReal) ? (float[]) maskReal.getProcessor().getPixels() : null;
+		final float[] realTargetPix = (float[])targetReal.getProcessor().getPixels();
+		final int paddedWidth = width + 2;
+
+		// List the mismatches (in the masked area) sorted in descending
+		// order by the absolute value of the target pixel value - threshold
+		// (ties are kept in column order). Since only mismatches are flipped,
+		// no new mismatches appear and this order is valid until the end.
+		int numMismatches = 0;
+		long[] sortKeys = new long[ 1024 ];
+		for(int x = 1; x < width+1; x++)
+			for(int y = 1; y < height+1; y++)
 			{
-				result.mismatches = new ArrayList<Point3f>();
-				break;
+				final int k = x + y * paddedWidth;
+				if( sourceRealPix[ k ] != targetBinPix[ k ] && ( null == mask_pixels || mask_pixels[ k ] != 0 ) )
+				{
+					if( numMismatches == sortKeys.length )
+						sortKeys = Arrays.copyOf( sortKeys, 2 * numMismatches );
+					final float z = (float) Math.abs( realTargetPix[ k ] - binaryThreshold );
+					sortKeys[ numMismatches ] = ( (long) ( Integer.MAX_VALUE - Float.floatToIntBits( z ) ) << 32 ) | numMismatches;
+					numMismatches++;
+				}
 			}
-			if(diff == diff_before)
-				break;
-
-			final ArrayList<Point3f> mismatches = new ArrayList<Point3f>();
-
-			final float[] realTargetPix = (float[])targetReal.getProcessor().getPixels();
-
-			// Sort mismatches by the absolute value of the target pixel value - threshold
+		Arrays.sort( sortKeys, 0, numMismatches );
+		// index of the pixel of each mismatch (by rank) and rank of each pixel
+		final int[] mismatchIndex = new int[ numMismatches ];
+		final int[] rank = new int[ sourceRealPix.length ];
+		Arrays.fill( rank, -1 );
+		{
+			// positions of the mismatches in column order
+			final int[] columnOrder = new int[ numMismatches ];
+			int n = 0;
 			for(int x = 1; x < width+1; x++)
 				for(int y = 1; y < height+1; y++)
 				{
-					if(pixels[x+y*(width+2)] != 0 && mask_pixels[x+y*(width+2)] != 0)
-						mismatches.add(new Point3f(x , y , (float) Math.abs( realTargetPix[x+y*(width+2)] - binaryThreshold) ));
+					final int k = x + y * paddedWidth;
+					if( sourceRealPix[ k ] != targetBinPix[ k ] && ( null == mask_pixels || mask_pixels[ k ] != 0 ) )
+						columnOrder[ n++ ] = k;
 				}
-
-			// Sort mismatches in descending order
-			if( mismatches.size() > 1 )
-				Collections.sort(mismatches,  new Comparator<Point3f>() {
-					public int compare( Point3f o1, Point3f o2 ) {
-						return Float.compare( o2.z, o1.z );
-					}});
-				
-			// Process mismatches
-			for(final Point3f p : mismatches)
+			for( int r = 0; r < numMismatches; r++ )
 			{
-				final int x = (int) p.x;
-				final int y = (int) p.y;
-
-				if(p.z < SIMPLE_POINT_THRESHOLD)
+				mismatchIndex[ r ] = columnOrder[ (int) sortKeys[ r ] ];
+				rank[ mismatchIndex[ r ] ] = r;
+			}
+		}
+		sortKeys = null;
+
+		// Flip the simple mismatches in order of rank. A mismatch only needs
+		// to be checked again when one of its neighbors is flipped: in the
+		// same pass if it comes later in the order, in the next pass otherwise
+		final int[] neighborOffsets = new int[]{
+				-paddedWidth-1, -paddedWidth, -paddedWidth+1, -1, 1,
+				paddedWidth-1, paddedWidth, paddedWidth+1 };
+		final boolean[] flipped = new boolean[ numMismatches ];
+		int diff = numMismatches;
+		BitSet toCheck = new BitSet( numMismatches );
+		toCheck.set( 0, numMismatches );
+		while( !toCheck.isEmpty() )
+		{
+			final BitSet toCheckNext = new BitSet( numMismatches );
+			for( int r = toCheck.nextSetBit( 0 ); r >= 0; r = toCheck.nextSetBit( r + 1 ) )
+			{
+				final int k = mismatchIndex[ r ];
+				int config = 0;
+				for( int i = 0; i < 8; i++ )
+					if( sourceRealPix[ k + neighborOffsets[ i ] ] > 0 )
+						config |= 1 << i;
+				if( !SIMPLE_POINT_LUT[ config ] )
 					continue;
 
-				double[] val = new double[]{
-						sourceRealPix[ (x-1) + (y-1) * (width+2) ],
-						sourceRealPix[ (x  ) + (y-1) * (width+2) ],
-						sourceRealPix[ (x+1) + (y-1) * (width+2) ],
-						sourceRealPix[ (x-1) + (y  ) * (width+2) ],
-						sourceRealPix[ (x  ) + (y  ) * (width+2) ],
-						sourceRealPix[ (x+1) + (y  ) * (width+2) ],
-						sourceRealPix[ (x-1) + (y+1) * (width+2) ],
-						sourceRealPix[ (x  ) + (y+1) * (width+2) ],
-						sourceRealPix[ (x+1) + (y+1) * (width+2) ]
-				};
-
-				final double pix = val[4];
-
-				final ImagePlus patch = new ImagePlus("patch", new FloatProcessor(3,3,val));
-				if( simple2DBertrand(patch, 4) )
+				sourceRealPix[ k ] = sourceRealPix[ k ] > 0.0 ? 0.0f : 1.0f;
+				flipped[ r ] = true;
+				diff--;
+				for( int i = 0; i < 8; i++ )
 				{
-					sourceRealPix[ x + y * (width+2)] =  pix > 0.0 ? 0.0f : 1.0f ;
-					//IJ.log("flipping pixel x: " + x + " y: " + y + " to " + (pix > 0  ? 0.0 : 1.0));
+					final int neighborRank = rank[ k + neighborOffsets[ i ] ];
+					if( neighborRank < 0 || flipped[ neighborRank ] )
+						continue;
+					if( neighborRank > r )
+						toCheck.set( neighborRank );
+					else
+						toCheckNext.set( neighborRank );
 				}
 			}
-			result.mismatches = mismatches;
+			toCheck = toCheckNext;
 		}
 
+		// Remaining mismatches (sorted in descending order)
+		result.mismatches = new ArrayList<Point3f>();
+		for( int r = 0; r < numMismatches; r++ )
+			if( !flipped[ r ] )
+			{
+				final int k = mismatchIndex[ r ];
+				result.mismatches.add( new Point3f( k % paddedWidth, k / paddedWidth,
+						(float) Math.abs( realTargetPix[ k ] - binaryThreshold ) ) );
+			}
+
 		//IJ.run(sourceReal, "Canvas Size...", "width="+ width + " height=" + height + " position=Center zero");
 		ip = source.createProcessor(width, height);
 		ip.insert(sourceReal.getProcessor(), -1, -1);
@@ -1386,7 +1424,7 @@ public class WarpingError extends Metrics {
 		
 		result.mismatches = mismatches;
 		result.warpedSource = sourceReal;
-		result.warpingError = diff / (width * height);
+		result.warpingError = (double) diff / (width * height);
 		return result;
 	}
 
@@ -1986,9 +2024,8 @@ public class WarpingError extends Metrics {
 			radiusToUse = -1;			
 		
 		// Calculate components in warped labels
-		ImageProcessor components = Utils.connectedComponents(
-				new ImagePlus("8-bit warped labels", warpedLabels.getProcessor().convertToByte(true)
-						), 4).allRegions.getProcessor();
+		ImageProcessor components = ComponentLabeling.label(
+				warpedLabels.getProcessor().convertToByte(true), 4 );
 		
 		int n = 0;
 		for(Point3f p : mismatches)
@@ -2066,7 +2103,7 @@ public class WarpingError extends Metrics {
 					warpedPixels2.set( pixelOfInterest.x, pixelOfInterest.y, 0 );
 					
 					// Calculate components in the new warped labels
-					ImageProcessor components2 = Utils.connectedComponents(new ImagePlus("8-bit warped labels", warpedPixels2), 4).allRegions.getProcessor();
+					ImageProcessor components2 = ComponentLabeling.label( warpedPixels2, 4 );
 
 					//(new ImagePlus( "components", components2)).show();
 
@@ -2135,9 +2172,8 @@ public class WarpingError extends Metrics {
 		final int[] pointClassification = new int[ mismatches.size() ];
 		
 		// Calculate components in warped labels
-		ImageProcessor components = Utils.connectedComponents(
-				new ImagePlus("8-bit warped labels", warpedLabels.getProcessor().convertToByte(true)
-						), 4).allRegions.getProcessor();
+		ImageProcessor components = ComponentLabeling.label(
+				warpedLabels.getProcessor().convertToByte(true), 4 );
 		
 		int n = 0;
 		for(Point3f p : mismatches)
@@ -2202,7 +2238,7 @@ public class WarpingError extends Metrics {
 					final ByteProcessor warpedPixels2 = (ByteProcessor) warpedLabels.getProcessor().duplicate().convertToByte(true);
 					warpedPixels2.set( x, y, warpedPixels2.get(x, y) != 0 ? 0 : 255);
 					// Calculate components in the new warped labels
-					ImageProcessor components2 = Utils.connectedComponents(new ImagePlus("8-bit warped labesl", warpedPixels2), 4).allRegions.getProcessor();
+					ImageProcessor components2 = ComponentLabeling.label( warpedPixels2, 4 );
 
 
 					final ArrayList<Integer> neighborhood2 = getNeighborhood(components2, new Point(x, y), 1, 1);								
@@ -2326,9 +2362,7 @@ public class WarpingError extends Metrics {
 		int[] componentsPerCase = new int[8];
 		for(int i=0; i<8; i++)
 		{
-			ImagePlus im = new ImagePlus("components case " + i, binaryMismatches[ i ]);
-			//im.show();
-			componentsPerCase[i] = Utils.connectedComponents(	im, connectivity[ i ]).regionInfo.size();
+			componentsPerCase[i] = ComponentLabeling.countComponents( binaryMismatches[ i ], connectivity[ i ] );
 		}
 						
 		return new ClusteredWarpingMismatches(componentsPerCase[ 0 ], 
@@ -2436,7 +2470,7 @@ public class WarpingError extends Metrics {
 	 * @param space
 	 * @return number of cavities of the 3D neighborhood
 	 */
-	int nca(float[] input, int con, int space)
+	static int nca(float[] input, int con, int space)
 	{
 		int tsum;
 		switch (con)
@@ -2463,7 +2497,7 @@ public class WarpingError extends Metrics {
 	 * @param space
 	 * @return
 	 */
-	int ncb(float[] input, char ctyp, int con, int space)
+	static int ncb(float[] input, char ctyp, int con, int space)
 	{
 		int tsum;
 		final int[][][] a6m = new int[][][]{{{0,1,0}, {1,5,1}, {0,1,0}},
@@ -2620,7 +2654,7 @@ public class WarpingError extends Metrics {
 	 * @param region adjacency (26 or 6)
 	 * @return true if the point is simple
 	 */
-	boolean simple3d(float[] input, int region)
+	static boolean simple3d(float[] input, int region)
 	{
 		boolean simple = false;
 
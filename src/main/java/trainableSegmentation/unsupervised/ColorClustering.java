@@ -3,20 +3,22 @@ package trainableSegmentation.unsupervised;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.measure.Calibration;
 import ij.process.ByteProcessor;
-import ij.process.ColorSpaceConverter;
+import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
-import ij.process.ImageConverter;
+import ij.process.ImageProcessor;
 import trainableSegmentation.FeatureStack;
 import trainableSegmentation.FeatureStackArray;
-import trainableSegmentation.ReusableDenseInstance;
+import trainableSegmentation.utils.PixelSampler;
 import weka.clusterers.AbstractClusterer;
 import weka.core.Attribute;
+import weka.core.DenseInstance;
 import weka.core.Instances;
 import weka.core.SerializationHelper;
 
-import java.awt.Point;
+import java.awt.Color;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
@@ -29,7 +31,11 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -138,6 +144,45 @@ public class ColorClustering {
     private int numSamples;
     /** clustering Weka model used to cluster color image */
     private AbstractClusterer theClusterer;
+    /** sampling strategy of the pixels used to build the clusterer */
+    private int samplingStrategy = UNIFORM_SAMPLING;
+    /** random number generator used to sample the pixels */
+    private Random random = new Random();
+
+    /** samples drawn uniformly from every slice */
+    public static final int UNIFORM_SAMPLING = 0;
+    /** samples stratified by square tiles of every slice */
+    public static final int TILE_SAMPLING = 1;
+    /** samples stratified by bins of the RGB colors of every slice */
+    public static final int COLOR_BIN_SAMPLING = 2;
+    /** side (in pixels) of the tiles used by the tile sampling */
+    public static final int SAMPLING_TILE_SIZE = 64;
+
+    /** D65 white point used by the Lab conversion (as in ColorSpaceConverter) */
+    private static final double[] whitePoint = new double[]{ 95.0429, 100.0, 108.8900 };
+    /** sRGB to XYZ matrix */
+    private static final double[][] rgbToXyz = new double[][]{
+        { 0.4124, 0.3576, 0.1805 },
+        { 0.2126, 0.7152, 0.0722 },
+        { 0.0193, 0.1192, 0.9505 } };
+    /** linear (gamma expanded) value of each 8-bit sRGB value, scaled to [0, 100] */
+    private static final double[] linearLUT = new double[ 256 ];
+    /** largest X/Xn, Y/Yn and Z/Zn values covered by the Lab lookup table */
+    private static final double LAB_LUT_MAX = 1.01;
+    /** Lab function f(t) (cube root with linear toe) sampled in [0, LAB_LUT_MAX] */
+    private static final float[] labLUT = new float[ 8193 ];
+    static {
+        for( int v = 0; v < 256; v++ )
+        {
+            final double c = v / 255.0;
+            linearLUT[ v ] = 100 * ( c <= 0.04045 ? c / 12.92 : Math.pow( ( c + 0.055 ) / 1.055, 2.4 ) );
+        }
+        for( int i = 0; i < labLUT.length; i++ )
+        {
+            final double t = i * LAB_LUT_MAX / ( labLUT.length - 1 );
+            labLUT[ i ] = (float) ( t > 0.008856 ? Math.cbrt( t ) : 7.787 * t + 16.0 / 116.0 );
+        }
+    }
 
 
     /**
@@ -171,12 +216,13 @@ public class ColorClustering {
 
     /**
      * Build clusterer using the current features and the provided number of clusters.
+     * MiniBatchKMeans clusterers are built on all the pixels instead of the samples.
      * @param selectedClusterer clustering Weka model to build
      * @return built clustering Weka model
      */
     public AbstractClusterer createClusterer(AbstractClusterer selectedClusterer){
         PixelClustering pixelClustering = new PixelClustering(this.getFeaturesInstances(),selectedClusterer);
-        pixelClustering.buildClusterer();
+        pixelClustering.buildClusterer(featureStackArray);
         AbstractClusterer clusterer = pixelClustering.getSelectedClusterer();
         return clusterer;
     }
@@ -191,71 +237,9 @@ public class ColorClustering {
         // Initialize feature stack array
         featureStackArray = new FeatureStackArray(image.getStackSize());
 
+        final Channel[] selected = channels.toArray( new Channel[ channels.size() ] );
         for(int slice = 1; slice <= image.getStackSize(); ++slice){
-            boolean labactive=false,rgbactive=false,hsbactive=false;
-            ImageConverter ic,ic2;
-            ImagePlus rgb,hsb,lab;
-            ImageStack stack = new ImageStack(image.getWidth(),image.getHeight());
-            ColorSpaceConverter converter = new ColorSpaceConverter();
-            for(int i=0;i<channels.size();++i){
-                if(channels.get(i).toString()=="Red"||channels.get(i).toString()=="Blue"||channels.get(i).toString()=="Green"){
-                    rgbactive=true;
-                }else if(channels.get(i).toString()=="Lightness"||channels.get(i).toString()=="a"||channels.get(i).toString()=="b"){
-                    labactive=true;
-                }else if(channels.get(i).toString()=="Hue"||channels.get(i).toString()=="Saturation"||channels.get(i).toString()=="Brightness"){
-                    hsbactive=true;
-                }
-            }
-            if(labactive){
-                lab = converter.RGBToLab(new ImagePlus("Lab", image.getStack().getProcessor(slice)));
-            }else {
-                lab = null;
-            }
-            if(rgbactive) {
-                rgb = new ImagePlus("RGB",image.getStack().getProcessor(slice));
-                ic = new ImageConverter(rgb);
-                ic.convertToRGBStack();
-            }else {
-                rgb = null;
-            }
-            if(hsbactive) {
-                hsb = new ImagePlus("HSB",image.getStack().getProcessor(slice));
-                ic2 = new ImageConverter(hsb);
-                ic2.convertToHSB();
-            }else {
-                hsb = null;
-            }
-            for(int i=0;i<channels.size();++i){
-                switch (channels.get(i)){
-                    case Lightness:
-                        stack.addSlice("L",lab.getStack().getProcessor(1));
-                        break;
-                    case a:
-                        stack.addSlice("a", lab.getStack().getProcessor(2));
-                        break;
-                    case b:
-                        stack.addSlice("b",lab.getStack().getProcessor(3));
-                        break;
-                    case Red:
-                        stack.addSlice("Red",rgb.getStack().getProcessor(1).convertToFloatProcessor());
-                        break;
-                    case Green:
-                        stack.addSlice("Green",rgb.getStack().getProcessor(2).convertToFloatProcessor());
-                        break;
-                    case Blue:
-                        stack.addSlice("Blue",rgb.getStack().getProcessor(3).convertToFloatProcessor());
-                        break;
-                    case Hue:
-                        stack.addSlice("Hue",hsb.getStack().getProcessor(1).convertToFloatProcessor());
-                        break;
-                    case Saturation:
-                        stack.addSlice("Saturation",hsb.getStack().getProcessor(2).convertToFloatProcessor());
-                        break;
-                    case Brightness:
-                        stack.addSlice("Brightness",hsb.getStack().getProcessor(3).convertToFloatProcessor());
-                        break;
-                }
-            }
+            ImageStack stack = createChannelStack(image.getStack().getProcessor(slice), selected, Prefs.getThreads());
             FeatureStack features = new FeatureStack(stack.getWidth(),stack.getHeight(),false);
             features.setStack(stack);
 
@@ -268,22 +252,167 @@ public class ColorClustering {
             	attributes.add( new Attribute( attString ) );
             }
 
-            featuresInstances =
-            		new Instances( image.getShortTitle() + "-features",
-            				attributes, 1 );
-
-            ArrayList<Point> positions = new ArrayList<Point>();
-            for(int x=0;x<image.getWidth();++x){
-                for(int y=0;y<image.getHeight();++y){
-                    positions.add(new Point(x,y));
-                }
+            // the instances of all slices are accumulated
+            if( slice == 1 )
+                featuresInstances =
+                		new Instances( image.getShortTitle() + "-features",
+                				attributes, 1 );
+
+            // Draw the sample positions and read their features from the
+            // channel pixels
+            final int[] samples = samplePixels( slice, samplesPerSlice );
+            final ImageProcessor[] channelSlices = new ImageProcessor[ stack.getSize() ];
+            for( int i = 0; i < channelSlices.length; i++ )
+                channelSlices[ i ] = stack.getProcessor( i + 1 );
+            for( int i = 0; i < samples.length; ++i ){
+                final double[] values = new double[ channelSlices.length ];
+                for( int c = 0; c < channelSlices.length; c++ )
+                    values[ c ] = channelSlices[ c ].getf( samples[ i ] );
+                featuresInstances.add( new DenseInstance( 1.0, values ) );
             }
-            Collections.shuffle(positions);
-            for(int i=0;i<samplesPerSlice;++i){
-                featuresInstances.add(featureStackArray.get(slice-1).createInstance(positions.get(i).x,positions.get(i).y));
-                //IJ.log("Position:"+positions.get(i).toString()+";"+ featureStackArray.get(slice-1).createInstance(positions.get(i).x,positions.get(i).y).toString());//this values are wrong
-                //IJ.log("Added element "+i+" from coordinates "+positions.get(i).x+","+positions.get(i).y);
+        }
+    }
+
+    /**
+     * Convert a color image to the selected channels in a single pass. Every
+     * pixel is decoded once and only the selected channels are written. The
+     * Lab channels follow ColorSpaceConverter (D65 white point) using lookup
+     * tables for the gamma expansion and the cube root, and the HSB channels
+     * follow ImageJ's 8-bit HSB conversion. Rows are split among threads.
+     * @param ip color image (other types are converted to RGB)
+     * @param selected channels to compute, in output order
+     * @param numThreads number of threads to use
+     * @return stack with one 32-bit slice per selected channel
+     */
+    public static ImageStack createChannelStack(
+            ImageProcessor ip,
+            final Channel[] selected,
+            int numThreads )
+    {
+        final int[] rgb = (int[]) ( ip instanceof ColorProcessor ? ip : ip.convertToRGB() ).getPixels();
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
+
+        // one output array per selected channel (indexed by channel ordinal)
+        final float[][] out = new float[ Channel.numChannels() ][];
+        for( Channel ch : selected )
+            if( null == out[ ch.ordinal() ] )
+                out[ ch.ordinal() ] = new float[ width * height ];
+        final boolean lab = null != out[ Channel.Lightness.ordinal() ]
+                || null != out[ Channel.a.ordinal() ] || null != out[ Channel.b.ordinal() ];
+        final boolean hsb = null != out[ Channel.Hue.ordinal() ]
+                || null != out[ Channel.Saturation.ordinal() ] || null != out[ Channel.Brightness.ordinal() ];
+
+        final int nStripes = Math.max( 1, Math.min( numThreads, height ) );
+        final ExecutorService exe = Executors.newFixedThreadPool( nStripes );
+        final ArrayList< Future<Void> > futures = new ArrayList< Future<Void> >();
+        try {
+            for( int s = 0; s < nStripes; s++ )
+            {
+                final int first = (int) ( (long) height * s / nStripes ) * width;
+                final int last = (int) ( (long) height * ( s + 1 ) / nStripes ) * width;
+                futures.add( exe.submit( new Callable<Void>() {
+                    public Void call() {
+                        final float[] hsbValues = new float[ 3 ];
+                        for( int i = first; i < last; i++ )
+                        {
+                            final int r = ( rgb[ i ] >> 16 ) & 0xff;
+                            final int g = ( rgb[ i ] >> 8 ) & 0xff;
+                            final int b = rgb[ i ] & 0xff;
+                            if( null != out[ Channel.Red.ordinal() ] )
+                                out[ Channel.Red.ordinal() ][ i ] = r;
+                            if( null != out[ Channel.Green.ordinal() ] )
+                                out[ Channel.Green.ordinal() ][ i ] = g;
+                            if( null != out[ Channel.Blue.ordinal() ] )
+                                out[ Channel.Blue.ordinal() ][ i ] = b;
+                            if( lab )
+                            {
+                                final double lr = linearLUT[ r ], lg = linearLUT[ g ], lb = linearLUT[ b ];
+                                final float fx = labFunction( ( rgbToXyz[ 0 ][ 0 ] * lr + rgbToXyz[ 0 ][ 1 ] * lg + rgbToXyz[ 0 ][ 2 ] * lb ) / whitePoint[ 0 ] );
+                                final float fy = labFunction( ( rgbToXyz[ 1 ][ 0 ] * lr + rgbToXyz[ 1 ][ 1 ] * lg + rgbToXyz[ 1 ][ 2 ] * lb ) / whitePoint[ 1 ] );
+                                final float fz = labFunction( ( rgbToXyz[ 2 ][ 0 ] * lr + rgbToXyz[ 2 ][ 1 ] * lg + rgbToXyz[ 2 ][ 2 ] * lb ) / whitePoint[ 2 ] );
+                                if( null != out[ Channel.Lightness.ordinal() ] )
+                                    out[ Channel.Lightness.ordinal() ][ i ] = 116 * fy - 16;
+                                if( null != out[ Channel.a.ordinal() ] )
+                                    out[ Channel.a.ordinal() ][ i ] = 500 * ( fx - fy );
+                                if( null != out[ Channel.b.ordinal() ] )
+                                    out[ Channel.b.ordinal() ][ i ] = 200 * ( fy - fz );
+                            }
+                            if( hsb )
+                            {
+                                Color.RGBtoHSB( r, g, b, hsbValues );
+                                if( null != out[ Channel.Hue.ordinal() ] )
+                                    out[ Channel.Hue.ordinal() ][ i ] = (int) ( hsbValues[ 0 ] * 255.0 );
+                                if( null != out[ Channel.Saturation.ordinal() ] )
+                                    out[ Channel.Saturation.ordinal() ][ i ] = (int) ( hsbValues[ 1 ] * 255.0 );
+                                if( null != out[ Channel.Brightness.ordinal() ] )
+                                    out[ Channel.Brightness.ordinal() ][ i ] = (int) ( hsbValues[ 2 ] * 255.0 );
+                            }
+                        }
+                        return null;
+                    }
+                }));
             }
+            for( Future<Void> f : futures )
+                f.get();
+        } catch (Exception e) {
+            IJ.log( "Error when converting the color channels." );
+            e.printStackTrace();
+        } finally {
+            exe.shutdown();
+        }
+
+        final ImageStack stack = new ImageStack( width, height );
+        for( Channel ch : selected )
+            stack.addSlice( ch == Channel.Lightness ? "L" : ch.toString(),
+                    new FloatProcessor( width, height, out[ ch.ordinal() ] ) );
+        return stack;
+    }
+
+    /**
+     * Lab function f(t) read from the lookup table with linear interpolation
+     * @param t normalized X, Y or Z value
+     * @return cube root of t (or its linear toe for small values)
+     */
+    private static float labFunction( double t )
+    {
+        final double pos = Math.min( Math.max( t, 0 ), LAB_LUT_MAX ) * ( labLUT.length - 1 ) / LAB_LUT_MAX;
+        final int i = Math.min( (int) pos, labLUT.length - 2 );
+        final float w = (float) ( pos - i );
+        return labLUT[ i ] + w * ( labLUT[ i + 1 ] - labLUT[ i ] );
+    }
+
+    /**
+     * Draw the positions of the pixels of a slice used to build the clusterer
+     * (without replacement), following the current sampling strategy.
+     * @param slice slice number (from 1)
+     * @param numSamples number of samples to draw
+     * @return sorted pixel indices
+     */
+    private int[] samplePixels( int slice, int numSamples ){
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        switch( samplingStrategy ){
+            case TILE_SAMPLING:
+                return PixelSampler.sampleTiles( width, height, SAMPLING_TILE_SIZE, numSamples, random );
+            case COLOR_BIN_SAMPLING:
+                if( image.getStack().getProcessor( slice ) instanceof ColorProcessor ){
+                    // 4 x 4 x 4 bins of the RGB cube
+                    final int[] rgb = (int[]) image.getStack().getProcessor( slice ).getPixels();
+                    return PixelSampler.sampleStrata( rgb.length, new PixelSampler.Strata(){
+                        public int getNumStrata(){
+                            return 64;
+                        }
+                        public int getStratum( int index ){
+                            final int c = rgb[ index ];
+                            return ( ( c >> 18 ) & 0x30 ) | ( ( c >> 12 ) & 0x0c ) | ( ( c >> 6 ) & 0x03 );
+                        }
+                    }, numSamples, random );
+                }
+                // no colors to bin, sample uniformly
+                return PixelSampler.sample( width * height, numSamples, random );
+            default:
+                return PixelSampler.sample( width * height, numSamples, random );
         }
     }
 
@@ -294,71 +423,9 @@ public class ColorClustering {
      */
     public FeatureStackArray createFSArray(ImagePlus image){
         FeatureStackArray fsa = new FeatureStackArray(image.getStackSize());
+        final Channel[] selected = channels.toArray( new Channel[ channels.size() ] );
         for(int slice = 1; slice <= image.getStackSize(); ++slice) {
-            boolean labactive = false, rgbactive = false, hsbactive = false;
-            ImageConverter ic, ic2;
-            ImagePlus rgb, hsb, lab;
-            ImageStack stack = new ImageStack(image.getWidth(), image.getHeight());
-            ColorSpaceConverter converter = new ColorSpaceConverter();
-            for (int i = 0; i < channels.size(); ++i) {
-                if (channels.get(i).toString() == "Red" || channels.get(i).toString() == "Blue" || channels.get(i).toString() == "Green") {
-                    rgbactive = true;
-                } else if (channels.get(i).toString() == "Lightness" || channels.get(i).toString() == "a" || channels.get(i).toString() == "b") {
-                    labactive = true;
-                } else if (channels.get(i).toString() == "Hue" || channels.get(i).toString() == "Saturation" || channels.get(i).toString() == "Brightness") {
-                    hsbactive = true;
-                }
-            }
-            if (labactive) {
-                lab = converter.RGBToLab(new ImagePlus("Lab", image.getStack().getProcessor(slice)));
-            } else {
-                lab = null;
-            }
-            if (rgbactive) {
-                rgb = new ImagePlus("RGB",image.getStack().getProcessor(slice));
-                ic = new ImageConverter(rgb);
-                ic.convertToRGBStack();
-            } else {
-                rgb = null;
-            }
-            if (hsbactive) {
-                hsb = new ImagePlus("HSB",image.getStack().getProcessor(slice));
-                ic2 = new ImageConverter(hsb);
-                ic2.convertToHSB();
-            } else {
-                hsb = null;
-            }
-            for (int i = 0; i < channels.size(); ++i) {
-                switch (channels.get(i)) {
-                    case Lightness:
-                        stack.addSlice("L", lab.getStack().getProcessor(1));
-                        break;
-                    case a:
-                        stack.addSlice("a", lab.getStack().getProcessor(2));
-                        break;
-                    case b:
-                        stack.addSlice("b", lab.getStack().getProcessor(3));
-                        break;
-                    case Red:
-                        stack.addSlice("Red", rgb.getStack().getProcessor(1).convertToFloatProcessor());
-                        break;
-                    case Green:
-                        stack.addSlice("Green", rgb.getStack().getProcessor(2).convertToFloatProcessor());
-                        break;
-                    case Blue:
-                        stack.addSlice("Blue", rgb.getStack().getProcessor(3).convertToFloatProcessor());
-                        break;
-                    case Hue:
-                        stack.addSlice("Hue", hsb.getStack().getProcessor(1).convertToFloatProcessor());
-                        break;
-                    case Saturation:
-                        stack.addSlice("Saturation", hsb.getStack().getProcessor(2).convertToFloatProcessor());
-                        break;
-                    case Brightness:
-                        stack.addSlice("Brightness", hsb.getStack().getProcessor(3).convertToFloatProcessor());
-                        break;
-                }
-            }
+            ImageStack stack = createChannelStack(image.getStack().getProcessor(slice), selected, Prefs.getThreads());
             FeatureStack features = new FeatureStack(stack.getWidth(), stack.getHeight(), false);
             features.setStack(stack);
             fsa.set(features, slice - 1);
@@ -374,7 +441,6 @@ public class ColorClustering {
     public ImagePlus createProbabilityMaps(FeatureStackArray featureStackArray){
         int height;
         int width;
-        int numInstances;
         int numClusters=0;
         try {
             numClusters = theClusterer.numberOfClusters();
@@ -385,49 +451,17 @@ public class ColorClustering {
         calibration = image.getCalibration();
         height = featureStackArray.getHeight();
         width = featureStackArray.getWidth();
-        numInstances = height*width;
         ImageStack clusteringResult = new ImageStack(width,height);
+        String[] classLabels = new String[numClusters];
+        for(int i=0;i<numClusters;++i){
+            classLabels[i]="Cluster "+i;
+        }
         for(int slice = 1; slice <= featureStackArray.getSize(); ++slice){
-            double clusterArray[][] = new double[numClusters][numInstances];
-            FeatureStack features = featureStackArray.get(slice-1);
-            ArrayList<Attribute> attributes = new ArrayList<Attribute>();
-            Instances instances;
-            for (int i=1; i<=featureStackArray.get(slice-1).getSize(); i++)
-            {
-                String attString = featureStackArray.get(slice-1).getSliceLabel(i);
-                attributes.add( new Attribute( attString ) );
-            }
-
-            if( featureStackArray.get(slice-1).useNeighborhood() )
-                for (int i=0; i<8; i++)
-                {
-                    //IJ.log("Adding extra attribute original_neighbor_" + (i+1) + "...");
-                    attributes.add( new Attribute( new String( "original_neighbor_" + (i+1) ) ) );
-                }
-            instances = new Instances(image.getTitle()+"-features", attributes, 1);
-            final double[] values = new double[features.getSize()];
-            final ReusableDenseInstance ins = new ReusableDenseInstance(1.0,values);
-            ins.setDataset(instances);
-            String[] classLabels = new String[numClusters];
-            for(int i=0;i<numClusters;++i){
-                classLabels[i]="Cluster "+i;
-            }
-
-            for (int x=0;x<width;++x){
-                for(int y=0;y<height;++y){
-                    features.setInstance(x,y,ins,values);
-                    try {
-                        double[] prob = theClusterer.distributionForInstance( ins );
-                        for(int k = 0 ; k < numClusters; k++)
-                            clusterArray[k][x+y*width] =  prob[k];
-                        //IJ.log(ins.toString());
-                        //IJ.log("Coordinates: "+x+","+y+" Cluster: "+clusterArray[x+y*width]);
-                    }catch (Exception e){
-                        e.printStackTrace();
-                        return null;
-                    }
-                }
-            }
+            // pixels are evaluated concurrently
+            final float[][] clusterArray = PixelClustering.distributionForPixels(
+                    theClusterer, featureStackArray.get(slice-1), Prefs.getThreads() );
+            if( null == clusterArray )
+                return null;
             for(int k = 0 ; k < numClusters; k++){
                 FloatProcessor processor = new FloatProcessor(width,height,clusterArray[k]);
                 try {
@@ -457,41 +491,17 @@ public class ColorClustering {
     public ImagePlus createClusteredImage(FeatureStackArray featureStackArray){
         int height;
         int width;
-        int numInstances;
         Calibration calibration = new Calibration();
         calibration = image.getCalibration();
         height = featureStackArray.getHeight();
         width = featureStackArray.getWidth();
-        numInstances = height*width;
         ImageStack clusteringResult = new ImageStack(width,height);
         for(int slice = 1; slice <= featureStackArray.getSize(); ++slice){
-            byte clusterArray[] = new byte[numInstances];
-            FeatureStack features = featureStackArray.get(slice-1);
-            ArrayList<Attribute> attributes = new ArrayList<Attribute>();
-            Instances instances;
-            for (int i=1; i<=featureStackArray.get(slice-1).getSize(); i++)
-            {
-                String attString = featureStackArray.get(slice-1).getSliceLabel(i);
-                attributes.add( new Attribute( attString ) );
-            }
-
-            instances = new Instances(image.getShortTitle()+"-features", attributes, 1);
-            final double[] values = new double[features.getSize()];
-            final ReusableDenseInstance ins = new ReusableDenseInstance(1.0,values);
-            ins.setDataset(instances);
-            for (int x=0;x<width;++x){
-                for(int y=0;y<height;++y){
-                    features.setInstance(x,y,ins,values);
-                    try {
-                        clusterArray[x+y*width]= (byte) theClusterer.clusterInstance(ins);
-                        //IJ.log(ins.toString());
-                        //IJ.log("Coordinates: "+x+","+y+" Cluster: "+clusterArray[x+y*width]);
-                    }catch (Exception e){
-                        e.printStackTrace();
-                        return null;
-                    }
-                }
-            }
+            // pixels are clustered concurrently
+            final byte[] clusterArray = PixelClustering.clusterPixels(
+                    theClusterer, featureStackArray.get(slice-1), Prefs.getThreads() );
+            if( null == clusterArray )
+                return null;
             ByteProcessor processor = new ByteProcessor(width,height,clusterArray);
             try {
                 processor.setMinAndMax(0,theClusterer.numberOfClusters());
@@ -646,6 +656,31 @@ public class ColorClustering {
         this.numSamples = numSamples;
     }
 
+    /**
+     * Get the sampling strategy of the pixels used to build the clusterer
+     * @return UNIFORM_SAMPLING, TILE_SAMPLING or COLOR_BIN_SAMPLING
+     */
+    public int getSamplingStrategy() {
+        return samplingStrategy;
+    }
+
+    /**
+     * Set the sampling strategy of the pixels used to build the clusterer
+     * (it is used the next time the features are created)
+     * @param samplingStrategy UNIFORM_SAMPLING, TILE_SAMPLING or COLOR_BIN_SAMPLING
+     */
+    public void setSamplingStrategy(int samplingStrategy) {
+        this.samplingStrategy = samplingStrategy;
+    }
+
+    /**
+     * Set the seed of the random sampling of pixels
+     * @param seed random seed
+     */
+    public void setSeed(long seed) {
+        this.random = new Random( seed );
+    }
+
     /**
      * Get image that is being used
      * @return color image being used
@@ -0,0 +1,615 @@
+package trainableSegmentation.unsupervised;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+import trainableSegmentation.FeatureStack;
+import trainableSegmentation.FeatureStackArray;
+import weka.clusterers.AbstractClusterer;
+import weka.core.Capabilities;
+import weka.core.Capabilities.Capability;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Mini-batch k-means clusterer (Sculley, 2010) with k-means++ seeding,
+ * working on primitive arrays. Besides the usual Weka training on a set of
+ * instances, it can be trained on all the pixels of a feature stack array:
+ * the mini-batches are drawn from the whole image, the assignments of each
+ * batch are computed in parallel and, at the end, a number of full passes
+ * over all the pixels (also parallel) refine the centers with the exact
+ * means of their clusters. The memory used does not depend on the image
+ * size. The features are min-max normalized as in SimpleKMeans.
+ * @author Ignacio Arganda-Carreras
+ */
+public class MiniBatchKMeans extends AbstractClusterer {
+
+    /** Generated serial version UID */
+    private static final long serialVersionUID = 4586371429374125071L;
+
+    /** number of clusters */
+    private int numClusters = 2;
+    /** number of pixels (or instances) of each mini-batch */
+    private int batchSize = 1024;
+    /** maximum number of mini-batch iterations */
+    private int maxIterations = 100;
+    /** number of final passes over all the data */
+    private int numFullPasses = 1;
+    /** random seed */
+    private int seed = 1;
+    /** number of threads to use */
+    private int numThreads = Prefs.getThreads();
+
+    /** cluster centers in normalized feature space */
+    private float[][] centers = null;
+    /** minimum value of each feature */
+    private float[] offset = null;
+    /** inverse of the range of each feature (0 for constant features) */
+    private float[] scale = null;
+
+    /**
+     * Source of feature vectors, indexed by a long
+     */
+    private static abstract class Source {
+        /** @return number of feature vectors */
+        abstract long size();
+        /** @return number of features */
+        abstract int numFeatures();
+        /**
+         * Read a feature vector
+         * @param index vector index
+         * @param out output values
+         */
+        abstract void get( long index, float[] out );
+    }
+
+    /**
+     * Source reading the pixels of a feature stack array
+     */
+    private static class StackSource extends Source {
+        private final ImageProcessor[][] slices;
+        private final int sliceSize;
+
+        StackSource( final FeatureStackArray featureStackArray ) {
+            slices = new ImageProcessor[ featureStackArray.getSize() ][];
+            for( int s = 0; s < slices.length; s++ )
+            {
+                final FeatureStack fs = featureStackArray.get( s );
+                final ImageStack stack = fs.getStack();
+                slices[ s ] = new ImageProcessor[ fs.getSize() ];
+                for( int f = 0; f < slices[ s ].length; f++ )
+                    slices[ s ][ f ] = stack.getProcessor( f + 1 );
+            }
+            sliceSize = featureStackArray.getWidth() * featureStackArray.getHeight();
+        }
+
+        long size() {
+            return (long) slices.length * sliceSize;
+        }
+
+        int numFeatures() {
+            return slices[ 0 ].length;
+        }
+
+        void get( final long index, final float[] out ) {
+            final ImageProcessor[] features = slices[ (int) ( index / sliceSize ) ];
+            final int i = (int) ( index % sliceSize );
+            for( int f = 0; f < features.length; f++ )
+                out[ f ] = features[ f ].getf( i );
+        }
+    }
+
+    /**
+     * Source reading a set of instances (without class attribute)
+     */
+    private static class InstancesSource extends Source {
+        private final Instances data;
+
+        InstancesSource( final Instances data ) {
+            this.data = data;
+        }
+
+        long size() {
+            return data.numInstances();
+        }
+
+        int numFeatures() {
+            return data.numAttributes();
+        }
+
+        void get( final long index, final float[] out ) {
+            final Instance ins = data.instance( (int) index );
+            for( int f = 0; f < out.length; f++ )
+                out[ f ] = (float) ins.value( f );
+        }
+    }
+
+    /**
+     * Returns a string describing this clusterer
+     * @return a description of the clusterer
+     */
+    public String globalInfo() {
+        return "Mini-batch k-means clustering with k-means++ seeding.";
+    }
+
+    @Override
+    public Capabilities getCapabilities() {
+        Capabilities result = super.getCapabilities();
+        result.disableAll();
+        result.enable( Capability.NO_CLASS );
+        result.enable( Capability.NUMERIC_ATTRIBUTES );
+        return result;
+    }
+
+    /**
+     * Build the clusterer on a set of instances (numeric attributes only)
+     * @param data training instances
+     * @throws Exception if the data cannot be clustered
+     */
+    @Override
+    public void buildClusterer( Instances data ) throws Exception {
+        getCapabilities().testWithFail( data );
+        build( new InstancesSource( data ) );
+    }
+
+    /**
+     * Build the clusterer on all the pixels of a feature stack array
+     * @param featureStackArray feature stacks of all the slices
+     * @throws Exception if the clustering fails or the features use
+     * neighborhoods
+     */
+    public void buildClusterer( FeatureStackArray featureStackArray ) throws Exception {
+        if( featureStackArray.useNeighborhood() )
+            throw new Exception( "MiniBatchKMeans cannot be built on features with neighborhoods." );
+        build( new StackSource( featureStackArray ) );
+    }
+
+    /**
+     * Build the clusterer on a source of feature vectors
+     * @param source feature vectors
+     * @throws Exception if the clustering fails
+     */
+    private void build( final Source source ) throws Exception {
+        final int numFeatures = source.numFeatures();
+        if( source.size() < numClusters )
+            throw new Exception( "Not enough data to build " + numClusters + " clusters." );
+        final Random random = new Random( seed );
+        final ExecutorService exe = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+        try {
+            // normalization ranges
+            final float[][] ranges = fullPass( exe, source, null );
+            offset = ranges[ 0 ];
+            scale = new float[ numFeatures ];
+            for( int f = 0; f < numFeatures; f++ )
+                scale[ f ] = ranges[ 1 ][ f ] > ranges[ 0 ][ f ] ? 1f / ( ranges[ 1 ][ f ] - ranges[ 0 ][ f ] ) : 0;
+
+            // k-means++ seeding on a random sample
+            centers = seed( readBatch( source, Math.max( batchSize, 10 * numClusters ), random ), random );
+
+            // mini-batch iterations
+            final long[] counts = new long[ numClusters ];
+            for( int it = 0; it < maxIterations; it++ )
+            {
+                final float[][] batch = readBatch( source, batchSize, random );
+                final int[] assignment = assign( exe, batch );
+                for( int i = 0; i < batch.length; i++ )
+                {
+                    // per-center learning rate
+                    final int k = assignment[ i ];
+                    counts[ k ] ++;
+                    final float eta = 1f / counts[ k ];
+                    for( int f = 0; f < numFeatures; f++ )
+                        centers[ k ][ f ] += eta * ( batch[ i ][ f ] - centers[ k ][ f ] );
+                }
+            }
+
+            // refine with the exact means of the clusters
+            for( int p = 0; p < numFullPasses; p++ )
+            {
+                final float[][] means = fullPass( exe, source, centers );
+                for( int k = 0; k < numClusters; k++ )
+                    if( null != means[ k ] )
+                        centers[ k ] = means[ k ];
+            }
+        } finally {
+            exe.shutdown();
+        }
+    }
+
+    /**
+     * Read a batch of random (normalized) feature vectors
+     * @param source feature vectors
+     * @param size number of vectors
+     * @param random random number generator
+     * @return normalized feature vectors
+     */
+    private float[][] readBatch( final Source source, final int size, final Random random ) {
+        final long total = source.size();
+        final float[][] batch = new float[ size ][ source.numFeatures() ];
+        for( int i = 0; i < size; i++ )
+        {
+            source.get( (long) ( random.nextDouble() * total ), batch[ i ] );
+            normalize( batch[ i ] );
+        }
+        return batch;
+    }
+
+    /**
+     * Choose the initial centers with k-means++
+     * @param sample normalized feature vectors
+     * @param random random number generator
+     * @return initial centers
+     */
+    private float[][] seed( final float[][] sample, final Random random ) {
+        final float[][] seeds = new float[ numClusters ][];
+        seeds[ 0 ] = sample[ random.nextInt( sample.length ) ].clone();
+        final double[] distance = new double[ sample.length ];
+        java.util.Arrays.fill( distance, Double.MAX_VALUE );
+        for( int k = 1; k < numClusters; k++ )
+        {
+            // squared distance to the nearest chosen center
+            double sum = 0;
+            for( int i = 0; i < sample.length; i++ )
+            {
+                distance[ i ] = Math.min( distance[ i ], squaredDistance( sample[ i ], seeds[ k - 1 ] ) );
+                sum += distance[ i ];
+            }
+            // draw proportionally to the squared distance
+            int chosen = random.nextInt( sample.length );
+            if( sum > 0 )
+            {
+                double r = random.nextDouble() * sum;
+                for( int i = 0; i < sample.length; i++ )
+                {
+                    r -= distance[ i ];
+                    if( r <= 0 )
+                    {
+                        chosen = i;
+                        break;
+                    }
+                }
+            }
+            seeds[ k ] = sample[ chosen ].clone();
+        }
+        return seeds;
+    }
+
+    /**
+     * Assign a batch of vectors to their nearest centers concurrently
+     * @param exe executor service
+     * @param batch normalized feature vectors
+     * @return nearest center of each vector
+     * @throws Exception if a thread fails
+     */
+    private int[] assign( final ExecutorService exe, final float[][] batch ) throws Exception {
+        final int[] assignment = new int[ batch.length ];
+        final int nChunks = Math.max( 1, Math.min( numThreads, batch.length ) );
+        final ArrayList< Future<Void> > futures = new ArrayList< Future<Void> >();
+        for( int c = 0; c < nChunks; c++ )
+        {
+            final int first = (int) ( (long) batch.length * c / nChunks );
+            final int last = (int) ( (long) batch.length * ( c + 1 ) / nChunks );
+            futures.add( exe.submit( new Callable<Void>() {
+                public Void call() {
+                    for( int i = first; i < last; i++ )
+                        assignment[ i ] = nearest( batch[ i ] );
+                    return null;
+                }
+            }));
+        }
+        for( Future<Void> f : futures )
+            f.get();
+        return assignment;
+    }
+
+    /**
+     * Pass over all the feature vectors concurrently. Without centers, it
+     * computes the minimum and maximum of each feature; with centers, the
+     * means of the (normalized) vectors assigned to each center.
+     * @param exe executor service
+     * @param source feature vectors
+     * @param currentCenters current centers (null to compute the ranges)
+     * @return minimum and maximum per feature, or mean per center (null if
+     * the center has no vectors)
+     * @throws Exception if a thread fails
+     */
+    private float[][] fullPass(
+            final ExecutorService exe,
+            final Source source,
+            final float[][] currentCenters ) throws Exception {
+        final int numFeatures = source.numFeatures();
+        final int rows = null == currentCenters ? 2 : currentCenters.length;
+        final long total = source.size();
+        final int nChunks = (int) Math.max( 1, Math.min( numThreads, total ) );
+        final ArrayList< Future<double[][]> > futures = new ArrayList< Future<double[][]> >();
+        for( int c = 0; c < nChunks; c++ )
+        {
+            final long first = total * c / nChunks;
+            final long last = total * ( c + 1 ) / nChunks;
+            futures.add( exe.submit( new Callable<double[][]>() {
+                public double[][] call() {
+                    // partial results: sums per center plus the counts in the last column
+                    final double[][] partial = new double[ rows ][ numFeatures + 1 ];
+                    if( null == currentCenters )
+                        for( int f = 0; f < numFeatures; f++ )
+                        {
+                            partial[ 0 ][ f ] = Double.MAX_VALUE;
+                            partial[ 1 ][ f ] = -Double.MAX_VALUE;
+                        }
+                    final float[] x = new float[ numFeatures ];
+                    for( long i = first; i < last; i++ )
+                    {
+                        source.get( i, x );
+                        if( null == currentCenters )
+                        {
+                            for( int f = 0; f < numFeatures; f++ )
+                            {
+                                partial[ 0 ][ f ] = Math.min( partial[ 0 ][ f ], x[ f ] );
+                                partial[ 1 ][ f ] = Math.max( partial[ 1 ][ f ], x[ f ] );
+                            }
+                        }
+                        else
+                        {
+                            normalize( x );
+                            final double[] sum = partial[ nearest( x, currentCenters ) ];
+                            for( int f = 0; f < numFeatures; f++ )
+                                sum[ f ] += x[ f ];
+                            sum[ numFeatures ] ++;
+                        }
+                    }
+                    return partial;
+                }
+            }));
+        }
+
+        final double[][] merged = futures.get( 0 ).get();
+        for( int c = 1; c < nChunks; c++ )
+        {
+            final double[][] partial = futures.get( c ).get();
+            for( int r = 0; r < rows; r++ )
+                for( int f = 0; f <= numFeatures; f++ )
+                {
+                    if( null != currentCenters )
+                        merged[ r ][ f ] += partial[ r ][ f ];
+                    else if( r == 0 )
+                        merged[ r ][ f ] = Math.min( merged[ r ][ f ], partial[ r ][ f ] );
+                    else
+                        merged[ r ][ f ] = Math.max( merged[ r ][ f ], partial[ r ][ f ] );
+                }
+        }
+
+        final float[][] result = new float[ rows ][];
+        for( int r = 0; r < rows; r++ )
+        {
+            if( null != currentCenters && merged[ r ][ numFeatures ] == 0 )
+                continue;
+            result[ r ] = new float[ numFeatures ];
+            for( int f = 0; f < numFeatures; f++ )
+                result[ r ][ f ] = (float) ( null == currentCenters ?
+                        merged[ r ][ f ] : merged[ r ][ f ] / merged[ r ][ numFeatures ] );
+        }
+        return result;
+    }
+
+    /**
+     * Normalize a feature vector in place
+     * @param x feature vector
+     */
+    private void normalize( final float[] x ) {
+        for( int f = 0; f < x.length; f++ )
+            x[ f ] = ( x[ f ] - offset[ f ] ) * scale[ f ];
+    }
+
+    /**
+     * Get the nearest current center of a normalized vector
+     * @param x normalized feature vector
+     * @return index of the nearest center
+     */
+    private int nearest( final float[] x ) {
+        return nearest( x, centers );
+    }
+
+    /**
+     * Get the nearest center of a normalized vector
+     * @param x normalized feature vector
+     * @param c centers
+     * @return index of the nearest center
+     */
+    private static int nearest( final float[] x, final float[][] c ) {
+        int best = 0;
+        double bestDistance = Double.MAX_VALUE;
+        for( int k = 0; k < c.length; k++ )
+        {
+            final double d = squaredDistance( x, c[ k ] );
+            if( d < bestDistance )
+            {
+                bestDistance = d;
+                best = k;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Squared Euclidean distance between two vectors
+     * @param a first vector
+     * @param b second vector
+     * @return squared distance
+     */
+    private static double squaredDistance( final float[] a, final float[] b ) {
+        double d = 0;
+        for( int f = 0; f < a.length; f++ )
+        {
+            final double diff = a[ f ] - b[ f ];
+            d += diff * diff;
+        }
+        return d;
+    }
+
+    @Override
+    public int clusterInstance( Instance instance ) throws Exception {
+        final float[] x = new float[ offset.length ];
+        for( int f = 0; f < x.length; f++ )
+            x[ f ] = (float) instance.value( f );
+        normalize( x );
+        return nearest( x );
+    }
+
+    @Override
+    public int numberOfClusters() throws Exception {
+        return numClusters;
+    }
+
+    /**
+     * Get the cluster centers in the original feature units
+     * @return centers (indexed by cluster and feature), or null if the
+     * clusterer has not been built
+     */
+    public float[][] getCenters() {
+        if( null == centers )
+            return null;
+        final float[][] result = new float[ numClusters ][ offset.length ];
+        for( int k = 0; k < numClusters; k++ )
+            for( int f = 0; f < offset.length; f++ )
+                result[ k ][ f ] = scale[ f ] == 0 ? offset[ f ] : centers[ k ][ f ] / scale[ f ] + offset[ f ];
+        return result;
+    }
+
+    /**
+     * Get the minimum value of each feature used for normalization
+     * @return feature offsets (null if the clusterer has not been built)
+     */
+    public float[] getOffsets() {
+        return null == offset ? null : offset.clone();
+    }
+
+    /**
+     * Get the normalization scale of each feature (inverse of its range,
+     * 0 for constant features)
+     * @return feature scales (null if the clusterer has not been built)
+     */
+    public float[] getScales() {
+        return null == scale ? null : scale.clone();
+    }
+
+    /**
+     * Set the number of clusters
+     * @param numClusters number of clusters
+     */
+    public void setNumClusters( int numClusters ) {
+        this.numClusters = numClusters;
+    }
+
+    /**
+     * Get the number of clusters
+     * @return number of clusters
+     */
+    public int getNumClusters() {
+        return numClusters;
+    }
+
+    /**
+     * Set the number of vectors of each mini-batch
+     * @param batchSize batch size
+     */
+    public void setBatchSize( int batchSize ) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Get the number of vectors of each mini-batch
+     * @return batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the number of mini-batch iterations
+     * @param maxIterations number of iterations
+     */
+    public void setMaxIterations( int maxIterations ) {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Get the number of mini-batch iterations
+     * @return number of iterations
+     */
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    /**
+     * Set the number of final passes over all the data
+     * @param numFullPasses number of passes (0 to use only the mini-batches)
+     */
+    public void setNumFullPasses( int numFullPasses ) {
+        this.numFullPasses = numFullPasses;
+    }
+
+    /**
+     * Get the number of final passes over all the data
+     * @return number of passes
+     */
+    public int getNumFullPasses() {
+        return numFullPasses;
+    }
+
+    /**
+     * Set the random seed
+     * @param seed random seed
+     */
+    public void setSeed( int seed ) {
+        this.seed = seed;
+    }
+
+    /**
+     * Get the random seed
+     * @return random seed
+     */
+    public int getSeed() {
+        return seed;
+    }
+
+    /**
+     * Set the number of threads to use
+     * @param numThreads number of threads
+     */
+    public void setNumThreads( int numThreads ) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Get the number of threads to use
+     * @return number of threads
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    @Override
+    public String toString() {
+        if( null == centers )
+            return "MiniBatchKMeans: no model built yet.";
+        final StringBuilder sb = new StringBuilder( "MiniBatchKMeans\n===============\n" );
+        final float[][] c = getCenters();
+        for( int k = 0; k < c.length; k++ )
+        {
+            sb.append( "Cluster " + k + ":" );
+            for( int f = 0; f < c[ k ].length; f++ )
+                sb.append( " " + IJ.d2s( c[ k ][ f ], 4 ) );
+            sb.append( "\n" );
+        }
+        return sb.toString();
+    }
+}
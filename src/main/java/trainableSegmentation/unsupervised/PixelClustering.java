@@ -1,9 +1,23 @@
 package trainableSegmentation.unsupervised;
 
 import ij.IJ;
+import ij.ImageStack;
+import trainableSegmentation.FeatureStack;
+import trainableSegmentation.FeatureStackArray;
+import trainableSegmentation.ReusableDenseInstance;
 import weka.clusterers.AbstractClusterer;
+import weka.clusterers.Clusterer;
+import weka.clusterers.SimpleKMeans;
+import weka.core.Attribute;
+import weka.core.EuclideanDistance;
 import weka.core.Instances;
 
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 /**
  * This class contains all the library methods to perform
  * unsupervised learning on pixels based on the Weka clusterers.
@@ -52,6 +66,27 @@ public class PixelClustering {
     }
 
 
+    /**
+     * Build current clusterer. MiniBatchKMeans clusterers are built on all
+     * the pixels of the feature stack array, and the rest of clusterers on
+     * the current instances.
+     * @param featureStackArray features of all the slices
+     */
+    public void buildClusterer(FeatureStackArray featureStackArray){
+        if( !( selectedClusterer instanceof MiniBatchKMeans ) )
+        {
+            buildClusterer();
+            return;
+        }
+        try {
+            ((MiniBatchKMeans) selectedClusterer).buildClusterer(featureStackArray);
+        } catch (Exception e) {
+            IJ.log(e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+
     //Getters and setters
 
     /**
@@ -86,4 +121,323 @@ public class PixelClustering {
         this.selectedClusterer = selectedClusterer;
     }
 
+
+    /**
+     * Get the cluster distribution of every pixel of a feature stack. The
+     * rows are split in stripes processed concurrently, each with its own
+     * instance buffer and copy of the clusterer.
+     * @param clusterer built clusterer
+     * @param features feature stack of a 2D image
+     * @param numThreads number of threads to use
+     * @return probability of each cluster per pixel (indexed by cluster and
+     * y * width + x), or null if error
+     */
+    public static float[][] distributionForPixels(
+            final AbstractClusterer clusterer,
+            final FeatureStack features,
+            final int numThreads )
+    {
+        final int numClusters;
+        try {
+            numClusters = clusterer.numberOfClusters();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+        final float[][] probabilities = new float[ numClusters ][ features.getWidth() * features.getHeight() ];
+        return applyClusterer( clusterer, features, numThreads, probabilities, null ) ?
+                probabilities : null;
+    }
+
+    /**
+     * Get the cluster of every pixel of a feature stack. The rows are split
+     * in stripes processed concurrently, each with its own instance buffer
+     * and copy of the clusterer. Pixels of SimpleKMeans clusterers with
+     * Euclidean distance and of MiniBatchKMeans clusterers are assigned
+     * directly to their nearest centroid.
+     * @param clusterer built clusterer
+     * @param features feature stack of a 2D image
+     * @param numThreads number of threads to use
+     * @return cluster index per pixel (indexed by y * width + x), or null if error
+     */
+    public static byte[] clusterPixels(
+            final AbstractClusterer clusterer,
+            final FeatureStack features,
+            final int numThreads )
+    {
+        final byte[] clusters = new byte[ features.getWidth() * features.getHeight() ];
+        return applyClusterer( clusterer, features, numThreads, null, clusters ) ?
+                clusters : null;
+    }
+
+    /**
+     * Apply a clusterer to all pixels of a feature stack by stripes of rows
+     * @param clusterer built clusterer
+     * @param features feature stack of a 2D image
+     * @param numThreads number of threads to use
+     * @param probabilities output cluster distributions (or null)
+     * @param clusters output cluster indices (or null)
+     * @return false if error
+     */
+    private static boolean applyClusterer(
+            final AbstractClusterer clusterer,
+            final FeatureStack features,
+            final int numThreads,
+            final float[][] probabilities,
+            final byte[] clusters )
+    {
+        final int width = features.getWidth();
+        final int height = features.getHeight();
+        final int nStripes = Math.max( 1, Math.min( numThreads, height ) );
+        final NearestCentroid nearest = NearestCentroid.create( clusterer, features );
+
+        // header of the instances
+        final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        for (int i=1; i<=features.getSize(); i++)
+            attributes.add( new Attribute( features.getSliceLabel(i) ) );
+        if( features.useNeighborhood() )
+            for (int i=0; i<8; i++)
+                attributes.add( new Attribute( new String( "original_neighbor_" + (i+1) ) ) );
+        final Instances header = new Instances( "features", attributes, 0 );
+
+        final ExecutorService exe = Executors.newFixedThreadPool( nStripes );
+        final ArrayList< Future<Void> > futures = new ArrayList< Future<Void> >();
+        try {
+            // the clusterers may keep state while clustering (filters...),
+            // so each stripe gets its own copy unless the clusters are
+            // assigned directly to the nearest centroids
+            final Clusterer[] copies = nStripes == 1
+                    || ( null != nearest && null == probabilities ) ?
+                    null : AbstractClusterer.makeCopies( clusterer, nStripes );
+
+            for( int s = 0; s < nStripes; s++ )
+            {
+                final int y0 = (int) ( (long) height * s / nStripes );
+                final int y1 = (int) ( (long) height * ( s + 1 ) / nStripes );
+                final Clusterer stripeClusterer = null == copies ? clusterer : copies[ s ];
+                futures.add( exe.submit( new Callable<Void>() {
+                    public Void call() throws Exception {
+                        if( null != nearest && null == probabilities )
+                        {
+                            nearest.cluster( y0 * width, y1 * width, clusters );
+                            return null;
+                        }
+                        final double[] values = new double[ attributes.size() ];
+                        final ReusableDenseInstance ins = new ReusableDenseInstance( 1.0, values );
+                        ins.setDataset( header );
+                        for( int y = y0; y < y1; y++ )
+                            for( int x = 0; x < width; x++ )
+                            {
+                                features.setInstance( x, y, ins, values );
+                                if( null != probabilities )
+                                {
+                                    final double[] prob = stripeClusterer.distributionForInstance( ins );
+                                    for( int k = 0; k < prob.length; k++ )
+                                        probabilities[ k ][ x + y * width ] = (float) prob[ k ];
+                                }
+                                else
+                                    clusters[ x + y * width ] = (byte) stripeClusterer.clusterInstance( ins );
+                            }
+                        return null;
+                    }
+                }));
+            }
+            for( Future<Void> f : futures )
+                f.get();
+        } catch (Exception e) {
+            IJ.log( "Error when applying the clusterer to the pixels." );
+            e.printStackTrace();
+            return false;
+        } finally {
+            exe.shutdown();
+        }
+        return true;
+    }
+
+    /**
+     * Nearest centroid assignment of a SimpleKMeans or MiniBatchKMeans
+     * clusterer working on the pixel arrays of a feature stack. The features and centroids are
+     * normalized as in the Euclidean distance of the clusterer, and the
+     * squared distances are computed as |c|^2 - 2 x.c with precomputed
+     * centroid norms.
+     */
+    private static class NearestCentroid
+    {
+        /** feature pixels, one array per feature */
+        private final float[][] pixels;
+        /** normalized centroids, indexed by cluster and feature */
+        private final double[][] centroids;
+        /** squared norms of the normalized centroids */
+        private final double[] norms;
+        /** feature offsets and scales of the normalization */
+        private final double[] offset;
+        private final double[] scale;
+
+        private NearestCentroid(
+                final float[][] pixels,
+                final double[][] centroids,
+                final double[] offset,
+                final double[] scale )
+        {
+            this.pixels = pixels;
+            this.offset = offset;
+            this.scale = scale;
+            this.centroids = new double[ centroids.length ][ pixels.length ];
+            this.norms = new double[ centroids.length ];
+            for( int k = 0; k < centroids.length; k++ )
+                for( int f = 0; f < pixels.length; f++ )
+                {
+                    this.centroids[ k ][ f ] = ( centroids[ k ][ f ] - offset[ f ] ) * scale[ f ];
+                    norms[ k ] += this.centroids[ k ][ f ] * this.centroids[ k ][ f ];
+                }
+        }
+
+        /**
+         * Create the nearest centroid assignment of a clusterer if it is
+         * possible
+         * @param clusterer built clusterer
+         * @param features feature stack of a 2D image
+         * @return nearest centroid assignment, or null if the clusterer is
+         * not a SimpleKMeans with Euclidean distance over 32-bit features
+         */
+        static NearestCentroid create(
+                final AbstractClusterer clusterer,
+                final FeatureStack features )
+        {
+            if( features.useNeighborhood() )
+                return null;
+            if( clusterer instanceof MiniBatchKMeans )
+                return create( (MiniBatchKMeans) clusterer, features );
+            if( !( clusterer instanceof SimpleKMeans ) )
+                return null;
+            final SimpleKMeans kMeans = (SimpleKMeans) clusterer;
+            if( !( kMeans.getDistanceFunction() instanceof EuclideanDistance )
+                    || null == kMeans.getClusterCentroids() )
+                return null;
+            final Instances centroidInstances = kMeans.getClusterCentroids();
+            final int numFeatures = features.getSize();
+            if( centroidInstances.numAttributes() != numFeatures )
+                return null;
+
+            final float[][] pixels = getPixels( features );
+            if( null == pixels )
+                return null;
+
+            final EuclideanDistance distance = (EuclideanDistance) kMeans.getDistanceFunction();
+            final double[] offset = new double[ numFeatures ];
+            final double[] scale = new double[ numFeatures ];
+            try {
+                final double[][] ranges = distance.getDontNormalize() ? null : distance.getRanges();
+                for( int f = 0; f < numFeatures; f++ )
+                {
+                    scale[ f ] = 1;
+                    if( null != ranges )
+                    {
+                        // constant features do not contribute to the distance
+                        if( Double.isNaN( ranges[ f ][ EuclideanDistance.R_MIN ] )
+                                || ranges[ f ][ EuclideanDistance.R_MAX ] == ranges[ f ][ EuclideanDistance.R_MIN ] )
+                            scale[ f ] = 0;
+                        else
+                        {
+                            offset[ f ] = ranges[ f ][ EuclideanDistance.R_MIN ];
+                            scale[ f ] = 1.0 / ranges[ f ][ EuclideanDistance.R_WIDTH ];
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                return null;
+            }
+
+            final double[][] centroids = new double[ centroidInstances.numInstances() ][];
+            for( int k = 0; k < centroids.length; k++ )
+                centroids[ k ] = centroidInstances.instance( k ).toDoubleArray();
+            return new NearestCentroid( pixels, centroids, offset, scale );
+        }
+
+        /**
+         * Create the nearest centroid assignment of a MiniBatchKMeans
+         * clusterer if it is possible
+         * @param kMeans built clusterer
+         * @param features feature stack of a 2D image
+         * @return nearest centroid assignment, or null if the clusterer is
+         * not built or the features are not 32-bit
+         */
+        static NearestCentroid create(
+                final MiniBatchKMeans kMeans,
+                final FeatureStack features )
+        {
+            final float[][] centers = kMeans.getCenters();
+            if( null == centers || centers[ 0 ].length != features.getSize() )
+                return null;
+            final float[][] pixels = getPixels( features );
+            if( null == pixels )
+                return null;
+            final float[] offsets = kMeans.getOffsets();
+            final float[] scales = kMeans.getScales();
+            final double[] offset = new double[ offsets.length ];
+            final double[] scale = new double[ scales.length ];
+            for( int f = 0; f < offset.length; f++ )
+            {
+                offset[ f ] = offsets[ f ];
+                scale[ f ] = scales[ f ];
+            }
+            final double[][] centroids = new double[ centers.length ][ offset.length ];
+            for( int k = 0; k < centers.length; k++ )
+                for( int f = 0; f < offset.length; f++ )
+                    centroids[ k ][ f ] = centers[ k ][ f ];
+            return new NearestCentroid( pixels, centroids, offset, scale );
+        }
+
+        /**
+         * Get the pixel arrays of a feature stack
+         * @param features feature stack of a 2D image
+         * @return pixels of each feature, or null if they are not 32-bit
+         */
+        private static float[][] getPixels( final FeatureStack features )
+        {
+            final ImageStack stack = features.getStack();
+            final float[][] pixels = new float[ features.getSize() ][];
+            for( int f = 0; f < pixels.length; f++ )
+            {
+                if( !( stack.getPixels( f + 1 ) instanceof float[] ) )
+                    return null;
+                pixels[ f ] = (float[]) stack.getPixels( f + 1 );
+            }
+            return pixels;
+        }
+
+        /**
+         * Assign a range of pixels to their nearest centroids
+         * @param first first pixel index
+         * @param last pixel index after the range
+         * @param clusters output cluster indices
+         */
+        void cluster( final int first, final int last, final byte[] clusters )
+        {
+            final int numFeatures = pixels.length;
+            final double[] x = new double[ numFeatures ];
+            for( int i = first; i < last; i++ )
+            {
+                for( int f = 0; f < numFeatures; f++ )
+                    x[ f ] = ( pixels[ f ][ i ] - offset[ f ] ) * scale[ f ];
+                int best = 0;
+                double bestDistance = Double.MAX_VALUE;
+                for( int k = 0; k < centroids.length; k++ )
+                {
+                    final double[] c = centroids[ k ];
+                    double dot = 0;
+                    for( int f = 0; f < numFeatures; f++ )
+                        dot += x[ f ] * c[ f ];
+                    final double d = norms[ k ] - 2 * dot;
+                    if( d < bestDistance )
+                    {
+                        bestDistance = d;
+                        best = k;
+                    }
+                }
+                clusters[ i ] = (byte) best;
+            }
+        }
+    }
+
 }
@@ -0,0 +1,381 @@
+package trainableSegmentation.utils;
+
+/**
+*
+* License: GPL
+*
+* This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU General Public License 2
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+*/
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compact index of the pixels of each class of a label image (2D or 3D).
+ * The pixels of every class are stored as sorted offsets
+ * (slice * width * height + y * width + x) in a primitive array, which is
+ * built in two parallel passes over the label image (counting and
+ * writing) instead of growing lists of point objects.
+ */
+public class ClassPixelIndex
+{
+	/** width of the label image */
+	private final int width;
+	/** height of the label image */
+	private final int height;
+	/** sorted pixel offsets of each class */
+	private final long[][] offsets;
+
+	/**
+	 * Assignment of label (and mask) values to classes
+	 */
+	private interface ClassMap
+	{
+		/**
+		 * Get the class of a pixel
+		 * @param label label value of the pixel
+		 * @param mask mask value of the pixel (1 if there is no mask)
+		 * @return class index, or -1 if the pixel does not belong to any class
+		 */
+		int getClass( float label, float mask );
+	}
+
+	/**
+	 * Build the index of a label image with a given assignment of pixels
+	 * to classes
+	 *
+	 * @param labels label image
+	 * @param mask mask image (only pixels with values larger than 0 are
+	 * indexed), or null to index all pixels
+	 * @param numClasses number of classes
+	 * @param map assignment of pixels to classes
+	 * @param numThreads number of threads to use
+	 */
+	private ClassPixelIndex(
+			final ImageStack labels,
+			final ImageStack mask,
+			final int numClasses,
+			final ClassMap map,
+			final int numThreads )
+	{
+		width = labels.getWidth();
+		height = labels.getHeight();
+		offsets = new long[ numClasses ][];
+
+		// the chunks are groups of rows of all slices
+		final int numRows = labels.getSize() * height;
+		final int nChunks = Math.max( 1, Math.min( numThreads, numRows ) );
+		final int[][] counts = new int[ nChunks ][ numClasses ];
+		final ExecutorService exe = Executors.newFixedThreadPool( nChunks );
+		try
+		{
+			// count the pixels of each class per chunk
+			runChunks( exe, nChunks, numRows, new Chunk() {
+				public void process( int chunk, int slice, int x, int y, int classIndex ) {
+					counts[ chunk ][ classIndex ] ++;
+				}
+			}, labels, mask, map );
+
+			// start of each chunk in the offsets of each class
+			final int[][] starts = new int[ nChunks ][ numClasses ];
+			for( int c = 0; c < numClasses; c++ )
+			{
+				int total = 0;
+				for( int k = 0; k < nChunks; k++ )
+				{
+					starts[ k ][ c ] = total;
+					total += counts[ k ][ c ];
+				}
+				offsets[ c ] = new long[ total ];
+			}
+
+			// write the offsets (the chunks are in order, so they are sorted)
+			final long sliceSize = (long) width * height;
+			runChunks( exe, nChunks, numRows, new Chunk() {
+				public void process( int chunk, int slice, int x, int y, int classIndex ) {
+					offsets[ classIndex ][ starts[ chunk ][ classIndex ] ++ ] = slice * sliceSize + y * width + x;
+				}
+			}, labels, mask, map );
+		}
+		catch( Exception ex )
+		{
+			IJ.log( "Error when indexing the pixels of the classes." );
+			ex.printStackTrace();
+			for( int c = 0; c < numClasses; c++ )
+				offsets[ c ] = new long[ 0 ];
+		}
+		finally
+		{
+			exe.shutdown();
+		}
+	}
+
+	/**
+	 * Work done on each indexed pixel of a chunk
+	 */
+	private interface Chunk
+	{
+		/**
+		 * Process an indexed pixel
+		 * @param chunk chunk index
+		 * @param slice slice of the pixel (from 0)
+		 * @param x column of the pixel
+		 * @param y row of the pixel
+		 * @param classIndex class of the pixel
+		 */
+		void process( int chunk, int slice, int x, int y, int classIndex );
+	}
+
+	/**
+	 * Visit the indexed pixels of all the chunks of rows concurrently
+	 *
+	 * @param exe executor service
+	 * @param nChunks number of chunks
+	 * @param numRows total number of rows (of all slices)
+	 * @param work work done on each indexed pixel
+	 * @param labels label image
+	 * @param mask mask image (or null)
+	 * @param map assignment of pixels to classes
+	 * @throws Exception if a thread fails
+	 */
+	private void runChunks(
+			final ExecutorService exe,
+			final int nChunks,
+			final int numRows,
+			final Chunk work,
+			final ImageStack labels,
+			final ImageStack mask,
+			final ClassMap map ) throws Exception
+	{
+		final ArrayList< Future<Void> > futures = new ArrayList< Future<Void> >();
+		for( int k = 0; k < nChunks; k++ )
+		{
+			final int chunk = k;
+			final int firstRow = (int) ( (long) numRows * k / nChunks );
+			final int lastRow = (int) ( (long) numRows * ( k + 1 ) / nChunks );
+			futures.add( exe.submit( new Callable<Void>() {
+				public Void call() {
+					ImageProcessor labelSlice = null, maskSlice = null;
+					int currentSlice = -1;
+					for( int r = firstRow; r < lastRow; r++ )
+					{
+						final int slice = r / height;
+						final int y = r % height;
+						if( slice != currentSlice )
+						{
+							labelSlice = labels.getProcessor( slice + 1 );
+							maskSlice = null == mask ? null : mask.getProcessor( slice + 1 );
+							currentSlice = slice;
+						}
+						for( int x = 0, i = y * width; x < width; x++, i++ )
+						{
+							final int classIndex = map.getClass( labelSlice.getf( i ),
+									null == maskSlice ? 1 : maskSlice.getf( i ) );
+							if( classIndex >= 0 )
+								work.process( chunk, slice, x, y, classIndex );
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		for( Future<Void> f : futures )
+			f.get();
+	}
+
+	/**
+	 * Index the pixels of a binary label image in two classes: black
+	 * (class 0, label value 0) and white (class 1, label value larger than
+	 * 0).
+	 *
+	 * @param labels binary label image
+	 * @param mask mask image (only pixels with values larger than 0 are
+	 * indexed), or null to index all pixels
+	 * @param numThreads number of threads to use
+	 * @return index of the black and white pixels
+	 */
+	public static ClassPixelIndex binary(
+			final ImageStack labels,
+			final ImageStack mask,
+			final int numThreads )
+	{
+		return new ClassPixelIndex( labels, mask, 2, new ClassMap() {
+			public int getClass( float label, float maskValue ) {
+				if( maskValue <= 0 )
+					return -1;
+				return label > 0 ? 1 : 0;
+			}
+		}, numThreads );
+	}
+
+	/**
+	 * Index the pixels of a 2D binary label image in two classes: black
+	 * (class 0) and white (class 1) using all available threads.
+	 *
+	 * @param labels binary label image
+	 * @param mask mask image, or null to index all pixels
+	 * @return index of the black and white pixels
+	 */
+	public static ClassPixelIndex binary(
+			final ImageProcessor labels,
+			final ImageProcessor mask )
+	{
+		return binary( toStack( labels ), null == mask ? null : toStack( mask ), Prefs.getThreads() );
+	}
+
+	/**
+	 * Index the pixels of a label image in classes defined by their label
+	 * values. Pixels with labels that do not correspond to any class are
+	 * skipped.
+	 *
+	 * @param labels label image
+	 * @param classLabels label value of each class
+	 * @param numThreads number of threads to use
+	 * @return index of the pixels of each class
+	 */
+	public static ClassPixelIndex labeled(
+			final ImageStack labels,
+			final int[] classLabels,
+			final int numThreads )
+	{
+		// sorted labels (high word) and their classes (low word)
+		final long[] keys = new long[ classLabels.length ];
+		for( int c = 0; c < classLabels.length; c++ )
+			keys[ c ] = (long) classLabels[ c ] << 32 | c;
+		Arrays.sort( keys );
+		final int[] sortedLabels = new int[ keys.length ];
+		for( int c = 0; c < keys.length; c++ )
+			sortedLabels[ c ] = (int) ( keys[ c ] >> 32 );
+
+		return new ClassPixelIndex( labels, null, classLabels.length, new ClassMap() {
+			public int getClass( float label, float maskValue ) {
+				final int pos = Arrays.binarySearch( sortedLabels, (int) label );
+				return pos < 0 ? -1 : (int) keys[ pos ];
+			}
+		}, numThreads );
+	}
+
+	/**
+	 * Index the pixels of a 2D label image in classes defined by their label
+	 * values using all available threads.
+	 *
+	 * @param labels label image
+	 * @param classLabels label value of each class
+	 * @return index of the pixels of each class
+	 */
+	public static ClassPixelIndex labeled(
+			final ImageProcessor labels,
+			final int[] classLabels )
+	{
+		return labeled( toStack( labels ), classLabels, Prefs.getThreads() );
+	}
+
+	/**
+	 * Wrap a 2D image in a stack
+	 * @param ip input image
+	 * @return stack with a single slice
+	 */
+	private static ImageStack toStack( final ImageProcessor ip )
+	{
+		final ImageStack stack = new ImageStack( ip.getWidth(), ip.getHeight() );
+		stack.addSlice( "", ip );
+		return stack;
+	}
+
+	/**
+	 * Get the number of classes
+	 * @return number of classes
+	 */
+	public int getNumClasses()
+	{
+		return offsets.length;
+	}
+
+	/**
+	 * Get the number of pixels of a class
+	 * @param classIndex class index
+	 * @return number of pixels of the class
+	 */
+	public int getNumPixels( final int classIndex )
+	{
+		return offsets[ classIndex ].length;
+	}
+
+	/**
+	 * Get the pixels of a class (the array is not copied)
+	 * @param classIndex class index
+	 * @return sorted offsets (slice * width * height + y * width + x)
+	 */
+	public long[] getOffsets( final int classIndex )
+	{
+		return offsets[ classIndex ];
+	}
+
+	/**
+	 * Draw random pixels of a class with replacement (see
+	 * {@link PixelSampler#sampleWithReplacement(int, int, Random)}), as the
+	 * balanced sampling methods always did, so k can be larger than the
+	 * number of pixels of the class. Unlike the former per-pixel loops, all
+	 * the samples of a class are drawn at once, so the samples of each class
+	 * are consecutive in the training data.
+	 *
+	 * @param classIndex class index
+	 * @param k number of samples
+	 * @param random random number generator
+	 * @return sorted offsets of the samples (empty if the class has no pixels)
+	 */
+	public long[] sample(
+			final int classIndex,
+			final int k,
+			final Random random )
+	{
+		// the offsets are sorted, so sorted positions give sorted offsets
+		final int[] positions = PixelSampler.sampleWithReplacement(
+				offsets[ classIndex ].length, k, random );
+		final long[] samples = new long[ positions.length ];
+		for( int i = 0; i < samples.length; i++ )
+			samples[ i ] = offsets[ classIndex ][ positions[ i ] ];
+		return samples;
+	}
+
+	/**
+	 * Get the slice of a pixel offset
+	 * @param offset pixel offset
+	 * @return slice index (from 0)
+	 */
+	public int getSlice( final long offset )
+	{
+		return (int) ( offset / ( (long) width * height ) );
+	}
+
+	/**
+	 * Get the index of a pixel offset inside its slice
+	 * @param offset pixel offset
+	 * @return pixel index in the slice (y * width + x)
+	 */
+	public int getPixel( final long offset )
+	{
+		return (int) ( offset % ( (long) width * height ) );
+	}
+}
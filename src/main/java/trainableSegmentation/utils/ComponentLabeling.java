@@ -0,0 +1,478 @@
+package trainableSegmentation.utils;
+
+/**
+*
+* License: GPL
+*
+* This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU General Public License 2
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+*/
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class labels the connected components of the foreground (pixels
+ * or voxels with value greater than 0) of 2D and 3D images. It uses a
+ * two-pass union-find algorithm over the pixel arrays: the image is split
+ * in stripes of rows (2D) or slices (3D) that are labeled in parallel, and
+ * the trees of neighboring stripes are merged along their borders. The
+ * components are numbered from 1 in raster order of their first pixel and
+ * written into a 32-bit label image.
+ */
+public final class ComponentLabeling
+{
+	/** largest number of components that a 32-bit label image can number exactly */
+	public static final int MAX_LABELS = 1 << 24;
+
+	private ComponentLabeling() {}
+
+	/**
+	 * Label the connected components of a 2D image
+	 *
+	 * @param image input image (foreground is any value greater than 0)
+	 * @param connectivity 4 or 8
+	 * @return 32-bit label image (null if error)
+	 */
+	public static FloatProcessor label(
+			final ImageProcessor image,
+			final int connectivity )
+	{
+		return label( image, connectivity, Prefs.getThreads() );
+	}
+
+	/**
+	 * Label the connected components of a 2D image
+	 *
+	 * @param image input image (foreground is any value greater than 0)
+	 * @param connectivity 4 or 8
+	 * @param numThreads number of threads to use
+	 * @return 32-bit label image (null if error)
+	 */
+	public static FloatProcessor label(
+			final ImageProcessor image,
+			final int connectivity,
+			final int numThreads )
+	{
+		if( connectivity != 4 && connectivity != 8 )
+		{
+			IJ.log( "Error: connectivity must be 4 or 8 in 2D." );
+			return null;
+		}
+		final ImageStack stack = new ImageStack( image.getWidth(), image.getHeight() );
+		stack.addSlice( "", image );
+		final float[][] labels = labelPixels( stack, connectivity, numThreads );
+		if( null == labels )
+			return null;
+		return new FloatProcessor( image.getWidth(), image.getHeight(), labels[ 0 ] );
+	}
+
+	/**
+	 * Label the connected components of a 3D image
+	 *
+	 * @param image input stack (foreground is any value greater than 0)
+	 * @param connectivity 6 or 26
+	 * @param numThreads number of threads to use
+	 * @return 32-bit label stack (null if error)
+	 */
+	public static ImageStack label(
+			final ImageStack image,
+			final int connectivity,
+			final int numThreads )
+	{
+		if( connectivity != 6 && connectivity != 26 )
+		{
+			IJ.log( "Error: connectivity must be 6 or 26 in 3D." );
+			return null;
+		}
+		final float[][] labels = labelPixels( image, connectivity, numThreads );
+		if( null == labels )
+			return null;
+		final ImageStack result = new ImageStack( image.getWidth(), image.getHeight() );
+		for( int z = 0; z < labels.length; z++ )
+			result.addSlice( image.getSliceLabel( z + 1 ), new FloatProcessor(
+					image.getWidth(), image.getHeight(), labels[ z ] ) );
+		return result;
+	}
+
+	/**
+	 * Count the connected components of a 2D image
+	 *
+	 * @param image input image (foreground is any value greater than 0)
+	 * @param connectivity 4 or 8
+	 * @return number of components (-1 if error)
+	 */
+	public static int countComponents(
+			final ImageProcessor image,
+			final int connectivity )
+	{
+		final FloatProcessor labels = label( image, connectivity, 1 );
+		if( null == labels )
+			return -1;
+		int max = 0;
+		final float[] pixels = (float[]) labels.getPixels();
+		for( int i = 0; i < pixels.length; i++ )
+			if( pixels[ i ] > max )
+				max = (int) pixels[ i ];
+		return max;
+	}
+
+	/**
+	 * Label the connected components of a stack. 2D images are handled as
+	 * stacks of one slice, with 4 or 8 connectivity.
+	 *
+	 * @param image input stack
+	 * @param connectivity 4, 8 (in-slice only), 6 or 26
+	 * @param numThreads number of threads to use
+	 * @return label pixels of each slice (null if error)
+	 */
+	private static float[][] labelPixels(
+			final ImageStack image,
+			final int connectivity,
+			final int numThreads )
+	{
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final int depth = image.getSize();
+		if( (long) width * height * depth > Integer.MAX_VALUE )
+		{
+			IJ.log( "Error: image too large to label its connected components." );
+			return null;
+		}
+		final int sliceSize = width * height;
+		final int[] offsets = backwardOffsets( connectivity );
+
+		// split the rows (2D) or slices (3D) in stripes
+		final int lines = depth > 1 ? depth : height;
+		final int lineSize = depth > 1 ? sliceSize : width;
+		final int nStripes = Math.max( 1, Math.min( numThreads, lines ) );
+		final int[] stripeStart = new int[ nStripes + 1 ];
+		for( int s = 0; s <= nStripes; s++ )
+			stripeStart[ s ] = (int) ( (long) lines * s / nStripes );
+
+		// union-find forest over pixel indices (-1 for background)
+		final int[] parent = new int[ sliceSize * depth ];
+		final float[][] labels = new float[ depth ][ sliceSize ];
+
+		// the stripes are processed by a pool of threads (or directly if
+		// there is only one)
+		final ExecutorService exe = nStripes > 1 ?
+				Executors.newFixedThreadPool( nStripes ) : null;
+		final ArrayList< Callable<Void> > tasks = new ArrayList< Callable<Void> >();
+		try{
+			// first pass: label each stripe
+			for( int s = 0; s < nStripes; s++ )
+			{
+				final int first = stripeStart[ s ] * lineSize;
+				final int last = stripeStart[ s + 1 ] * lineSize;
+				tasks.add( new Callable<Void>()
+				{
+					public Void call()
+					{
+						unionStripe( image, parent, offsets, first, last, first );
+						return null;
+					}
+				});
+			}
+			runAll( exe, tasks );
+
+			// merge the trees along the stripe borders
+			for( int s = 1; s < nStripes; s++ )
+			{
+				final int first = stripeStart[ s ] * lineSize;
+				mergeBorder( width, height, parent, offsets, first, first + lineSize );
+			}
+
+			// point every pixel to the root of its tree
+			for( int s = 0; s < nStripes; s++ )
+			{
+				final int first = stripeStart[ s ] * lineSize;
+				final int last = stripeStart[ s + 1 ] * lineSize;
+				tasks.add( new Callable<Void>()
+				{
+					public Void call()
+					{
+						for( int i = first; i < last; i++ )
+							if( parent[ i ] >= 0 )
+								parent[ i ] = find( parent, i );
+						return null;
+					}
+				});
+			}
+			runAll( exe, tasks );
+
+			// number the roots in raster order (the root of a tree is
+			// its first pixel)
+			float count = 0;
+			for( int i = 0; i < parent.length; i++ )
+				if( parent[ i ] == i )
+				{
+					if( count >= MAX_LABELS )
+					{
+						IJ.log( "Error: too many connected components to be labeled." );
+						return null;
+					}
+					labels[ i / sliceSize ][ i % sliceSize ] = ++count;
+				}
+
+			// second pass: write the label of the root of each pixel
+			for( int s = 0; s < nStripes; s++ )
+			{
+				final int first = stripeStart[ s ] * lineSize;
+				final int last = stripeStart[ s + 1 ] * lineSize;
+				tasks.add( new Callable<Void>()
+				{
+					public Void call()
+					{
+						for( int i = first; i < last; i++ )
+						{
+							final int root = parent[ i ];
+							if( root >= 0 && root != i )
+								labels[ i / sliceSize ][ i % sliceSize ] =
+									labels[ root / sliceSize ][ root % sliceSize ];
+						}
+						return null;
+					}
+				});
+			}
+			runAll( exe, tasks );
+		}
+		catch( Exception ex )
+		{
+			IJ.log( "Error when labeling the connected components." );
+			ex.printStackTrace();
+			return null;
+		}
+		finally{
+			if( null != exe )
+				exe.shutdown();
+		}
+
+		return labels;
+	}
+
+	/**
+	 * Run a list of tasks and wait for them to be done. The list is cleared
+	 * afterwards.
+	 *
+	 * @param exe executor service (null to run the tasks in this thread)
+	 * @param tasks tasks to run
+	 * @throws Exception if any of the tasks fails
+	 */
+	private static void runAll(
+			final ExecutorService exe,
+			final ArrayList< Callable<Void> > tasks ) throws Exception
+	{
+		if( null == exe )
+			for( Callable<Void> task : tasks )
+				task.call();
+		else
+			for( Future<Void> f : exe.invokeAll( tasks ) )
+				f.get();
+		tasks.clear();
+	}
+
+	/**
+	 * Get the neighbor offsets (dx, dy, dz) that precede a pixel in raster
+	 * order for a given connectivity
+	 *
+	 * @param connectivity 4, 8, 6 or 26
+	 * @return offsets as consecutive (dx, dy, dz) triplets
+	 */
+	private static int[] backwardOffsets( final int connectivity )
+	{
+		switch( connectivity )
+		{
+			case 4:
+				return new int[]{ -1, 0, 0,   0, -1, 0 };
+			case 8:
+				return new int[]{ -1, 0, 0,   -1, -1, 0,   0, -1, 0,   1, -1, 0 };
+			case 6:
+				return new int[]{ -1, 0, 0,   0, -1, 0,   0, 0, -1 };
+			default:
+				final int[] offsets = new int[ 13 * 3 ];
+				int k = 0;
+				for( int dz = -1; dz <= 0; dz++ )
+					for( int dy = -1; dy <= 1; dy++ )
+						for( int dx = -1; dx <= 1; dx++ )
+						{
+							if( dz == 0 && ( dy > 0 || ( dy == 0 && dx >= 0 ) ) )
+								continue;
+							offsets[ k++ ] = dx;
+							offsets[ k++ ] = dy;
+							offsets[ k++ ] = dz;
+						}
+				return offsets;
+		}
+	}
+
+	/**
+	 * Initialize the forest of a range of pixels and join each foreground
+	 * pixel with its preceding foreground neighbors that are not before
+	 * a given limit
+	 *
+	 * @param image input stack
+	 * @param parent union-find forest over pixel indices
+	 * @param offsets backward neighbor offsets
+	 * @param first index of the first pixel of the range
+	 * @param last index after the last pixel of the range
+	 * @param limit index of the first pixel that can be joined
+	 */
+	private static void unionStripe(
+			final ImageStack image,
+			final int[] parent,
+			final int[] offsets,
+			final int first,
+			final int last,
+			final int limit )
+	{
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final int sliceSize = width * height;
+
+		for( int i = first; i < last; )
+		{
+			final int z = i / sliceSize;
+			final int sliceEnd = Math.min( last, ( z + 1 ) * sliceSize );
+			final Object pixels = image.getPixels( z + 1 );
+			for( ; i < sliceEnd; i++ )
+				parent[ i ] = isForeground( pixels, i - z * sliceSize ) ? i : -1;
+		}
+
+		for( int i = first; i < last; i++ )
+			if( parent[ i ] >= 0 )
+				unionNeighbors( width, height, parent, offsets, i, limit );
+	}
+
+	/**
+	 * Join the pixels of the first line of a stripe with their neighbors in
+	 * the last line of the previous stripe
+	 *
+	 * @param width image width
+	 * @param height image height
+	 * @param parent union-find forest over pixel indices
+	 * @param offsets backward neighbor offsets
+	 * @param first index of the first pixel of the line
+	 * @param last index after the last pixel of the line
+	 */
+	private static void mergeBorder(
+			final int width,
+			final int height,
+			final int[] parent,
+			final int[] offsets,
+			final int first,
+			final int last )
+	{
+		for( int i = first; i < last; i++ )
+			if( parent[ i ] >= 0 )
+				unionNeighbors( width, height, parent, offsets, i, 0 );
+	}
+
+	/**
+	 * Join a foreground pixel with its preceding foreground neighbors
+	 *
+	 * @param width image width
+	 * @param height image height
+	 * @param parent union-find forest over pixel indices
+	 * @param offsets backward neighbor offsets
+	 * @param i pixel index
+	 * @param limit index of the first pixel that can be joined
+	 */
+	private static void unionNeighbors(
+			final int width,
+			final int height,
+			final int[] parent,
+			final int[] offsets,
+			final int i,
+			final int limit )
+	{
+		final int sliceSize = width * height;
+		final int z = i / sliceSize;
+		final int y = ( i % sliceSize ) / width;
+		final int x = i % width;
+
+		for( int k = 0; k < offsets.length; k += 3 )
+		{
+			final int nx = x + offsets[ k ];
+			final int ny = y + offsets[ k + 1 ];
+			final int nz = z + offsets[ k + 2 ];
+			if( nx < 0 || nx >= width || ny < 0 || ny >= height || nz < 0 )
+				continue;
+			final int j = nz * sliceSize + ny * width + nx;
+			if( j >= limit && parent[ j ] >= 0 )
+				union( parent, i, j );
+		}
+	}
+
+	/**
+	 * Check if a pixel belongs to the foreground
+	 *
+	 * @param pixels pixel array of a slice
+	 * @param i pixel index in the slice
+	 * @return true if the pixel value is greater than 0
+	 */
+	private static boolean isForeground( final Object pixels, final int i )
+	{
+		if( pixels instanceof byte[] )
+			return ( (byte[]) pixels )[ i ] != 0;
+		if( pixels instanceof short[] )
+			return ( (short[]) pixels )[ i ] != 0;
+		if( pixels instanceof float[] )
+			return ( (float[]) pixels )[ i ] > 0;
+		return ( ( (int[]) pixels )[ i ] & 0xffffff ) != 0;
+	}
+
+	/**
+	 * Find the root of the tree of a pixel (halving the path)
+	 *
+	 * @param parent union-find forest over pixel indices
+	 * @param i pixel index
+	 * @return index of the root pixel
+	 */
+	private static int find( final int[] parent, int i )
+	{
+		while( parent[ i ] != i )
+		{
+			final int grandParent = parent[ parent[ i ] ];
+			parent[ i ] = grandParent;
+			i = grandParent;
+		}
+		return i;
+	}
+
+	/**
+	 * Join the trees of two pixels, keeping the smallest index as root
+	 *
+	 * @param parent union-find forest over pixel indices
+	 * @param i first pixel index
+	 * @param j second pixel index
+	 */
+	private static void union( final int[] parent, final int i, final int j )
+	{
+		final int ri = find( parent, i );
+		final int rj = find( parent, j );
+		if( ri < rj )
+			parent[ rj ] = ri;
+		else if( rj < ri )
+			parent[ ri ] = rj;
+	}
+}
@@ -0,0 +1,403 @@
+package trainableSegmentation.utils;
+
+/**
+*
+* License: GPL
+*
+* This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU General Public License 2
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+*/
+
+import ij.IJ;
+import ij.ImageStack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instances;
+
+/**
+ * This class counts confusion matrices between label images (of any ImageJ
+ * type) or between a classifier and a set of labeled instances. The pixels
+ * are read directly from the pixel arrays, the work is split in blocks of
+ * rows that are counted in parallel into partial matrices, and the partial
+ * matrices are added at the end. The matrices are indexed as
+ * [ groundtruth class ][ predicted class ].
+ */
+public final class ConfusionMatrix
+{
+	private ConfusionMatrix() {}
+
+	/**
+	 * Count the confusion matrix between two label stacks
+	 *
+	 * @param prediction predicted labels
+	 * @param groundtruth groundtruth labels
+	 * @param mask binary mask (only pixels different from 0 are counted), or null to count all pixels
+	 * @param classIndexToLabel correspondence between class index and label values (pixels with other labels are not counted)
+	 * @param numThreads number of threads to use
+	 * @return confusion matrix (null if error)
+	 */
+	public static long[][] count(
+			final ImageStack prediction,
+			final ImageStack groundtruth,
+			final ImageStack mask,
+			final int[] classIndexToLabel,
+			final int numThreads )
+	{
+		if( !sameSize( prediction, groundtruth, mask ) )
+			return null;
+		if( classIndexToLabel.length == 0 )
+		{
+			IJ.log( "Error: no class/label correspondences to count." );
+			return null;
+		}
+
+		// map of correspondences between labels and class indices
+		final HashMap<Integer, Integer> labelToClassIndex = new HashMap<Integer, Integer>();
+		int minLabel = Integer.MAX_VALUE, maxLabel = Integer.MIN_VALUE;
+		for( int i = 0; i < classIndexToLabel.length; i++ )
+		{
+			labelToClassIndex.put( classIndexToLabel[ i ], i );
+			minLabel = Math.min( minLabel, classIndexToLabel[ i ] );
+			maxLabel = Math.max( maxLabel, classIndexToLabel[ i ] );
+		}
+		// lookup table of the class index of each label in [minLabel, maxLabel]
+		// (-1 for labels without class)
+		final int offset = minLabel;
+		final int[] lut = new int[ (int) Math.min( (long) maxLabel - minLabel + 1, 1 << 16 ) ];
+		for( int i = 0; i < lut.length; i++ )
+		{
+			final Integer index = labelToClassIndex.get( i + offset );
+			lut[ i ] = null == index ? -1 : index;
+		}
+
+		return countBlocks( prediction, numThreads, classIndexToLabel.length, new PixelCounter()
+		{
+			public void count( int slice, int first, int last, long[][] cm )
+			{
+				final Object p = prediction.getPixels( slice );
+				final Object gt = groundtruth.getPixels( slice );
+				final Object m = null == mask ? null : mask.getPixels( slice );
+				for( int i = first; i < last; i++ )
+				{
+					if( null != m && getValue( m, i ) == 0 )
+						continue;
+					final int predIndex = classIndex( (int) getValue( p, i ), lut, offset, labelToClassIndex );
+					final int gtIndex = classIndex( (int) getValue( gt, i ), lut, offset, labelToClassIndex );
+					if( predIndex >= 0 && gtIndex >= 0 )
+						cm[ gtIndex ][ predIndex ] ++;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Count the binary confusion matrix between a probability (or label)
+	 * stack and a binary groundtruth stack. Proposal pixels above the
+	 * threshold and groundtruth pixels different from 0 are positive.
+	 *
+	 * @param proposal probability or label stack
+	 * @param groundtruth binary groundtruth labels
+	 * @param mask binary mask (only pixels different from 0 are counted), or null to count all pixels
+	 * @param threshold threshold to apply to the proposal
+	 * @param numThreads number of threads to use
+	 * @return confusion matrix (first row: black, second row: white) (null if error)
+	 */
+	public static long[][] countBinary(
+			final ImageStack proposal,
+			final ImageStack groundtruth,
+			final ImageStack mask,
+			final double threshold,
+			final int numThreads )
+	{
+		if( !sameSize( proposal, groundtruth, mask ) )
+			return null;
+
+		return countBlocks( proposal, numThreads, 2, new PixelCounter()
+		{
+			public void count( int slice, int first, int last, long[][] cm )
+			{
+				final Object p = proposal.getPixels( slice );
+				final Object gt = groundtruth.getPixels( slice );
+				final Object m = null == mask ? null : mask.getPixels( slice );
+				for( int i = first; i < last; i++ )
+				{
+					if( null != m && getValue( m, i ) == 0 )
+						continue;
+					cm[ getValue( gt, i ) > 0 ? 1 : 0 ][ getValue( p, i ) > threshold ? 1 : 0 ] ++;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Count the confusion matrix between the classes predicted by a
+	 * classifier and the class values of a set of instances
+	 *
+	 * @param classifier classifier to evaluate (it is copied for each thread
+	 * unless it is a random forest)
+	 * @param data labeled instances (the class index must be set)
+	 * @param numThreads number of threads to use
+	 * @return confusion matrix (null if error)
+	 */
+	public static long[][] count(
+			final AbstractClassifier classifier,
+			final Instances data,
+			final int numThreads )
+	{
+		final int numClasses = data.numClasses();
+		final int numInstances = data.numInstances();
+		final int nBlocks = Math.max( 1, Math.min( numThreads, numInstances ) );
+		final long[][] cm = new long[ numClasses ][ numClasses ];
+
+		// Executor service to produce concurrent threads
+		final ExecutorService exe = Executors.newFixedThreadPool( nBlocks );
+		final ArrayList< Future<long[][]> > futures = new ArrayList< Future<long[][]> >();
+		try{
+			for( int b = 0; b < nBlocks; b++ )
+			{
+				final int first = (int) ( (long) numInstances * b / nBlocks );
+				final int last = (int) ( (long) numInstances * ( b + 1 ) / nBlocks );
+				futures.add( exe.submit( new Callable<long[][]>()
+				{
+					public long[][] call() throws Exception
+					{
+						// The Weka random forest classifiers do not need to be duplicated on each thread
+						// (that saves much memory)
+						final AbstractClassifier threadClassifier =
+								classifier instanceof FastRandomForest || classifier instanceof RandomForest ?
+								classifier : (AbstractClassifier) AbstractClassifier.makeCopy( classifier );
+						final long[][] partial = new long[ numClasses ][ numClasses ];
+						for( int i = first; i < last; i++ )
+						{
+							if( data.get( i ).classIsMissing() )
+								continue;
+							final double predicted = threadClassifier.classifyInstance( data.get( i ) );
+							if( !Double.isNaN( predicted ) )
+								partial[ (int) data.get( i ).classValue() ][ (int) predicted ] ++;
+						}
+						return partial;
+					}
+				}));
+			}
+
+			// Wait for the jobs to be done and add the partial matrices
+			for( Future<long[][]> f : futures )
+				add( cm, f.get() );
+		}
+		catch( Exception ex )
+		{
+			IJ.log( "Error when counting the confusion matrix of the classifier." );
+			ex.printStackTrace();
+			return null;
+		}
+		finally{
+			exe.shutdown();
+		}
+		return cm;
+	}
+
+	/**
+	 * Add a confusion matrix to another one
+	 *
+	 * @param cm confusion matrix to update
+	 * @param partial confusion matrix to add
+	 */
+	public static void add( long[][] cm, long[][] partial )
+	{
+		for( int i = 0; i < cm.length; i++ )
+			for( int j = 0; j < cm[ i ].length; j++ )
+				cm[ i ][ j ] += partial[ i ][ j ];
+	}
+
+	/**
+	 * Get the error rate of a confusion matrix
+	 *
+	 * @param cm confusion matrix
+	 * @return fraction of samples out of the diagonal (NaN if the matrix is empty)
+	 */
+	public static double errorRate( long[][] cm )
+	{
+		long total = 0, correct = 0;
+		for( int i = 0; i < cm.length; i++ )
+			for( int j = 0; j < cm[ i ].length; j++ )
+			{
+				total += cm[ i ][ j ];
+				if( i == j )
+					correct += cm[ i ][ j ];
+			}
+		return (double) ( total - correct ) / total;
+	}
+
+	/**
+	 * Get a printable version of a confusion matrix
+	 *
+	 * @param cm confusion matrix
+	 * @param classNames name of each class
+	 * @return one line per groundtruth class with the counts of each predicted class
+	 */
+	public static String toString( long[][] cm, ArrayList<String> classNames )
+	{
+		final StringBuilder sb = new StringBuilder( "Confusion matrix (rows: groundtruth, columns: predicted)\n" );
+		for( int i = 0; i < cm.length; i++ )
+		{
+			for( int j = 0; j < cm[ i ].length; j++ )
+				sb.append( cm[ i ][ j ] ).append( '\t' );
+			sb.append( "| " ).append( classNames.get( i ) ).append( '\n' );
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Counter of a range of pixels of a slice into a partial matrix
+	 */
+	private interface PixelCounter
+	{
+		void count( int slice, int first, int last, long[][] cm );
+	}
+
+	/**
+	 * Split the rows of a stack in blocks, count them in parallel and add
+	 * the partial matrices
+	 *
+	 * @param stack stack to split
+	 * @param numThreads number of threads to use
+	 * @param numClasses number of classes of the matrix
+	 * @param counter counter of each range of pixels
+	 * @return confusion matrix (null if error)
+	 */
+	private static long[][] countBlocks(
+			final ImageStack stack,
+			final int numThreads,
+			final int numClasses,
+			final PixelCounter counter )
+	{
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final long rows = (long) height * stack.getSize();
+		final int nBlocks = (int) Math.max( 1, Math.min( numThreads, rows ) );
+		final long[][] cm = new long[ numClasses ][ numClasses ];
+
+		// Executor service to produce concurrent threads
+		final ExecutorService exe = Executors.newFixedThreadPool( nBlocks );
+		final ArrayList< Future<long[][]> > futures = new ArrayList< Future<long[][]> >();
+		try{
+			for( int b = 0; b < nBlocks; b++ )
+			{
+				final long firstRow = rows * b / nBlocks;
+				final long lastRow = rows * ( b + 1 ) / nBlocks;
+				futures.add( exe.submit( new Callable<long[][]>()
+				{
+					public long[][] call()
+					{
+						final long[][] partial = new long[ numClasses ][ numClasses ];
+						// count the rows of the block slice by slice
+						for( long row = firstRow; row < lastRow; )
+						{
+							final int slice = (int) ( row / height );
+							final long sliceEnd = Math.min( lastRow, (long) ( slice + 1 ) * height );
+							counter.count( slice + 1, (int) ( row - (long) slice * height ) * width,
+									(int) ( sliceEnd - (long) slice * height ) * width, partial );
+							row = sliceEnd;
+						}
+						return partial;
+					}
+				}));
+			}
+
+			// Wait for the jobs to be done and add the partial matrices
+			for( Future<long[][]> f : futures )
+				add( cm, f.get() );
+		}
+		catch( Exception ex )
+		{
+			IJ.log( "Error when counting the confusion matrix in a concurrent way." );
+			ex.printStackTrace();
+			return null;
+		}
+		finally{
+			exe.shutdown();
+		}
+		return cm;
+	}
+
+	/**
+	 * Check that two stacks (and an optional mask) have the same size
+	 *
+	 * @param a first stack
+	 * @param b second stack
+	 * @param mask mask stack (or null)
+	 * @return true if all stacks have the same dimensions
+	 */
+	private static boolean sameSize( ImageStack a, ImageStack b, ImageStack mask )
+	{
+		if( a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()
+				|| a.getSize() != b.getSize()
+				|| ( null != mask && ( a.getWidth() != mask.getWidth()
+						|| a.getHeight() != mask.getHeight()
+						|| a.getSize() != mask.getSize() ) ) )
+		{
+			IJ.log( "Error: size of predicted label image and groundtruth image does not match." );
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the class index of a label
+	 *
+	 * @param label label value
+	 * @param lut class index of the labels starting at the offset
+	 * @param offset first label of the lookup table
+	 * @param labelToClassIndex map of all labels to class indices
+	 * @return class index (-1 if the label has no class)
+	 */
+	private static int classIndex(
+			final int label,
+			final int[] lut,
+			final int offset,
+			final HashMap<Integer, Integer> labelToClassIndex )
+	{
+		final long index = (long) label - offset;
+		if( index >= 0 && index < lut.length )
+			return lut[ (int) index ];
+		final Integer classIndex = labelToClassIndex.get( label );
+		return null == classIndex ? -1 : classIndex;
+	}
+
+	/**
+	 * Get the value of a pixel from a pixel array of any ImageJ type
+	 *
+	 * @param pixels pixel array (byte, short, float or RGB)
+	 * @param i pixel index
+	 * @return pixel value
+	 */
+	private static float getValue( final Object pixels, final int i )
+	{
+		if( pixels instanceof byte[] )
+			return ( (byte[]) pixels )[ i ] & 0xff;
+		if( pixels instanceof short[] )
+			return ( (short[]) pixels )[ i ] & 0xffff;
+		if( pixels instanceof float[] )
+			return ( (float[]) pixels )[ i ];
+		return ( (int[]) pixels )[ i ] & 0xffffff;
+	}
+}
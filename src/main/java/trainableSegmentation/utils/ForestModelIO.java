@@ -0,0 +1,358 @@
+package trainableSegmentation.utils;
+
+/**
+*
+* License: GPL
+*
+* This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU General Public License 2
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+*/
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import ai.BalancedRandomForest;
+import hr.irb.fastRandomForest.FastRandomForest;
+import weka.classifiers.AbstractClassifier;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.ProtectedProperties;
+
+/**
+ * This class reads and writes random forest models (FastRandomForest and
+ * BalancedRandomForest) in a compact binary format. The file starts with a
+ * magic number, a format version and the forest type, followed by the
+ * attribute header (attribute names, types, class labels and metadata,
+ * such as the learned filters of some features) and the flattened nodes
+ * of the trees. Version 1 files (without attribute metadata) can still be
+ * read. Reading it does not need Java
+ * serialization, and files can be memory-mapped.
+ */
+public class ForestModelIO
+{
+	/** magic number at the beginning of compact model files ("TWSF") */
+	public static final int MAGIC = 0x54575346;
+	/** current version of the format */
+	public static final int VERSION = 2;
+
+	/** forest type code of FastRandomForest */
+	private static final int FAST_RANDOM_FOREST = 1;
+	/** forest type code of BalancedRandomForest */
+	private static final int BALANCED_RANDOM_FOREST = 2;
+
+	/**
+	 * Classifier and attribute header read from a compact model
+	 */
+	public static class Model
+	{
+		private final AbstractClassifier classifier;
+		private final Instances header;
+
+		private Model( AbstractClassifier classifier, Instances header )
+		{
+			this.classifier = classifier;
+			this.header = header;
+		}
+
+		/**
+		 * Get the loaded classifier
+		 * @return random forest ready to classify
+		 */
+		public AbstractClassifier getClassifier()
+		{
+			return classifier;
+		}
+
+		/**
+		 * Get the attribute header of the loaded classifier
+		 * @return empty set of instances with the attributes and classes
+		 */
+		public Instances getHeader()
+		{
+			return header;
+		}
+	}
+
+	private ForestModelIO() {}
+
+	/**
+	 * Check if a classifier and its header can be written in compact form,
+	 * i.e. it is a FastRandomForest or BalancedRandomForest and the header
+	 * has only numeric or nominal attributes and a nominal class.
+	 *
+	 * @param classifier classifier to write
+	 * @param header attribute header of the classifier
+	 * @return true if the compact format can be used
+	 */
+	public static boolean isSupported(
+			final AbstractClassifier classifier,
+			final Instances header )
+	{
+		if( null == header || header.classIndex() < 0
+				|| !header.classAttribute().isNominal() )
+			return false;
+		for( int i = 0; i < header.numAttributes(); i++ )
+			if( !header.attribute( i ).isNumeric()
+					&& !header.attribute( i ).isNominal() )
+				return false;
+		return classifier instanceof FastRandomForest
+				|| classifier instanceof BalancedRandomForest;
+	}
+
+	/**
+	 * Write a forest and its attribute header in compact form
+	 *
+	 * @param os output stream to write to (it is not closed)
+	 * @param classifier FastRandomForest or BalancedRandomForest
+	 * @param header attribute header of the classifier
+	 * @throws IOException if writing fails
+	 * @throws IllegalArgumentException if the classifier is not supported
+	 * @throws IllegalStateException if the forest has not been built
+	 */
+	public static void write(
+			final OutputStream os,
+			final AbstractClassifier classifier,
+			final Instances header ) throws IOException
+	{
+		if( !isSupported( classifier, header ) )
+			throw new IllegalArgumentException( "Classifier "
+					+ classifier.getClass().getName()
+					+ " cannot be written in compact form" );
+
+		final DataOutputStream out =
+				new DataOutputStream( new BufferedOutputStream( os ) );
+		out.writeInt( MAGIC );
+		out.writeInt( VERSION );
+		out.writeInt( classifier instanceof FastRandomForest ?
+				FAST_RANDOM_FOREST : BALANCED_RANDOM_FOREST );
+
+		// attribute header
+		writeString( out, header.relationName() );
+		out.writeInt( header.numAttributes() );
+		out.writeInt( header.classIndex() );
+		for( int i = 0; i < header.numAttributes(); i++ )
+		{
+			final Attribute att = header.attribute( i );
+			writeString( out, att.name() );
+			out.writeInt( att.isNominal() ? att.numValues() : -1 );
+			if( att.isNominal() )
+				for( int j = 0; j < att.numValues(); j++ )
+					writeString( out, att.value( j ) );
+			// metadata (since version 2)
+			final ProtectedProperties metadata = att.getMetadata();
+			final Set<String> keys = null == metadata ?
+					new HashSet<String>() : metadata.stringPropertyNames();
+			out.writeInt( keys.size() );
+			for( final String key : keys )
+			{
+				writeString( out, key );
+				writeString( out, metadata.getProperty( key ) );
+			}
+		}
+
+		// trees
+		if( classifier instanceof FastRandomForest )
+			( (FastRandomForest) classifier ).writeCompact( out );
+		else
+			( (BalancedRandomForest) classifier ).writeCompact( out );
+		out.flush();
+	}
+
+	/**
+	 * Check if a stream contains a compact model. The stream must support
+	 * marks, and it is reset to its initial position.
+	 *
+	 * @param is input stream
+	 * @return true if the stream starts with the compact model magic number
+	 * @throws IOException if reading fails
+	 */
+	public static boolean isCompactModel( final InputStream is ) throws IOException
+	{
+		is.mark( 4 );
+		try {
+			int magic = 0;
+			for( int i = 0; i < 4; i++ )
+			{
+				final int b = is.read();
+				if( b < 0 )
+					return false;
+				magic = ( magic << 8 ) | b;
+			}
+			return MAGIC == magic;
+		} finally {
+			is.reset();
+		}
+	}
+
+	/**
+	 * Check if a file contains a compact model
+	 *
+	 * @param file model file
+	 * @return true if the file starts with the compact model magic number
+	 */
+	public static boolean isCompactModel( final File file )
+	{
+		try {
+			final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+			try {
+				return raf.length() >= 4 && MAGIC == raf.readInt();
+			} finally {
+				raf.close();
+			}
+		} catch ( IOException e ) {
+			return false;
+		}
+	}
+
+	/**
+	 * Read a compact model from a file (memory-mapped)
+	 *
+	 * @param file model file
+	 * @return loaded classifier and attribute header
+	 * @throws IOException if the file cannot be read or is not a compact model
+	 */
+	public static Model read( final File file ) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try {
+			final FileChannel channel = raf.getChannel();
+			return read( channel.map( FileChannel.MapMode.READ_ONLY, 0,
+					channel.size() ) );
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Read a compact model from a stream
+	 *
+	 * @param is input stream (it is read until the end but not closed)
+	 * @return loaded classifier and attribute header
+	 * @throws IOException if the stream cannot be read or is not a compact model
+	 */
+	public static Model read( final InputStream is ) throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[ 1 << 16 ];
+		int n;
+		while( ( n = is.read( buffer ) ) > 0 )
+			bytes.write( buffer, 0, n );
+		return read( ByteBuffer.wrap( bytes.toByteArray() ) );
+	}
+
+	/**
+	 * Read a compact model from a buffer
+	 *
+	 * @param in buffer positioned at the beginning of the model
+	 * @return loaded classifier and attribute header
+	 * @throws IOException if the buffer does not contain a valid compact model
+	 */
+	public static Model read( final ByteBuffer in ) throws IOException
+	{
+		try {
+			if( MAGIC != in.getInt() )
+				throw new IOException( "Not a compact model" );
+			final int version = in.getInt();
+			if( version > VERSION )
+				throw new IOException( "Unsupported compact model version: "
+						+ version );
+			final int type = in.getInt();
+
+			// attribute header
+			final String relationName = readString( in );
+			final int numAttributes = in.getInt();
+			final int classIndex = in.getInt();
+			final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+			for( int i = 0; i < numAttributes; i++ )
+			{
+				final String name = readString( in );
+				final int numValues = in.getInt();
+				ArrayList<String> values = null;
+				if( numValues >= 0 )
+				{
+					values = new ArrayList<String>();
+					for( int j = 0; j < numValues; j++ )
+						values.add( readString( in ) );
+				}
+				final Properties metadata = new Properties();
+				if( version >= 2 )
+				{
+					final int numProperties = in.getInt();
+					for( int j = 0; j < numProperties; j++ )
+						metadata.setProperty( readString( in ), readString( in ) );
+				}
+				if( null == values )
+					attributes.add( new Attribute( name, new ProtectedProperties( metadata ) ) );
+				else
+					attributes.add( new Attribute( name, values, new ProtectedProperties( metadata ) ) );
+			}
+			final Instances header = new Instances( relationName, attributes, 0 );
+			header.setClassIndex( classIndex );
+
+			// trees
+			final AbstractClassifier classifier;
+			if( FAST_RANDOM_FOREST == type )
+				classifier = FastRandomForest.readCompact( in, header );
+			else if( BALANCED_RANDOM_FOREST == type )
+				classifier = BalancedRandomForest.readCompact( in );
+			else
+				throw new IOException( "Unknown forest type in compact model: "
+						+ type );
+			return new Model( classifier, header );
+		} catch ( BufferUnderflowException e ) {
+			throw new IOException( "Truncated compact model", e );
+		}
+	}
+
+	/**
+	 * Write a string as its length followed by its UTF-8 bytes
+	 *
+	 * @param out output to write to
+	 * @param s string to write
+	 * @throws IOException if writing fails
+	 */
+	private static void writeString( final DataOutputStream out, final String s )
+			throws IOException
+	{
+		final byte[] bytes = s.getBytes( StandardCharsets.UTF_8 );
+		out.writeInt( bytes.length );
+		out.write( bytes );
+	}
+
+	/**
+	 * Read a string written by <code>writeString</code>
+	 *
+	 * @param in buffer to read from
+	 * @return read string
+	 */
+	private static String readString( final ByteBuffer in )
+	{
+		final byte[] bytes = new byte[ in.getInt() ];
+		in.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+}
@@ -0,0 +1,310 @@
+package trainableSegmentation.utils;
+
+/**
+*
+* License: GPL
+*
+* This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU General Public License 2
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+*/
+
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This class draws random pixel positions without building lists of all
+ * the candidate positions. Samples without replacement are drawn with
+ * Floyd's algorithm, which only needs memory proportional to the number of
+ * samples. Samples can also be stratified, i.e. distributed among groups
+ * of pixels (spatial tiles, color bins...) proportionally to their sizes.
+ * Pixel positions are returned as sorted indices (y * width + x).
+ */
+public final class PixelSampler
+{
+	private PixelSampler() {}
+
+	/**
+	 * Assignment of the pixels of an image to strata
+	 */
+	public interface Strata
+	{
+		/**
+		 * Get the number of strata
+		 * @return number of strata
+		 */
+		int getNumStrata();
+
+		/**
+		 * Get the stratum of a pixel
+		 * @param index pixel index
+		 * @return stratum of the pixel (from 0 to the number of strata - 1),
+		 * or -1 to exclude it from sampling
+		 */
+		int getStratum( int index );
+	}
+
+	/**
+	 * Draw distinct random integers in [0, n) with Floyd's algorithm
+	 *
+	 * @param n size of the population
+	 * @param k number of samples (all the population is returned if it is
+	 * larger than n)
+	 * @param random random number generator
+	 * @return sorted samples
+	 */
+	public static int[] sample(
+			final int n,
+			final int k,
+			final Random random )
+	{
+		final int numSamples = Math.max( 0, Math.min( n, k ) );
+		final int[] samples = new int[ numSamples ];
+		if( numSamples == n )
+		{
+			for( int i = 0; i < n; i++ )
+				samples[ i ] = i;
+			return samples;
+		}
+
+		// open addressing hash set of the drawn integers
+		int capacity = 16;
+		while( capacity < 2 * numSamples )
+			capacity <<= 1;
+		final int[] table = new int[ capacity ];
+		Arrays.fill( table, -1 );
+
+		for( int j = n - numSamples, s = 0; j < n; j++, s++ )
+		{
+			final int t = random.nextInt( j + 1 );
+			// if t was already drawn, j is drawn instead (j is always new)
+			samples[ s ] = insert( table, t ) ? t : j;
+			if( samples[ s ] == j )
+				insert( table, j );
+		}
+		Arrays.sort( samples );
+		return samples;
+	}
+
+	/**
+	 * Draw random integers in [0, n) with replacement
+	 *
+	 * @param n size of the population
+	 * @param k number of samples
+	 * @param random random number generator
+	 * @return sorted samples
+	 */
+	public static int[] sampleWithReplacement(
+			final int n,
+			final int k,
+			final Random random )
+	{
+		if( n <= 0 )
+			return new int[ 0 ];
+		final int[] samples = new int[ k ];
+		for( int i = 0; i < k; i++ )
+			samples[ i ] = random.nextInt( n );
+		Arrays.sort( samples );
+		return samples;
+	}
+
+	/**
+	 * Draw pixel positions among the foreground (value greater than 0)
+	 * pixels of an image. The samples are drawn without replacement when
+	 * there are enough foreground pixels, and with replacement otherwise.
+	 *
+	 * @param image input image
+	 * @param k number of samples
+	 * @param random random number generator
+	 * @return sorted pixel indices (empty if there is no foreground)
+	 */
+	public static int[] sampleForeground(
+			final ImageProcessor image,
+			final int k,
+			final Random random )
+	{
+		final int size = image.getWidth() * image.getHeight();
+		int count = 0;
+		for( int i = 0; i < size; i++ )
+			if( image.getf( i ) > 0 )
+				count ++;
+
+		final int[] ranks = count >= k ?
+				sample( count, k, random ) : sampleWithReplacement( count, k, random );
+
+		// map the ranks among the foreground pixels to pixel indices
+		final int[] samples = new int[ ranks.length ];
+		for( int i = 0, rank = 0, s = 0; i < size && s < ranks.length; i++ )
+			if( image.getf( i ) > 0 )
+			{
+				while( s < ranks.length && ranks[ s ] == rank )
+					samples[ s++ ] = i;
+				rank ++;
+			}
+		return samples;
+	}
+
+	/**
+	 * Draw distinct pixel positions stratified by square spatial tiles
+	 *
+	 * @param width image width
+	 * @param height image height
+	 * @param tileSize side of the tiles (in pixels)
+	 * @param k number of samples
+	 * @param random random number generator
+	 * @return sorted pixel indices
+	 */
+	public static int[] sampleTiles(
+			final int width,
+			final int height,
+			final int tileSize,
+			final int k,
+			final Random random )
+	{
+		final int tilesX = ( width + tileSize - 1 ) / tileSize;
+		final int tilesY = ( height + tileSize - 1 ) / tileSize;
+		final long[] sizes = new long[ tilesX * tilesY ];
+		for( int t = 0; t < sizes.length; t++ )
+			sizes[ t ] = (long) Math.min( tileSize, width - ( t % tilesX ) * tileSize )
+					* Math.min( tileSize, height - ( t / tilesX ) * tileSize );
+		final int[] allocation = allocate( sizes, k );
+
+		int numSamples = 0;
+		for( int t = 0; t < allocation.length; t++ )
+			numSamples += allocation[ t ];
+		final int[] samples = new int[ numSamples ];
+		for( int t = 0, s = 0; t < sizes.length; t++ )
+		{
+			final int x0 = ( t % tilesX ) * tileSize;
+			final int y0 = ( t / tilesX ) * tileSize;
+			final int tileWidth = Math.min( tileSize, width - x0 );
+			for( int r : sample( (int) sizes[ t ], allocation[ t ], random ) )
+				samples[ s++ ] = ( y0 + r / tileWidth ) * width + x0 + r % tileWidth;
+		}
+		Arrays.sort( samples );
+		return samples;
+	}
+
+	/**
+	 * Draw distinct pixel positions stratified by arbitrary strata. The
+	 * strata are visited twice (to count and to select the pixels), so they
+	 * can be computed on the fly.
+	 *
+	 * @param numPixels number of pixels of the image
+	 * @param strata assignment of the pixels to strata
+	 * @param k number of samples
+	 * @param random random number generator
+	 * @return sorted pixel indices
+	 */
+	public static int[] sampleStrata(
+			final int numPixels,
+			final Strata strata,
+			final int k,
+			final Random random )
+	{
+		final int numStrata = strata.getNumStrata();
+		final long[] sizes = new long[ numStrata ];
+		for( int i = 0; i < numPixels; i++ )
+		{
+			final int stratum = strata.getStratum( i );
+			if( stratum >= 0 )
+				sizes[ stratum ] ++;
+		}
+		final int[] allocation = allocate( sizes, k );
+
+		// ranks of the samples inside each stratum
+		final int[][] ranks = new int[ numStrata ][];
+		int numSamples = 0;
+		for( int t = 0; t < numStrata; t++ )
+		{
+			ranks[ t ] = sample( (int) sizes[ t ], allocation[ t ], random );
+			numSamples += ranks[ t ].length;
+		}
+
+		final int[] samples = new int[ numSamples ];
+		final int[] seen = new int[ numStrata ];
+		final int[] next = new int[ numStrata ];
+		for( int i = 0, s = 0; i < numPixels && s < numSamples; i++ )
+		{
+			final int t = strata.getStratum( i );
+			if( t < 0 )
+				continue;
+			if( next[ t ] < ranks[ t ].length && ranks[ t ][ next[ t ] ] == seen[ t ] )
+			{
+				samples[ s++ ] = i;
+				next[ t ] ++;
+			}
+			seen[ t ] ++;
+		}
+		return samples;
+	}
+
+	/**
+	 * Distribute a number of samples among strata proportionally to their
+	 * sizes (largest remainder method)
+	 *
+	 * @param sizes number of pixels of each stratum
+	 * @param k total number of samples
+	 * @return number of samples of each stratum
+	 */
+	private static int[] allocate( final long[] sizes, final int k )
+	{
+		long total = 0;
+		for( int t = 0; t < sizes.length; t++ )
+			total += sizes[ t ];
+		final int numSamples = (int) Math.max( 0, Math.min( total, k ) );
+		final int[] allocation = new int[ sizes.length ];
+		if( numSamples == 0 )
+			return allocation;
+
+		// keys with the remainder of each quota in the high word and the
+		// stratum in the low word
+		final long[] keys = new long[ sizes.length ];
+		int assigned = 0;
+		for( int t = 0; t < sizes.length; t++ )
+		{
+			final double quota = (double) sizes[ t ] * numSamples / total;
+			allocation[ t ] = (int) quota;
+			assigned += allocation[ t ];
+			keys[ t ] = (long) ( ( quota - allocation[ t ] ) * Integer.MAX_VALUE ) << 32 | t;
+		}
+		// the strata with the largest remainders get one more sample (their
+		// quotas are not integers, so they have pixels left)
+		Arrays.sort( keys );
+		for( int i = keys.length - 1; assigned < numSamples; i--, assigned++ )
+			allocation[ (int) keys[ i ] ] ++;
+		return allocation;
+	}
+
+	/**
+	 * Insert a non-negative integer in an open addressing hash set
+	 *
+	 * @param table hash table (-1 for empty slots)
+	 * @param value value to insert
+	 * @return false if the value was already in the set
+	 */
+	private static boolean insert( final int[] table, final int value )
+	{
+		final int mask = table.length - 1;
+		int slot = ( value * 0x9E3779B9 ) >>> 7 & mask;
+		while( table[ slot ] != -1 )
+		{
+			if( table[ slot ] == value )
+				return false;
+			slot = ( slot + 1 ) & mask;
+		}
+		table[ slot ] = value;
+		return true;
+	}
+}
@@ -0,0 +1,295 @@
+package trainableSegmentation.utils;
+
+/**
+*
+* License: GPL
+*
+* This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU General Public License 2
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+*/
+
+import ij.Prefs;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Multi-resolution pyramid of minimum, maximum and mean pooling of a 2D
+ * image. Level l pools blocks of 2^l x 2^l pixels (the blocks at the right
+ * and bottom borders may be smaller) and is computed from level l-1, so
+ * the three pools of all levels are obtained in a single pass per level.
+ * The rows of each level are processed in parallel.
+ * <p>
+ * The levels are kept at their own resolution and read with full
+ * resolution coordinates (see {@link #getValue}), so they can be used as
+ * features without building the upsampled images.
+ */
+public class PoolingPyramid
+{
+	/** index of the minimum pool */
+	public static final int MIN = 0;
+	/** index of the maximum pool */
+	public static final int MAX = 1;
+	/** index of the mean pool */
+	public static final int MEAN = 2;
+	/** names of the pools */
+	public static final String[] poolNames = new String[]{ "Min", "Max", "Mean" };
+
+	/** width of the original image */
+	private final int width;
+	/** height of the original image */
+	private final int height;
+	/** number of levels (not including the original image) */
+	private final int numLevels;
+	/** pooled pixels, indexed by pool, level - 1 and pixel */
+	private final float[][][] pools;
+
+	/**
+	 * Build the pyramid of an image using all available threads
+	 *
+	 * @param image input image (RGB images are converted to grayscale)
+	 * @param numLevels number of levels
+	 */
+	public PoolingPyramid(
+			final ImageProcessor image,
+			final int numLevels )
+	{
+		this( image, numLevels, Prefs.getThreads() );
+	}
+
+	/**
+	 * Build the pyramid of an image
+	 *
+	 * @param image input image (RGB images are converted to grayscale)
+	 * @param numLevels number of levels
+	 * @param numThreads number of threads to use
+	 * @throws RuntimeException if the computation of a level fails
+	 */
+	public PoolingPyramid(
+			final ImageProcessor image,
+			final int numLevels,
+			final int numThreads )
+	{
+		if( numLevels < 1 )
+			throw new IllegalArgumentException( "The number of levels must be at least 1." );
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.numLevels = numLevels;
+		this.pools = new float[ 3 ][ numLevels ][];
+
+		final float[] original = (float[]) ( image instanceof FloatProcessor ?
+				image.getPixels() : image.convertToFloat().getPixels() );
+
+		final ExecutorService exe = numThreads > 1 ?
+				Executors.newFixedThreadPool( numThreads ) : null;
+		try{
+			for( int l = 1; l <= numLevels; l++ )
+			{
+				final float[] srcMin = l == 1 ? original : pools[ MIN ][ l - 2 ];
+				final float[] srcMax = l == 1 ? original : pools[ MAX ][ l - 2 ];
+				final float[] srcMean = l == 1 ? original : pools[ MEAN ][ l - 2 ];
+				final int level = l;
+				final int levelHeight = getLevelHeight( l );
+				for( int p = 0; p < 3; p++ )
+					pools[ p ][ l - 1 ] = new float[ getLevelWidth( l ) * levelHeight ];
+
+				final int nStripes = null == exe ? 1 : Math.min( numThreads, levelHeight );
+				final ArrayList< Callable<Void> > tasks = new ArrayList< Callable<Void> >();
+				for( int s = 0; s < nStripes; s++ )
+				{
+					final int y0 = (int) ( (long) levelHeight * s / nStripes );
+					final int y1 = (int) ( (long) levelHeight * ( s + 1 ) / nStripes );
+					tasks.add( new Callable<Void>()
+					{
+						public Void call()
+						{
+							poolRows( level, srcMin, srcMax, srcMean, y0, y1 );
+							return null;
+						}
+					});
+				}
+				if( null == exe )
+					tasks.get( 0 ).call();
+				else
+					for( Future<Void> f : exe.invokeAll( tasks ) )
+						f.get();
+			}
+		}
+		catch( RuntimeException ex )
+		{
+			throw ex;
+		}
+		catch( Exception ex )
+		{
+			// an incomplete pyramid cannot be used, so do not hide the error
+			throw new RuntimeException( "Error when building the pooling pyramid.", ex );
+		}
+		finally{
+			if( null != exe )
+				exe.shutdown();
+		}
+	}
+
+	/**
+	 * Pool a stripe of rows of a level from the previous level
+	 *
+	 * @param level level to compute
+	 * @param srcMin minimum pool of the previous level
+	 * @param srcMax maximum pool of the previous level
+	 * @param srcMean mean pool of the previous level
+	 * @param y0 first row of the stripe
+	 * @param y1 row after the stripe
+	 */
+	private void poolRows(
+			final int level,
+			final float[] srcMin,
+			final float[] srcMax,
+			final float[] srcMean,
+			final int y0,
+			final int y1 )
+	{
+		final int srcWidth = getLevelWidth( level - 1 );
+		final int srcHeight = getLevelHeight( level - 1 );
+		final int dstWidth = getLevelWidth( level );
+		final float[] dstMin = pools[ MIN ][ level - 1 ];
+		final float[] dstMax = pools[ MAX ][ level - 1 ];
+		final float[] dstMean = pools[ MEAN ][ level - 1 ];
+
+		for( int y = y0; y < y1; y++ )
+			for( int x = 0; x < dstWidth; x++ )
+			{
+				float min = Float.MAX_VALUE;
+				float max = -Float.MAX_VALUE;
+				double sum = 0;
+				long count = 0;
+				for( int v = 2 * y; v < 2 * y + 2 && v < srcHeight; v++ )
+					for( int u = 2 * x; u < 2 * x + 2 && u < srcWidth; u++ )
+					{
+						final int i = v * srcWidth + u;
+						if( srcMin[ i ] < min )
+							min = srcMin[ i ];
+						if( srcMax[ i ] > max )
+							max = srcMax[ i ];
+						// the means are weighted by the size of their blocks
+						final long n = blockSize( level - 1, u, v );
+						sum += srcMean[ i ] * (double) n;
+						count += n;
+					}
+				final int i = y * dstWidth + x;
+				dstMin[ i ] = min;
+				dstMax[ i ] = max;
+				dstMean[ i ] = (float) ( sum / count );
+			}
+	}
+
+	/**
+	 * Get the number of original pixels pooled in a block
+	 *
+	 * @param level pyramid level
+	 * @param x block column
+	 * @param y block row
+	 * @return number of pixels of the block
+	 */
+	private long blockSize( final int level, final int x, final int y )
+	{
+		final int side = 1 << level;
+		return (long) Math.min( side, width - x * side ) * Math.min( side, height - y * side );
+	}
+
+	/**
+	 * Get the number of levels
+	 * @return number of levels (not including the original image)
+	 */
+	public int getNumLevels()
+	{
+		return numLevels;
+	}
+
+	/**
+	 * Get the width of a level
+	 * @param level pyramid level (0 for the original image)
+	 * @return number of columns of the level
+	 */
+	public int getLevelWidth( final int level )
+	{
+		return ( ( width - 1 ) >> level ) + 1;
+	}
+
+	/**
+	 * Get the height of a level
+	 * @param level pyramid level (0 for the original image)
+	 * @return number of rows of the level
+	 */
+	public int getLevelHeight( final int level )
+	{
+		return ( ( height - 1 ) >> level ) + 1;
+	}
+
+	/**
+	 * Get a pool of a level at its own resolution
+	 *
+	 * @param pool MIN, MAX or MEAN
+	 * @param level pyramid level (from 1 to the number of levels)
+	 * @return pooled image
+	 */
+	public FloatProcessor getLevel( final int pool, final int level )
+	{
+		return new FloatProcessor( getLevelWidth( level ), getLevelHeight( level ),
+				pools[ pool ][ level - 1 ] );
+	}
+
+	/**
+	 * Read a pool of a level at a pixel of the original image (nearest
+	 * neighbor upsampling)
+	 *
+	 * @param pool MIN, MAX or MEAN
+	 * @param level pyramid level (from 1 to the number of levels)
+	 * @param x column in the original image
+	 * @param y row in the original image
+	 * @return pooled value of the block containing the pixel
+	 */
+	public float getValue(
+			final int pool,
+			final int level,
+			final int x,
+			final int y )
+	{
+		return pools[ pool ][ level - 1 ][ ( y >> level ) * getLevelWidth( level ) + ( x >> level ) ];
+	}
+
+	/**
+	 * Upsample a pool of a level to the size of the original image
+	 *
+	 * @param pool MIN, MAX or MEAN
+	 * @param level pyramid level (from 1 to the number of levels)
+	 * @return upsampled image (nearest neighbor)
+	 */
+	public FloatProcessor upsample( final int pool, final int level )
+	{
+		final float[] src = pools[ pool ][ level - 1 ];
+		final int levelWidth = getLevelWidth( level );
+		final float[] pixels = new float[ width * height ];
+		for( int y = 0, i = 0; y < height; y++ )
+		{
+			final int offset = ( y >> level ) * levelWidth;
+			for( int x = 0; x < width; x++, i++ )
+				pixels[ i ] = src[ offset + ( x >> level ) ];
+		}
+		return new FloatProcessor( width, height, pixels );
+	}
+}
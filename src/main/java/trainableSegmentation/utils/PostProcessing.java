@@ -0,0 +1,474 @@
+package trainableSegmentation.utils;
+
+/**
+*
+* License: GPL
+*
+* This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU General Public License 2
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+*/
+
+import ij.IJ;
+import ij.Prefs;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class post-processes probability (or any grayscale) images into
+ * binary masks working on primitive arrays. The threshold is fused with
+ * the first pass of the morphological filters, which are computed with
+ * separable sliding windows (square structuring elements) over stripes of
+ * rows processed in parallel. Small objects and holes are found on the
+ * connected components of the mask (see {@link ComponentLabeling}).
+ * Binary masks use 255 for foreground and 0 for background.
+ */
+public final class PostProcessing
+{
+	private PostProcessing() {}
+
+	/**
+	 * Apply threshold, morphological opening and closing, small object
+	 * removal and hole filling to an image
+	 *
+	 * @param image input image (usually a probability map)
+	 * @param thresholdValue threshold value (pixels above it are foreground)
+	 * @param radius radius of the square structuring element of the opening
+	 * and closing (0 to skip them)
+	 * @param minSize minimum size of the objects (in pixels)
+	 * @param fillHoles flag to fill the holes of the objects
+	 * @return binary mask (null if error)
+	 */
+	public static ByteProcessor apply(
+			final ImageProcessor image,
+			final double thresholdValue,
+			final int radius,
+			final int minSize,
+			final boolean fillHoles )
+	{
+		return apply( image, thresholdValue, radius, minSize, fillHoles, Prefs.getThreads() );
+	}
+
+	/**
+	 * Apply threshold, morphological opening and closing, small object
+	 * removal and hole filling to an image
+	 *
+	 * @param image input image (usually a probability map)
+	 * @param thresholdValue threshold value (pixels above it are foreground)
+	 * @param radius radius of the square structuring element of the opening
+	 * and closing (0 to skip them)
+	 * @param minSize minimum size of the objects (in pixels)
+	 * @param fillHoles flag to fill the holes of the objects
+	 * @param numThreads number of threads to use
+	 * @return binary mask (null if error)
+	 */
+	public static ByteProcessor apply(
+			final ImageProcessor image,
+			final double thresholdValue,
+			final int radius,
+			final int minSize,
+			final boolean fillHoles,
+			final int numThreads )
+	{
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final float[] values = floatPixels( image );
+
+		byte[] mask = new byte[ width * height ];
+		byte[] buffer = new byte[ width * height ];
+
+		final ExecutorService exe = numThreads > 1 && height > 1 ?
+				Executors.newFixedThreadPool( Math.min( numThreads, height ) ) : null;
+		try{
+			if( radius > 0 )
+			{
+				// opening followed by closing: the two consecutive
+				// dilations are done as a single one of double radius
+				runPass( exe, numThreads, null, values, thresholdValue, buffer, width, height, radius, true, true );
+				runPass( exe, numThreads, buffer, null, 0, mask, width, height, radius, true, false );
+				runPass( exe, numThreads, mask, null, 0, buffer, width, height, 2 * radius, false, true );
+				runPass( exe, numThreads, buffer, null, 0, mask, width, height, 2 * radius, false, false );
+				runPass( exe, numThreads, mask, null, 0, buffer, width, height, radius, true, true );
+				runPass( exe, numThreads, buffer, null, 0, mask, width, height, radius, true, false );
+			}
+			else
+				runPass( exe, numThreads, null, values, thresholdValue, mask, width, height, 0, true, true );
+		}
+		catch( Exception ex )
+		{
+			IJ.log( "Error when post-processing the image." );
+			ex.printStackTrace();
+			return null;
+		}
+		finally{
+			if( null != exe )
+				exe.shutdown();
+		}
+
+		if( minSize > 1 && removeSmallObjects( mask, width, height, minSize, numThreads ) < 0 )
+			return null;
+		if( fillHoles && fillHoles( mask, width, height, numThreads ) < 0 )
+			return null;
+
+		return new ByteProcessor( width, height, mask, null );
+	}
+
+	/**
+	 * Threshold an image
+	 *
+	 * @param image input image
+	 * @param thresholdValue threshold value (pixels above it are foreground)
+	 * @param numThreads number of threads to use
+	 * @return binary pixels (null if error)
+	 */
+	public static byte[] threshold(
+			final ImageProcessor image,
+			final double thresholdValue,
+			final int numThreads )
+	{
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final float[] values = floatPixels( image );
+		final byte[] mask = new byte[ width * height ];
+
+		final ExecutorService exe = numThreads > 1 && height > 1 ?
+				Executors.newFixedThreadPool( Math.min( numThreads, height ) ) : null;
+		try{
+			runPass( exe, numThreads, null, values, thresholdValue, mask, width, height, 0, true, true );
+		}
+		catch( Exception ex )
+		{
+			IJ.log( "Error when thresholding the image." );
+			ex.printStackTrace();
+			return null;
+		}
+		finally{
+			if( null != exe )
+				exe.shutdown();
+		}
+		return mask;
+	}
+
+	/**
+	 * Dilate a binary mask with a square structuring element (clipped at
+	 * the image borders)
+	 *
+	 * @param mask binary pixels
+	 * @param width image width
+	 * @param height image height
+	 * @param radius radius of the square structuring element
+	 * @param numThreads number of threads to use
+	 * @return dilated binary pixels (null if error)
+	 */
+	public static byte[] dilate(
+			final byte[] mask,
+			final int width,
+			final int height,
+			final int radius,
+			final int numThreads )
+	{
+		final byte[] buffer = new byte[ mask.length ];
+		final byte[] dilated = new byte[ mask.length ];
+
+		final ExecutorService exe = numThreads > 1 && height > 1 ?
+				Executors.newFixedThreadPool( Math.min( numThreads, height ) ) : null;
+		try{
+			runPass( exe, numThreads, mask, null, 0, buffer, width, height, radius, false, true );
+			runPass( exe, numThreads, buffer, null, 0, dilated, width, height, radius, false, false );
+		}
+		catch( Exception ex )
+		{
+			IJ.log( "Error when dilating the image." );
+			ex.printStackTrace();
+			return null;
+		}
+		finally{
+			if( null != exe )
+				exe.shutdown();
+		}
+		return dilated;
+	}
+
+	/**
+	 * Remove (set to background) the 4-connected objects of a binary mask
+	 * with less than a minimum number of pixels
+	 *
+	 * @param mask binary pixels (modified in place)
+	 * @param width image width
+	 * @param height image height
+	 * @param minSize minimum size of the objects (in pixels)
+	 * @param numThreads number of threads to use
+	 * @return number of pixels set to background (-1 if error)
+	 */
+	public static int removeSmallObjects(
+			final byte[] mask,
+			final int width,
+			final int height,
+			final int minSize,
+			final int numThreads )
+	{
+		final FloatProcessor labels = ComponentLabeling.label(
+				new ByteProcessor( width, height, mask, null ), 4, numThreads );
+		if( null == labels )
+			return -1;
+		final float[] labelPixels = (float[]) labels.getPixels();
+
+		final int[] sizes = new int[ (int) labels.getMax() + 1 ];
+		for( int i = 0; i < labelPixels.length; i++ )
+			sizes[ (int) labelPixels[ i ] ] ++;
+
+		int removed = 0;
+		for( int i = 0; i < labelPixels.length; i++ )
+			if( labelPixels[ i ] > 0 && sizes[ (int) labelPixels[ i ] ] < minSize )
+			{
+				mask[ i ] = 0;
+				removed ++;
+			}
+		return removed;
+	}
+
+	/**
+	 * Fill the holes of a binary mask, i.e. the 4-connected background
+	 * regions that do not touch the image borders
+	 *
+	 * @param mask binary pixels (modified in place)
+	 * @param width image width
+	 * @param height image height
+	 * @param numThreads number of threads to use
+	 * @return number of pixels set to foreground (-1 if error)
+	 */
+	public static int fillHoles(
+			final byte[] mask,
+			final int width,
+			final int height,
+			final int numThreads )
+	{
+		final byte[] background = new byte[ mask.length ];
+		for( int i = 0; i < mask.length; i++ )
+			if( mask[ i ] == 0 )
+				background[ i ] = (byte) 255;
+
+		final FloatProcessor labels = ComponentLabeling.label(
+				new ByteProcessor( width, height, background, null ), 4, numThreads );
+		if( null == labels )
+			return -1;
+		final float[] labelPixels = (float[]) labels.getPixels();
+
+		// background regions touching the borders are not holes
+		final boolean[] border = new boolean[ (int) labels.getMax() + 1 ];
+		for( int x = 0; x < width; x++ )
+		{
+			border[ (int) labelPixels[ x ] ] = true;
+			border[ (int) labelPixels[ ( height - 1 ) * width + x ] ] = true;
+		}
+		for( int y = 0; y < height; y++ )
+		{
+			border[ (int) labelPixels[ y * width ] ] = true;
+			border[ (int) labelPixels[ y * width + width - 1 ] ] = true;
+		}
+
+		int filled = 0;
+		for( int i = 0; i < labelPixels.length; i++ )
+			if( labelPixels[ i ] > 0 && !border[ (int) labelPixels[ i ] ] )
+			{
+				mask[ i ] = (byte) 255;
+				filled ++;
+			}
+		return filled;
+	}
+
+	/**
+	 * Get the pixel values of an image as floats (without copying them if
+	 * the image is already 32-bit)
+	 *
+	 * @param image input image
+	 * @return pixel values
+	 */
+	private static float[] floatPixels( final ImageProcessor image )
+	{
+		if( image instanceof FloatProcessor )
+			return (float[]) image.getPixels();
+		return (float[]) image.convertToFloat().getPixels();
+	}
+
+	/**
+	 * Run a pass of a separable binary erosion or dilation over stripes of
+	 * rows. Windows are clipped at the image borders. If the source mask is
+	 * null, the source is obtained by thresholding the pixel values.
+	 *
+	 * @param exe executor service (null to run the pass in this thread)
+	 * @param numThreads number of stripes
+	 * @param src source binary pixels (or null to threshold the values)
+	 * @param values pixel values to threshold (used only if src is null)
+	 * @param thresholdValue threshold value
+	 * @param dst destination binary pixels
+	 * @param width image width
+	 * @param height image height
+	 * @param radius half size of the window
+	 * @param erode true for erosion, false for dilation
+	 * @param horizontal true for a pass along rows, false along columns
+	 * @throws Exception if any of the stripes fails
+	 */
+	private static void runPass(
+			final ExecutorService exe,
+			final int numThreads,
+			final byte[] src,
+			final float[] values,
+			final double thresholdValue,
+			final byte[] dst,
+			final int width,
+			final int height,
+			final int radius,
+			final boolean erode,
+			final boolean horizontal ) throws Exception
+	{
+		final int nStripes = null == exe ? 1 : Math.max( 1, Math.min( numThreads, height ) );
+		final ArrayList< Callable<Void> > tasks = new ArrayList< Callable<Void> >();
+		for( int s = 0; s < nStripes; s++ )
+		{
+			final int y0 = (int) ( (long) height * s / nStripes );
+			final int y1 = (int) ( (long) height * ( s + 1 ) / nStripes );
+			tasks.add( new Callable<Void>()
+			{
+				public Void call()
+				{
+					if( horizontal )
+						passRows( src, values, thresholdValue, dst, width, y0, y1, radius, erode );
+					else
+						passColumns( src, dst, width, height, y0, y1, radius, erode );
+					return null;
+				}
+			});
+		}
+		if( null == exe )
+			tasks.get( 0 ).call();
+		else
+			for( Future<Void> f : exe.invokeAll( tasks ) )
+				f.get();
+	}
+
+	/**
+	 * Erode or dilate a stripe of rows along the rows
+	 *
+	 * @param src source binary pixels (or null to threshold the values)
+	 * @param values pixel values to threshold (used only if src is null)
+	 * @param thresholdValue threshold value
+	 * @param dst destination binary pixels
+	 * @param width image width
+	 * @param y0 first row of the stripe
+	 * @param y1 row after the stripe
+	 * @param radius half size of the window
+	 * @param erode true for erosion, false for dilation
+	 */
+	private static void passRows(
+			final byte[] src,
+			final float[] values,
+			final double thresholdValue,
+			final byte[] dst,
+			final int width,
+			final int y0,
+			final int y1,
+			final int radius,
+			final boolean erode )
+	{
+		for( int y = y0; y < y1; y++ )
+		{
+			final int offset = y * width;
+			// number of foreground and total pixels in the window
+			int count = 0;
+			for( int x = 0; x < radius && x < width; x++ )
+				if( isOn( src, values, thresholdValue, offset + x ) )
+					count ++;
+			for( int x = 0; x < width; x++ )
+			{
+				if( x + radius < width && isOn( src, values, thresholdValue, offset + x + radius ) )
+					count ++;
+				if( x - radius - 1 >= 0 && isOn( src, values, thresholdValue, offset + x - radius - 1 ) )
+					count --;
+				final int size = Math.min( width - 1, x + radius ) - Math.max( 0, x - radius ) + 1;
+				dst[ offset + x ] = ( erode ? count == size : count > 0 ) ? (byte) 255 : 0;
+			}
+		}
+	}
+
+	/**
+	 * Erode or dilate a stripe of rows along the columns
+	 *
+	 * @param src source binary pixels
+	 * @param dst destination binary pixels
+	 * @param width image width
+	 * @param height image height
+	 * @param y0 first row of the stripe
+	 * @param y1 row after the stripe
+	 * @param radius half size of the window
+	 * @param erode true for erosion, false for dilation
+	 */
+	private static void passColumns(
+			final byte[] src,
+			final byte[] dst,
+			final int width,
+			final int height,
+			final int y0,
+			final int y1,
+			final int radius,
+			final boolean erode )
+	{
+		// foreground count of the window of each column, centered at y0 - 1
+		final int[] count = new int[ width ];
+		for( int y = Math.max( 0, y0 - 1 - radius ); y < Math.min( height, y0 + radius ); y++ )
+			for( int x = 0; x < width; x++ )
+				if( src[ y * width + x ] != 0 )
+					count[ x ] ++;
+
+		for( int y = y0; y < y1; y++ )
+		{
+			final int in = y + radius;
+			final int out = y - radius - 1;
+			for( int x = 0; x < width; x++ )
+			{
+				if( in < height && src[ in * width + x ] != 0 )
+					count[ x ] ++;
+				if( out >= 0 && src[ out * width + x ] != 0 )
+					count[ x ] --;
+			}
+			final int size = Math.min( height - 1, y + radius ) - Math.max( 0, y - radius ) + 1;
+			final int offset = y * width;
+			for( int x = 0; x < width; x++ )
+				dst[ offset + x ] = ( erode ? count[ x ] == size : count[ x ] > 0 ) ? (byte) 255 : 0;
+		}
+	}
+
+	/**
+	 * Check if a pixel belongs to the foreground of the source
+	 *
+	 * @param src source binary pixels (or null to threshold the values)
+	 * @param values pixel values to threshold (used only if src is null)
+	 * @param thresholdValue threshold value
+	 * @param i pixel index
+	 * @return true if the pixel is foreground
+	 */
+	private static boolean isOn(
+			final byte[] src,
+			final float[] values,
+			final double thresholdValue,
+			final int i )
+	{
+		return null != src ? src[ i ] != 0 : values[ i ] > thresholdValue;
+	}
+}
@@ -23,17 +23,28 @@ package trainableSegmentation.utils;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.gui.Roi;
+import ij.Prefs;
 import ij.process.FloatProcessor;
-import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
 import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.SingularValueDecomposition;
 
 /**
  * This class implements methods to calculate the principal
- * components of an image. 
+ * components of an image. The patches are read directly from the pixel
+ * arrays and accumulated into a (patchSize^2 x patchSize^2) scatter
+ * matrix in parallel, so the memory used does not depend on the number
+ * of patches. The components are the eigenvectors of that matrix, i.e.
+ * the right singular vectors of the (uncentered) patch matrix.
  *  
  * @author Ignacio Arganda-Carreras (iarganda at mit dot edu)
  *
@@ -45,66 +56,175 @@ public final class PrincipalComponentAnalysis
         throw new InstantiationException("This class is not created for instantiation");
     }
 
+	/**
+	 * Get all the principal components of the patches of an image using
+	 * all available threads
+	 *
+	 * @param inputImage input image (all slices are used)
+	 * @param patchSize side of the square patches
+	 * @param step distance between consecutive patches (in pixels)
+	 * @return stack with one component per slice, sorted by decreasing
+	 * variance, or null if error
+	 */
 	public static ImagePlus getPrincipalComponents(
 			final ImagePlus inputImage,
 			final int patchSize,
 			final int step)
 	{
-		final int maxX = (inputImage.getWidth() - patchSize);
-		final int maxY = (inputImage.getHeight() - patchSize);
-		
-		final int matrixHeight = patchSize * patchSize;
-		final int matrixWidth = (maxX/step+1) * (maxY/step+1) * inputImage.getImageStackSize();
-		
-		final double[][] matrix = new double [ matrixWidth ] [ matrixHeight ];
-		
-		int n = 0;
-		
-		for(int i=1;  i<= inputImage.getImageStack().getSize(); i++)
-		{
-			final ImageProcessor ip = inputImage.getImageStack().getProcessor(i).convertToFloat();
-			
-			for(int j=0; j < maxX; j+=step)
-				for(int k=0; k < maxY; k+=step)
-				{
-					final Roi roi = new Roi(j, k, patchSize, patchSize);
-					ip.setRoi(roi);
-					final ImageProcessor patch = ip.crop();
-					float[] pixels = (float[])patch.getPixels();
-					
-					for(int l=0; l<matrixHeight; l++)
-						matrix[n][l] = pixels[l];
-					
-					n++;
-				}
-							
-		}
-			
-		final Array2DRowRealMatrix m = new Array2DRowRealMatrix(matrix); 
-		
-		// Calculate SVD and get V
+		return getPrincipalComponents( inputImage, patchSize, step,
+				patchSize * patchSize, Prefs.getThreads() );
+	}
+
+	/**
+	 * Get the first principal components of the patches of an image
+	 *
+	 * @param inputImage input image (all slices are used)
+	 * @param patchSize side of the square patches
+	 * @param step distance between consecutive patches (in pixels)
+	 * @param numComponents number of components to return
+	 * @param numThreads number of threads to use
+	 * @return stack with one component per slice, sorted by decreasing
+	 * variance, or null if error
+	 */
+	public static ImagePlus getPrincipalComponents(
+			final ImagePlus inputImage,
+			final int patchSize,
+			final int step,
+			final int numComponents,
+			final int numThreads)
+	{
 		final long start = System.currentTimeMillis();
 
-		final SingularValueDecomposition svd = new SingularValueDecomposition( m );
-		
-		final RealMatrix v = svd.getV();
+		final double[][] scatter = getScatterMatrix( inputImage, patchSize, step, numThreads );
+		if( null == scatter )
+			return null;
+
+		// eigenvectors of the scatter matrix, sorted by decreasing eigenvalue
+		final EigenDecomposition eigen = new EigenDecomposition( new Array2DRowRealMatrix( scatter, false ) );
+		final double[] values = eigen.getRealEigenvalues();
+		final Integer[] order = new Integer[ values.length ];
+		for( int i = 0; i < order.length; i++ )
+			order[ i ] = i;
+		Arrays.sort( order, new Comparator<Integer>() {
+			public int compare( Integer i1, Integer i2 ) {
+				return Double.compare( values[ i2 ], values[ i1 ] );
+			}
+		});
+		final RealMatrix v = eigen.getV();
 
 		final long end = System.currentTimeMillis();
-		IJ.log("SVD took: " + (end-start) + "ms");
-		
+		IJ.log("PCA took: " + (end-start) + "ms");
+
 		final ImageStack result = new ImageStack(patchSize, patchSize);
-		
-		for(int i=0; i<v.getRowDimension(); i++)
+
+		for(int i=0; i<Math.min( numComponents, order.length ); i++)
 		{
-			final double[] column = new double[v.getColumnDimension()];
-			for(int j=0; j<v.getColumnDimension(); j++)
-				column[j] = v.getEntry(j, i);
+			final double[] column = v.getColumn( order[ i ] );
 			result.addSlice("PCA " + i, new FloatProcessor(patchSize, patchSize, column));
 		}
-		
+
 		return new ImagePlus("PCA", result);
-		
 	}
-		
-	
+
+	/**
+	 * Accumulate the scatter matrix (sum of x x^T) of all the patches of an
+	 * image. The patch rows of all slices are split among threads, each
+	 * accumulating its own upper triangle.
+	 *
+	 * @param inputImage input image (all slices are used)
+	 * @param patchSize side of the square patches
+	 * @param step distance between consecutive patches (in pixels)
+	 * @param numThreads number of threads to use
+	 * @return symmetric scatter matrix of the patches (pixels in row-major
+	 * order), or null if error
+	 */
+	public static double[][] getScatterMatrix(
+			final ImagePlus inputImage,
+			final int patchSize,
+			final int step,
+			final int numThreads)
+	{
+		final int width = inputImage.getWidth();
+		final int maxX = (width - patchSize);
+		final int maxY = (inputImage.getHeight() - patchSize);
+		if( maxX < 0 || maxY < 0 || step < 1 )
+		{
+			IJ.log( "Error: the patches do not fit in the image." );
+			return null;
+		}
+
+		final int dim = patchSize * patchSize;
+		final int numSlices = inputImage.getImageStackSize();
+		final int rowsPerSlice = maxY / step + 1;
+		final int numRows = rowsPerSlice * numSlices;
+
+		final float[][] slices = new float[ numSlices ][];
+		for( int i = 1; i <= numSlices; i++ )
+			slices[ i - 1 ] = (float[]) inputImage.getImageStack().getProcessor( i ).convertToFloat().getPixels();
+
+		final int nTasks = Math.max( 1, Math.min( numThreads, numRows ) );
+		final ExecutorService exe = Executors.newFixedThreadPool( nTasks );
+		final ArrayList< Future<double[][]> > futures = new ArrayList< Future<double[][]> >();
+		try
+		{
+			for( int t = 0; t < nTasks; t++ )
+			{
+				final int firstRow = (int) ( (long) numRows * t / nTasks );
+				final int lastRow = (int) ( (long) numRows * ( t + 1 ) / nTasks );
+				futures.add( exe.submit( new Callable<double[][]>() {
+					public double[][] call() {
+						final double[][] partial = new double[ dim ][ dim ];
+						final double[] x = new double[ dim ];
+						for( int r = firstRow; r < lastRow; r++ )
+						{
+							final float[] pixels = slices[ r / rowsPerSlice ];
+							final int y0 = ( r % rowsPerSlice ) * step;
+							for( int x0 = 0; x0 <= maxX; x0 += step )
+							{
+								// read the patch
+								for( int k = 0, l = 0; k < patchSize; k++ )
+									for( int j = 0, i = ( y0 + k ) * width + x0; j < patchSize; j++, i++, l++ )
+										x[ l ] = pixels[ i ];
+								// upper triangle of x x^T
+								for( int a = 0; a < dim; a++ )
+								{
+									final double xa = x[ a ];
+									if( xa == 0 )
+										continue;
+									final double[] row = partial[ a ];
+									for( int b = a; b < dim; b++ )
+										row[ b ] += xa * x[ b ];
+								}
+							}
+						}
+						return partial;
+					}
+				}));
+			}
+
+			final double[][] scatter = futures.get( 0 ).get();
+			for( int t = 1; t < nTasks; t++ )
+			{
+				final double[][] partial = futures.get( t ).get();
+				for( int a = 0; a < dim; a++ )
+					for( int b = a; b < dim; b++ )
+						scatter[ a ][ b ] += partial[ a ][ b ];
+			}
+			for( int a = 0; a < dim; a++ )
+				for( int b = 0; b < a; b++ )
+					scatter[ a ][ b ] = scatter[ b ][ a ];
+			return scatter;
+		}
+		catch( Exception ex )
+		{
+			IJ.log( "Error when computing the patch scatter matrix." );
+			ex.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			exe.shutdown();
+		}
+	}
+
 }
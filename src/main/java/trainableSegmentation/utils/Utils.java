@@ -23,6 +23,7 @@ package trainableSegmentation.utils;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.gui.Plot;
 import ij.measure.Measurements;
 import ij.measure.ResultsTable;
@@ -38,6 +39,10 @@ import ij.process.LUT;
 import java.awt.Color;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.scijava.vecmath.Point3f;
 
@@ -469,23 +474,15 @@ public final class Utils {
 	 */
 	public static ByteProcessor threshold (ImageProcessor ip, double thresholdValue)
 	{
-		final ByteProcessor result = new ByteProcessor(ip.getWidth(), ip.getHeight());
-		
-		for(int x=0; x<ip.getWidth(); x++)
-			for(int y=0; y<ip.getHeight(); y++)
-			{
-				if( ip.getPixelValue(x, y) > thresholdValue)
-					result.putPixelValue(x, y, 255);
-				else
-					result.putPixelValue(x, y, 0);
-			}
-						
-		return result;
+		return new ByteProcessor( ip.getWidth(), ip.getHeight(),
+				PostProcessing.threshold( ip, thresholdValue, Prefs.getThreads() ), null );
 	}
 	
 	/**
 	 * Post-process probability image to get more reasonable objects
-	 * at a certain threshold
+	 * at a certain threshold. When binarizing with a threshold between 0
+	 * (included) and 1, the final threshold, small object removal, hole
+	 * filling and dilation are done by {@link PostProcessing}.
 	 * 
 	 * @param probabilityMap probability image
 	 * @param smoothIterations number of smoothing iterations
@@ -514,6 +511,26 @@ public final class Utils {
 			gb.blurGaussian(probabilityMap, 2);
 		normalize01( probabilityMap );
 		
+		if( binarize && threshold >= 0 && threshold < 1 )
+		{
+			final int width = probabilityMap.getWidth();
+			final int height = probabilityMap.getHeight();
+			final int numThreads = Prefs.getThreads();
+			final ByteProcessor mask = PostProcessing.apply(
+					probabilityMap, threshold, 0, minSize, true, numThreads );
+			if( null == mask )
+				return;
+			final byte[] dilated = PostProcessing.dilate(
+					(byte[]) mask.getPixels(), width, height, 1, numThreads );
+			if( null == dilated )
+				return;
+			final float[] pixels = (float[]) probabilityMap.getPixels();
+			for( int i = 0; i < pixels.length; i++ )
+				pixels[ i ] = dilated[ i ] != 0 ? 1.0f : 0.0f;
+			normalize01( probabilityMap );
+			return;
+		}
+		
 		filterSmallObjectsAndHoles(probabilityMap, threshold, minSize);
 		
 		if( binarize )
@@ -565,48 +582,40 @@ public final class Utils {
 			double thresholdValue, 
 			int minSize) 
 	{
+		final int width = probabilityMap.getWidth();
+		final int height = probabilityMap.getHeight();
+		final int numThreads = Prefs.getThreads();
+
 		// apply threshold 
-		ByteProcessor thresholded = threshold(probabilityMap, thresholdValue);
-		
-		// Calculate connected components above the minimum size
-		Results res = connectedComponents( new ImagePlus("thresholded", thresholded), 4, minSize);
-		
-		//res.allRegions.show();
-		
-		// Binarize components image (after removing small objects)
-		ByteProcessor th = threshold( res.allRegions.getProcessor(), 0.5 );
-		
-		// Localize small objects by the difference with the original thresholded image
-		ByteProcessor th2 = (ByteProcessor) th.duplicate();
-		th2.copyBits(thresholded, 0, 0, Blitter.DIFFERENCE);				
-		
-		byte[] th2pixels = (byte[])th2.getPixels();
+		final byte[] thresholded = PostProcessing.threshold( probabilityMap, thresholdValue, numThreads );
+		if( null == thresholded )
+			return;
+
+		// Remove the components below the minimum size
+		final byte[] th = thresholded.clone();
+		if( PostProcessing.removeSmallObjects( th, width, height, minSize, numThreads ) < 0 )
+			return;
+
 		final float[] probPixels = (float[])probabilityMap.getPixels();
-				
-		// Set those pixels to background in the probability image
-		for(int i=0; i<th2pixels.length; i++)
+
+		// Set the small objects to background in the probability image
+		for(int i=0; i<th.length; i++)
 		{
-			if( th2pixels[ i ] != 0)
+			if( th[ i ] != thresholded[ i ] )
 				probPixels[ i ] = 0;
 		}
-				
-		// Localize holes by the removing them first from the image
-		// without small objects and then looking at the difference
-		th2 = (ByteProcessor) th.duplicate();
-		
+
 		// Fill holes in the thresholded components image
-		fill( th2, 255, 0 );
-						
-		th2.copyBits(th, 0, 0, Blitter.DIFFERENCE);
-		th2pixels = (byte[])th2.getPixels();
-										
-		// Set those pixels to foreground in the probability image
-		for(int i=0; i<th2pixels.length; i++)
+		final byte[] filled = th.clone();
+		if( PostProcessing.fillHoles( filled, width, height, numThreads ) < 0 )
+			return;
+
+		// Set the holes to foreground in the probability image
+		for(int i=0; i<filled.length; i++)
 		{
-			if( th2pixels[ i ] != 0)
+			if( filled[ i ] != th[ i ] )
 				probPixels[ i ] = 1;
 		}
-		
 	}
 	
 	
@@ -711,54 +720,7 @@ public final class Utils {
 			int sizeX,
 			int sizeY)
 	{
-		final int maxPoolWidth = input.getWidth() / sizeX;
-		final int maxPoolHeight = input.getHeight() / sizeY;
-		
-		final int inputWidth = input.getWidth();
-		final int inputHeight = input.getHeight();
-		
-		ImageStack isMaxPoolInput = new ImageStack(maxPoolWidth, maxPoolHeight);
-		ImageStack isMaxPoolLabel = new ImageStack(maxPoolWidth, maxPoolHeight);
-		
-		ImagePlus[] maxPool = new ImagePlus[ 2 ];
-		
-		for(int slice = 1; slice <= input.getImageStackSize(); slice ++)
-		{
-			IJ.log("Processing slice " + slice + "...");
-			
-			double[] inputPix = new double [ maxPoolWidth * maxPoolHeight ];
-			byte[] labelPix = new byte [ maxPoolWidth * maxPoolHeight ];
-				
-			for(int y=0, pos2 = 0; y<inputHeight; y += sizeY)
-				for(int x=0; x<inputWidth; x += sizeX)				
-				{
-					double max = 0;										
-					
-					for(int x2=0; x2<sizeX; x2++)
-						for(int y2=0; y2<sizeY; y2++)
-						{
-							final int pos = (y2 + y) * inputWidth + x2 + x;
-							
-							double val = ((float[]) input.getImageStack().getProcessor( slice ).getPixels())[pos];
-							
-							if (val > max)
-							{								
-								inputPix[ pos2 ] = val;
-								labelPix[ pos2 ] = ((byte[]) label.getImageStack().getProcessor( slice ).getPixels())[ pos ];
-							}							
-						}
-					pos2++;
-				}
-			
-			isMaxPoolInput.addSlice( new FloatProcessor( maxPoolWidth, maxPoolHeight, inputPix));
-			isMaxPoolLabel.addSlice( new ByteProcessor( maxPoolWidth, maxPoolHeight, labelPix, null ));
-			
-		}
-		
-		maxPool[ 0 ] = new ImagePlus("Input", isMaxPoolInput );
-		maxPool[ 1 ] = new ImagePlus("Labels", isMaxPoolLabel );
-		
-		return maxPool;
+		return maxPool( input, label, sizeX, sizeY, true );
 	}
 	/**
 	 * Experimental max pooling method without size reduction.
@@ -773,61 +735,112 @@ public final class Utils {
 			ImagePlus label,
 			int sizeX,
 			int sizeY)
-	{		
+	{
+		return maxPool( input, label, sizeX, sizeY, false );
+	}
+
+	/**
+	 * Max pooling of a 32-bit input image and its 8-bit labels. The slices
+	 * are processed concurrently. The label of each block is the label of
+	 * its maximum (positive) input value.
+	 *
+	 * @param input input image
+	 * @param label label image
+	 * @param sizeX width of max pooling filter
+	 * @param sizeY height of max pooling filter
+	 * @param reduce flag to output one pixel per block (only complete blocks
+	 * are used), otherwise the blocks are filled with their maximum
+	 * @return input and label images after max pooling (null if error)
+	 */
+	private static ImagePlus[] maxPool(
+			final ImagePlus input,
+			final ImagePlus label,
+			final int sizeX,
+			final int sizeY,
+			final boolean reduce )
+	{
 		final int width = input.getWidth();
 		final int height = input.getHeight();
-		
-		ImageStack isMaxPoolInput = new ImageStack(width, height);
-		ImageStack isMaxPoolLabel = new ImageStack(width, height);
-		
-		ImagePlus[] maxPool = new ImagePlus[ 2 ];
-		
-		for(int slice = 1; slice <= input.getImageStackSize(); slice ++)
-		{
-			IJ.log("Processing slice " + slice + "...");
-			
-			double[] inputPix = new double [ width * height ];
-			byte[] labelPix = new byte [ width * height ];
-				
-			for(int y=0; y<height; y += sizeY)
-				for(int x=0; x<width; x += sizeX)				
+		final int outWidth = reduce ? width / sizeX : width;
+		final int outHeight = reduce ? height / sizeY : height;
+		final int numSlices = input.getImageStackSize();
+
+		final ImageStack isMaxPoolInput = new ImageStack( outWidth, outHeight );
+		final ImageStack isMaxPoolLabel = new ImageStack( outWidth, outHeight );
+
+		final ExecutorService exe = Executors.newFixedThreadPool( Prefs.getThreads() );
+		final ArrayList< Future<Object[]> > futures = new ArrayList< Future<Object[]> >();
+		try{
+			for( int slice = 1; slice <= numSlices; slice ++ )
+			{
+				final float[] inputPixels = (float[]) input.getImageStack().getProcessor( slice ).getPixels();
+				final byte[] labelPixels = (byte[]) label.getImageStack().getProcessor( slice ).getPixels();
+				futures.add( exe.submit( new Callable<Object[]>()
 				{
-					double max = 0;										
-					double maxVal = 0;
-					byte maxLabel = 0;
-					
-					for(int x2=0; x2<sizeX; x2++)
-						for(int y2=0; y2<sizeY; y2++)
-						{
-							final int pos = (y2 + y) * width + x2 + x;
-							
-							double val = ((float[]) input.getImageStack().getProcessor( slice ).getPixels())[pos];
-							
-							if (val > max)
-							{								
-								maxVal = val;
-								maxLabel = ((byte[]) label.getImageStack().getProcessor( slice ).getPixels())[ pos ];
-							}							
-						}
-					
-					for(int x2=0; x2<sizeX; x2++)
-						for(int y2=0; y2<sizeY; y2++)
-						{
-							final int pos = (y2 + y) * width + x2 + x;
-							inputPix [ pos ] = maxVal;
-							labelPix [ pos ] = maxLabel;
-						}
-			
-				}
-			
-			isMaxPoolInput.addSlice( new FloatProcessor( width, height, inputPix));
-			isMaxPoolLabel.addSlice( new ByteProcessor( width, height, labelPix, null ));
-			
+					public Object[] call()
+					{
+						final float[] inputPix = new float[ outWidth * outHeight ];
+						final byte[] labelPix = new byte[ outWidth * outHeight ];
+						final int lastY = reduce ? outHeight * sizeY : height;
+						final int lastX = reduce ? outWidth * sizeX : width;
+
+						for( int y = 0, pos2 = 0; y < lastY; y += sizeY )
+							for( int x = 0; x < lastX; x += sizeX, pos2++ )
+							{
+								float max = 0;
+								byte maxLabel = 0;
+								final int y1 = Math.min( y + sizeY, height );
+								final int x1 = Math.min( x + sizeX, width );
+								for( int y2 = y; y2 < y1; y2++ )
+									for( int x2 = x; x2 < x1; x2++ )
+									{
+										final int pos = y2 * width + x2;
+										if( inputPixels[ pos ] > max )
+										{
+											max = inputPixels[ pos ];
+											maxLabel = labelPixels[ pos ];
+										}
+									}
+
+								if( reduce )
+								{
+									inputPix[ pos2 ] = max;
+									labelPix[ pos2 ] = maxLabel;
+								}
+								else
+									for( int y2 = y; y2 < y1; y2++ )
+										for( int x2 = x; x2 < x1; x2++ )
+										{
+											inputPix[ y2 * width + x2 ] = max;
+											labelPix[ y2 * width + x2 ] = maxLabel;
+										}
+							}
+						return new Object[]{ inputPix, labelPix };
+					}
+				}));
+			}
+
+			for( Future<Object[]> f : futures )
+			{
+				final Object[] result = f.get();
+				isMaxPoolInput.addSlice( new FloatProcessor( outWidth, outHeight, (float[]) result[ 0 ] ) );
+				isMaxPoolLabel.addSlice( new ByteProcessor( outWidth, outHeight, (byte[]) result[ 1 ], null ) );
+			}
 		}
-		
+		catch( Exception ex )
+		{
+			IJ.log( "Error when max pooling the images." );
+			ex.printStackTrace();
+			return null;
+		}
+		finally{
+			exe.shutdown();
+		}
+
+		final ImagePlus[] maxPool = new ImagePlus[ 2 ];
 		maxPool[ 0 ] = new ImagePlus("Input", isMaxPoolInput );
 		maxPool[ 1 ] = new ImagePlus("Labels", isMaxPoolLabel );
-		
+
 		return maxPool;
 	}
 	/**
@@ -935,50 +948,15 @@ public final class Utils {
 			IJ.log( "Error: the number of class names and class/label correspondences do not match." );
 			return null;
 		}
-		// Create map of correspondences between labels and class indices
-		HashMap<Integer, Integer> labelToClassIndex = new HashMap<Integer, Integer>();
-		for (int i = 0; i < classIndexToLabel.length; i++)
-		   	labelToClassIndex.put( classIndexToLabel[ i ], i );
-
-		int[][] cm = new int[ classes.size() ][ classes.size() ];
-		for( int i = 0; i < prediction.getWidth(); i++ )
-			for( int j = 0; j < prediction.getHeight(); j++ )
-			{
-				int predLabel = (int) prediction.getf( i, j );
-				int gtLabel = (int) groundtruth.getf( i, j );
-				if( null != labelToClassIndex.get( predLabel ) &&
-					null != labelToClassIndex.get( gtLabel ) )
-					cm[ labelToClassIndex.get( gtLabel ) ][ labelToClassIndex.get( predLabel ) ] ++;
-			}
-		// Create result table (groundtruth labels in X and predicted labels in Y)
-		ResultsTable cmTable = new ResultsTable();
-		double[] totalPositive = new double[ classes.size() ];
-		for( int j = 0; j < classes.size(); j++ )
-		{
-			cmTable.incrementCounter();
-			cmTable.addLabel( "Predicted " + classes.get( j ) );
-			double predPositive = 0;
-			for( int i = 0; i < classes.size(); i++ )
-			{
-				cmTable.addValue( "Groundtruth " + classes.get( i ), cm[ i ][ j ]);
-				predPositive += cm[ i ] [ j ];
-				totalPositive[ i ] += cm[ i ][ j ];
-			}
-			cmTable.addValue( "Precision ", (double) cm[ j ][ j ] / predPositive );
-		}
-		cmTable.incrementCounter();
-		cmTable.addLabel( "Recall" );
-		double allPositive = 0;
-		double all = 0;
-		for( int j = 0; j < classes.size(); j++ )
-		{
-			allPositive += cm[ j ][ j ];
-			all += totalPositive[ j ];
-			cmTable.addValue( "Groundtruth " + classes.get( j ), (double) cm[ j ][ j ] / totalPositive[ j ] );
-		}
-		// add accuracy
-		cmTable.addValue( "Precision ", allPositive / all );
-		return cmTable;
+		final ImageStack predictionStack = new ImageStack( prediction.getWidth(), prediction.getHeight() );
+		predictionStack.addSlice( "", prediction );
+		final ImageStack groundtruthStack = new ImageStack( groundtruth.getWidth(), groundtruth.getHeight() );
+		groundtruthStack.addSlice( "", groundtruth );
+		final long[][] cm = ConfusionMatrix.count( predictionStack, groundtruthStack,
+				null, classIndexToLabel, Prefs.getThreads() );
+		if( null == cm )
+			return null;
+		return confusionMatrixTable( cm, classes );
 	}
 	/**
 	 * Calculate confusion matrix bewtween two label images. The values are returned
@@ -1013,26 +991,24 @@ public final class Utils {
 			IJ.log( "Error: the number of class names and class/label correspondences do not match." );
 			return null;
 		}
-		// Create map of correspondences between labels and class indices
-		HashMap<Integer, Integer> labelToClassIndex = new HashMap<Integer, Integer>();
-		for (int i = 0; i < classIndexToLabel.length; i++)
-		   	labelToClassIndex.put( classIndexToLabel[ i ], i );
-
-		int[][] cm = new int[ classes.size() ][ classes.size() ];
-		for( int k = 0; k < prediction.getSize(); k++ )
-		{
-			ImageProcessor p = prediction.getProcessor( k+1 );
-			ImageProcessor gt = groundtruth.getProcessor( k+1 );
-			for( int i = 0; i < prediction.getWidth(); i++ )
-				for( int j = 0; j < prediction.getHeight(); j++ )
-				{
-					int predLabel = (int) p.getf( i, j );
-					int gtLabel = (int) gt.getf( i, j );
-					if( null != labelToClassIndex.get( predLabel ) &&
-							null != labelToClassIndex.get( gtLabel ) )
-						cm[ labelToClassIndex.get( gtLabel ) ][ labelToClassIndex.get( predLabel ) ] ++;
-				}
-		}
+		final long[][] cm = ConfusionMatrix.count( prediction, groundtruth,
+				null, classIndexToLabel, Prefs.getThreads() );
+		if( null == cm )
+			return null;
+		return confusionMatrixTable( cm, classes );
+	}
+	/**
+	 * Create the results table of a confusion matrix following Matlab's
+	 * 'plotconfusion' function (see <code>confusionMatrix</code>).
+	 *
+	 * @param cm confusion matrix ([ groundtruth class ][ predicted class ])
+	 * @param classes list of class names
+	 * @return confusion matrix ready to be plotted
+	 */
+	private static ResultsTable confusionMatrixTable(
+			long[][] cm,
+			ArrayList<String> classes )
+	{
 		// Create result table (groundtruth labels in X and predicted labels in Y)
 		ResultsTable cmTable = new ResultsTable();
 		double[] totalPositive = new double[ classes.size() ];
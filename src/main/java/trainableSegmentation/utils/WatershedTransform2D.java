@@ -2,12 +2,16 @@ package trainableSegmentation.utils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ij.IJ;
+import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 
 
 /**
@@ -32,6 +36,10 @@ import ij.process.ImageProcessor;
 
 /**
  * Class to apply the classic watershed algorithm [1] to a 2D image.
+ * The pixels are sorted into levels with a counting sort (8 and 16-bit
+ * images) or by sorting packed primitive keys (other types), and the
+ * flooding works on primitive arrays. Very large images can be processed
+ * by tiles with an overlapping halo (see <code>applyTiled</code>).
  * 
  *  [1] Soille, Pierre, and Luc M. Vincent. "Determining watersheds 
  *      in digital pictures via flooding simulations." Lausanne-DL 
@@ -147,220 +155,606 @@ public class WatershedTransform2D {
 	{
 	    final int size1 = inputImage.getWidth();
 	    final int size2 = inputImage.getHeight();
-	       	    
+
+	    final int[] tabLabels = floodLabels( inputImage, hMin, hMax );
+
+	    // Create result label image
+		final FloatProcessor fp = new FloatProcessor( size1, size2 );
+		for (int i = 0; i < size1; ++i)
+			for (int j = 0; j < size2; ++j)
+				fp.setf( i, j, tabLabels[ i * size2 + j ] );
+
+	    return fp;
+	}
+
+	/**
+	 * Apply the watershed flooding to an image. The pixels are visited in
+	 * the same order as the original list-based implementation (increasing
+	 * value and, inside each level, increasing x and y).
+	 *
+	 * @param input input image
+	 * @param hMin minimum grayscale level height
+	 * @param hMax maximum grayscale level height
+	 * @return labels of the catchment basins (0 in dams and pixels out of 
+	 * the height range) indexed by x * height + y
+	 */
+	private int[] floodLabels(
+			final ImageProcessor input,
+			final double hMin,
+			final double hMax )
+	{
+	    final int size1 = input.getWidth();
+	    final int size2 = input.getHeight();
+
 	    // output labels
-	    final int[][] tabLabels = new int[ size1 ][ size2 ]; 
-	    
+	    final int[] tabLabels = new int[ size1 * size2 ];
+
 	    // value INIT is assigned to each pixel of the output labels
-	    for( int i=0; i<size1; i++ )
-	    		Arrays.fill( tabLabels[i], INIT );
-	    
+	    Arrays.fill( tabLabels, INIT );
+
 	    int currentLabel = 0;
-	    
-	    boolean flag = false;	    
-	    
-	    // Make list of pixels and sort it in ascending order
-	    IJ.showStatus( "Extracting pixel values..." );
-	    if( verbose ) IJ.log("  Extracting pixel values (h_min = " + hMin + ", h_max = " + hMax + ")..." );
+
+	    boolean flag = false;
+
+	    // Make list of pixels sorted in ascending order
+	    IJ.showStatus( "Sorting pixels by value..." );
+	    if( verbose ) IJ.log("  Sorting pixel values (h_min = " + hMin + ", h_max = " + hMax + ")..." );
 	    final long t0 = System.currentTimeMillis();
 
-	    // list of original pixels values and corresponding coordinates
-	    ArrayList<PixelRecord> pixelList = extractPixelValues( inputImage, hMin, hMax );
+	    final float[] values = new float[ size1 * size2 ];
+	    for( int x = 0, k = 0; x < size1; ++x )
+	    	for( int y = 0; y < size2; ++y, ++k )
+	    		values[ k ] = input.getf( x, y );
+	    final int[] order = sortPixels( input, values, hMin, hMax );
+
+	    final long t1 = System.currentTimeMillis();
+	    if( verbose ) IJ.log("  Sorting took " + (t1-t0) + " ms.");
 
-	    final long t1 = System.currentTimeMillis();		
-	    if( verbose ) IJ.log("  Extraction took " + (t1-t0) + " ms.");
-	    if( verbose ) IJ.log("  Sorting pixels by value..." );
-	    IJ.showStatus("Sorting pixels by value...");
-	    Collections.sort( pixelList );
-	    final long t2 = System.currentTimeMillis();
-	    if( verbose ) IJ.log("  Sorting took " + (t2-t1) + " ms.");
-	    
 	    if( verbose ) IJ.log( "  Flooding..." );
 	    IJ.showStatus( "Flooding..." );
 	    final long start = System.currentTimeMillis();
-	    
-      	// Check connectivity
-       	final Neighborhood2D neigh = connectivity == 4 ? 
-       									new Neighborhood2DC4() : new Neighborhood2DC8();
-	    	    
-	    LinkedList<Cursor2D> fifo = new LinkedList<Cursor2D>();
-	      
-        // initial height
-        double h = hMin;
-        
-        // find corresponding pixel index
-        int currentIndex = 0;
-        while( h < hMin )
-        {
-        	h = pixelList.get( currentIndex ).getValue();
-        	currentIndex++;
-        }
-        
-        int heightIndex1 = currentIndex;
-        int heightIndex2 = currentIndex;
-        
-        
+
+	    // neighbor offsets (same order as Neighborhood2DC4 and Neighborhood2DC8)
+	    final int[] dx = connectivity == 4 ?
+	    		new int[]{ -1, 0, 1, 0 } : new int[]{ -1, -1, -1, 0, 0, 1, 1, 1 };
+	    final int[] dy = connectivity == 4 ?
+	    		new int[]{ 0, -1, 0, 1 } : new int[]{ -1, 0, 1, -1, 1, -1, 0, 1 };
+
+	    final IntQueue fifo = new IntQueue();
+
+	    int currentIndex = 0;
+	    int heightIndex1 = 0;
+	    int heightIndex2 = 0;
+
+	    // initial height
+	    float h = (float) hMin;
+
 	    // for h <- h_min to h_max; geodesic SKIZ of level h-1 inside level h
-	    while( currentIndex < pixelList.size() && h <= hMax )
-	    {	    	
-	    	h = pixelList.get( currentIndex ).getValue();	    	
-	    		    		    		    	
-	    	for(int pixelIndex = heightIndex1; pixelIndex < pixelList.size(); pixelIndex ++)
+	    while( currentIndex < order.length )
+	    {
+	    	h = values[ order[ currentIndex ] ];
+
+	    	for(int pixelIndex = heightIndex1; pixelIndex < order.length; pixelIndex ++)
 	    	{
-	    		final PixelRecord pixelRecord = pixelList.get( pixelIndex );
-	    			    		
-	    		if( pixelRecord.getValue() != h )
+	    		final int p = order[ pixelIndex ];
+
+	    		if( values[ p ] != h )
 	    		{
 	    			// this pixel is at level h+1
 	    			heightIndex1 = pixelIndex;
 	    			break;
 	    		}
-	    			    		
-	    		final Cursor2D p = pixelRecord.getCursor();
-	    		final int i = p.getX();
-	    		final int j = p.getY();
-	    			    		
+
+	    		final int i = p / size2;
+	    		final int j = p % size2;
+
 	    		// set label to MASK
-	    		tabLabels[ i ][ j ] = MASK;
+	    		tabLabels[ p ] = MASK;
 
-	    		// read neighbor coordinates	    		
-	    		neigh.setCursor( p );
-	    		for( Cursor2D c : neigh.getNeighbors() )			       		
-	    		{       			
-	    			int u = c.getX();
-	    			int v = c.getY();
+	    		// read neighbor coordinates
+	    		for( int n = 0; n < dx.length; n++ )
+	    		{
+	    			final int u = i + dx[ n ];
+	    			final int v = j + dy[ n ];
 
 	    			// initialize queue with neighbors at level h of current basins or watersheds
-	    			if ( u >= 0 && u < size1 && v >= 0 && v < size2 
-	    					&& tabLabels[ u ][ v ] >= WSHED ) 
-	    				//&&  ( tabLabels[ u ][ v ] > 0 || tabLabels[ u ][ v ] == WSHED ) )
-	    				{
-	    					fifo.addLast( p );
-	    					tabLabels[ i ][ j ] = INQUEUE;
-	    					break;
-	    				}	    			
-	    		}// end for	    	
+	    			if ( u >= 0 && u < size1 && v >= 0 && v < size2
+	    					&& tabLabels[ u * size2 + v ] >= WSHED )
+	    			{
+	    				fifo.add( p );
+	    				tabLabels[ p ] = INQUEUE;
+	    				break;
+	    			}
+	    		}// end for
 	    	}// end for
 
 	    	while( !fifo.isEmpty() )
 	    	{
 	    		// retrieve point p
-	    		final Cursor2D p = fifo.poll();	    		
-	    		final int i = p.getX();
-	    		final int j = p.getY();
-
-	    		// read neighbor coordinates
-	    		neigh.setCursor( p );
+	    		final int p = fifo.poll();
+	    		final int i = p / size2;
+	    		final int j = p % size2;
 
-	    		for( Cursor2D c : neigh.getNeighbors() )			       		
+	    		for( int n = 0; n < dx.length; n++ )
 	    		{
 	    			// labeling current point by inspecting neighbors
-	    			int u = c.getX();
-	    			int v = c.getY();
+	    			final int u = i + dx[ n ];
+	    			final int v = j + dy[ n ];
 
 	    			if ( u >= 0 && u < size1 && v >= 0 && v < size2 )
 	    			{
-	    				if ( tabLabels[ u ][ v ] > 0 ) // i.e. the pixel belongs to an already labeled basin
+	    				final int q = u * size2 + v;
+	    				if ( tabLabels[ q ] > 0 ) // i.e. the pixel belongs to an already labeled basin
 	    				{
-	    					if ( tabLabels[ i ][ j ] == INQUEUE || (tabLabels[ i ][ j ] == WSHED && flag) )
+	    					if ( tabLabels[ p ] == INQUEUE || (tabLabels[ p ] == WSHED && flag) )
 	    					{
-	    						tabLabels[ i ][ j ] = tabLabels[ u ][ v ];
+	    						tabLabels[ p ] = tabLabels[ q ];
 	    					}
-	    					else if ( tabLabels[ i ][ j ] > 0 && tabLabels[ i ][ j ] != tabLabels[ u ][ v ] )
+	    					else if ( tabLabels[ p ] > 0 && tabLabels[ p ] != tabLabels[ q ] )
 	    					{
-	    						tabLabels[ i ][ j ] = WSHED;
+	    						tabLabels[ p ] = WSHED;
 	    						flag = false;
-	    					}       					
+	    					}
 	    				}
-	    				else if ( tabLabels[ u ][ v ] == WSHED )	    					
+	    				else if ( tabLabels[ q ] == WSHED )
 	    				{
-	    					if( tabLabels[ i ][ j ] == INQUEUE )
+	    					if( tabLabels[ p ] == INQUEUE )
 	    					{
-	    						tabLabels[ i ][ j ] = WSHED;
+	    						tabLabels[ p ] = WSHED;
 	    						flag = true;
 	    					}
 	    				}
-	    				else if ( tabLabels[ u ][ v ] == MASK )
+	    				else if ( tabLabels[ q ] == MASK )
 	    				{
-	    					tabLabels[ u ][ v ] = INQUEUE;
-	    					fifo.addLast( c );
+	    					tabLabels[ q ] = INQUEUE;
+	    					fifo.add( q );
 	    				}
-	    			}       			       			
-	    		}	    	
+	    			}
+	    		}
 	    	}
 
 	    	// check for new minima at level h
-	    		    	
-	    	for(int pixelIndex = heightIndex2; pixelIndex < pixelList.size(); pixelIndex ++, currentIndex++)
+	    	for(int pixelIndex = heightIndex2; pixelIndex < order.length; pixelIndex ++, currentIndex++)
 	    	{
-	    		final PixelRecord pixelRecord = pixelList.get( pixelIndex );	    			    		
-	    		
-	    		if( pixelRecord.getValue() != h )
+	    		final int p = order[ pixelIndex ];
+
+	    		if( values[ p ] != h )
 	    		{
 	    			// this pixel is at level h+1
 	    			heightIndex2 = pixelIndex;
 	    			break;
 	    		}
-	    			    		
-	    		final Cursor2D p = pixelRecord.getCursor();
-	    		final int i = p.getX();
-	    		final int j = p.getY();
-	    		
-	    		if ( tabLabels[ i ][ j ] == MASK ) // the pixel is inside a new minimum
+
+	    		if ( tabLabels[ p ] == MASK ) // the pixel is inside a new minimum
 	    		{
 	    			currentLabel ++;
-	    			fifo.addLast( p );
-	    			tabLabels[ i ][ j ] = currentLabel;
-	    			
+	    			fifo.add( p );
+	    			tabLabels[ p ] = currentLabel;
+
 	    			while( !fifo.isEmpty() )
-	    	    	{
-	    				final Cursor2D p2 = fifo.poll();
-
-	    	    		// read neighbor coordinates
-	    	    		neigh.setCursor( p2 );
-
-	    	    		for( Cursor2D c : neigh.getNeighbors() ) // inspect neighbors of p2		       		
-	    	    		{       			
-	    	    			int u = c.getX();
-	    	    			int v = c.getY();
-	    	    			
-	    	    			if ( u >= 0 && u < size1 && v >= 0 && v < size2 
-	    	    					&& tabLabels[ u ][ v ] == MASK )
-	    	    			{
-	    	    				fifo.addLast( c );
-	    	    				tabLabels[ u ][ v ] = currentLabel;
-	    	    			}	    	    				    	    			
-	    	    		}// end for
-	    	    	}// end while
-	    		}// end if	    		
+	    			{
+	    				final int p2 = fifo.poll();
+	    				final int i2 = p2 / size2;
+	    				final int j2 = p2 % size2;
+
+	    				for( int n = 0; n < dx.length; n++ ) // inspect neighbors of p2
+	    				{
+	    					final int u = i2 + dx[ n ];
+	    					final int v = j2 + dy[ n ];
+
+	    					if ( u >= 0 && u < size1 && v >= 0 && v < size2
+	    							&& tabLabels[ u * size2 + v ] == MASK )
+	    					{
+	    						fifo.add( u * size2 + v );
+	    						tabLabels[ u * size2 + v ] = currentLabel;
+	    					}
+	    				}// end for
+	    			}// end while
+	    		}// end if
 	    	}// end for
-	    		    		    	
+
 	    	IJ.showProgress( h / hMax );
-	    	
+
 	    }// end while (flooding)
-	    
+
 	    IJ.showProgress( 1.0 );
-	    
+
 	    final long end = System.currentTimeMillis();
 		if( verbose ) IJ.log("  Flooding took: " + (end-start) + " ms");
-	    
-	    // Create result label image
-	    	
-		FloatProcessor fp = new FloatProcessor( size1, size2 );
-		for (int i = 0; i < size1; ++i)
-			for (int j = 0; j < size2; ++j)
+
+		// set unlabeled pixels to 0
+		for( int k = 0; k < tabLabels.length; k++ )
+			if( tabLabels[ k ] == INIT )
+				tabLabels[ k ] = 0;
+
+	    return tabLabels;
+	}
+
+	/**
+	 * Sort the pixels with value h, hMin &lt;= h &lt;= hMax, in ascending
+	 * order of value (ties are kept in index order). 8 and 16-bit images
+	 * are sorted with a counting sort, other types by sorting primitive
+	 * keys that pack the value and the pixel index.
+	 *
+	 * @param input input image
+	 * @param values pixel values indexed by x * height + y
+	 * @param hMin minimum grayscale height value
+	 * @param hMax maximum grayscale height value
+	 * @return sorted pixel indices
+	 */
+	private static int[] sortPixels(
+			final ImageProcessor input,
+			final float[] values,
+			final double hMin,
+			final double hMax )
+	{
+		if( input instanceof ByteProcessor || input instanceof ShortProcessor )
+		{
+			// counting sort (one bucket per gray level)
+			final int[] start = new int[ ( input instanceof ByteProcessor ? 256 : 65536 ) + 1 ];
+			int n = 0;
+			for( int k = 0; k < values.length; k++ )
+				if( values[ k ] >= hMin && values[ k ] <= hMax )
+				{
+					start[ (int) values[ k ] + 1 ] ++;
+					n ++;
+				}
+			for( int b = 1; b < start.length; b++ )
+				start[ b ] += start[ b - 1 ];
+			final int[] order = new int[ n ];
+			for( int k = 0; k < values.length; k++ )
+				if( values[ k ] >= hMin && values[ k ] <= hMax )
+					order[ start[ (int) values[ k ] ] ++ ] = k;
+			return order;
+		}
+
+		// sort keys with the order-preserving bits of the value in the
+		// high word and the pixel index in the low word
+		int n = 0;
+		final long[] keys = new long[ values.length ];
+		for( int k = 0; k < values.length; k++ )
+			if( values[ k ] >= hMin && values[ k ] <= hMax )
 			{
-				if( tabLabels[ i ][ j ] == INIT ) // set unlabeled pixels to 0
-					fp.setf( i, j, 0 );	
-				else
-					fp.setf( i, j, tabLabels[i][j] );
-			}		
-	    				    
-	    return fp;
+				int bits = Float.floatToIntBits( values[ k ] + 0.0f );
+				bits ^= ( bits >> 31 ) & 0x7fffffff;
+				keys[ n++ ] = ( (long) bits << 32 ) | k;
+			}
+		Arrays.sort( keys, 0, n );
+		final int[] order = new int[ n ];
+		for( int i = 0; i < n; i++ )
+			order[ i ] = (int) keys[ i ];
+		return order;
 	}
 	
 	
 	
+	/**
+	 * Apply the watershed by tiles, for images too large to be flooded at
+	 * once. Each tile is flooded together with a surrounding halo (using 
+	 * the height range of the whole image) and only its core is kept. Two
+	 * basins that touch across a tile border are merged only if the
+	 * flooding of both tiles puts the two touching pixels in the same
+	 * basin, so basins separated in the flooding of either tile are never
+	 * joined. The result is the same as <code>apply</code> when the halo 
+	 * contains the flooding context of the basins crossing the borders.
+	 * With smaller halos it is an approximation: a basin may be split at
+	 * a tile border (without a dam between the parts) or its dam may be
+	 * displaced. At least one pixel of halo is always flooded to decide
+	 * the merges.
+	 *
+	 * @param tileSize width and height of the tile cores (in pixels, greater than 0)
+	 * @param halo width of the halo around each tile (in pixels, 0 or greater)
+	 * @param numThreads number of tiles flooded at the same time
+	 * @return 32-bit image of labeled catchment basins (with dams), or null
+	 * if the parameters are not valid or the flooding failed
+	 */
+	public ImageProcessor applyTiled(
+			final int tileSize,
+			final int halo,
+			final int numThreads )
+	{
+		if( tileSize <= 0 || halo < 0 )
+		{
+			IJ.log( "Error: the tile size must be greater than 0 and the halo"
+					+ " 0 or greater (tile size = " + tileSize + ", halo = " + halo + ")." );
+			return null;
+		}
+
+		final int width = inputImage.getWidth();
+		final int height = inputImage.getHeight();
+		final double hMin = inputImage.getMin();
+		final double hMax = inputImage.getMax();
+
+		final int nTilesX = ( width + tileSize - 1 ) / tileSize;
+		final int nTilesY = ( height + tileSize - 1 ) / tileSize;
+		final int nTiles = nTilesX * nTilesY;
+
+		// labels of the tile cores (each tile numbers its own basins)
+		final int[] labels = new int[ width * height ];
+		final int[] tileLabels = new int[ nTiles ];
+		// labels given by each tile to the pixels around its core
+		final int[][] rings = new int[ nTiles ][];
+
+		// Executor service to produce concurrent threads
+		final ExecutorService exe = Executors.newFixedThreadPool( Math.max( 1, Math.min( numThreads, nTiles ) ) );
+		final ArrayList< Future<Integer> > futures = new ArrayList< Future<Integer> >();
+		try{
+			for( int t = 0; t < nTiles; t++ )
+			{
+				final int x0 = ( t % nTilesX ) * tileSize;
+				final int y0 = ( t / nTilesX ) * tileSize;
+				final int tile = t;
+				futures.add( exe.submit( new Callable<Integer>()
+				{
+					public Integer call()
+					{
+						return floodTile( x0, y0, Math.min( x0 + tileSize, width ),
+								Math.min( y0 + tileSize, height ), Math.max( 1, halo ),
+								hMin, hMax, labels, rings, tile );
+					}
+				}));
+			}
+			// Wait for the jobs to be done
+			for( int t = 0; t < nTiles; t++ )
+				tileLabels[ t ] = futures.get( t ).get();
+		}
+		catch( Exception ex )
+		{
+			IJ.log( "Error when applying the watershed by tiles." );
+			ex.printStackTrace();
+			return null;
+		}
+		finally{
+			exe.shutdown();
+		}
+
+		// make the labels of each tile unique
+		final int[] tileOffset = new int[ nTiles + 1 ];
+		for( int t = 0; t < nTiles; t++ )
+			tileOffset[ t + 1 ] = tileOffset[ t ] + tileLabels[ t ];
+		final int[] parent = new int[ tileOffset[ nTiles ] + 1 ];
+		for( int l = 0; l < parent.length; l++ )
+			parent[ l ] = l;
+		for( int y = 0; y < height; y++ )
+			for( int x = 0; x < width; x++ )
+				if( labels[ y * width + x ] > 0 )
+					labels[ y * width + x ] += tileOffset[ ( y / tileSize ) * nTilesX + x / tileSize ];
+
+		// merge the basins that touch across the tile borders when both
+		// tiles agree that the touching pixels belong to the same basin
+		final int[] dx = connectivity == 4 ? new int[]{ 1, 0 } : new int[]{ 1, 0, 1, -1 };
+		final int[] dy = connectivity == 4 ? new int[]{ 0, 1 } : new int[]{ 0, 1, 1, 1 };
+		for( int y = 0; y < height; y++ )
+			for( int x = 0; x < width; x++ )
+			{
+				final int l1 = labels[ y * width + x ];
+				if( l1 == 0 )
+					continue;
+				for( int n = 0; n < dx.length; n++ )
+				{
+					final int u = x + dx[ n ];
+					final int v = y + dy[ n ];
+					if( u < 0 || u >= width || v >= height
+							|| ( u / tileSize == x / tileSize && v / tileSize == y / tileSize ) )
+						continue;
+					final int l2 = labels[ v * width + u ];
+					if( l2 <= 0 )
+						continue;
+					final int t1 = ( y / tileSize ) * nTilesX + x / tileSize;
+					final int t2 = ( v / tileSize ) * nTilesX + u / tileSize;
+					if( rings[ t1 ][ ringIndex( u, v, t1, nTilesX, tileSize, width, height ) ]
+							== l1 - tileOffset[ t1 ]
+						&& rings[ t2 ][ ringIndex( x, y, t2, nTilesX, tileSize, width, height ) ]
+							== l2 - tileOffset[ t2 ] )
+					{
+						final int r1 = find( parent, l1 );
+						final int r2 = find( parent, l2 );
+						if( r1 != r2 )
+							parent[ Math.max( r1, r2 ) ] = Math.min( r1, r2 );
+					}
+				}
+			}
+
+		// number the merged basins in raster order
+		final int[] newLabel = new int[ parent.length ];
+		int count = 0;
+		final FloatProcessor fp = new FloatProcessor( width, height );
+		for( int i = 0; i < labels.length; i++ )
+			if( labels[ i ] > 0 )
+			{
+				final int root = find( parent, labels[ i ] );
+				if( newLabel[ root ] == 0 )
+					newLabel[ root ] = ++count;
+				fp.setf( i, newLabel[ root ] );
+			}
+		return fp;
+	}
+
+	/**
+	 * Flood a tile with its halo, copy the labels of its core and keep
+	 * the labels of the one-pixel ring around the core
+	 *
+	 * @param x0 first column of the core
+	 * @param y0 first row of the core
+	 * @param x1 column after the core
+	 * @param y1 row after the core
+	 * @param halo width of the halo
+	 * @param hMin minimum grayscale level height
+	 * @param hMax maximum grayscale level height
+	 * @param labels labels of the whole image (indexed by y * width + x)
+	 * @param rings labels of the ring around the core of each tile (0 in 
+	 * dams and basins not reaching the core, see <code>ringIndex</code>)
+	 * @param tileIndex index of the tile
+	 * @return number of basins of the tile
+	 */
+	private int floodTile(
+			final int x0,
+			final int y0,
+			final int x1,
+			final int y1,
+			final int halo,
+			final double hMin,
+			final double hMax,
+			final int[] labels,
+			final int[][] rings,
+			final int tileIndex )
+	{
+		final int width = inputImage.getWidth();
+		final int height = inputImage.getHeight();
+		final int hx0 = Math.max( 0, x0 - halo );
+		final int hy0 = Math.max( 0, y0 - halo );
+		final int hx1 = Math.min( width, x1 + halo );
+		final int hy1 = Math.min( height, y1 + halo );
+
+		final ImageProcessor tile = inputImage.createProcessor( hx1 - hx0, hy1 - hy0 );
+		for( int x = hx0; x < hx1; x++ )
+			for( int y = hy0; y < hy1; y++ )
+				tile.setf( x - hx0, y - hy0, inputImage.getf( x, y ) );
+
+		final int[] tileLabels = floodLabels( tile, hMin, hMax );
+		final int tileHeight = hy1 - hy0;
+
+		// copy the core, renumbering the basins that reach it
+		final int[] newLabel = new int[ tileLabels.length + 1 ];
+		int count = 0;
+		for( int y = y0; y < y1; y++ )
+			for( int x = x0; x < x1; x++ )
+			{
+				final int l = tileLabels[ ( x - hx0 ) * tileHeight + y - hy0 ];
+				if( l > 0 )
+				{
+					if( newLabel[ l ] == 0 )
+						newLabel[ l ] = ++count;
+					labels[ y * width + x ] = newLabel[ l ];
+				}
+			}
+
+		// keep the labels of the ring with the numbering of the core
+		final int[] ring = new int[ 2 * ( x1 - x0 + 2 ) + 2 * ( y1 - y0 ) ];
+		for( int y = y0 - 1; y <= y1; y++ )
+			for( int x = x0 - 1; x <= x1; x++ )
+			{
+				if( x >= x0 && x < x1 && y >= y0 && y < y1 )
+					continue;
+				if( x < 0 || x >= width || y < 0 || y >= height )
+					continue;
+				final int l = tileLabels[ ( x - hx0 ) * tileHeight + y - hy0 ];
+				ring[ ringIndex( x, y, x0, y0, x1, y1 ) ] = l > 0 ? newLabel[ l ] : 0;
+			}
+		rings[ tileIndex ] = ring;
+		return count;
+	}
+
+	/**
+	 * Index of a pixel of the one-pixel ring around a tile core
+	 *
+	 * @param x pixel column
+	 * @param y pixel row
+	 * @param x0 first column of the core
+	 * @param y0 first row of the core
+	 * @param x1 column after the core
+	 * @param y1 row after the core
+	 * @return index of the pixel in the ring
+	 */
+	private static int ringIndex(
+			final int x,
+			final int y,
+			final int x0,
+			final int y0,
+			final int x1,
+			final int y1 )
+	{
+		final int rowLength = x1 - x0 + 2;
+		if( y == y0 - 1 )
+			return x - x0 + 1;
+		if( y == y1 )
+			return rowLength + x - x0 + 1;
+		if( x == x0 - 1 )
+			return 2 * rowLength + y - y0;
+		return 2 * rowLength + y1 - y0 + y - y0;
+	}
+
+	/**
+	 * Index of a pixel of the ring around a tile core, given the tile
+	 *
+	 * @param x pixel column
+	 * @param y pixel row
+	 * @param t tile index
+	 * @param nTilesX number of tiles per row
+	 * @param tileSize width and height of the tile cores
+	 * @param width image width
+	 * @param height image height
+	 * @return index of the pixel in the ring of the tile
+	 */
+	private static int ringIndex(
+			final int x,
+			final int y,
+			final int t,
+			final int nTilesX,
+			final int tileSize,
+			final int width,
+			final int height )
+	{
+		final int x0 = ( t % nTilesX ) * tileSize;
+		final int y0 = ( t / nTilesX ) * tileSize;
+		return ringIndex( x, y, x0, y0, Math.min( x0 + tileSize, width ),
+				Math.min( y0 + tileSize, height ) );
+	}
+
+	/**
+	 * Find the root of a label in a union-find forest
+	 *
+	 * @param parent union-find forest over labels
+	 * @param l label
+	 * @return root label
+	 */
+	private static int find( final int[] parent, int l )
+	{
+		while( parent[ l ] != l )
+		{
+			parent[ l ] = parent[ parent[ l ] ];
+			l = parent[ l ];
+		}
+		return l;
+	}
+
+	/**
+	 * Growable FIFO queue of primitive integers
+	 */
+	private static class IntQueue
+	{
+		private int[] data = new int[ 1024 ];
+		private int head = 0;
+		private int size = 0;
+
+		void add( final int value )
+		{
+			if( size == data.length )
+			{
+				final int[] larger = new int[ data.length * 2 ];
+				for( int i = 0; i < size; i++ )
+					larger[ i ] = data[ ( head + i ) % data.length ];
+				data = larger;
+				head = 0;
+			}
+			data[ ( head + size ) % data.length ] = value;
+			size++;
+		}
+
+		int poll()
+		{
+			final int value = data[ head ];
+			head = ( head + 1 ) % data.length;
+			size--;
+			return value;
+		}
+
+		boolean isEmpty()
+		{
+			return size == 0;
+		}
+	}
+
 	/**
 	 * Extract pixel values from input image such that
 	 * they have value h, hMin &lt;= h &lt;= hMax.
@@ -0,0 +1,110 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import trainableSegmentation.utils.ClassPixelIndex;
+
+public class ClassPixelIndexTest
+{
+	@Test
+	public void indexEqualsScanOfLabels()
+	{
+		final Random random = new Random( 6 );
+		final int width = 31, height = 17, numSlices = 3;
+		final ImageStack labels = new ImageStack( width, height );
+		final ImageStack mask = new ImageStack( width, height );
+		for( int s = 0; s < numSlices; s++ )
+		{
+			final ByteProcessor lp = new ByteProcessor( width, height );
+			final ByteProcessor mp = new ByteProcessor( width, height );
+			for( int i = 0; i < width * height; i++ )
+			{
+				lp.set( i, random.nextInt( 5 ) );
+				mp.set( i, random.nextInt( 2 ) );
+			}
+			labels.addSlice( "", lp );
+			mask.addSlice( "", mp );
+		}
+		final int[] classLabels = new int[]{ 3, 1, 4 };
+
+		for( int numThreads = 1; numThreads <= 4; numThreads++ )
+		{
+			final ClassPixelIndex labeled = ClassPixelIndex.labeled( labels, classLabels, numThreads );
+			final ClassPixelIndex binary = ClassPixelIndex.binary( labels, mask, numThreads );
+			for( int c = 0; c < classLabels.length; c++ )
+				assertArrayEquals( scan( labels, null, classLabels[ c ], false ), labeled.getOffsets( c ) );
+			assertArrayEquals( scan( labels, mask, 0, false ), binary.getOffsets( 0 ) );
+			assertArrayEquals( scan( labels, mask, 0, true ), binary.getOffsets( 1 ) );
+		}
+
+		// samples are sorted pixels of the class
+		final ClassPixelIndex labeled = ClassPixelIndex.labeled( labels, classLabels, 2 );
+		final long[] samples = labeled.sample( 2, 100, random );
+		assertEquals( 100, samples.length );
+		for( int i = 0; i < samples.length; i++ )
+		{
+			if( i > 0 )
+				assertEquals( true, samples[ i - 1 ] <= samples[ i ] );
+			assertEquals( 4, (int) labels.getProcessor( labeled.getSlice( samples[ i ] ) + 1 )
+					.getf( labeled.getPixel( samples[ i ] ) ) );
+		}
+	}
+
+	@Test
+	public void writeInstancesEqualsCreateInstance()
+	{
+		final Random random = new Random( 7 );
+		final int width = 23, height = 19;
+		final ImageStack stack = new ImageStack( width, height );
+		for( int f = 0; f < 4; f++ )
+		{
+			final FloatProcessor fp = new FloatProcessor( width, height );
+			for( int i = 0; i < width * height; i++ )
+				fp.setf( i, random.nextFloat() );
+			stack.addSlice( "f" + f, fp );
+		}
+		for( boolean neighbors : new boolean[]{ false, true } )
+		{
+			final FeatureStack features = new FeatureStack( width, height, false );
+			features.setStack( stack );
+			features.setUseNeighbors( neighbors );
+			final int[] pixels = new int[]{ 0, 5, width, width * height - 1, 200 };
+			final double[][] matrix = new double[ pixels.length + 1 ][ 4 + ( neighbors ? 8 : 0 ) + 1 ];
+			features.writeInstances( pixels, matrix, 1, 2 );
+			for( int i = 0; i < pixels.length; i++ )
+				assertArrayEquals( features.createInstance( pixels[ i ] % width, pixels[ i ] / width, 2 ).toDoubleArray(),
+						matrix[ i + 1 ], 0 );
+		}
+	}
+
+	/**
+	 * Scan the offsets of the pixels with a label
+	 */
+	private static long[] scan( ImageStack labels, ImageStack mask, int label, boolean positive )
+	{
+		final ArrayList<Long> list = new ArrayList<Long>();
+		final int size = labels.getWidth() * labels.getHeight();
+		for( int s = 0; s < labels.getSize(); s++ )
+			for( int i = 0; i < size; i++ )
+			{
+				if( null != mask && mask.getProcessor( s + 1 ).getf( i ) <= 0 )
+					continue;
+				final float value = labels.getProcessor( s + 1 ).getf( i );
+				if( positive ? value > 0 : value == label )
+					list.add( (long) s * size + i );
+			}
+		final long[] result = new long[ list.size() ];
+		for( int i = 0; i < result.length; i++ )
+			result[ i ] = list.get( i );
+		return result;
+	}
+}
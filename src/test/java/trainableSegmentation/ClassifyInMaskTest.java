@@ -0,0 +1,71 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+import hr.irb.fastRandomForest.FastRandomForest;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+
+import java.net.URL;
+
+import org.junit.Test;
+
+public class ClassifyInMaskTest
+{
+	@Test
+	public void maskedClassificationMatchesWholeImage()
+	{
+		final ImagePlus bridge = loadFromResource( "/bridge.png" );
+		assumeNotNull( bridge );
+
+		final WekaSegmentation segmentator = new WekaSegmentation( bridge );
+		segmentator.addExample( 0, new Roi( 10, 10, 50, 50 ), 1 );
+		segmentator.addExample( 1, new Roi( 400, 400, 30, 30 ), 1 );
+		( (FastRandomForest) segmentator.getClassifier() ).setSeed( 69 );
+		assertTrue( segmentator.trainClassifier() );
+
+		final ImagePlus whole = segmentator.applyClassifier( bridge, 0, true );
+
+		// mask close to the image border on one side
+		final ByteProcessor maskIp = new ByteProcessor( bridge.getWidth(),
+				bridge.getHeight() );
+		maskIp.setValue( 255 );
+		maskIp.fill( new OvalRoi( 5, 150, 190, 190 ) );
+		final ImagePlus mask = new ImagePlus( "mask", maskIp );
+
+		final ImagePlus masked = segmentator.applyClassifierInMask( bridge,
+				mask, 0, true, 0 );
+
+		final ImageStack wholeStack = whole.getImageStack();
+		final ImageStack maskedStack = masked.getImageStack();
+		assertEquals( wholeStack.getSize(), maskedStack.getSize() );
+		int numInside = 0;
+		for( int c = 1; c <= wholeStack.getSize(); c++ )
+			for( int i = 0; i < maskIp.getPixelCount(); i++ )
+			{
+				final float value = maskedStack.getProcessor( c ).getf( i );
+				if( maskIp.get( i ) == 0 )
+					assertTrue( Float.isNaN( value ) );
+				else
+				{
+					assertEquals( wholeStack.getProcessor( c ).getf( i ), value, 0 );
+					numInside ++;
+				}
+			}
+		assertTrue( numInside > 0 );
+	}
+
+	private ImagePlus loadFromResource( final String path )
+	{
+		final URL url = getClass().getResource( path );
+		if( url == null )
+			return null;
+		if( "file".equals( url.getProtocol() ) )
+			return new ImagePlus( url.getPath() );
+		return new ImagePlus( url.toString() );
+	}
+}
@@ -0,0 +1,50 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertEquals;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ColorProcessor;
+import ij.process.ColorSpaceConverter;
+import ij.process.ImageConverter;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import trainableSegmentation.unsupervised.ColorClustering;
+import trainableSegmentation.unsupervised.ColorClustering.Channel;
+
+public class ColorChannelsTest
+{
+	@Test
+	public void fusedConversionEqualsImageJConversions()
+	{
+		final Random random = new Random( 5 );
+		final int width = 70, height = 45;
+		final ColorProcessor cp = new ColorProcessor( width, height );
+		for( int i = 0; i < width * height; i++ )
+			cp.set( i, random.nextInt( 1 << 24 ) );
+		cp.set( 0, 0xffffff );
+		cp.set( 1, 0 );
+
+		final ImageStack fused = ColorClustering.createChannelStack( cp, Channel.values(), 3 );
+		assertEquals( Channel.numChannels(), fused.getSize() );
+
+		final ImageStack lab = new ColorSpaceConverter().RGBToLab( new ImagePlus( "Lab", cp ) ).getStack();
+		final ImagePlus rgb = new ImagePlus( "RGB", cp.duplicate() );
+		new ImageConverter( rgb ).convertToRGBStack();
+		final ImagePlus hsb = new ImagePlus( "HSB", cp.duplicate() );
+		new ImageConverter( hsb ).convertToHSB();
+
+		for( int i = 0; i < width * height; i++ )
+			for( int c = 0; c < 3; c++ )
+			{
+				assertEquals( rgb.getStack().getProcessor( c + 1 ).getf( i ),
+						fused.getProcessor( Channel.Red.ordinal() + c + 1 ).getf( i ), 0 );
+				assertEquals( lab.getProcessor( c + 1 ).getf( i ),
+						fused.getProcessor( Channel.Lightness.ordinal() + c + 1 ).getf( i ), 1e-3 );
+				assertEquals( hsb.getStack().getProcessor( c + 1 ).getf( i ),
+						fused.getProcessor( Channel.Hue.ordinal() + c + 1 ).getf( i ), 0 );
+			}
+	}
+}
@@ -0,0 +1,114 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import org.junit.Test;
+
+import trainableSegmentation.utils.ComponentLabeling;
+
+public class ComponentLabelingTest
+{
+	@Test
+	public void sameLabelsAsFloodFill2D()
+	{
+		final Random random = new Random( 5 );
+		final int width = 57, height = 43;
+		for( int connectivity : new int[]{ 4, 8 } )
+		{
+			final ImageStack image = randomStack( random, width, height, 1 );
+			final float[] expected = floodFill( image, connectivity );
+			for( int numThreads = 1; numThreads <= 5; numThreads++ )
+				assertArrayEquals( expected, (float[]) ComponentLabeling.label(
+						image.getProcessor( 1 ), connectivity, numThreads ).getPixels(), 0 );
+		}
+	}
+
+	@Test
+	public void sameLabelsAsFloodFill3D()
+	{
+		final Random random = new Random( 9 );
+		final int width = 21, height = 17, depth = 9;
+		for( int connectivity : new int[]{ 6, 26 } )
+		{
+			final ImageStack image = randomStack( random, width, height, depth );
+			final float[] expected = floodFill( image, connectivity );
+			for( int numThreads = 1; numThreads <= 4; numThreads++ )
+			{
+				final ImageStack labels = ComponentLabeling.label( image, connectivity, numThreads );
+				assertEquals( depth, labels.getSize() );
+				for( int z = 0; z < depth; z++ )
+				{
+					final float[] slice = (float[]) labels.getPixels( z + 1 );
+					for( int i = 0; i < slice.length; i++ )
+						assertEquals( expected[ z * width * height + i ], slice[ i ], 0 );
+				}
+			}
+		}
+	}
+
+	private static ImageStack randomStack(
+			final Random random,
+			final int width,
+			final int height,
+			final int depth )
+	{
+		final ImageStack stack = new ImageStack( width, height );
+		for( int z = 0; z < depth; z++ )
+		{
+			final ByteProcessor slice = new ByteProcessor( width, height );
+			for( int i = 0; i < width * height; i++ )
+				slice.set( i, random.nextInt( 100 ) < 45 ? 255 : 0 );
+			stack.addSlice( slice );
+		}
+		return stack;
+	}
+
+	/** Reference labeling numbering the components in raster order */
+	private static float[] floodFill( final ImageStack image, final int connectivity )
+	{
+		final int width = image.getWidth(), height = image.getHeight(), depth = image.getSize();
+		final float[] labels = new float[ width * height * depth ];
+		final ArrayDeque<int[]> queue = new ArrayDeque<int[]>();
+		float count = 0;
+		for( int z = 0; z < depth; z++ )
+			for( int y = 0; y < height; y++ )
+				for( int x = 0; x < width; x++ )
+				{
+					if( labels[ ( z * height + y ) * width + x ] != 0
+							|| image.getVoxel( x, y, z ) == 0 )
+						continue;
+					labels[ ( z * height + y ) * width + x ] = ++count;
+					queue.add( new int[]{ x, y, z } );
+					while( !queue.isEmpty() )
+					{
+						final int[] p = queue.poll();
+						for( int dz = -1; dz <= 1; dz++ )
+							for( int dy = -1; dy <= 1; dy++ )
+								for( int dx = -1; dx <= 1; dx++ )
+								{
+									final int d = Math.abs( dx ) + Math.abs( dy ) + Math.abs( dz );
+									if( d == 0 || ( connectivity == 4 || connectivity == 6 ) && d > 1
+											|| connectivity == 8 && dz != 0 )
+										continue;
+									final int nx = p[ 0 ] + dx, ny = p[ 1 ] + dy, nz = p[ 2 ] + dz;
+									if( nx < 0 || ny < 0 || nz < 0 || nx >= width || ny >= height
+											|| nz >= depth || image.getVoxel( nx, ny, nz ) == 0 )
+										continue;
+									final int j = ( nz * height + ny ) * width + nx;
+									if( labels[ j ] == 0 )
+									{
+										labels[ j ] = count;
+										queue.add( new int[]{ nx, ny, nz } );
+									}
+								}
+					}
+				}
+		return labels;
+	}
+}
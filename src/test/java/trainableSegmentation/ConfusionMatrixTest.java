@@ -0,0 +1,63 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import trainableSegmentation.utils.ConfusionMatrix;
+
+public class ConfusionMatrixTest
+{
+	@Test
+	public void sameCountsAsPixelLoop()
+	{
+		final Random random = new Random( 13 );
+		final int width = 31, height = 19, nSlices = 3;
+		final int[] classIndexToLabel = new int[]{ 0, 255, 100000 };
+		final ImageStack prediction = new ImageStack( width, height );
+		final ImageStack groundtruth = new ImageStack( width, height );
+		final ImageStack mask = new ImageStack( width, height );
+		final long[][] expected = new long[ 3 ][ 3 ];
+		final long[][] expectedBinary = new long[ 2 ][ 2 ];
+		for( int z = 0; z < nSlices; z++ )
+		{
+			final FloatProcessor p = new FloatProcessor( width, height );
+			final ShortProcessor gt = new ShortProcessor( width, height );
+			final ByteProcessor m = new ByteProcessor( width, height );
+			for( int i = 0; i < width * height; i++ )
+			{
+				final int pi = random.nextInt( 4 ), gi = random.nextInt( 2 );
+				p.setf( i, pi == 3 ? 7 : classIndexToLabel[ pi ] );
+				gt.set( i, classIndexToLabel[ gi ] );
+				m.set( i, random.nextBoolean() ? 255 : 0 );
+				if( m.get( i ) != 0 )
+				{
+					if( pi != 3 )
+						expected[ gi ][ pi ] ++;
+					expectedBinary[ gi ][ p.getf( i ) > 50 ? 1 : 0 ] ++;
+				}
+			}
+			prediction.addSlice( p );
+			groundtruth.addSlice( gt );
+			mask.addSlice( m );
+		}
+
+		for( int numThreads = 1; numThreads <= 4; numThreads++ )
+		{
+			final long[][] cm = ConfusionMatrix.count( prediction, groundtruth, mask,
+					classIndexToLabel, numThreads );
+			final long[][] binary = ConfusionMatrix.countBinary( prediction, groundtruth, mask,
+					50, numThreads );
+			for( int i = 0; i < 3; i++ )
+				assertArrayEquals( expected[ i ], cm[ i ] );
+			for( int i = 0; i < 2; i++ )
+				assertArrayEquals( expectedBinary[ i ], binary[ i ] );
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import trainableSegmentation.metrics.ContingencyTable;
+import trainableSegmentation.metrics.RandError;
+import trainableSegmentation.metrics.VariationOfInformation;
+
+public class ContingencyTableTest
+{
+	@Test
+	public void sameCountsAsDenseTable()
+	{
+		final Random random = new Random( 7 );
+		final int width = 64, height = 48, labelsA = 12, labelsB = 9;
+		final ShortProcessor a = new ShortProcessor( width, height );
+		final ShortProcessor b = new ShortProcessor( width, height );
+		final long[][] dense = new long[ labelsA ][ labelsB ];
+		for( int i = 0; i < width * height; i++ )
+		{
+			a.set( i, random.nextInt( labelsA ) );
+			b.set( i, random.nextInt( labelsB ) );
+			dense[ a.get( i ) ][ b.get( i ) ] ++;
+		}
+
+		final ContingencyTable table = new ContingencyTable( a, b );
+		assertEquals( width * height, table.getNumPixels() );
+
+		final int[] rows = table.getCellRows();
+		final int[] columns = table.getCellColumns();
+		final long[] counts = table.getCellCounts();
+		int numCells = 0;
+		for( int i = 0; i < labelsA; i++ )
+			for( int j = 0; j < labelsB; j++ )
+				if( dense[ i ][ j ] != 0 )
+				{
+					assertEquals( i, rows[ numCells ] );
+					assertEquals( j, columns[ numCells ] );
+					assertEquals( dense[ i ][ j ], counts[ numCells ] );
+					numCells ++;
+				}
+		assertEquals( numCells, table.getNumCells() );
+
+		long background = 0;
+		for( int j = 0; j < labelsB; j++ )
+			background += dense[ 0 ][ j ];
+		assertEquals( width * height - background, table.getNumForegroundPixels() );
+	}
+
+	@Test
+	public void mergedSlicesWith32BitLabels()
+	{
+		final Random random = new Random( 11 );
+		final int width = 100, height = 100;
+		final ContingencyTable whole = new ContingencyTable();
+		final ContingencyTable merged = new ContingencyTable();
+		for( int slice = 0; slice < 3; slice++ )
+		{
+			// more labels than a 16-bit image can hold
+			final FloatProcessor a = new FloatProcessor( width, height );
+			final FloatProcessor b = new FloatProcessor( width, height );
+			for( int i = 0; i < width * height; i++ )
+			{
+				a.setf( i, 70000 + random.nextInt( 5000 ) );
+				b.setf( i, random.nextInt( 3 ) == 0 ? 0 : 100000 + i / 10 );
+			}
+			whole.add( a, b );
+			merged.add( new ContingencyTable( a, b ) );
+		}
+
+		assertEquals( whole.getNumPixels(), merged.getNumPixels() );
+		assertArrayEquals( whole.getCellRows(), merged.getCellRows() );
+		assertArrayEquals( whole.getCellColumns(), merged.getCellColumns() );
+		assertArrayEquals( whole.getCellCounts(), merged.getCellCounts() );
+		assertArrayEquals( whole.getColumnSums( false ), merged.getColumnSums( false ) );
+		assertEquals( 100000 + ( width * height - 1 ) / 10, whole.getMaxColumnLabel() );
+	}
+
+	@Test
+	public void disagreementMapsMatchDenseComputation()
+	{
+		final Random random = new Random( 5 );
+		final int width = 50, height = 40, labelsA = 8, labelsB = 6;
+		final ShortProcessor a = new ShortProcessor( width, height );
+		final ShortProcessor b = new ShortProcessor( width, height );
+		// the same labels spread over the 32-bit range
+		final FloatProcessor sparseA = new FloatProcessor( width, height );
+		final FloatProcessor sparseB = new FloatProcessor( width, height );
+		final double[][] pij = new double[ labelsA ][ labelsB ];
+		double n = 0;
+		for( int i = 0; i < width * height; i++ )
+		{
+			a.set( i, random.nextInt( labelsA ) );
+			b.set( i, random.nextInt( labelsB ) );
+			sparseA.setf( i, a.get( i ) * 100000 );
+			sparseB.setf( i, b.get( i ) * 300000 );
+			pij[ a.get( i ) ][ b.get( i ) ] ++;
+			if( a.get( i ) != 0 )
+				n ++;
+		}
+		for( int i = 0; i < labelsA; i++ )
+			for( int j = 0; j < labelsB; j++ )
+				pij[ i ][ j ] /= n;
+
+		// dense reference of the mergers (columns) and splits (rows)
+		final double[] randMergers = new double[ labelsB ];
+		final double[] viMergers = new double[ labelsB ];
+		for( int j = 1; j < labelsB; j++ )
+		{
+			double bj = 0;
+			for( int i = 1; i < labelsA; i++ )
+			{
+				bj += pij[ i ][ j ];
+				randMergers[ j ] -= pij[ i ][ j ] * pij[ i ][ j ];
+				viMergers[ j ] -= xlogx( pij[ i ][ j ] );
+			}
+			randMergers[ j ] += bj * bj;
+			viMergers[ j ] += xlogx( bj );
+		}
+		final double[] randSplits = new double[ labelsA ];
+		final double[] viSplits = new double[ labelsA ];
+		for( int i = 1; i < labelsA; i++ )
+		{
+			double ai = 0;
+			for( int j = 0; j < labelsB; j++ )
+			{
+				ai += pij[ i ][ j ];
+				randSplits[ i ] -= pij[ i ][ j ] * pij[ i ][ j ];
+				viSplits[ i ] -= xlogx( pij[ i ][ j ] );
+			}
+			randSplits[ i ] += ai * ai;
+			viSplits[ i ] += xlogx( ai );
+		}
+
+		final RandError rand = new RandError( null, null );
+		final VariationOfInformation vi = new VariationOfInformation( null, null );
+		assertArrayEquals( randMergers,
+				rand.getForegroundRestrictedGroundTruthDisagreements( a, b ), 1e-12 );
+		assertArrayEquals( randSplits,
+				rand.getForegroundRestrictedPredictionDisagreements( a, b ), 1e-12 );
+		assertArrayEquals( viMergers,
+				vi.getForegroundRestrictedGroundTruthDisagreements( a, b ), 1e-12 );
+		assertArrayEquals( viSplits,
+				vi.getForegroundRestrictedPredictionDisagreements( a, b ), 1e-12 );
+
+		assertSameDisagreements( randMergers, 300000, rand
+				.getForegroundRestrictedGroundTruthDisagreementMap( sparseA, sparseB ) );
+		assertSameDisagreements( randSplits, 100000, rand
+				.getForegroundRestrictedPredictionDisagreementMap( sparseA, sparseB ) );
+		assertSameDisagreements( viMergers, 300000, vi
+				.getForegroundRestrictedGroundTruthDisagreementMap( sparseA, sparseB ) );
+		assertSameDisagreements( viSplits, 100000, vi
+				.getForegroundRestrictedPredictionDisagreementMap( sparseA, sparseB ) );
+	}
+
+	/** check a disagreement map against the dense values of the labels / scale */
+	private static void assertSameDisagreements( final double[] expected,
+			final int scale, final HashMap<Integer, Double> actual )
+	{
+		assertEquals( expected.length - 1, actual.size() );
+		for( final Map.Entry<Integer, Double> e : actual.entrySet() )
+		{
+			assertEquals( 0, e.getKey() % scale );
+			assertEquals( expected[ e.getKey() / scale ], e.getValue(), 1e-12 );
+		}
+	}
+
+	private static double xlogx( final double p )
+	{
+		return p > 0 ? p * Math.log( p ) : 0;
+	}
+
+	@Test
+	public void parallelStackTableEqualsSequential()
+	{
+		final Random random = new Random( 3 );
+		final int width = 40, height = 30, nSlices = 7;
+		final ImageStack a = new ImageStack( width, height );
+		final ImageStack b = new ImageStack( width, height );
+		final ContingencyTable sequential = new ContingencyTable();
+		for( int slice = 0; slice < nSlices; slice++ )
+		{
+			final ShortProcessor sa = new ShortProcessor( width, height );
+			final ShortProcessor sb = new ShortProcessor( width, height );
+			for( int i = 0; i < width * height; i++ )
+			{
+				sa.set( i, random.nextInt( 20 ) );
+				sb.set( i, random.nextInt( 15 ) );
+			}
+			a.addSlice( sa );
+			b.addSlice( sb );
+			sequential.add( sa, sb );
+		}
+
+		for( int numThreads = 1; numThreads <= nSlices + 1; numThreads++ )
+		{
+			final ContingencyTable parallel = ContingencyTable.create( a, b, numThreads );
+			assertEquals( sequential.getNumPixels(), parallel.getNumPixels() );
+			assertArrayEquals( sequential.getCellRows(), parallel.getCellRows() );
+			assertArrayEquals( sequential.getCellColumns(), parallel.getCellColumns() );
+			assertArrayEquals( sequential.getCellCounts(), parallel.getCellCounts() );
+
+			final ContingencyTable[] slices = ContingencyTable.createPerSlice( a, b, numThreads );
+			assertEquals( nSlices, slices.length );
+			for( int slice = 0; slice < nSlices; slice++ )
+				assertArrayEquals( new ContingencyTable( a.getProcessor( slice + 1 ),
+						b.getProcessor( slice + 1 ) ).getCellCounts(),
+						slices[ slice ].getCellCounts() );
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import hr.irb.fastRandomForest.FastRfUtils;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FastRfSortTest
+{
+	@Test
+	public void sortsFloatsInTheSameOrderAsRecursiveQuicksort()
+	{
+		final Random random = new Random( 3 );
+		final float[] values = new float[ 10000 ];
+		for( int i = 0; i < values.length; i++ )
+			values[ i ] = (float) Math.round( random.nextGaussian() * 20 ) / 4;
+		values[ 2 ] = Float.MAX_VALUE;
+		values[ 3 ] = Float.NEGATIVE_INFINITY;
+		final float[] copy = values.clone();
+
+		final int[] order = FastRfUtils.sort( values );
+
+		assertArrayEquals( copy, values, 0 );
+		for( int i = 1; i < order.length; i++ )
+			assertTrue( values[ order[ i - 1 ] ] <= values[ order[ i ] ] );
+		assertEquals( 3, order[ 0 ] );
+		assertEquals( 2, order[ order.length - 1 ] );
+
+		// equal values keep the order of the original (recursive) quicksort,
+		// so forests built with a given seed do not change
+		final int[] expected = new int[ values.length ];
+		for( int i = 0; i < expected.length; i++ )
+			expected[ i ] = i;
+		recursiveQuickSort( values, expected, 0, values.length - 1 );
+		assertArrayEquals( expected, order );
+	}
+
+	/** Quicksort of FastRandomForest 0.99, used as reference */
+	private static void recursiveQuickSort( float[] array, int[] index, int left, int right )
+	{
+		if( left < right )
+		{
+			int l = left, r = right;
+			double pivot = array[ index[ ( l + r ) / 2 ] ];
+			while( l < r )
+			{
+				while( array[ index[ l ] ] < pivot && l < r )
+					l++;
+				while( array[ index[ r ] ] > pivot && l < r )
+					r--;
+				if( l < r )
+				{
+					int help = index[ l ];
+					index[ l ] = index[ r ];
+					index[ r ] = help;
+					l++;
+					r--;
+				}
+			}
+			if( l == r && array[ index[ r ] ] > pivot )
+				r--;
+			recursiveQuickSort( array, index, left, r );
+			recursiveQuickSort( array, index, r + 1, right );
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FeatureRadiusTest
+{
+	private static final float MIN_SIGMA = 1;
+	private static final float MAX_SIGMA = 16;
+	private static final int PATCH_SIZE = 19;
+
+	/**
+	 * The features of a box computed on the box padded by the feature
+	 * radius are the features of the whole image, for each local feature
+	 * computed with ImageJ filters
+	 */
+	@Test
+	public void paddedBoxMatchesWholeImage()
+	{
+		final int[] features = new int[]{ FeatureStack.GAUSSIAN,
+				FeatureStack.SOBEL, FeatureStack.HESSIAN, FeatureStack.DOG,
+				FeatureStack.MEMBRANE, FeatureStack.VARIANCE, FeatureStack.MEAN,
+				FeatureStack.MINIMUM, FeatureStack.MAXIMUM, FeatureStack.MEDIAN,
+				FeatureStack.NEIGHBORS };
+		for( final int feature : features )
+			assertPaddedBoxMatches( feature );
+	}
+
+	/**
+	 * Same for the imagescience Gaussian derivative features
+	 */
+	@Test
+	public void paddedBoxMatchesWholeImageImageScience()
+	{
+		final int[] features = new int[]{ FeatureStack.DERIVATIVES,
+				FeatureStack.LAPLACIAN, FeatureStack.STRUCTURE };
+		for( final int feature : features )
+			assertPaddedBoxMatches( feature );
+	}
+
+	/**
+	 * Features that depend on statistics of the whole image have no radius
+	 */
+	@Test
+	public void globalFeaturesHaveNoRadius()
+	{
+		final int[] features = new int[]{ FeatureStack.ANISOTROPIC_DIFFUSION,
+				FeatureStack.BILATERAL, FeatureStack.LIPSCHITZ,
+				FeatureStack.KUWAHARA, FeatureStack.GABOR, FeatureStack.ENTROPY,
+				FeatureStack.POOLING_PYRAMID, FeatureStack.PCA_FILTERS };
+		for( final int feature : features )
+			assertEquals( FeatureStack.availableFeatures[ feature ], -1,
+					FeatureStack.getFeatureRadius( enable( feature ),
+							MIN_SIGMA, MAX_SIGMA, PATCH_SIZE, false ) );
+	}
+
+	private static void assertPaddedBoxMatches( final int feature )
+	{
+		final String name = FeatureStack.availableFeatures[ feature ];
+		final boolean[] enabled = enable( feature );
+		final int radius = FeatureStack.getFeatureRadius( enabled, MIN_SIGMA,
+				MAX_SIGMA, PATCH_SIZE, false );
+		assertTrue( name, radius >= 0 );
+
+		final ImageProcessor image = makeImage( 2 * radius + 60, 2 * radius + 50 );
+		final ImageStack whole = computeFeatures( image, enabled );
+
+		// a box in the middle and a box on the image border, where the
+		// padding is clipped
+		final Rectangle[] boxes = new Rectangle[]{
+				new Rectangle( radius + 17, radius + 13, 23, 19 ),
+				new Rectangle( 3, radius + 29, 15, 21 ) };
+		for( final Rectangle box : boxes )
+		{
+			final Rectangle padded = new Rectangle( box );
+			padded.grow( radius, radius );
+			final Rectangle crop = padded.intersection(
+					new Rectangle( 0, 0, image.getWidth(), image.getHeight() ) );
+			image.setRoi( crop );
+			final ImageStack cropped = computeFeatures( image.crop(), enabled );
+			image.resetRoi();
+
+			assertEquals( name, whole.getSize(), cropped.getSize() );
+			for( int s = 1; s <= whole.getSize(); s++ )
+				for( int y = box.y; y < box.y + box.height; y++ )
+					for( int x = box.x; x < box.x + box.width; x++ )
+						assertEquals( whole.getSliceLabel( s ) + " at " + x + ", " + y,
+								whole.getProcessor( s ).getf( x, y ),
+								cropped.getProcessor( s ).getf( x - crop.x, y - crop.y ),
+								0 );
+		}
+	}
+
+	private static boolean[] enable( final int feature )
+	{
+		final boolean[] enabled = new boolean[ FeatureStack.availableFeatures.length ];
+		enabled[ feature ] = true;
+		return enabled;
+	}
+
+	private static ImageStack computeFeatures( final ImageProcessor ip,
+			final boolean[] enabled )
+	{
+		final FeatureStack fs = new FeatureStack( ip );
+		fs.setEnabledFeatures( enabled );
+		fs.setMinimumSigma( MIN_SIGMA );
+		fs.setMaximumSigma( MAX_SIGMA );
+		fs.setMembranePatchSize( PATCH_SIZE );
+		assertTrue( fs.updateFeaturesMT( 1 ) );
+		return fs.getStack();
+	}
+
+	/** blurred noise with a few sharp edges */
+	private static ImageProcessor makeImage( final int width, final int height )
+	{
+		final Random random = new Random( 5 );
+		final FloatProcessor fp = new FloatProcessor( width, height );
+		for( int i = 0; i < width * height; i++ )
+			fp.setf( i, random.nextFloat() * 100 );
+		fp.blurGaussian( 1 );
+		for( int y = 0; y < height; y++ )
+			for( int x = 0; x < width; x++ )
+				if( ( x / 11 + y / 7 ) % 3 == 0 )
+					fp.setf( x, y, fp.getf( x, y ) + 50 );
+		return fp;
+	}
+}
@@ -0,0 +1,82 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import hr.irb.fastRandomForest.FastRandomForest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+public class ForestEarlyStoppingTest
+{
+	@Test
+	public void stopsWhenOutOfBagErrorConverges() throws Exception
+	{
+		final Instances data = makeTestData();
+		final FastRandomForest forest = new FastRandomForest();
+		forest.setNumTrees( 300 );
+		forest.setNumThreads( 2 );
+		forest.setOOBTolerance( 0.01 );
+		forest.buildClassifier( data );
+
+		final int numTrees = forest.getNumTreesBuilt();
+		assertTrue( numTrees < 300 );
+		assertEquals( 0, numTrees % 10 );
+		assertTrue( forest.measureOutOfBagError() < 0.2 );
+
+		// the trees are the first ones of a forest without early stopping
+		final FastRandomForest expected = new FastRandomForest();
+		expected.setNumTrees( numTrees );
+		expected.setNumThreads( 2 );
+		expected.buildClassifier( data );
+		for( final Instance instance : data )
+			assertArrayEquals( expected.distributionForInstance( instance ),
+					forest.distributionForInstance( instance ), 0 );
+		assertEquals( expected.measureOutOfBagError(), forest.measureOutOfBagError(), 0 );
+	}
+
+	@Test
+	public void stopsWhenTrainingTimeIsOver() throws Exception
+	{
+		final FastRandomForest forest = new FastRandomForest();
+		forest.setNumTrees( 300 );
+		forest.setNumThreads( 2 );
+		forest.setMaxTrainingTime( 1e-6 );
+		forest.buildClassifier( makeTestData() );
+
+		// a single wave of trees is trained
+		assertEquals( 10, forest.getNumTreesBuilt() );
+	}
+
+	private static Instances makeTestData()
+	{
+		final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for( int i = 0; i < 5; i++ )
+			attributes.add( new Attribute( "feature " + i ) );
+		attributes.add( new Attribute( "class",
+				Arrays.asList( "class 1", "class 2", "class 3" ) ) );
+		final Instances data = new Instances( "segment", attributes, 0 );
+		data.setClassIndex( data.numAttributes() - 1 );
+
+		final Random random = new Random( 11 );
+		for( int i = 0; i < 1000; i++ )
+		{
+			final double[] values = new double[ data.numAttributes() ];
+			for( int j = 0; j < values.length - 1; j++ )
+				values[ j ] = random.nextGaussian();
+			values[ values.length - 1 ] = values[ 0 ] + values[ 1 ] > 0 ? 0
+					: ( values[ 2 ] > 0 ? 1 : 2 );
+			data.add( new DenseInstance( 1.0, values ) );
+		}
+		return data;
+	}
+}
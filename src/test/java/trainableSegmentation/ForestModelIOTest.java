@@ -0,0 +1,122 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import hr.irb.fastRandomForest.FastRandomForest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ai.BalancedRandomForest;
+import trainableSegmentation.utils.ForestModelIO;
+import weka.classifiers.AbstractClassifier;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.ProtectedProperties;
+
+public class ForestModelIOTest
+{
+	@Test
+	public void fastRandomForestRoundTrip() throws Exception
+	{
+		final Instances data = makeTestData();
+		final FastRandomForest forest = new FastRandomForest();
+		forest.setNumTrees( 20 );
+		forest.buildClassifier( data );
+		assertSamePredictions( forest, roundTrip( forest, data ), data );
+	}
+
+	@Test
+	public void balancedRandomForestRoundTrip() throws Exception
+	{
+		final Instances data = makeTestData();
+		final BalancedRandomForest forest = new BalancedRandomForest();
+		forest.setNumTrees( 10 );
+		forest.buildClassifier( data );
+		assertSamePredictions( forest, roundTrip( forest, data ), data );
+	}
+
+	/** the attribute metadata (e.g. the PCA filters) is kept */
+	@Test
+	public void attributeMetadataRoundTrip() throws Exception
+	{
+		final Instances data = makeTestData();
+		final FastRandomForest forest = new FastRandomForest();
+		forest.setNumTrees( 5 );
+		forest.buildClassifier( data );
+
+		final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for( int i = 0; i < data.numAttributes(); i++ )
+			attributes.add( data.attribute( i ).copy( data.attribute( i ).name() ) );
+		final Properties metadata = new Properties();
+		metadata.setProperty( "kernel", "0.5 -1.25 3.0E-7" );
+		attributes.set( 2, new Attribute( "feature 2", new ProtectedProperties( metadata ) ) );
+		final Instances header = new Instances( "segment", attributes, 0 );
+		header.setClassIndex( data.classIndex() );
+
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		ForestModelIO.write( os, forest, header );
+		final Instances read = ForestModelIO.read(
+				new ByteArrayInputStream( os.toByteArray() ) ).getHeader();
+		assertTrue( header.equalHeaders( read ) );
+		assertEquals( "0.5 -1.25 3.0E-7",
+				read.attribute( 2 ).getMetadata().getProperty( "kernel" ) );
+		assertEquals( 0, read.attribute( 1 ).getMetadata().size() );
+	}
+
+	private static AbstractClassifier roundTrip(
+			final AbstractClassifier classifier,
+			final Instances data ) throws Exception
+	{
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		ForestModelIO.write( os, classifier, new Instances( data, 0 ) );
+		final ByteArrayInputStream is = new ByteArrayInputStream( os.toByteArray() );
+		assertTrue( "Compact model not detected", ForestModelIO.isCompactModel( is ) );
+		final ForestModelIO.Model model = ForestModelIO.read( is );
+		assertTrue( "Different attribute header",
+				data.equalHeaders( model.getHeader() ) );
+		return model.getClassifier();
+	}
+
+	private static void assertSamePredictions(
+			final AbstractClassifier expected,
+			final AbstractClassifier actual,
+			final Instances data ) throws Exception
+	{
+		for( final Instance instance : data )
+			assertArrayEquals( expected.distributionForInstance( instance ),
+					actual.distributionForInstance( instance ), 0 );
+	}
+
+	private static Instances makeTestData()
+	{
+		final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for( int i = 0; i < 5; i++ )
+			attributes.add( new Attribute( "feature " + i ) );
+		attributes.add( new Attribute( "class",
+				Arrays.asList( "class 1", "class 2", "class 3" ) ) );
+		final Instances data = new Instances( "segment", attributes, 0 );
+		data.setClassIndex( data.numAttributes() - 1 );
+
+		final Random random = new Random( 42 );
+		for( int i = 0; i < 500; i++ )
+		{
+			final double[] values = new double[ data.numAttributes() ];
+			for( int j = 0; j < values.length - 1; j++ )
+				values[ j ] = random.nextGaussian();
+			values[ values.length - 1 ] = values[ 0 ] + values[ 1 ] > 0 ? 0
+					: ( values[ 2 ] > 0 ? 1 : 2 );
+			data.add( new DenseInstance( 1.0, values ) );
+		}
+		return data;
+	}
+}
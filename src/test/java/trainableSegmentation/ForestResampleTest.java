@@ -0,0 +1,73 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import hr.irb.fastRandomForest.FastRandomForest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+public class ForestResampleTest
+{
+	/**
+	 * The bootstrap samples kept as draw counts give the same forest and
+	 * out-of-bag error as resampling a DataCache per tree. The expected
+	 * values were obtained with that previous implementation.
+	 */
+	@Test
+	public void forestMatchesPreviousResampling() throws Exception
+	{
+		final Instances data = makeTestData();
+		final FastRandomForest forest = new FastRandomForest();
+		forest.setNumTrees( 20 );
+		forest.setNumThreads( 2 );
+		forest.setSeed( 7 );
+		forest.buildClassifier( data );
+
+		assertEquals( 0.131, forest.measureOutOfBagError(), 0 );
+		double checksum = 0;
+		for( final Instance instance : data )
+		{
+			final double[] distribution = forest.distributionForInstance( instance );
+			for( int k = 0; k < distribution.length; k++ )
+				checksum += distribution[ k ] * ( k + 1 ) * ( instance.value( 0 ) + 3 );
+		}
+		assertEquals( 4969.511193274406, checksum, 1e-9 );
+		assertArrayEquals( new double[]{ 0.956120894320816, 0.04387910567918396, 0.0 },
+				forest.distributionForInstance( data.get( 0 ) ), 1e-12 );
+	}
+
+	private static Instances makeTestData()
+	{
+		final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for( int i = 0; i < 5; i++ )
+			attributes.add( new Attribute( "feature " + i ) );
+		attributes.add( new Attribute( "class",
+				Arrays.asList( "class 1", "class 2", "class 3" ) ) );
+		final Instances data = new Instances( "segment", attributes, 0 );
+		data.setClassIndex( data.numAttributes() - 1 );
+
+		// three classes with 10% label noise
+		final Random random = new Random( 13 );
+		for( int i = 0; i < 1000; i++ )
+		{
+			final double[] values = new double[ data.numAttributes() ];
+			for( int j = 0; j < values.length - 1; j++ )
+				values[ j ] = random.nextGaussian();
+			values[ values.length - 1 ] = values[ 0 ] + values[ 1 ] > 0 ? 0
+					: ( values[ 2 ] > 0 ? 1 : 2 );
+			if( random.nextInt( 10 ) == 0 )
+				values[ values.length - 1 ] = random.nextInt( 3 );
+			data.add( new DenseInstance( 1.0, values ) );
+		}
+		return data;
+	}
+}
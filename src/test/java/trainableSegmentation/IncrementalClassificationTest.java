@@ -0,0 +1,110 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+import hr.irb.fastRandomForest.FastRandomForest;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+
+import java.net.URL;
+
+import org.junit.Test;
+
+public class IncrementalClassificationTest
+{
+	@Test
+	public void updateOfAllPixelsMatchesWholeClassification()
+	{
+		final ImagePlus bridge = loadFromResource( "/bridge.png" );
+		assumeNotNull( bridge );
+		final WekaSegmentation segmentator = createSegmentator( bridge );
+		// every pixel is uncertain
+		segmentator.setIncrementalMargin( 2 );
+
+		segmentator.applyClassifier( 0, true );
+		segmentator.addExample( 1, new Roi( 200, 100, 20, 20 ), 1 );
+		assertTrue( segmentator.trainClassifier() );
+		segmentator.applyClassifier( 0, true );
+
+		final ImageStack expected =
+				segmentator.applyClassifier( bridge, 0, true ).getImageStack();
+		final ImageStack actual = segmentator.getClassifiedImage().getImageStack();
+		assertEquals( expected.getSize(), actual.getSize() );
+		for( int c = 1; c <= expected.getSize(); c++ )
+			for( int i = 0; i < bridge.getWidth() * bridge.getHeight(); i++ )
+				assertEquals( expected.getProcessor( c ).getf( i ),
+						actual.getProcessor( c ).getf( i ), 0 );
+	}
+
+	@Test
+	public void updateReclassifiesPixelsAroundNewExamples()
+	{
+		final ImagePlus bridge = loadFromResource( "/bridge.png" );
+		assumeNotNull( bridge );
+		final WekaSegmentation segmentator = createSegmentator( bridge );
+
+		segmentator.applyClassifier( 0, true );
+		final ImageStack previous = segmentator.getClassifiedImage().getImageStack();
+		final Roi roi = new Roi( 200, 100, 20, 20 );
+		segmentator.addExample( 1, roi, 1 );
+		assertTrue( segmentator.trainClassifier() );
+		segmentator.applyClassifier( 0, true );
+		final ImageStack updated = segmentator.getClassifiedImage().getImageStack();
+		final ImageStack expected =
+				segmentator.applyClassifier( bridge, 0, true ).getImageStack();
+
+		// each pixel keeps its previous probabilities or gets the ones of the
+		// retrained classifier, and the pixels around the new trace are updated
+		final int width = bridge.getWidth();
+		int numUpdated = 0;
+		for( int i = 0; i < width * bridge.getHeight(); i++ )
+		{
+			boolean same = true, updatedPixel = true;
+			for( int c = 1; c <= expected.getSize(); c++ )
+			{
+				same &= previous.getProcessor( c ).getf( i ) == updated.getProcessor( c ).getf( i );
+				updatedPixel &= expected.getProcessor( c ).getf( i ) == updated.getProcessor( c ).getf( i );
+			}
+			assertTrue( same || updatedPixel );
+			if( roi.getBounds().contains( i % width, i / width ) )
+				assertTrue( updatedPixel );
+			if( updatedPixel && !same )
+				numUpdated ++;
+		}
+		assertTrue( numUpdated > 0 );
+
+		// the labels are the most probable classes
+		segmentator.applyClassifier( 0, false );
+		final ImagePlus labels = segmentator.getClassifiedImage();
+		for( int i = 0; i < width * bridge.getHeight(); i++ )
+		{
+			final int label = labels.getProcessor().get( i );
+			for( int c = 1; c <= updated.getSize(); c++ )
+				assertTrue( updated.getProcessor( c ).getf( i )
+						<= updated.getProcessor( label + 1 ).getf( i ) );
+		}
+	}
+
+	private static WekaSegmentation createSegmentator( final ImagePlus image )
+	{
+		final WekaSegmentation segmentator = new WekaSegmentation( image );
+		segmentator.addExample( 0, new Roi( 10, 10, 50, 50 ), 1 );
+		segmentator.addExample( 1, new Roi( 400, 400, 30, 30 ), 1 );
+		( (FastRandomForest) segmentator.getClassifier() ).setSeed( 69 );
+		segmentator.setIncrementalUpdate( true );
+		assertTrue( segmentator.trainClassifier() );
+		return segmentator;
+	}
+
+	private ImagePlus loadFromResource( final String path )
+	{
+		final URL url = getClass().getResource( path );
+		if( url == null )
+			return null;
+		if( "file".equals( url.getProtocol() ) )
+			return new ImagePlus( url.getPath() );
+		return new ImagePlus( url.toString() );
+	}
+}
@@ -0,0 +1,92 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import trainableSegmentation.unsupervised.MiniBatchKMeans;
+import trainableSegmentation.unsupervised.PixelClustering;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+public class MiniBatchKMeansTest
+{
+	/** centers of the blobs, indexed by blob and feature */
+	private static final float[][] blobs = new float[][]{ { 0, 0 }, { 50, 10 }, { 0, 20 } };
+
+	@Test
+	public void findsBlobsOfAllPixels() throws Exception
+	{
+		final Random random = new Random( 8 );
+		final int width = 60, height = 50, numSlices = 2;
+		final FeatureStackArray featureStackArray = new FeatureStackArray( numSlices );
+		for( int s = 0; s < numSlices; s++ )
+		{
+			final ImageStack stack = new ImageStack( width, height );
+			final FloatProcessor[] fps = new FloatProcessor[ 2 ];
+			for( int f = 0; f < 2; f++ )
+				fps[ f ] = new FloatProcessor( width, height );
+			for( int i = 0; i < width * height; i++ )
+				for( int f = 0; f < 2; f++ )
+					fps[ f ].setf( i, (float) ( blobs[ i % 3 ][ f ] + random.nextGaussian() ) );
+			for( int f = 0; f < 2; f++ )
+				stack.addSlice( "f" + f, fps[ f ] );
+			final FeatureStack features = new FeatureStack( width, height, false );
+			features.setStack( stack );
+			featureStackArray.set( features, s );
+		}
+
+		final MiniBatchKMeans kMeans = new MiniBatchKMeans();
+		kMeans.setNumClusters( 3 );
+		kMeans.setBatchSize( 200 );
+		kMeans.setNumThreads( 3 );
+		kMeans.buildClusterer( featureStackArray );
+
+		// every blob is found by exactly one center
+		final float[][] centers = kMeans.getCenters();
+		for( float[] blob : blobs )
+		{
+			int found = 0;
+			for( float[] center : centers )
+				if( Math.abs( center[ 0 ] - blob[ 0 ] ) < 0.5 && Math.abs( center[ 1 ] - blob[ 1 ] ) < 0.5 )
+					found ++;
+			assertEquals( 1, found );
+		}
+
+		// the pixels of a blob are in the same cluster
+		final byte[] clusters = PixelClustering.clusterPixels( kMeans, featureStackArray.get( 0 ), 2 );
+		for( int i = 3; i < width * height; i++ )
+			assertEquals( clusters[ i % 3 ], clusters[ i ] );
+		assertTrue( clusters[ 0 ] != clusters[ 1 ] && clusters[ 1 ] != clusters[ 2 ] && clusters[ 0 ] != clusters[ 2 ] );
+
+		// the serialized clusterer gives the same clusters
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream( bytes );
+		out.writeObject( kMeans );
+		out.close();
+		final MiniBatchKMeans copy = (MiniBatchKMeans) new ObjectInputStream(
+				new ByteArrayInputStream( bytes.toByteArray() ) ).readObject();
+		final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		attributes.add( new Attribute( "f0" ) );
+		attributes.add( new Attribute( "f1" ) );
+		final Instances header = new Instances( "features", attributes, 0 );
+		for( int i = 0; i < width * height; i++ )
+		{
+			final DenseInstance ins = new DenseInstance( 1.0,
+					featureStackArray.get( 0 ).createInstance( i % width, i / width ).toDoubleArray() );
+			ins.setDataset( header );
+			assertEquals( clusters[ i ], copy.clusterInstance( ins ) );
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import trainableSegmentation.unsupervised.PixelClustering;
+import weka.clusterers.SimpleKMeans;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.ManhattanDistance;
+
+public class PixelClusteringTest
+{
+	@Test
+	public void parallelClusteringEqualsClusterInstance() throws Exception
+	{
+		final Random random = new Random( 4 );
+		final int width = 40, height = 30, numFeatures = 3;
+		final ImageStack stack = new ImageStack( width, height );
+		final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for( int f = 0; f < numFeatures; f++ )
+		{
+			final FloatProcessor fp = new FloatProcessor( width, height );
+			for( int i = 0; i < width * height; i++ )
+				fp.setf( i, (float) ( random.nextGaussian() + ( i % 3 ) * ( f + 1 ) * 10 ) );
+			stack.addSlice( "f" + f, fp );
+			attributes.add( new Attribute( "f" + f ) );
+		}
+		final FeatureStack features = new FeatureStack( width, height, false );
+		features.setStack( stack );
+
+		final Instances data = new Instances( "features", attributes, 200 );
+		for( int n = 0; n < 200; n++ )
+		{
+			final int i = random.nextInt( width * height );
+			final double[] values = new double[ numFeatures ];
+			for( int f = 0; f < numFeatures; f++ )
+				values[ f ] = ( (float[]) stack.getPixels( f + 1 ) )[ i ];
+			data.add( new DenseInstance( 1.0, values ) );
+		}
+
+		for( boolean manhattan : new boolean[]{ false, true } )
+		{
+			final SimpleKMeans kMeans = new SimpleKMeans();
+			kMeans.setNumClusters( 4 );
+			if( manhattan )
+				kMeans.setDistanceFunction( new ManhattanDistance() );
+			kMeans.buildClusterer( data );
+
+			for( int numThreads = 1; numThreads <= 3; numThreads++ )
+			{
+				final byte[] clusters = PixelClustering.clusterPixels( kMeans, features, numThreads );
+				final float[][] probabilities = PixelClustering.distributionForPixels( kMeans, features, numThreads );
+				for( int i = 0; i < width * height; i++ )
+				{
+					final DenseInstance ins = new DenseInstance( 1.0, features.createInstance( i % width, i / width ).toDoubleArray() );
+					ins.setDataset( data );
+					final int expected = kMeans.clusterInstance( ins );
+					assertEquals( expected, clusters[ i ] );
+					assertEquals( 1, probabilities[ expected ][ i ], 0 );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void parallelDistributionsEqualSingleThreaded() throws Exception
+	{
+		final Random random = new Random( 9 );
+		final int width = 160, height = 120, numFeatures = 4;
+		final ImageStack stack = new ImageStack( width, height );
+		final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for( int f = 0; f < numFeatures; f++ )
+		{
+			final FloatProcessor fp = new FloatProcessor( width, height );
+			for( int i = 0; i < width * height; i++ )
+				fp.setf( i, (float) ( random.nextGaussian() + ( i % 5 ) * ( f + 1 ) * 3 ) );
+			stack.addSlice( "f" + f, fp );
+			attributes.add( new Attribute( "f" + f ) );
+		}
+		final FeatureStack features = new FeatureStack( width, height, false );
+		features.setStack( stack );
+
+		final Instances data = new Instances( "features", attributes, 300 );
+		for( int n = 0; n < 300; n++ )
+		{
+			final int i = random.nextInt( width * height );
+			final double[] values = new double[ numFeatures ];
+			for( int f = 0; f < numFeatures; f++ )
+				values[ f ] = ( (float[]) stack.getPixels( f + 1 ) )[ i ];
+			data.add( new DenseInstance( 1.0, values ) );
+		}
+		// Euclidean k-means, whose pixels are clustered by nearest centroid
+		// while the distributions go through the clusterer
+		final ExclusiveKMeans kMeans = new ExclusiveKMeans();
+		kMeans.setNumClusters( 5 );
+		kMeans.buildClusterer( data );
+
+		final float[][] expected = PixelClustering.distributionForPixels( kMeans, features, 1 );
+		ExclusiveKMeans.sharedUse.set( false );
+		for( int repeat = 0; repeat < 3; repeat++ )
+		{
+			final float[][] actual = PixelClustering.distributionForPixels( kMeans, features, 8 );
+			assertEquals( expected.length, actual.length );
+			for( int k = 0; k < expected.length; k++ )
+				assertArrayEquals( expected[ k ], actual[ k ], 0 );
+		}
+		assertFalse( ExclusiveKMeans.sharedUse.get() );
+	}
+
+	/**
+	 * SimpleKMeans that records if the same object is used by several
+	 * threads at the same time (its copies are used independently)
+	 */
+	private static class ExclusiveKMeans extends SimpleKMeans
+	{
+		private static final long serialVersionUID = 1L;
+		static final AtomicBoolean sharedUse = new AtomicBoolean( false );
+		private final AtomicInteger users = new AtomicInteger( 0 );
+
+		@Override
+		public double[] distributionForInstance( Instance instance ) throws Exception
+		{
+			if( users.incrementAndGet() > 1 )
+				sharedUse.set( true );
+			try {
+				// give the other threads the chance to come in
+				Thread.yield();
+				return super.distributionForInstance( instance );
+			} finally {
+				users.decrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import ij.process.ByteProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import trainableSegmentation.utils.PixelSampler;
+
+public class PixelSamplerTest
+{
+	@Test
+	public void samplesAreDistinctAndUniform()
+	{
+		final Random random = new Random( 1 );
+		final int n = 50, k = 10, trials = 20000;
+		final int[] hits = new int[ n ];
+		for( int t = 0; t < trials; t++ )
+		{
+			final int[] samples = PixelSampler.sample( n, k, random );
+			assertEquals( k, samples.length );
+			for( int i = 0; i < k; i++ )
+			{
+				assertTrue( samples[ i ] >= 0 && samples[ i ] < n );
+				if( i > 0 )
+					assertTrue( samples[ i ] > samples[ i - 1 ] );
+				hits[ samples[ i ] ]++;
+			}
+		}
+		// every element is drawn with probability k / n
+		for( int i = 0; i < n; i++ )
+			assertEquals( (double) trials * k / n, hits[ i ], 0.1 * trials * k / n );
+
+		assertEquals( n, PixelSampler.sample( n, 2 * n, random ).length );
+	}
+
+	@Test
+	public void foregroundAndStrataSamples()
+	{
+		final Random random = new Random( 2 );
+		final ByteProcessor mask = new ByteProcessor( 30, 20 );
+		for( int i = 0; i < 600; i += 3 )
+			mask.set( i, 255 );
+
+		// without replacement when there are enough foreground pixels
+		int[] samples = PixelSampler.sampleForeground( mask, 150, random );
+		assertEquals( 150, samples.length );
+		for( int i = 0; i < samples.length; i++ )
+		{
+			assertEquals( 255, mask.get( samples[ i ] ) );
+			if( i > 0 )
+				assertTrue( samples[ i ] > samples[ i - 1 ] );
+		}
+		// with replacement otherwise
+		samples = PixelSampler.sampleForeground( mask, 500, random );
+		assertEquals( 500, samples.length );
+		for( int s : samples )
+			assertEquals( 255, mask.get( s ) );
+
+		// tiles of 16 x 16: 256, 224, 64 and 56 pixels
+		samples = PixelSampler.sampleTiles( 30, 20, 16, 60, random );
+		assertEquals( 60, samples.length );
+		final int[] perTile = new int[ 4 ];
+		for( int s : samples )
+			perTile[ ( s / 30 ) / 16 * 2 + ( s % 30 ) / 16 ]++;
+		assertEquals( 26, perTile[ 0 ] );
+		assertEquals( 22, perTile[ 1 ] );
+		assertEquals( 6, perTile[ 2 ] );
+		assertEquals( 6, perTile[ 3 ] );
+
+		// strata given by the mask, excluding half of the background
+		samples = PixelSampler.sampleStrata( 600, new PixelSampler.Strata()
+		{
+			public int getNumStrata()
+			{
+				return 2;
+			}
+			public int getStratum( int index )
+			{
+				return mask.get( index ) > 0 ? 1 : index % 2 == 0 ? 0 : -1;
+			}
+		}, 100, random );
+		int foreground = 0;
+		for( int s : samples )
+		{
+			assertTrue( mask.get( s ) > 0 || s % 2 == 0 );
+			if( mask.get( s ) > 0 )
+				foreground++;
+		}
+		// 200 foreground and 200 background candidates
+		assertEquals( 100, samples.length );
+		assertEquals( 50, foreground );
+	}
+}
@@ -0,0 +1,105 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import ij.process.FloatProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import trainableSegmentation.utils.PoolingPyramid;
+
+public class PoolingPyramidTest
+{
+	@Test
+	public void levelsEqualBlockPooling()
+	{
+		final Random random = new Random( 11 );
+		final int width = 37, height = 23;
+		final FloatProcessor image = new FloatProcessor( width, height );
+		for( int i = 0; i < width * height; i++ )
+			image.setf( i, random.nextFloat() * 100 );
+
+		for( int numThreads = 1; numThreads <= 3; numThreads++ )
+		{
+			final PoolingPyramid pyramid = new PoolingPyramid( image, 4, numThreads );
+			for( int level = 1; level <= 4; level++ )
+			{
+				final int side = 1 << level;
+				final FloatProcessor mean = pyramid.upsample( PoolingPyramid.MEAN, level );
+				for( int y = 0; y < height; y++ )
+					for( int x = 0; x < width; x++ )
+					{
+						// brute-force pooling of the block containing (x, y)
+						float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+						double sum = 0;
+						int count = 0;
+						for( int v = y / side * side; v < Math.min( height, ( y / side + 1 ) * side ); v++ )
+							for( int u = x / side * side; u < Math.min( width, ( x / side + 1 ) * side ); u++ )
+							{
+								min = Math.min( min, image.getf( u, v ) );
+								max = Math.max( max, image.getf( u, v ) );
+								sum += image.getf( u, v );
+								count++;
+							}
+						assertEquals( min, pyramid.getValue( PoolingPyramid.MIN, level, x, y ), 0 );
+						assertEquals( max, pyramid.getValue( PoolingPyramid.MAX, level, x, y ), 0 );
+						assertEquals( sum / count, mean.getf( x, y ), 1e-3 );
+					}
+			}
+		}
+	}
+
+	/**
+	 * The pyramid features are read from the levels at full resolution,
+	 * and old lists of enabled features without the pyramid are accepted
+	 */
+	@Test
+	public void featureStackReadsPyramidLevels()
+	{
+		final Random random = new Random( 3 );
+		final int width = 29, height = 19;
+		final FloatProcessor image = new FloatProcessor( width, height );
+		for( int i = 0; i < width * height; i++ )
+			image.setf( i, random.nextFloat() * 100 );
+
+		final FeatureStack fs = new FeatureStack( image );
+		final boolean[] enabled = new boolean[ FeatureStack.POOLING_PYRAMID ];
+		fs.setEnabledFeatures( enabled );
+		assertEquals( FeatureStack.availableFeatures.length, fs.getEnabledFeatures().length );
+
+		fs.getEnabledFeatures()[ FeatureStack.POOLING_PYRAMID ] = true;
+		fs.setMinimumSigma( 1 );
+		fs.setMaximumSigma( 4 );
+		assertTrue( fs.updateFeaturesMT( 2 ) );
+
+		// original image + 3 pools for sigma 1, 2 and 4
+		assertEquals( 10, fs.getSize() );
+		assertEquals( 10, fs.getStack().getSize() );
+		final PoolingPyramid pyramid = new PoolingPyramid( image, 3, 1 );
+		int n = 2;
+		for( int level = 1; level <= 3; level++ )
+			for( int p = 0; p < 3; p++, n++ )
+			{
+				assertEquals( "Pooling_pyramid_" + PoolingPyramid.poolNames[ p ]
+						+ "_" + (float) ( 1 << ( level - 1 ) ), fs.getSliceLabel( n ) );
+				final FloatProcessor upsampled = pyramid.upsample( p, level );
+				for( int i = 0; i < width * height; i++ )
+					assertEquals( upsampled.getf( i ), fs.getProcessor( n ).getf( i ), 0 );
+			}
+		for( int y = 0; y < height; y++ )
+			for( int x = 0; x < width; x++ )
+			{
+				final double[] values = fs.createInstance( x, y, 0 ).toDoubleArray();
+				for( int z = 1; z < fs.getSize(); z++ )
+					assertEquals( fs.getProcessor( z + 1 ).getf( x, y ), values[ z ], 0 );
+			}
+
+		fs.removeFeature( "Pooling_pyramid_Max_2.0" );
+		assertEquals( 9, fs.getSize() );
+		assertEquals( "Pooling_pyramid_Mean_2.0", fs.getSliceLabel( 6 ) );
+		assertEquals( pyramid.getValue( PoolingPyramid.MEAN, 2, 5, 7 ),
+				fs.createInstance( 5, 7, 0 ).value( 5 ), 0 );
+	}
+}
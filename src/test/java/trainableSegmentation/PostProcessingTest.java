@@ -0,0 +1,154 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import trainableSegmentation.utils.PostProcessing;
+import trainableSegmentation.utils.Utils;
+
+public class PostProcessingTest
+{
+	@Test
+	public void openCloseEqualsBruteForce()
+	{
+		final Random random = new Random( 7 );
+		final int width = 41, height = 33;
+		final FloatProcessor fp = new FloatProcessor( width, height );
+		for( int i = 0; i < width * height; i++ )
+			fp.setf( i, random.nextFloat() );
+
+		for( int radius = 0; radius <= 2; radius++ )
+		{
+			boolean[] expected = new boolean[ width * height ];
+			for( int i = 0; i < expected.length; i++ )
+				expected[ i ] = fp.getf( i ) > 0.4;
+			expected = filter( filter( filter( filter( expected, width, height, radius, true ),
+					width, height, radius, false ), width, height, radius, false ),
+					width, height, radius, true );
+
+			for( int numThreads = 1; numThreads <= 4; numThreads++ )
+			{
+				final byte[] result = (byte[]) PostProcessing.apply(
+						fp, 0.4, radius, 0, false, numThreads ).getPixels();
+				for( int i = 0; i < expected.length; i++ )
+					assertEquals( expected[ i ], result[ i ] != 0 );
+			}
+		}
+	}
+
+	@Test
+	public void smallObjectsAndHoles()
+	{
+		final ByteProcessor image = new ByteProcessor( 12, 9 );
+		// 3x3 object, 5x5 object with a 1-pixel hole, hole open to the border
+		image.setRoi( 1, 1, 3, 3 );
+		image.setValue( 255 );
+		image.fill();
+		image.setRoi( 6, 2, 5, 5 );
+		image.fill();
+		image.set( 8, 4, 0 );
+		image.set( 0, 8, 255 );
+
+		final byte[] mask = (byte[]) image.getPixels();
+		final byte[] original = mask.clone();
+
+		assertEquals( 10, PostProcessing.removeSmallObjects( mask, 12, 9, 10, 2 ) );
+		assertEquals( 1, PostProcessing.fillHoles( mask, 12, 9, 2 ) );
+
+		final byte[] expected = new byte[ original.length ];
+		for( int y = 2; y < 7; y++ )
+			for( int x = 6; x < 11; x++ )
+				expected[ y * 12 + x ] = (byte) 255;
+		assertArrayEquals( expected, mask );
+	}
+
+	@Test
+	public void dilationEqualsBruteForce()
+	{
+		final Random random = new Random( 9 );
+		final int width = 37, height = 29;
+		final byte[] mask = new byte[ width * height ];
+		final boolean[] in = new boolean[ mask.length ];
+		for( int i = 0; i < mask.length; i++ )
+			if( random.nextInt( 10 ) == 0 )
+			{
+				mask[ i ] = (byte) 255;
+				in[ i ] = true;
+			}
+		for( int radius = 1; radius <= 3; radius++ )
+		{
+			final boolean[] expected = filter( in, width, height, radius, false );
+			for( int numThreads = 1; numThreads <= 3; numThreads++ )
+			{
+				final byte[] result = PostProcessing.dilate( mask, width, height, radius, numThreads );
+				for( int i = 0; i < expected.length; i++ )
+					assertEquals( expected[ i ], result[ i ] != 0 );
+			}
+		}
+	}
+
+	@Test
+	public void binaryPostProcessMatchesSeparatePasses()
+	{
+		final Random random = new Random( 4 );
+		final int width = 80, height = 60;
+		final FloatProcessor noise = new FloatProcessor( width, height );
+		for( int i = 0; i < width * height; i++ )
+			noise.setf( i, random.nextFloat() );
+		noise.blurGaussian( 2 );
+
+		for( double threshold : new double[]{ 0.3, 0.5, 0.7 } )
+		{
+			final FloatProcessor actual = (FloatProcessor) noise.duplicate();
+			Utils.postProcess( actual, 2, threshold, 15, true );
+
+			// previous implementation, with the separate passes of Utils
+			final FloatProcessor expected = (FloatProcessor) noise.duplicate();
+			final GaussianBlur gb = new GaussianBlur();
+			gb.blurGaussian( expected, 2 );
+			Utils.normalize01( expected );
+			Utils.erode( expected );
+			Utils.filterSmallObjectsAndHoles( expected, threshold, 15 );
+			for( int i = 0; i < 2; i++ )
+				gb.blurGaussian( expected, 2 );
+			Utils.normalize01( expected );
+			Utils.filterSmallObjectsAndHoles( expected, threshold, 15 );
+			final float[] pixels = (float[]) expected.getPixels();
+			for( int i = 0; i < pixels.length; i++ )
+				pixels[ i ] = pixels[ i ] > threshold ? 1.0f : 0.0f;
+			Utils.dilate( expected );
+			Utils.normalize01( expected );
+
+			assertArrayEquals( pixels, (float[]) actual.getPixels(), 0 );
+		}
+	}
+
+	/** Brute-force erosion/dilation with a square clipped at the borders */
+	private static boolean[] filter(
+			final boolean[] in,
+			final int width,
+			final int height,
+			final int radius,
+			final boolean erode )
+	{
+		final boolean[] out = new boolean[ in.length ];
+		for( int y = 0; y < height; y++ )
+			for( int x = 0; x < width; x++ )
+			{
+				boolean value = erode;
+				for( int v = Math.max( 0, y - radius ); v <= Math.min( height - 1, y + radius ); v++ )
+					for( int u = Math.max( 0, x - radius ); u <= Math.min( width - 1, x + radius ); u++ )
+						if( in[ v * width + u ] != erode )
+							value = !erode;
+				out[ y * width + x ] = value;
+			}
+		return out;
+	}
+}
@@ -0,0 +1,135 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+import org.junit.Test;
+
+import trainableSegmentation.utils.PrincipalComponentAnalysis;
+import weka.core.Instances;
+
+public class PrincipalComponentAnalysisTest
+{
+	@Test
+	public void componentsEqualSingularVectorsOfPatches()
+	{
+		final Random random = new Random( 2 );
+		final int width = 37, height = 29, patchSize = 3, step = 2;
+		final ImageStack stack = new ImageStack( width, height );
+		for( int s = 0; s < 2; s++ )
+		{
+			final FloatProcessor fp = new FloatProcessor( width, height );
+			for( int y = 0; y < height; y++ )
+				for( int x = 0; x < width; x++ )
+					fp.setf( x, y, (float) ( Math.sin( x * 0.7 ) * 3 + y * 0.2 + random.nextGaussian() ) );
+			stack.addSlice( "" + s, fp );
+		}
+		final ImagePlus image = new ImagePlus( "test", stack );
+
+		// patch matrix
+		final int rows = ( ( width - patchSize ) / step + 1 ) * ( ( height - patchSize ) / step + 1 ) * 2;
+		final double[][] matrix = new double[ rows ][ patchSize * patchSize ];
+		int n = 0;
+		for( int s = 1; s <= 2; s++ )
+			for( int y = 0; y <= height - patchSize; y += step )
+				for( int x = 0; x <= width - patchSize; x += step, n++ )
+					for( int l = 0; l < patchSize * patchSize; l++ )
+						matrix[ n ][ l ] = stack.getProcessor( s ).getf( x + l % patchSize, y + l / patchSize );
+		final RealMatrix v = new SingularValueDecomposition( new Array2DRowRealMatrix( matrix ) ).getV();
+
+		for( int numThreads = 1; numThreads <= 3; numThreads++ )
+		{
+			final ImageStack components = PrincipalComponentAnalysis.getPrincipalComponents(
+					image, patchSize, step, 3, numThreads ).getImageStack();
+			assertEquals( 3, components.getSize() );
+			for( int c = 0; c < 3; c++ )
+			{
+				// same direction up to the sign
+				double dot = 0;
+				for( int l = 0; l < patchSize * patchSize; l++ )
+					dot += components.getProcessor( c + 1 ).getf( l ) * v.getEntry( l, c );
+				assertEquals( 1, Math.abs( dot ), 1e-4 );
+			}
+		}
+	}
+
+	/**
+	 * The PCA filters learned from an image are stored in the classifier
+	 * header and used to compute the features of other images
+	 */
+	@Test
+	public void pcaFiltersAreStoredInHeader()
+	{
+		final FeatureStack trained = computePCAFeatures( makeImage( 61, 47, 4 ), null );
+		assertEquals( 1 + 8, trained.getSize() );
+		assertEquals( "PCA_filters_9_0", trained.getSliceLabel( 2 ) );
+		final ImageStack kernels = trained.getPCAKernels();
+		assertNotNull( kernels );
+
+		final Instances header = FeatureStack.storePCAKernels( trained.createInstances(
+				new ArrayList<String>( Arrays.asList( "class 1", "class 2" ) ) ),
+				kernels );
+		final ImageStack read = FeatureStack.readPCAKernels( header );
+		assertEquals( kernels.getSize(), read.getSize() );
+		for( int i = 1; i <= kernels.getSize(); i++ )
+			for( int j = 0; j < 81; j++ )
+				assertEquals( kernels.getProcessor( i ).getf( j ), read.getProcessor( i ).getf( j ), 0 );
+
+		// another image uses the stored filters
+		final FloatProcessor other = makeImage( 43, 38, 9 );
+		final FeatureStack expected = computePCAFeatures( other, kernels );
+		final FeatureStack actual = computePCAFeatures( other, read );
+		final FeatureStack learned = computePCAFeatures( other, null );
+		double difference = 0;
+		for( int s = 2; s <= actual.getSize(); s++ )
+			for( int i = 0; i < 43 * 38; i++ )
+			{
+				assertEquals( expected.getProcessor( s ).getf( i ), actual.getProcessor( s ).getf( i ), 0 );
+				difference += Math.abs( learned.getProcessor( s ).getf( i ) - actual.getProcessor( s ).getf( i ) );
+			}
+		assertTrue( difference > 0 );
+	}
+
+	/** the errors when learning the filters are not swallowed */
+	@Test( expected = RuntimeException.class )
+	public void pcaFiltersFailOnSmallImage()
+	{
+		final FeatureStack fs = new FeatureStack( makeImage( 5, 5, 1 ) );
+		fs.addPCAFilters( 9, 9, 8 );
+	}
+
+	private static FeatureStack computePCAFeatures( final FloatProcessor image,
+			final ImageStack kernels )
+	{
+		final boolean[] enabled = new boolean[ FeatureStack.availableFeatures.length ];
+		enabled[ FeatureStack.PCA_FILTERS ] = true;
+		final FeatureStack fs = new FeatureStack( image );
+		fs.setEnabledFeatures( enabled );
+		fs.setMembranePatchSize( 9 );
+		fs.setPCAKernels( kernels );
+		assertTrue( fs.updateFeaturesMT( 2 ) );
+		return fs;
+	}
+
+	private static FloatProcessor makeImage( final int width, final int height,
+			final long seed )
+	{
+		final Random random = new Random( seed );
+		final FloatProcessor fp = new FloatProcessor( width, height );
+		for( int y = 0; y < height; y++ )
+			for( int x = 0; x < width; x++ )
+				fp.setf( x, y, (float) ( Math.sin( x * 0.5 + seed ) * 3 + Math.cos( y * 0.3 ) + random.nextGaussian() ) );
+		return fp;
+	}
+}
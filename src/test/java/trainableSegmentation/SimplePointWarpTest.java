@@ -0,0 +1,228 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import ij.ImagePlus;
+import ij.gui.OvalRoi;
+import ij.process.Blitter;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Test;
+import org.scijava.vecmath.Point3f;
+
+import trainableSegmentation.metrics.WarpingError;
+import trainableSegmentation.metrics.WarpingResults;
+
+public class SimplePointWarpTest
+{
+	@Test
+	public void warpingMatchesPreviousImplementation()
+	{
+		final WarpingError metric = new WarpingError( null, null );
+		int numFlipped = 0;
+		for( int seed = 0; seed < 6; seed++ )
+		{
+			final Random random = new Random( seed );
+			final FloatProcessor target = smoothNoise( 60, 45, random );
+			final FloatProcessor source = smoothNoise( 60, 45, random );
+			for( int i = 0; i < source.getPixelCount(); i++ )
+				source.setf( i, 0.6f * target.getf( i ) + 0.4f * source.getf( i ) > 0.5f ? 1 : 0 );
+			ImageProcessor mask = null;
+			if( seed % 2 == 1 )
+			{
+				mask = new ByteProcessor( 60, 45 );
+				mask.setValue( 255 );
+				mask.fill( new OvalRoi( 5, 5, 45, 35 ) );
+			}
+
+			final WarpingResults expected = referenceSimplePointWarp2d( metric,
+					source, target, mask, 0.5 );
+			final WarpingResults actual = metric.simplePointWarp2d(
+					source, target, mask, 0.5 );
+
+			assertEquals( expected.warpingError, actual.warpingError, 0 );
+			final ImageProcessor expectedIp = expected.warpedSource.getProcessor();
+			final ImageProcessor actualIp = actual.warpedSource.getProcessor();
+			for( int i = 0; i < source.getPixelCount(); i++ )
+			{
+				assertEquals( expectedIp.getf( i ), actualIp.getf( i ), 0 );
+				if( expectedIp.getf( i ) != source.getf( i ) )
+					numFlipped ++;
+			}
+			assertEquals( expected.mismatches.size(), actual.mismatches.size() );
+			for( int i = 0; i < expected.mismatches.size(); i++ )
+				assertEquals( expected.mismatches.get( i ), actual.mismatches.get( i ) );
+		}
+		assertTrue( numFlipped > 0 );
+	}
+
+	/** blurred uniform noise normalized to [0, 1] */
+	private static FloatProcessor smoothNoise( int width, int height, Random random )
+	{
+		final FloatProcessor fp = new FloatProcessor( width, height );
+		for( int i = 0; i < width * height; i++ )
+			fp.setf( i, random.nextFloat() );
+		fp.blurGaussian( 3 );
+		fp.resetMinAndMax();
+		final double min = fp.getMin(), max = fp.getMax();
+		for( int i = 0; i < width * height; i++ )
+			fp.setf( i, (float) ( ( fp.getf( i ) - min ) / ( max - min ) ) );
+		return fp;
+	}
+
+	/**
+	 * WarpingError.simplePointWarp2d before the lookup table and worklist
+	 * rewrite (the simple point threshold was 0), used as reference
+	 */
+	private static WarpingResults referenceSimplePointWarp2d(
+			final WarpingError metric,
+			final ImageProcessor source,
+			final ImageProcessor target,
+			final ImageProcessor mask,
+			double binaryThreshold)
+	{
+		if(binaryThreshold < 0 || binaryThreshold > 1.01)
+			binaryThreshold = 0.5;
+
+		final ImagePlus targetReal;
+		final ImagePlus targetBin;
+		final ImagePlus sourceReal;
+		final ImagePlus maskReal;
+
+		final int width = target.getWidth();
+		final int height = target.getHeight();
+
+		// Resize canvas to avoid checking the borders
+		ImageProcessor ip = target.createProcessor(width+2, height+2);
+		ip.insert(target, 1, 1);
+		targetReal = new ImagePlus("target_real", ip.duplicate());
+
+		targetBin = new ImagePlus("target_aux", ip.duplicate());
+
+		ip = target.createProcessor(width+2, height+2);
+		ip.insert(source, 1, 1);
+		sourceReal = new ImagePlus("source_real", ip.duplicate());
+
+		if(null != mask)
+		{
+			ip = target.createProcessor(width+2, height+2);
+			ip.insert(mask, 1, 1);
+			maskReal = new ImagePlus("mask_real", ip.duplicate());
+		}
+		else{
+			maskReal = null;
+		}
+
+		// make sure source and target are binary images
+		final float[] sourceRealPix = (float[])sourceReal.getProcessor().getPixels();
+		for(int i=0; i < sourceRealPix.length; i++)
+			if(sourceRealPix[i] > 0)
+				sourceRealPix[i] = 1.0f;
+
+		final float[] targetBinPix = (float[])targetBin.getProcessor().getPixels();
+		for(int i=0; i < targetBinPix.length; i++)
+			targetBinPix[i] = (targetBinPix[i] <= binaryThreshold) ? 0.0f : 1.0f;
+
+		double diff = Double.MIN_VALUE;
+		double diff_before = 0;
+
+		final WarpingResults result = new WarpingResults();
+
+		while(true)
+		{
+			ImageProcessor missclass_points_image = sourceReal.getProcessor().duplicate();
+			missclass_points_image.copyBits(targetBin.getProcessor(), 0, 0, Blitter.DIFFERENCE);
+
+			diff_before = diff;
+
+			// Count mismatches
+			float[] pixels = (float[]) missclass_points_image.getPixels();
+			float[] mask_pixels = (null != maskReal) ? (float[]) maskReal.getProcessor().getPixels() : new float[pixels.length];
+			if(null == maskReal)
+				Arrays.fill(mask_pixels, 1f);
+
+			diff = 0;
+			for(int k = 0; k < pixels.length; k++)
+				if(pixels[k] != 0 && mask_pixels[k] != 0)
+					diff ++;
+
+			if( diff == 0 )
+			{
+				result.mismatches = new ArrayList<Point3f>();
+				break;
+			}
+			if(diff == diff_before)
+				break;
+
+			final ArrayList<Point3f> mismatches = new ArrayList<Point3f>();
+
+			final float[] realTargetPix = (float[])targetReal.getProcessor().getPixels();
+
+			// Sort mismatches by the absolute value of the target pixel value - threshold
+			for(int x = 1; x < width+1; x++)
+				for(int y = 1; y < height+1; y++)
+				{
+					if(pixels[x+y*(width+2)] != 0 && mask_pixels[x+y*(width+2)] != 0)
+						mismatches.add(new Point3f(x , y , (float) Math.abs( realTargetPix[x+y*(width+2)] - binaryThreshold) ));
+				}
+
+			// Sort mismatches in descending order
+			if( mismatches.size() > 1 )
+				Collections.sort(mismatches,  new Comparator<Point3f>() {
+					public int compare( Point3f o1, Point3f o2 ) {
+						return Float.compare( o2.z, o1.z );
+					}});
+
+			// Process mismatches
+			for(final Point3f p : mismatches)
+			{
+				final int x = (int) p.x;
+				final int y = (int) p.y;
+
+				if(p.z < 0)
+					continue;
+
+				double[] val = new double[]{
+						sourceRealPix[ (x-1) + (y-1) * (width+2) ],
+						sourceRealPix[ (x  ) + (y-1) * (width+2) ],
+						sourceRealPix[ (x+1) + (y-1) * (width+2) ],
+						sourceRealPix[ (x-1) + (y  ) * (width+2) ],
+						sourceRealPix[ (x  ) + (y  ) * (width+2) ],
+						sourceRealPix[ (x+1) + (y  ) * (width+2) ],
+						sourceRealPix[ (x-1) + (y+1) * (width+2) ],
+						sourceRealPix[ (x  ) + (y+1) * (width+2) ],
+						sourceRealPix[ (x+1) + (y+1) * (width+2) ]
+				};
+
+				final double pix = val[4];
+
+				final ImagePlus patch = new ImagePlus("patch", new FloatProcessor(3,3,val));
+				if( metric.simple2DBertrand(patch, 4) )
+					sourceRealPix[ x + y * (width+2)] =  pix > 0.0 ? 0.0f : 1.0f ;
+			}
+			result.mismatches = mismatches;
+		}
+
+		ip = source.createProcessor(width, height);
+		ip.insert(sourceReal.getProcessor(), -1, -1);
+		sourceReal.setProcessor(ip.duplicate());
+
+		// Adjust mismatches coordinates
+		final ArrayList<Point3f> mismatches = new ArrayList<Point3f>();
+		for(Point3f p : result.mismatches)
+			mismatches.add(new Point3f( p.x - 1, p.y - 1, p.z));
+
+		result.mismatches = mismatches;
+		result.warpedSource = sourceReal;
+		result.warpingError = diff / (width * height);
+		return result;
+	}
+}
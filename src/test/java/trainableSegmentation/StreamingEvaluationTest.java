@@ -0,0 +1,117 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertEquals;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.ResultsTable;
+import ij.process.FloatProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import trainableSegmentation.metrics.ClassificationStatistics;
+import trainableSegmentation.metrics.InformationStatistics;
+import trainableSegmentation.metrics.PixelError;
+import trainableSegmentation.metrics.RandError;
+import trainableSegmentation.metrics.StreamingEvaluation;
+import trainableSegmentation.metrics.VariationOfInformation;
+
+public class StreamingEvaluationTest
+{
+	private static final double THRESHOLD = 0.5;
+
+	@Test
+	public void streamingStatsMatchStackMetrics()
+	{
+		final ImagePlus labels = makeLabels();
+		final ImagePlus proposal = makeProposal( labels );
+		final StreamingEvaluation se = new StreamingEvaluation( THRESHOLD );
+		se.setVerboseMode( false );
+		for( int s = 1; s <= labels.getImageStackSize(); s++ )
+			se.addSlice( "slice " + s, labels.getImageStack().getProcessor( s ),
+					proposal.getImageStack().getProcessor( s ) );
+		assertEquals( labels.getImageStackSize(), se.getNumSlices() );
+
+		assertSameStats( new PixelError( labels, proposal )
+				.getPrecisionRecallStats( THRESHOLD ), se.getPixelErrorStats() );
+		assertSameStats( new RandError( labels, proposal )
+				.getForegroundRestrictedRandIndexStats( THRESHOLD ),
+				se.getForegroundRestrictedRandIndexStats() );
+
+		final VariationOfInformation vi = new VariationOfInformation( labels, proposal );
+		final InformationStatistics[] expected =
+				vi.getForegroundRestrictedStatsPerSlice( THRESHOLD );
+		final ResultsTable rt = se.getResultsPerSlice();
+		double viSum = 0;
+		for( int i = 0; i < expected.length; i++ )
+		{
+			assertEquals( "slice " + ( i + 1 ), rt.getStringValue( "Label", i ) );
+			assertEquals( expected[ i ].vi, rt.getValue( "VI", i ), 1e-12 );
+			assertEquals( expected[ i ].fScore, rt.getValue( "VI F-score", i ), 1e-12 );
+			viSum += expected[ i ].vi;
+		}
+		assertEquals( vi.getForegroundRestrictedMetricValue( THRESHOLD ),
+				se.getForegroundRestrictedVIStats().vi, 1e-12 );
+		assertEquals( viSum / expected.length,
+				se.getForegroundRestrictedVIStats().vi, 1e-12 );
+	}
+
+	@Test
+	public void emptyEvaluationHasNoUndefinedValues()
+	{
+		final StreamingEvaluation se = new StreamingEvaluation( THRESHOLD );
+		assertEquals( 0, se.getNumSlices() );
+		assertEquals( 0, se.getPixelErrorStats().metricValue, 0 );
+		assertEquals( 0, se.getForegroundRestrictedRandIndexStats().metricValue, 0 );
+		final InformationStatistics is = se.getForegroundRestrictedVIStats();
+		assertEquals( 0, is.vi, 0 );
+		assertEquals( 0, is.precision, 0 );
+		assertEquals( 0, is.recall, 0 );
+		assertEquals( 0, is.fScore, 0 );
+	}
+
+	private static void assertSameStats( final ClassificationStatistics expected,
+			final ClassificationStatistics actual )
+	{
+		assertEquals( expected.truePositives, actual.truePositives, 0 );
+		assertEquals( expected.trueNegatives, actual.trueNegatives, 0 );
+		assertEquals( expected.falsePositives, actual.falsePositives, 0 );
+		assertEquals( expected.falseNegatives, actual.falseNegatives, 0 );
+		assertEquals( expected.metricValue, actual.metricValue, 1e-12 );
+		assertEquals( expected.fScore, actual.fScore, 1e-12 );
+	}
+
+	/** binary ground truth with several blobs per slice */
+	private static ImagePlus makeLabels()
+	{
+		final ImageStack stack = new ImageStack( 40, 30 );
+		for( int s = 0; s < 3; s++ )
+		{
+			final FloatProcessor fp = new FloatProcessor( 40, 30 );
+			for( int y = 0; y < 30; y++ )
+				for( int x = 0; x < 40; x++ )
+					if( ( x / 8 + y / 6 + s ) % 2 == 0 )
+						fp.setf( x, y, 1 );
+			stack.addSlice( "", fp );
+		}
+		return new ImagePlus( "labels", stack );
+	}
+
+	/** noisy probabilities that roughly follow the ground truth */
+	private static ImagePlus makeProposal( final ImagePlus labels )
+	{
+		final Random random = new Random( 7 );
+		final ImageStack stack = new ImageStack( 40, 30 );
+		for( int s = 1; s <= labels.getImageStackSize(); s++ )
+		{
+			final FloatProcessor fp = new FloatProcessor( 40, 30 );
+			for( int i = 0; i < 40 * 30; i++ )
+				fp.setf( i, (float) Math.min( 0.95, Math.max( 0.05,
+						0.6 * labels.getImageStack().getProcessor( s ).getf( i )
+						+ 0.4 * random.nextDouble() ) ) );
+			stack.addSlice( "", fp );
+		}
+		return new ImagePlus( "proposal", stack );
+	}
+}
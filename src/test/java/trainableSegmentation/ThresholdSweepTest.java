@@ -0,0 +1,130 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertEquals;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import trainableSegmentation.metrics.ClassificationStatistics;
+import trainableSegmentation.metrics.PixelError;
+import trainableSegmentation.metrics.RandError;
+import trainableSegmentation.metrics.VariationOfInformation;
+
+public class ThresholdSweepTest
+{
+	private static final double MIN = 0.0;
+	private static final double MAX = 1.0;
+	private static final double STEP = 0.1;
+
+	@Test
+	public void randStatsMatchPerThresholdLoop()
+	{
+		final RandError metric = new RandError( makeLabels(), makeProposal() );
+		final ArrayList<ClassificationStatistics> sweep =
+				metric.getRandIndexStats( MIN, MAX, STEP );
+		int k = 0;
+		for( double th = MIN; th <= MAX; th += STEP, k++ )
+			assertSameStats( metric.getRandIndexStats( th ), sweep.get( k ) );
+		assertEquals( k, sweep.size() );
+	}
+
+	@Test
+	public void pixelStatsMatchPerThresholdLoop()
+	{
+		final PixelError metric = new PixelError( makeLabels(), makeProposal() );
+		final ArrayList<ClassificationStatistics> sweep =
+				metric.getPrecisionRecallStats( MIN, MAX, STEP );
+		int k = 0;
+		for( double th = MIN; th <= MAX; th += STEP, k++ )
+			assertSameStats( metric.getPrecisionRecallStats( th ), sweep.get( k ) );
+		assertEquals( k, sweep.size() );
+	}
+
+	@Test
+	public void informationFscoresMatchPerThresholdLoop()
+	{
+		// the lowest and highest thresholds leave a single proposal
+		// cluster, and the last slice has a single ground truth cluster
+		final VariationOfInformation metric =
+				new VariationOfInformation( makeLabels(), makeProposal() );
+		final ArrayList<Double> sweep = metric.getFscores( MIN, MAX, STEP );
+		int k = 0;
+		for( double th = MIN; th <= MAX; th += STEP, k++ )
+			assertEquals( metric.getFscore( th ), sweep.get( k ), 1e-9 );
+		assertEquals( k, sweep.size() );
+	}
+
+	@Test
+	public void randStatsMatchWithManyComponents()
+	{
+		// binary noise as ground truth, so the proposal components are
+		// merged incrementally with thousands of contingency table cells
+		final Random random = new Random( 11 );
+		final FloatProcessor labels = new FloatProcessor( 200, 150 );
+		final FloatProcessor proposal = new FloatProcessor( 200, 150 );
+		for( int i = 0; i < 200 * 150; i++ )
+		{
+			labels.setf( i, random.nextInt( 2 ) );
+			proposal.setf( i, random.nextFloat() );
+		}
+		final RandError metric = new RandError( new ImagePlus( "labels", labels ),
+				new ImagePlus( "proposal", proposal ) );
+		final ArrayList<ClassificationStatistics> sweep =
+				metric.getRandIndexStats( MIN, MAX, STEP );
+		int k = 0;
+		for( double th = MIN; th <= MAX; th += STEP, k++ )
+			assertSameStats( metric.getRandIndexStats( th ), sweep.get( k ) );
+		assertEquals( k, sweep.size() );
+	}
+
+	private static void assertSameStats( final ClassificationStatistics expected,
+			final ClassificationStatistics actual )
+	{
+		assertEquals( expected.truePositives, actual.truePositives, 0 );
+		assertEquals( expected.trueNegatives, actual.trueNegatives, 0 );
+		assertEquals( expected.falsePositives, actual.falsePositives, 0 );
+		assertEquals( expected.falseNegatives, actual.falseNegatives, 0 );
+		assertEquals( expected.metricValue, actual.metricValue, 1e-12 );
+		assertEquals( expected.fScore, actual.fScore, 1e-12 );
+	}
+
+	/** binary ground truth: blobs on the first slices, empty last slice */
+	private static ImagePlus makeLabels()
+	{
+		final ImageStack stack = new ImageStack( 40, 30 );
+		for( int s = 0; s < 3; s++ )
+		{
+			final FloatProcessor fp = new FloatProcessor( 40, 30 );
+			if( s < 2 )
+				for( int y = 0; y < 30; y++ )
+					for( int x = 0; x < 40; x++ )
+						if( ( x / 8 + y / 6 + s ) % 2 == 0 )
+							fp.setf( x, y, 1 );
+			stack.addSlice( "", fp );
+		}
+		return new ImagePlus( "labels", stack );
+	}
+
+	/** noisy probabilities that roughly follow the ground truth */
+	private static ImagePlus makeProposal()
+	{
+		final Random random = new Random( 5 );
+		final ImageStack labels = makeLabels().getImageStack();
+		final ImageStack stack = new ImageStack( 40, 30 );
+		for( int s = 1; s <= 3; s++ )
+		{
+			final FloatProcessor fp = new FloatProcessor( 40, 30 );
+			for( int i = 0; i < 40 * 30; i++ )
+				fp.setf( i, (float) Math.min( 0.95, Math.max( 0.05,
+						0.6 * labels.getProcessor( s ).getf( i )
+						+ 0.4 * random.nextDouble() ) ) );
+			stack.addSlice( "", fp );
+		}
+		return new ImagePlus( "proposal", stack );
+	}
+}
@@ -0,0 +1,72 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import hr.irb.fastRandomForest.FastRandomForest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+public class TrainingMatrixTest
+{
+	@Test
+	public void forestFromMatrixMatchesForestFromInstances() throws Exception
+	{
+		final Instances data = makeTestData();
+		final TrainingMatrix matrix = new TrainingMatrix( data );
+		matrix.addInstances( data );
+		assertEquals( data.numInstances(), matrix.getNumSamples() );
+
+		final FastRandomForest expected = new FastRandomForest();
+		expected.setNumTrees( 20 );
+		expected.buildClassifier( data );
+
+		final FastRandomForest actual = new FastRandomForest();
+		actual.setNumTrees( 20 );
+		actual.buildClassifier( matrix.getHeader(), matrix.getAttributeValues(),
+				matrix.getClassValues(), matrix.getWeights() );
+
+		for( final Instance instance : data )
+			assertArrayEquals( expected.distributionForInstance( instance ),
+					actual.distributionForInstance( instance ), 0 );
+		assertArrayEquals( expected.getFeatureImportances(),
+				actual.getFeatureImportances(), 0 );
+
+		// the training values are left untouched
+		final Instances back = matrix.toInstances();
+		for( int i = 0; i < data.numInstances(); i++ )
+			assertArrayEquals( data.instance( i ).toDoubleArray(),
+					back.instance( i ).toDoubleArray(), 1e-6 );
+	}
+
+	private static Instances makeTestData()
+	{
+		final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for( int i = 0; i < 5; i++ )
+			attributes.add( new Attribute( "feature " + i ) );
+		attributes.add( new Attribute( "class",
+				Arrays.asList( "class 1", "class 2", "class 3" ) ) );
+		final Instances data = new Instances( "segment", attributes, 0 );
+		data.setClassIndex( data.numAttributes() - 1 );
+
+		final Random random = new Random( 7 );
+		for( int i = 0; i < 400; i++ )
+		{
+			final double[] values = new double[ data.numAttributes() ];
+			for( int j = 0; j < values.length - 1; j++ )
+				values[ j ] = (float) random.nextGaussian();
+			values[ values.length - 1 ] = values[ 0 ] + values[ 1 ] > 0 ? 0
+					: ( values[ 2 ] > 0 ? 1 : 2 );
+			data.add( new DenseInstance( 1.0, values ) );
+		}
+		return data;
+	}
+}
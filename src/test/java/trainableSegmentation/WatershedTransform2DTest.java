@@ -0,0 +1,121 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import trainableSegmentation.utils.WatershedTransform2D;
+
+public class WatershedTransform2DTest
+{
+	@Test
+	public void twoBasinsAreSeparatedByADam()
+	{
+		// two valleys (columns 1 and 7) separated by a ridge at column 4
+		final ByteProcessor ip = new ByteProcessor( 9, 5 );
+		for( int y = 0; y < 5; y++ )
+			for( int x = 0; x < 9; x++ )
+				ip.set( x, y, Math.min( Math.abs( x - 1 ), Math.abs( x - 7 ) ) * 10 );
+
+		final ImageProcessor result = new WatershedTransform2D( ip, 4 ).apply();
+		for( int y = 0; y < 5; y++ )
+		{
+			assertEquals( 0, result.getf( 4, y ), 0 );
+			for( int x = 0; x < 4; x++ )
+				assertEquals( result.getf( 0, 0 ), result.getf( x, y ), 0 );
+			for( int x = 5; x < 9; x++ )
+				assertEquals( result.getf( 8, 0 ), result.getf( x, y ), 0 );
+		}
+		assertEquals( 1, Math.abs( result.getf( 0, 0 ) - result.getf( 8, 0 ) ), 0 );
+	}
+
+	@Test
+	public void tiledWithFullHaloMatchesWholeImage()
+	{
+		final Random random = new Random( 3 );
+		final FloatProcessor ip = new FloatProcessor( 45, 38 );
+		for( int i = 0; i < 45 * 38; i++ )
+			ip.setf( i, random.nextInt( 40 ) );
+		ip.resetMinAndMax();
+
+		for( int connectivity : new int[]{ 4, 8 } )
+		{
+			final WatershedTransform2D wt = new WatershedTransform2D( ip, connectivity );
+			final float[] whole = (float[]) wt.apply().getPixels();
+			final float[] tiled = (float[]) wt.applyTiled( 16, 64, 3 ).getPixels();
+
+			// same dams and one-to-one correspondence of basins
+			final HashMap<Float, Float> map = new HashMap<Float, Float>();
+			final HashMap<Float, Float> inverse = new HashMap<Float, Float>();
+			for( int i = 0; i < whole.length; i++ )
+			{
+				assertEquals( whole[ i ] == 0, tiled[ i ] == 0 );
+				if( !map.containsKey( whole[ i ] ) )
+					map.put( whole[ i ], tiled[ i ] );
+				if( !inverse.containsKey( tiled[ i ] ) )
+					inverse.put( tiled[ i ], whole[ i ] );
+				assertEquals( map.get( whole[ i ] ), tiled[ i ], 0 );
+				assertEquals( inverse.get( tiled[ i ] ), whole[ i ], 0 );
+			}
+		}
+	}
+
+	@Test
+	public void tiledWithSmallHaloKeepsBasinsApart()
+	{
+		// cones centered on a 9-pixel grid, several basins per 20x20 tile
+		// and basins cut by the tile borders
+		final FloatProcessor ip = new FloatProcessor( 100, 80 );
+		for( int y = 0; y < 80; y++ )
+			for( int x = 0; x < 100; x++ )
+			{
+				final double dx = ( x + 3 ) % 9 - 4;
+				final double dy = ( y + 5 ) % 9 - 4;
+				ip.setf( x, y, (float) ( 10 * Math.sqrt( dx * dx + dy * dy )
+						+ 0.1 * ( ( 7 * x + 13 * y ) % 5 ) ) );
+			}
+		ip.resetMinAndMax();
+
+		for( int connectivity : new int[]{ 4, 8 } )
+			for( int halo : new int[]{ 2, 3, 4 } )
+			{
+				final WatershedTransform2D wt = new WatershedTransform2D( ip, connectivity );
+				final float[] whole = (float[]) wt.apply().getPixels();
+				final float[] tiled = (float[]) wt.applyTiled( 20, halo, 3 ).getPixels();
+
+				// no basin of the tiled result covers two basins of the
+				// whole image, and the basins cut by the borders are merged
+				final HashMap<Float, Float> map = new HashMap<Float, Float>();
+				final HashSet<Float> wholeBasins = new HashSet<Float>();
+				for( int i = 0; i < whole.length; i++ )
+				{
+					if( whole[ i ] > 0 )
+						wholeBasins.add( whole[ i ] );
+					if( whole[ i ] == 0 || tiled[ i ] == 0 )
+						continue;
+					if( !map.containsKey( tiled[ i ] ) )
+						map.put( tiled[ i ], whole[ i ] );
+					assertEquals( map.get( tiled[ i ] ), whole[ i ], 0 );
+				}
+				assertEquals( wholeBasins.size(), map.size() );
+			}
+	}
+
+	@Test
+	public void tiledRejectsInvalidParameters()
+	{
+		final FloatProcessor ip = new FloatProcessor( 10, 10 );
+		final WatershedTransform2D wt = new WatershedTransform2D( ip, 4 );
+		assertNull( wt.applyTiled( 0, 2, 1 ) );
+		assertNull( wt.applyTiled( -5, 2, 1 ) );
+		assertNull( wt.applyTiled( 4, -1, 1 ) );
+	}
+}